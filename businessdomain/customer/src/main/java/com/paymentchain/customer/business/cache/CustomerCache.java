@@ -0,0 +1,190 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.customer.business.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.paymentchain.customer.entities.Customer;
+import com.paymentchain.customer.entities.CustomerProduct;
+import com.paymentchain.customer.repository.CustomerRepository;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Near-cache of customer lookups by code and by IBAN. Customers are read on
+ * every {@code byCode} call but rarely change, so the hot set is answered from
+ * memory instead of querying the database.
+ * <p>
+ * Both caches are bounded in size and entries expire after a configurable time
+ * to live. Hit/miss/eviction statistics are published under the {@code cache}
+ * metrics with the tags {@code cache=customersByCode} and
+ * {@code cache=customersByAccount}, and the hit ratio of each cache is
+ * published as the {@code customer.cache.hit.ratio} gauge.
+ * <p>
+ * Cached customers are snapshots detached from the persistence context. Every
+ * lookup returns a fresh copy, so callers may enrich the result (product
+ * names, transactions) without altering the cached entry. Updates and deletes
+ * made through this instance invalidate the entries right away; the time to
+ * live bounds staleness for changes made through other instances.
+ */
+@Component
+public class CustomerCache {
+
+    /**
+     * Name under which the metrics of the lookups by code are published.
+     */
+    public static final String BY_CODE_CACHE_NAME = "customersByCode";
+
+    /**
+     * Name under which the metrics of the lookups by IBAN are published.
+     */
+    public static final String BY_ACCOUNT_CACHE_NAME = "customersByAccount";
+
+    /**
+     * Repository queried on cache misses.
+     */
+    private final CustomerRepository customerRepository;
+
+    /**
+     * Customers keyed by their unique code.
+     */
+    private final Cache<String, Customer> byCode;
+
+    /**
+     * Customers keyed by their IBAN.
+     */
+    private final Cache<String, Customer> byAccount;
+
+    /**
+     * Creates the caches and binds their statistics to the meter registry.
+     *
+     * @param customerRepository repository queried on cache misses
+     * @param maxSize maximum number of customers kept in each cache
+     * @param ttl time after which a cached customer is discarded
+     * @param meterRegistry registry used to publish the cache metrics
+     */
+    public CustomerCache(CustomerRepository customerRepository,
+            @Value("${customer.cache.max-size:10000}") long maxSize,
+            @Value("${customer.cache.ttl:PT5M}") Duration ttl,
+            MeterRegistry meterRegistry) {
+        this.customerRepository = customerRepository;
+        this.byCode = createCache(maxSize, ttl, BY_CODE_CACHE_NAME, meterRegistry);
+        this.byAccount = createCache(maxSize, ttl, BY_ACCOUNT_CACHE_NAME, meterRegistry);
+    }
+
+    /**
+     * Finds a customer by its unique code, querying the database only on a
+     * cache miss. Unknown codes are not cached.
+     *
+     * @param code the unique code of the customer
+     * @return a copy of the customer, with its products, or null if not found
+     */
+    public Customer findByCode(String code) {
+        return copyOf(byCode.get(code, customerRepository::findByCode));
+    }
+
+    /**
+     * Finds a customer by its IBAN, querying the database only on a cache
+     * miss. Unknown IBANs are not cached.
+     *
+     * @param iban the IBAN of the customer's account
+     * @return a copy of the customer, with its products, or null if not found
+     */
+    public Customer findByAccount(String iban) {
+        return copyOf(byAccount.get(iban, customerRepository::findByAccount));
+    }
+
+    /**
+     * Removes the entries of a customer from both caches, typically because
+     * it was updated or deleted. Must be called with the code and IBAN the
+     * customer had before the change.
+     *
+     * @param code the code of the customer, may be null
+     * @param iban the IBAN of the customer, may be null
+     */
+    public void invalidate(String code, String iban) {
+        if (code != null) {
+            byCode.invalidate(code);
+        }
+        if (iban != null) {
+            byAccount.invalidate(iban);
+        }
+    }
+
+    /**
+     * Removes every customer from both caches.
+     */
+    public void invalidateAll() {
+        byCode.invalidateAll();
+        byAccount.invalidateAll();
+    }
+
+    /**
+     * Builds one bounded, expiring cache and publishes its metrics.
+     *
+     * @param maxSize maximum number of entries
+     * @param ttl time to live of an entry
+     * @param name name used to tag the metrics
+     * @param meterRegistry registry used to publish the metrics
+     * @return the cache
+     */
+    private static Cache<String, Customer> createCache(long maxSize, Duration ttl, String name, MeterRegistry meterRegistry) {
+        Cache<String, Customer> cache = Caffeine.newBuilder()
+                .maximumSize(maxSize) // Bound the memory used by the cache
+                .expireAfterWrite(ttl) // Bound staleness of changes made by other instances
+                .recordStats() // Keep hit/miss/eviction counters for the metrics binder
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, name);
+        Gauge.builder("customer.cache.hit.ratio", cache, c -> c.stats().hitRate())
+                .tag("cache", name)
+                .description("Ratio of customer lookups answered from memory")
+                .register(meterRegistry);
+        return cache;
+    }
+
+    /**
+     * Copies a cached customer and its products, so the caller can modify the
+     * result without touching the cached snapshot.
+     *
+     * @param cached the cached customer, may be null
+     * @return the copy, or null if {@code cached} is null
+     */
+    private static Customer copyOf(Customer cached) {
+        if (cached == null) {
+            return null;
+        }
+        Customer copy = new Customer();
+        copy.setId(cached.getId());
+        copy.setName(cached.getName());
+        copy.setPhone(cached.getPhone());
+        copy.setIban(cached.getIban());
+        copy.setSurname(cached.getSurname());
+        copy.setAddress(cached.getAddress());
+        copy.setCode(cached.getCode());
+        List<CustomerProduct> products = new ArrayList<>();
+        if (cached.getProducts() != null) {
+            for (CustomerProduct cachedProduct : cached.getProducts()) {
+                CustomerProduct product = new CustomerProduct();
+                product.setId(cachedProduct.getId());
+                product.setProductId(cachedProduct.getProductId());
+                product.setCustomer(copy);
+                products.add(product);
+            }
+        }
+        copy.setProducts(products);
+        return copy;
+    }
+}
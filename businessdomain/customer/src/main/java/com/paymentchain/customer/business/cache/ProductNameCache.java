@@ -0,0 +1,187 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.customer.business.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * In-process cache of product names keyed by product id. Product names almost
+ * never change, so most enrichment requests can be answered from memory
+ * instead of calling the product service.
+ * <p>
+ * The cache is bounded in size, entries expire after a configurable time to
+ * live, and hit/miss/eviction statistics are published to the meter registry
+ * under the {@code cache} metrics with the tag {@code cache=productNames}.
+ * The product service invalidates entries when a product is updated or
+ * deleted; the time to live bounds staleness if a notification is lost.
+ * <p>
+ * Besides the fresh entries, the last known name of every product is kept in
+ * a second, larger bounded map without time to live. It is only read as a
+ * fallback while the product service is unavailable.
+ * <p>
+ * A lookup already in flight when a product is invalidated must not write the
+ * old name back: callers take a {@link #generation()} before fetching and
+ * pass it to {@link #putAll(Map, long)}, which skips the names invalidated
+ * since.
+ */
+@Component
+public class ProductNameCache {
+
+    /**
+     * Name under which the cache metrics are published.
+     */
+    public static final String CACHE_NAME = "productNames";
+
+    /**
+     * Underlying Caffeine cache mapping product id to product name.
+     */
+    private final Cache<Long, String> cache;
+
+    /**
+     * Last known name of each product, served when the product service is
+     * unavailable even if the fresh entry already expired.
+     */
+    private final Cache<Long, String> lastKnown;
+
+    /**
+     * Generation at which each recently invalidated product was invalidated,
+     * kept as long as a cached name lives.
+     */
+    private final Cache<Long, Long> invalidatedAt;
+
+    /**
+     * Incremented by every invalidation.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * Generation of the last invalidation of every product.
+     */
+    private volatile long allInvalidatedAt;
+
+    /**
+     * Creates the cache and binds its statistics to the meter registry.
+     *
+     * @param maxSize maximum number of product names kept in memory
+     * @param ttl time after which a cached name is discarded
+     * @param lastKnownMaxSize maximum number of last known names kept for
+     * fallback
+     * @param meterRegistry registry used to publish the cache metrics
+     */
+    public ProductNameCache(@Value("${product.cache.max-size:10000}") long maxSize,
+            @Value("${product.cache.ttl:PT10M}") Duration ttl,
+            @Value("${product.cache.last-known-max-size:50000}") long lastKnownMaxSize,
+            MeterRegistry meterRegistry) {
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxSize) // Bound the memory used by the cache
+                .expireAfterWrite(ttl) // Refresh names periodically even without notifications
+                .recordStats() // Keep hit/miss/eviction counters for the metrics binder
+                .build();
+        this.lastKnown = Caffeine.newBuilder()
+                .maximumSize(lastKnownMaxSize) // Bounded, but without expiry
+                .build();
+        this.invalidatedAt = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl) // Lookups in flight finish long before
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, CACHE_NAME);
+    }
+
+    /**
+     * Returns the cached names of the given products.
+     *
+     * @param ids the product ids to look up
+     * @return a map holding only the ids that were found in the cache
+     */
+    public Map<Long, String> getAllPresent(Collection<Long> ids) {
+        return cache.getAllPresent(ids);
+    }
+
+    /**
+     * Returns the current generation, to be taken before fetching names that
+     * will be stored with {@link #putAll(Map, long)}.
+     *
+     * @return the number of invalidations so far
+     */
+    public long generation() {
+        return generation.get();
+    }
+
+    /**
+     * Stores the given product names in the cache, except those of products
+     * invalidated since the names were fetched: they may be outdated.
+     *
+     * @param names map from product id to product name
+     * @param fetchedAt the {@link #generation()} taken before fetching them
+     */
+    public void putAll(Map<Long, String> names, long fetchedAt) {
+        if (allInvalidatedAt > fetchedAt) {
+            return;
+        }
+        names.forEach((id, name) -> {
+            Long invalidated = invalidatedAt.getIfPresent(id);
+            if (invalidated == null || invalidated <= fetchedAt) {
+                cache.put(id, name);
+                lastKnown.put(id, name);
+            }
+        });
+        // An invalidation that ran meanwhile may have missed the names just stored
+        names.keySet().forEach(id -> {
+            Long invalidated = invalidatedAt.getIfPresent(id);
+            if (allInvalidatedAt > fetchedAt || invalidated != null && invalidated > fetchedAt) {
+                cache.invalidate(id);
+                lastKnown.invalidate(id);
+            }
+        });
+    }
+
+    /**
+     * Returns the last known name of a product, regardless of whether the
+     * fresh entry expired. Intended as a fallback while the product service
+     * is unavailable.
+     *
+     * @param id the product id to look up
+     * @return the last known name, or null if the product was never resolved
+     * or was invalidated
+     */
+    public String getLastKnown(long id) {
+        return lastKnown.getIfPresent(id);
+    }
+
+    /**
+     * Removes a product name from the cache, typically because the product
+     * was updated or deleted.
+     *
+     * @param id the id of the product to invalidate
+     */
+    public void invalidate(long id) {
+        invalidatedAt.put(id, generation.incrementAndGet());
+        cache.invalidate(id);
+        lastKnown.invalidate(id);
+    }
+
+    /**
+     * Removes every product name from the cache.
+     */
+    public void invalidateAll() {
+        allInvalidatedAt = generation.incrementAndGet();
+        cache.invalidateAll();
+        lastKnown.invalidateAll();
+    }
+}
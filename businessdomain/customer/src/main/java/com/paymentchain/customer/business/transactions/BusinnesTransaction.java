@@ -4,40 +4,74 @@
  */
 package com.paymentchain.customer.business.transactions;
 
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.paymentchain.customer.business.cache.CustomerCache;
+import com.paymentchain.customer.business.cache.ProductNameCache;
+import com.paymentchain.customer.common.BulkImportResult;
+import com.paymentchain.customer.common.ProductName;
 import com.paymentchain.customer.entities.Customer;
 import com.paymentchain.customer.entities.CustomerProduct;
 import com.paymentchain.customer.exception.BusinessRuleException;
 import com.paymentchain.customer.repository.CustomerRepository;
+import io.github.resilience4j.bulkhead.Bulkhead;
+import io.github.resilience4j.bulkhead.BulkheadFullException;
+import io.github.resilience4j.bulkhead.BulkheadRegistry;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import io.github.resilience4j.reactor.bulkhead.operator.BulkheadOperator;
+import io.github.resilience4j.reactor.circuitbreaker.operator.CircuitBreakerOperator;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.epoll.EpollChannelOption;
 import io.netty.handler.timeout.ReadTimeoutHandler;
 import io.netty.handler.timeout.WriteTimeoutHandler;
-import java.io.BufferedReader;
+import jakarta.annotation.PostConstruct;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.OutputStream;
 import java.net.UnknownHostException;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.core.NestedExceptionUtils;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.client.reactive.ReactorClientHttpConnector;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.reactive.function.client.WebClient;
 import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+import reactor.util.function.Tuple2;
 
 /**
  *
@@ -51,6 +85,21 @@ import reactor.netty.http.client.HttpClient;
 @Service
 public class BusinnesTransaction {
 
+    /**
+     * Name under which a missing product source is reported in a partial profile.
+     */
+    public static final String PROFILE_SOURCE_PRODUCTS = "products";
+
+    /**
+     * Name under which a missing transaction source is reported in a partial profile.
+     */
+    public static final String PROFILE_SOURCE_TRANSACTIONS = "transactions";
+
+    /**
+     * Name of the circuit breaker and bulkhead guarding the product service.
+     */
+    public static final String PRODUCT_RESILIENCE_NAME = "product";
+
     /**
      * Injects a {@link WebClient.Builder} instance to configure and create
      * WebClient objects. This is typically used for making non-blocking HTTP
@@ -65,26 +114,219 @@ public class BusinnesTransaction {
     @Autowired
     CustomerRepository customerRepository;
 
-    // Create a customized HttpClient instance.
-    HttpClient client = HttpClient.create()
-            // Set a connection timeout (in milliseconds).
-            .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 500)
-            // Enable the SO_KEEPALIVE option to keep the connection alive.
-            .option(ChannelOption.SO_KEEPALIVE, true)
-            // Specify the idle time (in seconds) before sending a keep-alive probe (Epoll only).
-            .option(EpollChannelOption.TCP_KEEPIDLE, 300)
-            // Specify the interval (in seconds) between keep-alive probes (Epoll only).
-            .option(EpollChannelOption.TCP_KEEPINTVL, 60)
-            // Set the response timeout duration.
-            .responseTimeout(Duration.ofSeconds(1))
-            // Add handlers for read and write timeouts when a connection is established.
-            .doOnConnected(connection -> {
-                // Add a handler to manage read timeout (in milliseconds).
-                connection.addHandlerLast(new ReadTimeoutHandler(5000, TimeUnit.MILLISECONDS));
-
-                // Add a handler to manage write timeout (in milliseconds).
-                connection.addHandlerLast(new WriteTimeoutHandler(5000, TimeUnit.MILLISECONDS));
-            });
+    /**
+     * Near-cache of customer lookups by code and IBAN, so the hot set of
+     * customers does not reach the database.
+     */
+    @Autowired
+    private CustomerCache customerCache;
+
+    /**
+     * In-process cache of product names, so repeated lookups of the same
+     * products do not reach the product service.
+     */
+    @Autowired
+    private ProductNameCache productNameCache;
+
+    /**
+     * Registry where the product lookup metrics are published.
+     */
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /**
+     * Application JSON mapper, used to write streamed customers.
+     */
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    /**
+     * Persistence context, used to detach streamed customers once written.
+     */
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /**
+     * Transaction manager, used to run each bulk import chunk in its own
+     * transaction.
+     */
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    // Template running each bulk import chunk in its own transaction.
+    private TransactionTemplate transactionTemplate;
+
+    /**
+     * Registry of the circuit breakers configured under
+     * {@code resilience4j.circuitbreaker.instances}.
+     */
+    @Autowired
+    private CircuitBreakerRegistry circuitBreakerRegistry;
+
+    /**
+     * Registry of the bulkheads configured under
+     * {@code resilience4j.bulkhead.instances}.
+     */
+    @Autowired
+    private BulkheadRegistry bulkheadRegistry;
+
+    /**
+     * Base URL of the product service. The default uses the service id
+     * registered in Eureka, which the load-balanced builder resolves to one of
+     * the available product instances.
+     */
+    @Value("${product.service.url:http://businessdomain-product/product}")
+    private String productServiceUrl;
+
+    /**
+     * Maximum number of product ids sent in a single batch request.
+     */
+    @Value("${product.client.batch-size:50}")
+    private int productBatchSize;
+
+    /**
+     * Maximum number of batch requests to the product service in flight at
+     * the same time for a single lookup.
+     */
+    @Value("${product.client.parallelism:4}")
+    private int productParallelism;
+
+    /**
+     * Overall time allowed to resolve the product names of a lookup.
+     */
+    @Value("${product.client.timeout:PT2S}")
+    private Duration productTimeout;
+
+    /**
+     * Maximum number of pooled connections kept by the outbound HTTP client.
+     */
+    @Value("${http.client.max-connections:50}")
+    private int maxConnections;
+
+    /**
+     * Base URL of the transaction service, resolved through Eureka.
+     */
+    @Value("${transaction.service.url:http://TRANSACTION/transaction}")
+    private String transactionServiceUrl;
+
+    /**
+     * Number of customers stored per transaction by the bulk import.
+     */
+    @Value("${customer.import.chunk-size:500}")
+    private int importChunkSize;
+
+    /**
+     * Maximum number of customers accepted by a single bulk import request.
+     */
+    @Value("${customer.import.max-rows:50000}")
+    private int importMaxRows;
+
+    /**
+     * Time allowed to resolve the product names of a full customer profile.
+     */
+    @Value("${customer.profile.products-timeout:PT1S}")
+    private Duration profileProductsTimeout;
+
+    /**
+     * Time allowed to retrieve the transactions of a full customer profile.
+     */
+    @Value("${customer.profile.transactions-timeout:PT2S}")
+    private Duration profileTransactionsTimeout;
+
+    /**
+     * Product lookups currently in flight, keyed by product id. Concurrent
+     * requests for the same product wait on the same future instead of
+     * calling the product service again.
+     */
+    private final ConcurrentHashMap<Long, CompletableFuture<String>> inFlightProductNames = new ConcurrentHashMap<>();
+
+    /**
+     * Counts product lookups served by joining a call already in flight.
+     */
+    private Counter coalescedProductLookups;
+
+    /**
+     * Counts product names served from the last known value because the
+     * product service was unavailable.
+     */
+    private Counter staleProductLookups;
+
+    /**
+     * Circuit breaker around the product service; while open, lookups fail
+     * fast and fall back to the last known names.
+     */
+    private CircuitBreaker productCircuitBreaker;
+
+    /**
+     * Bulkhead limiting the number of concurrent calls to the product
+     * service, so a slow product service cannot hold every request thread.
+     */
+    private Bulkhead productBulkhead;
+
+    // Customized HttpClient instance shared by every outbound call, created on startup.
+    HttpClient client;
+
+    // WebClient bound to the product service, built once and reused by every lookup.
+    private WebClient productWebClient;
+
+    // WebClient bound to the transaction service, built once and reused by every lookup.
+    private WebClient transactionWebClient;
+
+    /**
+     * Creates the pooled HTTP client and the product service WebClient once
+     * the configuration has been injected, so every lookup reuses the same
+     * connections instead of opening new ones.
+     */
+    @PostConstruct
+    void init() {
+        // Bounded pool of keep-alive connections shared by all outbound calls
+        ConnectionProvider connectionProvider = ConnectionProvider.builder("customer-outbound")
+                .maxConnections(maxConnections)
+                .pendingAcquireTimeout(Duration.ofSeconds(1))
+                .maxIdleTime(Duration.ofSeconds(30))
+                .build();
+
+        // Create a customized HttpClient instance.
+        client = HttpClient.create(connectionProvider)
+                // Set a connection timeout (in milliseconds).
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 500)
+                // Enable the SO_KEEPALIVE option to keep the connection alive.
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                // Specify the idle time (in seconds) before sending a keep-alive probe (Epoll only).
+                .option(EpollChannelOption.TCP_KEEPIDLE, 300)
+                // Specify the interval (in seconds) between keep-alive probes (Epoll only).
+                .option(EpollChannelOption.TCP_KEEPINTVL, 60)
+                // Set the response timeout duration.
+                .responseTimeout(Duration.ofSeconds(1))
+                // Add handlers for read and write timeouts when a connection is established.
+                .doOnConnected(connection -> {
+                    // Add a handler to manage read timeout (in milliseconds).
+                    connection.addHandlerLast(new ReadTimeoutHandler(5000, TimeUnit.MILLISECONDS));
+
+                    // Add a handler to manage write timeout (in milliseconds).
+                    connection.addHandlerLast(new WriteTimeoutHandler(5000, TimeUnit.MILLISECONDS));
+                });
+
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        productWebClient = createWebClient(productServiceUrl);
+        coalescedProductLookups = Counter.builder("product.lookups.coalesced")
+                .description("Product lookups that joined a call already in flight")
+                .register(meterRegistry);
+        staleProductLookups = Counter.builder("product.lookups.stale")
+                .description("Product names served from the last known value while the product service was unavailable")
+                .register(meterRegistry);
+
+        // Circuit breaker and bulkhead state, calls and rejections are also published by the resilience4j metrics
+        productCircuitBreaker = circuitBreakerRegistry.circuitBreaker(PRODUCT_RESILIENCE_NAME);
+        productBulkhead = bulkheadRegistry.bulkhead(PRODUCT_RESILIENCE_NAME);
+        productCircuitBreaker.getEventPublisher().onStateTransition(event -> {
+            Logger.getLogger(BusinnesTransaction.class.getName()).log(Level.WARNING,
+                    "Product service circuit breaker " + event.getStateTransition());
+            meterRegistry.counter("product.circuitbreaker.transitions",
+                    "to", event.getStateTransition().getToState().name()).increment();
+        });
+        transactionWebClient = createWebClient(transactionServiceUrl);
+    }
 
     /**
      * Handles the logic for creating and saving a new customer. This method
@@ -92,13 +334,13 @@ public class BusinnesTransaction {
      */
     public Customer post(Customer input) throws BusinessRuleException, UnknownHostException, InterruptedException {
         // Check if the customer has associated products
-        if (input.getProducts() != null) {
-            // Iterate through the products to validate and associate them with the customer
-            for (Iterator<CustomerProduct> it = input.getProducts().iterator(); it.hasNext();) {
-                CustomerProduct dto = it.next();
+        if (input.getProducts() != null && !input.getProducts().isEmpty()) {
+            // Resolve the names of all the products with a single call to the product service
+            Map<Long, String> productNames = getResolvedProductNames(productIds(input.getProducts()));
 
-                // Fetch the product name using the product ID
-                String productName = getProductName(dto.getProductId());
+            // Iterate through the products to validate and associate them with the customer
+            for (CustomerProduct dto : input.getProducts()) {
+                String productName = productNames.getOrDefault(dto.getProductId(), "");
                 // If the product name is blank (product does not exist), throw a validation exception
                 if (productName.isBlank()) {
                     BusinessRuleException businessRuleException = new BusinessRuleException(
@@ -121,6 +363,125 @@ public class BusinnesTransaction {
         return save;
     }
 
+    /**
+     * Imports many customers at once. The product ids referenced by the whole
+     * batch are validated with a single lookup, and the valid rows are stored
+     * in chunks of {@code customer.import.chunk-size}, each in its own
+     * transaction. Ids come from pooled sequences and inserts are sent with
+     * Hibernate JDBC batching, so a chunk costs a handful of round trips
+     * instead of several per row.
+     * <p>
+     * Rows are validated and stored independently: a rejected row does not
+     * prevent the others from being imported, and the result reports the
+     * reason of every rejection. If a chunk fails in the database, its rows
+     * are retried one by one to find the offending ones.
+     *
+     * @param inputs the customers to import
+     * @return the number of rows imported and the errors of rejected rows
+     * @throws BusinessRuleException if the request holds more rows than
+     * {@code customer.import.max-rows}
+     * @throws UnknownHostException if the product service could not be reached
+     */
+    public BulkImportResult importCustomers(List<Customer> inputs) throws BusinessRuleException, UnknownHostException {
+        if (inputs.size() > importMaxRows) {
+            throw new BusinessRuleException(
+                    "1027", // Custom error code for oversized imports
+                    "Validation error, a bulk import accepts at most " + importMaxRows + " customers", // Error message
+                    HttpStatus.PAYLOAD_TOO_LARGE // HTTP status indicating the failure
+            );
+        }
+        BulkImportResult result = new BulkImportResult();
+        result.setReceived(inputs.size());
+
+        // Resolve every product referenced by the batch with a single lookup
+        Set<Long> batchProductIds = new LinkedHashSet<>();
+        for (Customer input : inputs) {
+            if (input != null && input.getProducts() != null) {
+                batchProductIds.addAll(productIds(input.getProducts()));
+            }
+        }
+        Map<Long, String> productNames = getResolvedProductNames(batchProductIds);
+
+        // Validate each row on its own
+        List<Customer> valid = new ArrayList<>();
+        List<Integer> validRows = new ArrayList<>();
+        for (int row = 0; row < inputs.size(); row++) {
+            Customer input = inputs.get(row);
+            if (input == null) {
+                result.reject(row, "1026", "Validation error, customer row is empty");
+                continue;
+            }
+            if (input.getProducts() == null) {
+                input.setProducts(new ArrayList<>());
+            }
+            Optional<CustomerProduct> missing = input.getProducts().stream()
+                    .filter(product -> productNames.getOrDefault(product.getProductId(), "").isBlank())
+                    .findFirst();
+            if (missing.isPresent()) {
+                result.reject(row, "1025", "Validation error, product ID  " + missing.get().getProductId() + " does not exists");
+                continue;
+            }
+            input.getProducts().forEach(product -> product.setCustomer(input));
+            valid.add(input);
+            validRows.add(row);
+        }
+
+        // Store the valid rows chunk by chunk
+        for (int from = 0; from < valid.size(); from += importChunkSize) {
+            int to = Math.min(from + importChunkSize, valid.size());
+            List<Customer> chunk = valid.subList(from, to);
+            try {
+                saveChunk(chunk);
+                result.setImported(result.getImported() + chunk.size());
+            } catch (RuntimeException chunkError) {
+                // Retry the rows one by one to report exactly which ones fail
+                for (int i = from; i < to; i++) {
+                    try {
+                        saveChunk(List.of(valid.get(i)));
+                        result.setImported(result.getImported() + 1);
+                    } catch (RuntimeException rowError) {
+                        result.reject(validRows.get(i), "1024", NestedExceptionUtils.getMostSpecificCause(rowError).getMessage());
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stores a chunk of new customers in its own transaction. The persistence
+     * context is flushed, so the JDBC batch is sent, and then cleared to keep
+     * memory flat across chunks. If the transaction fails, the ids assigned to
+     * the chunk are reset so its customers can be stored again.
+     *
+     * @param chunk the customers to store
+     */
+    private void saveChunk(List<Customer> chunk) {
+        // Client supplied ids are ignored, rows are always inserted
+        chunk.forEach(this::resetIds);
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                customerRepository.saveAll(chunk);
+                entityManager.flush();
+                entityManager.clear();
+            });
+        } catch (RuntimeException e) {
+            chunk.forEach(this::resetIds);
+            throw e;
+        }
+    }
+
+    /**
+     * Clears the ids of a customer and its products so they are treated as
+     * new rows.
+     *
+     * @param customer the customer to reset
+     */
+    private void resetIds(Customer customer) {
+        customer.setId(0);
+        customer.getProducts().forEach(product -> product.setId(0));
+    }
+
     /**
      * Retrieves a customer by their unique code and enriches their products
      * with additional details.
@@ -129,31 +490,26 @@ public class BusinnesTransaction {
      * @return the customer with enriched product details
      */
     public Customer get(String code) {
-        // Retrieve the customer from the repository based on the provided code.
-        Customer customer = customerRepository.findByCode(code);
+        // Retrieve the customer based on the provided code, from memory when possible.
+        Customer customer = customerCache.findByCode(code);
         if (customer != null) {
             // Get the list of products associated with the customer.
             List<CustomerProduct> products = customer.getProducts();
 
-            // Enrich each product with its name by calling the external product service.
-            products.forEach(product -> {
-                // Fetch the product name using the product's ID.
-                String productName = "";
-                try {
-                    productName = getProductName(product.getProductId());
-                } catch (UnknownHostException ex) {
-                    Logger.getLogger(BusinnesTransaction.class.getName()).log(Level.SEVERE, null, ex);
-                }
+            // Fetch the names of all the products with a single call to the product service.
+            Map<Long, String> productNames = Collections.emptyMap();
+            try {
+                productNames = getProductNames(productIds(products));
+            } catch (UnknownHostException ex) {
+                Logger.getLogger(BusinnesTransaction.class.getName()).log(Level.SEVERE, null, ex);
+            }
 
-                // Set the fetched product name into the product object.
-                product.setProductName(productName);
-            });
+            // Set the fetched product name into each product object.
+            for (CustomerProduct product : products) {
+                product.setProductName(productNames.getOrDefault(product.getProductId(), ""));
+            }
 
-            // Uncomment the following lines to include enriched transaction details for the customer.
-            // Retrieve all transactions associated with the customer's IBAN.
-            // List<?> transactions = getTransactions(customer.getIban());
-            // Update the customer object with the retrieved transactions.
-            // customer.setTransactions(transactions);
+            // Transactions are only included by the full profile, see getProfile(code).
         }
 
         // Return the customer with enriched product details.
@@ -161,102 +517,373 @@ public class BusinnesTransaction {
     }
 
     /**
-     * Fetches the product name for a given product ID by making an HTTP GET
-     * request to the product service.
+     * Retrieves a customer by the IBAN of its account. The lookup is answered
+     * by the {@link CustomerCache} when possible; product names are not
+     * resolved.
      *
-     * @param id the ID of the product to fetch
-     * @return the name of the product
+     * @param iban the IBAN of the customer's account
+     * @return the customer, or null if no customer has the given IBAN
      */
-    private String getProductName(long id) throws UnknownHostException {
-        // URL of the product service with the given ID
-        String urlString = "http://127.0.0.1:8083/product/" + id;
-        StringBuilder response = new StringBuilder();
-        String name = "";
+    public Customer getByAccount(String iban) {
+        return customerCache.findByAccount(iban);
+    }
 
-        try {
-            // Establish a connection to the product service
-            URL url = new URL(urlString);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("GET");  // Set request method to GET
-            connection.setConnectTimeout(5000);  // Set connection timeout
-            connection.setReadTimeout(5000);     // Set read timeout
-
-            // Get the response code from the connection
-            int responseCode = connection.getResponseCode();
-            
-            // Check if the response code is HTTP_OK (200)
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                // Try-with-resources: BufferedReader will be automatically closed at the end of the try block
-                try (BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
-                    String inputLine;
-
-                    // Append each line of the response to the StringBuilder
-                    while ((inputLine = in.readLine()) != null) {
-                        response.append(inputLine);
-                    }
+    /**
+     * Retrieves one page of customers using keyset (cursor) pagination on the
+     * id. The page costs two index-driven queries whatever its position: one
+     * for the ids after the cursor and one for those customers with their
+     * products.
+     *
+     * @param after the last id of the previous page (0 for the first page)
+     * @param size the maximum number of customers in the page
+     * @return the customers of the page, in ascending id order
+     */
+    public List<Customer> getPage(long after, int size) {
+        List<Long> ids = customerRepository.findIdsAfter(after, PageRequest.of(0, size));
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return customerRepository.findAllWithProductsByIdIn(ids);
+    }
+
+    /**
+     * Writes every customer to the given stream as newline delimited JSON,
+     * one customer per line, as the rows are read from the database. Rows are
+     * fetched through a JDBC cursor with a bounded fetch size and each
+     * customer is detached once written, so memory use stays constant
+     * whatever the size of the table.
+     *
+     * @param out the stream the customers are written to
+     * @return the number of customers written
+     * @throws IOException if writing to the stream fails
+     */
+    @Transactional(readOnly = true)
+    public long writeAllAsNdjson(OutputStream out) throws IOException {
+        long count = 0;
+        try (Stream<Customer> customers = customerRepository.streamAll()) {
+            for (Iterator<Customer> it = customers.iterator(); it.hasNext();) {
+                Customer customer = it.next();
+                out.write(objectMapper.writeValueAsBytes(customer));
+                out.write('\n');
+                // Drop the written customer from the persistence context to keep memory flat
+                entityManager.detach(customer);
+                if (++count % CustomerRepository.STREAM_FETCH_SIZE == 0) {
+                    out.flush();
                 }
+            }
+        }
+        out.flush();
+        return count;
+    }
+
+    /**
+     * Retrieves the full profile of a customer: the customer data, the names
+     * of its products and the list of its transactions. Product names and
+     * transactions are fetched at the same time, each source with its own
+     * timeout ({@code customer.profile.products-timeout} and
+     * {@code customer.profile.transactions-timeout}), so the response time is
+     * that of the slowest source instead of their sum.
+     * <p>
+     * If a source fails or does not answer in time the profile is still
+     * returned; the missing source is listed in {@link Customer#getPartial()}.
+     *
+     * @param code the unique code identifying the customer
+     * @return the customer with product names and transactions, or null if no
+     * customer has the given code
+     */
+    public Customer getProfile(String code) {
+        // Retrieve the customer based on the provided code, from memory when possible.
+        Customer customer = customerCache.findByCode(code);
+        if (customer == null) {
+            return null;
+        }
+        List<CustomerProduct> products = customer.getProducts();
 
-                // Parse the response JSON to extract the product name
-                ObjectMapper objectMapper = new ObjectMapper();
-                JsonNode jsonResponse = objectMapper.readTree(response.toString());
+        // Each source gets its own deadline and degrades to an empty Optional instead of failing the profile
+        Mono<Optional<Map<Long, String>>> productsSource = getProductNamesAsync(productIds(products))
+                .timeout(profileProductsTimeout)
+                .map(Optional::of)
+                .onErrorResume(e -> {
+                    Logger.getLogger(BusinnesTransaction.class.getName()).log(Level.WARNING,
+                            "Product names for customer " + code + " are incomplete: " + e);
+                    return Mono.just(Optional.empty());
+                });
+        Mono<Optional<List<Object>>> transactionsSource = getTransactions(customer.getIban())
+                .timeout(profileTransactionsTimeout)
+                .map(Optional::of)
+                .onErrorResume(e -> {
+                    Logger.getLogger(BusinnesTransaction.class.getName()).log(Level.WARNING,
+                            "Transactions for customer " + code + " are incomplete: " + e);
+                    return Mono.just(Optional.empty());
+                });
 
-                // Return the product name if present in the JSON response
-                if (jsonResponse.has("name")) {
-                    name = jsonResponse.get("name").asText();
-                }
-            } else {
-                // Handle non-OK response codes
-                if (responseCode == HttpURLConnection.HTTP_NOT_FOUND) {
-                    return "";
-                }
+        // Subscribe to both sources at the same time and wait for the slowest one
+        Tuple2<Optional<Map<Long, String>>, Optional<List<Object>>> sources = Mono.zip(productsSource, transactionsSource).block();
 
-                return "Error: " + responseCode;  // Return the HTTP error code if not OK
-            }
-        } catch (IOException e) {
+        List<String> partial = new ArrayList<>();
+        Map<Long, String> productNames = sources.getT1().orElse(Collections.emptyMap());
+        if (!productNames.keySet().containsAll(productIds(products))) {
+            // The product lookup failed, or some names could not be resolved
+            partial.add(PROFILE_SOURCE_PRODUCTS);
+        }
+        for (CustomerProduct product : products) {
+            product.setProductName(productNames.getOrDefault(product.getProductId(), ""));
+        }
+
+        if (sources.getT2().isPresent()) {
+            customer.setTransactions(sources.getT2().get());
+        } else {
+            partial.add(PROFILE_SOURCE_TRANSACTIONS);
+        }
+
+        // Only flag the profile when some source is missing
+        if (!partial.isEmpty()) {
+            customer.setPartial(partial);
+        }
+        return customer;
+    }
+
+    /**
+     * Collects the distinct product ids referenced by a list of customer
+     * products.
+     *
+     * @param products the customer products
+     * @return the distinct product ids, in encounter order
+     */
+    private Set<Long> productIds(List<CustomerProduct> products) {
+        Set<Long> ids = new LinkedHashSet<>();
+        for (CustomerProduct product : products) {
+            ids.add(product.getProductId());
+        }
+        return ids;
+    }
+
+    /**
+     * Resolves the names of several products, blocking until they are
+     * available or {@code product.client.timeout} elapses.
+     *
+     * @param ids the IDs of the products to resolve
+     * @return a map from product id to product name; ids unknown to the
+     * product service map to an empty name, ids that could not be resolved
+     * are absent from the map
+     * @throws UnknownHostException if the product service could not be reached
+     */
+    private Map<Long, String> getProductNames(Collection<Long> ids) throws UnknownHostException {
+        try {
+            return getProductNamesAsync(ids).block(productTimeout);
+        } catch (Exception e) {
             // Handle any exceptions related to the connection or reading response
             Logger.getLogger(BusinnesTransaction.class.getName()).log(Level.SEVERE, null, e);
-            e.printStackTrace();
             throw new UnknownHostException(e.getMessage());
         }
+    }
 
-        return name;
+    /**
+     * Resolves the names of several products to validate them, failing if
+     * any of them could not be resolved: an unreachable product service must
+     * not be mistaken for a product that does not exist.
+     *
+     * @param ids the IDs of the products to resolve
+     * @return a map from product id to product name; ids unknown to the
+     * product service map to an empty name
+     * @throws UnknownHostException if the name of some product could not be
+     * resolved
+     */
+    private Map<Long, String> getResolvedProductNames(Collection<Long> ids) throws UnknownHostException {
+        Map<Long, String> productNames = getProductNames(ids);
+        if (!productNames.keySet().containsAll(ids)) {
+            throw new UnknownHostException("Product names could not be resolved, the product service is unavailable");
+        }
+        return productNames;
     }
 
     /**
-     * Retrieves a list of transactions associated with a given IBAN account.
-     * This method uses a {@link WebClient} to make an HTTP GET request to an
-     * external transaction service.
+     * Resolves the names of several products without blocking. Names found in
+     * the {@link ProductNameCache} are served from memory; the remaining ones
+     * are fetched from the product service through
+     * {@link #fetchProductNamesCoalesced(Collection)}.
      *
-     * @param iban the IBAN account for which to retrieve transactions.
-     * @return a {@link List} of transactions associated with the given IBAN.
+     * @param ids the IDs of the products to resolve
+     * @return a {@link Mono} emitting a map from product id to product name;
+     * ids unknown to the product service map to an empty name, ids that could
+     * not be resolved are absent from the map
      */
-    private List<?> getTransactions(String iban) {
-        // Build a WebClient instance configured with a base URL and default headers.
-        WebClient build = createWebClient("http://TRANSACTION/transaction");
+    private Mono<Map<Long, String>> getProductNamesAsync(Collection<Long> ids) {
+        // Serve whatever is already cached
+        Map<Long, String> names = new HashMap<>(productNameCache.getAllPresent(ids));
+        if (names.size() == ids.size()) {
+            return Mono.just(names);
+        }
 
-        try {
-            // Execute the HTTP GET request and process the response
-            return build.method(HttpMethod.GET)
-                    .uri(uriBuilder -> uriBuilder
-                    .path("/customer/transactions")
-                    .queryParam("ibanAccount", iban)
-                    .build())
-                    .retrieve() // Send the request
-                    .bodyToFlux(Object.class) // Convert the response body to a reactive stream of objects
-                    .collectList() // Collect the stream into a single list
-                    .timeout(Duration.ofSeconds(5)) // Set a timeout for the request
-                    .block(); // Block to wait for the result synchronously
-        } catch (WebClientResponseException e) {
-            // Handle HTTP client errors (e.g., 4xx and 5xx)
-            e.printStackTrace();
-        } catch (Exception e) {
-            // Handle unexpected errors
-            System.err.println("An error occurred while fetching transactions for IBAN: " + iban);
-            e.printStackTrace();
+        // Fetch only the missing names
+        List<Long> missing = ids.stream().filter(id -> !names.containsKey(id)).toList();
+        return fetchProductNamesCoalesced(missing)
+                .map(fetched -> {
+                    names.putAll(fetched);
+                    return names;
+                });
+    }
+
+    /**
+     * Fetches product names from the product service, coalescing concurrent
+     * lookups of the same product (single flight). If another request is
+     * already fetching a product, the caller waits for that outstanding call
+     * and shares its result instead of issuing its own; only the ids nobody is
+     * fetching yet are requested, in one batched call. This removes
+     * thundering-herd traffic when many customers reference the same popular
+     * product at the same time.
+     * <p>
+     * Each id is settled separately: when the product service fails, ids with
+     * a last known name get it and the others are left out of the map, so a
+     * single unresolvable id does not discard the names found for the rest.
+     *
+     * @param ids the IDs of the products to fetch, none of them cached
+     * @return a {@link Mono} emitting a map from product id to product name;
+     * ids unknown to the product service map to an empty name, ids that could
+     * not be resolved are absent from the map
+     */
+    private Mono<Map<Long, String>> fetchProductNamesCoalesced(Collection<Long> ids) {
+        Map<Long, CompletableFuture<String>> pending = new HashMap<>();
+        Map<Long, CompletableFuture<String>> owned = new HashMap<>();
+        for (Long id : ids) {
+            CompletableFuture<String> future = new CompletableFuture<>();
+            CompletableFuture<String> existing = inFlightProductNames.putIfAbsent(id, future);
+            if (existing == null) {
+                // Nobody is fetching this product, this request owns the call
+                owned.put(id, future);
+                pending.put(id, future);
+            } else {
+                // Join the call already in flight
+                coalescedProductLookups.increment();
+                pending.put(id, existing);
+            }
+        }
+
+        if (!owned.isEmpty()) {
+            // Names of products invalidated while the call runs are not cached
+            long fetchedAt = productNameCache.generation();
+            // The shared call has its own deadline so that in-flight entries are always released.
+            // It runs inside the product bulkhead, itself guarded by the product circuit breaker.
+            fetchProductNames(owned.keySet())
+                    .timeout(productTimeout)
+                    .transformDeferred(BulkheadOperator.of(productBulkhead))
+                    .transformDeferred(CircuitBreakerOperator.of(productCircuitBreaker))
+                    .subscribe(
+                            fetched -> {
+                                // Cache before releasing the entries, so late callers hit the cache instead of calling again
+                                productNameCache.putAll(fetched, fetchedAt);
+                                owned.forEach((id, future) -> {
+                                    inFlightProductNames.remove(id, future);
+                                    future.complete(fetched.get(id)); // null when the product does not exist
+                                });
+                            },
+                            error -> {
+                                countRejection(error);
+                                owned.forEach((id, future) -> {
+                                    inFlightProductNames.remove(id, future);
+                                    // Serve the last known name while the product service is unavailable
+                                    String lastKnown = productNameCache.getLastKnown(id);
+                                    if (lastKnown != null) {
+                                        staleProductLookups.increment();
+                                        future.complete(lastKnown);
+                                    } else {
+                                        future.completeExceptionally(error);
+                                    }
+                                });
+                            });
+        }
+
+        // Wait for every call this lookup depends on, owned or joined. Each id is settled on its own:
+        // an id that cannot be resolved is left out instead of failing the names found for the others
+        Map<Long, String> names = new ConcurrentHashMap<>();
+        CompletableFuture<?>[] settled = pending.entrySet().stream()
+                .map(entry -> entry.getValue().handle((name, error) -> {
+                    if (error == null) {
+                        names.put(entry.getKey(), name != null ? name : ""); // empty when the product does not exist
+                    }
+                    return null;
+                }))
+                .toArray(CompletableFuture[]::new);
+        return Mono.fromFuture(CompletableFuture.allOf(settled))
+                .then(Mono.fromCallable(() -> {
+                    if (names.size() < pending.size()) {
+                        Logger.getLogger(BusinnesTransaction.class.getName()).log(Level.WARNING,
+                                "Names of " + (pending.size() - names.size()) + " products could not be resolved");
+                    }
+                    return new HashMap<>(names);
+                }));
+    }
+
+    /**
+     * Counts product lookups rejected by the circuit breaker or the bulkhead,
+     * under the {@code product.lookups.rejected} metric tagged with the reason.
+     *
+     * @param error the error that ended a product lookup
+     */
+    private void countRejection(Throwable error) {
+        if (error instanceof CallNotPermittedException) {
+            meterRegistry.counter("product.lookups.rejected", "reason", "circuit_open").increment();
+        } else if (error instanceof BulkheadFullException) {
+            meterRegistry.counter("product.lookups.rejected", "reason", "bulkhead_full").increment();
         }
+    }
 
-        // Return an empty list if an error occurred
-        return Collections.emptyList();
+    /**
+     * Fetches the names of several products from the product service. The ids
+     * are split into batches of {@code product.client.batch-size} and the
+     * batches are requested concurrently, at most
+     * {@code product.client.parallelism} at a time, through the pooled and
+     * load-balanced WebClient. Enrichment time is therefore bounded by the
+     * slowest batch rather than by the sum of the calls.
+     *
+     * @param ids the IDs of the products to fetch
+     * @return a {@link Mono} emitting a map from product id to product name;
+     * ids unknown to the product service are absent from the map
+     */
+    private Mono<Map<Long, String>> fetchProductNames(Collection<Long> ids) {
+        return Flux.fromIterable(ids)
+                .buffer(productBatchSize) // Group the ids in batches
+                .flatMap(this::requestProductNames, productParallelism) // Request the batches concurrently
+                .collectMap(ProductName::getId, productName -> productName.getName() == null ? "" : productName.getName());
+    }
+
+    /**
+     * Requests the names of one batch of products from the product service
+     * batch endpoint ({@code GET /product/names?ids=...}).
+     *
+     * @param ids the IDs of the products in the batch
+     * @return a stream with the id/name pairs found
+     */
+    private Flux<ProductName> requestProductNames(List<Long> ids) {
+        String joinedIds = ids.stream().map(String::valueOf).collect(Collectors.joining(","));
+        return productWebClient.method(HttpMethod.GET)
+                .uri(uriBuilder -> uriBuilder
+                .path("/names")
+                .queryParam("ids", joinedIds)
+                .build())
+                .retrieve() // Send the request
+                .bodyToFlux(ProductName.class); // Decode the JSON array as a stream of id/name pairs
+    }
+
+    /**
+     * Retrieves the list of transactions associated with a given IBAN account
+     * from the transaction service, without blocking. The transaction service
+     * answers 404 when the account has no transactions, which is mapped to an
+     * empty list.
+     *
+     * @param iban the IBAN account for which to retrieve transactions.
+     * @return a {@link Mono} emitting the transactions of the account.
+     */
+    private Mono<List<Object>> getTransactions(String iban) {
+        return transactionWebClient.method(HttpMethod.GET)
+                .uri(uriBuilder -> uriBuilder
+                .path("/customer/transactions")
+                .queryParam("ibanAccount", iban)
+                .build())
+                .retrieve() // Send the request
+                .bodyToFlux(Object.class) // Convert the response body to a reactive stream of objects
+                .collectList() // Collect the stream into a single list
+                .onErrorResume(WebClientResponseException.NotFound.class, e -> Mono.just(Collections.emptyList()));
     }
 
     /**
@@ -268,8 +895,9 @@ public class BusinnesTransaction {
             throw new IllegalArgumentException("The URL cannot be null or empty.");
         }
 
-        // Build and return a WebClient instance with custom configuration
-        return webClientBuilder
+        // Build and return a WebClient instance with custom configuration.
+        // The shared builder is cloned so that each client keeps its own base URL.
+        return webClientBuilder.clone()
                 .clientConnector(new ReactorClientHttpConnector(client)) // Use a custom Reactor HTTP client
                 .baseUrl(url) // Set the base URL for the WebClient
                 .defaultHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE) // Set default headers
@@ -0,0 +1,38 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.customer.common;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Describes why a single row of a bulk import was rejected.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BulkImportError {
+
+    /**
+     * Zero-based position of the rejected row in the request.
+     */
+    private int row;
+
+    /**
+     * Error code, using the same codes as the single-row endpoints.
+     */
+    private String code;
+
+    /**
+     * Human-readable explanation of the error.
+     */
+    private String detail;
+}
@@ -0,0 +1,56 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.customer.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Outcome of a bulk customer import: how many rows were received and
+ * imported, and the reason each rejected row failed.
+ */
+@Data
+@NoArgsConstructor
+public class BulkImportResult {
+
+    /**
+     * Number of rows received in the request.
+     */
+    private int received;
+
+    /**
+     * Number of rows stored in the database.
+     */
+    private int imported;
+
+    /**
+     * Number of rows rejected.
+     */
+    private int failed;
+
+    /**
+     * One entry per rejected row.
+     */
+    private List<BulkImportError> errors = new ArrayList<>();
+
+    /**
+     * Records a rejected row.
+     *
+     * @param row zero-based position of the row in the request
+     * @param code error code
+     * @param detail explanation of the error
+     */
+    public void reject(int row, String code, String detail) {
+        errors.add(new BulkImportError(row, code, detail));
+        failed++;
+    }
+}
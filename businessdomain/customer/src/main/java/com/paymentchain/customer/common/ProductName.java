@@ -0,0 +1,34 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.customer.common;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Id/name pair returned by the product service batch lookup endpoint
+ * ({@code GET /product/names?ids=...}).
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ProductName {
+
+    /**
+     * Unique identifier of the product.
+     */
+    private long id;
+
+    /**
+     * Name of the product.
+     */
+    private String name;
+}
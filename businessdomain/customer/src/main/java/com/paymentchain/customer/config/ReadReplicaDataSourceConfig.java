@@ -0,0 +1,98 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.customer.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import javax.sql.DataSource;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.jdbc.DataSourceBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Splits the database connections between the primary and a read replica
+ * when {@code customer.datasource.replica.url} is set. Read-only
+ * transactions, i.e. the GET endpoints and the repository reads, are served
+ * by the replica; writes, and the reads of write paths (which run in
+ * read-write transactions), by the primary. Each side has its own pool, so
+ * reporting reads can no longer take the connections inserts wait for.
+ * <p>
+ * The replica may lag behind the primary: a read following a write may not
+ * see it yet.
+ */
+@Configuration
+@ConditionalOnProperty(name = "customer.datasource.replica.url")
+public class ReadReplicaDataSourceConfig {
+
+    /**
+     * Pool of the primary, configured by the usual
+     * {@code spring.datasource.*} properties.
+     *
+     * @param properties the {@code spring.datasource} properties
+     * @return the primary pool
+     */
+    @Bean
+    @ConfigurationProperties("spring.datasource.hikari")
+    public HikariDataSource primaryDataSource(DataSourceProperties properties) {
+        HikariDataSource dataSource = properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+        dataSource.setPoolName("customer-primary");
+        return dataSource;
+    }
+
+    /**
+     * Pool of the replica. Credentials default to those of the primary.
+     *
+     * @param url the JDBC URL of the replica
+     * @param username the user of the replica
+     * @param password the password of the replica
+     * @return the replica pool
+     */
+    @Bean
+    @ConfigurationProperties("customer.datasource.replica.hikari")
+    public HikariDataSource replicaDataSource(@Value("${customer.datasource.replica.url}") String url,
+            @Value("${customer.datasource.replica.username:${spring.datasource.username:}}") String username,
+            @Value("${customer.datasource.replica.password:${spring.datasource.password:}}") String password) {
+        HikariDataSource dataSource = DataSourceBuilder.create().type(HikariDataSource.class)
+                .url(url).username(username).password(password).build();
+        dataSource.setPoolName("customer-replica");
+        // The replica is never written to
+        dataSource.setReadOnly(true);
+        return dataSource;
+    }
+
+    /**
+     * Data source used by JPA, JDBC and Flyway: fetches its connection at the
+     * first statement, from the pool matching the transaction.
+     *
+     * @param primary the primary pool
+     * @param replica the replica pool
+     * @param retryAfter the time the replica is skipped after a failed
+     * connection
+     * @param meterRegistry the registry where the routing metrics are
+     * published
+     * @return the routing data source
+     */
+    @Bean
+    @Primary
+    public DataSource dataSource(@Qualifier("primaryDataSource") DataSource primary,
+            @Qualifier("replicaDataSource") DataSource replica,
+            @Value("${customer.datasource.replica.retry-after:PT30S}") Duration retryAfter,
+            MeterRegistry meterRegistry) {
+        return new LazyConnectionDataSourceProxy(new ReadReplicaRoutingDataSource(primary, replica, retryAfter, meterRegistry));
+    }
+}
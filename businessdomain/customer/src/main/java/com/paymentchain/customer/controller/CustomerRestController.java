@@ -4,7 +4,9 @@
  */
 package com.paymentchain.customer.controller;
 
+import com.paymentchain.customer.business.cache.CustomerCache;
 import com.paymentchain.customer.business.transactions.BusinnesTransaction;
+import com.paymentchain.customer.common.BulkImportResult;
 import com.paymentchain.customer.entities.Customer;
 import com.paymentchain.customer.exception.BusinessRuleException;
 import com.paymentchain.customer.repository.CustomerRepository;
@@ -15,7 +17,10 @@ import java.util.List;
 import java.util.Optional;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.env.Environment;
+import org.springframework.hateoas.CollectionModel;
+import org.springframework.hateoas.IanaLinkRelations;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -23,9 +28,14 @@ import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import static org.springframework.hateoas.server.mvc.WebMvcLinkBuilder.linkTo;
+import static org.springframework.hateoas.server.mvc.WebMvcLinkBuilder.methodOn;
+
 /**
  *
  * @author rvega
@@ -50,6 +60,11 @@ public class CustomerRestController {
      */
     private static final Logger logger = LoggerFactory.getLogger(CustomerRestController.class);
 
+    /**
+     * Maximum number of customers returned in a single page.
+     */
+    private static final int MAX_PAGE_SIZE = 500;
+
     /**
      * Environment object to access application properties.
      */
@@ -62,6 +77,12 @@ public class CustomerRestController {
     @Autowired
     private BusinnesTransaction businnesTransaction;
 
+    /**
+     * Near-cache of customer lookups, invalidated when a customer changes.
+     */
+    @Autowired
+    private CustomerCache customerCache;
+
     /**
      * A GET endpoint to check if the application is running and display a
      * custom property value.
@@ -102,6 +123,49 @@ public class CustomerRestController {
         }
     }
 
+    /**
+     * Retrieves one page of customers using keyset (cursor) pagination. The
+     * response holds a {@code next} link pointing at the following page as
+     * long as the current page is full, so clients simply follow links until
+     * there is none. Unlike offset pagination, deep pages cost the same as the
+     * first one.
+     *
+     * @param after the last customer id of the previous page (0 for the first
+     * page)
+     * @param size the maximum number of customers per page
+     * @return a 200 OK response with the customers of the page and the
+     * navigation links
+     */
+    @GetMapping("/page")  // Maps GET requests to /customer/v1/page.
+    public ResponseEntity<CollectionModel<Customer>> page(@RequestParam(name = "after", defaultValue = "0") long after,
+            @RequestParam(name = "size", defaultValue = "50") int size) {
+        // Keep the page size within sane bounds
+        int pageSize = Math.max(1, Math.min(size, MAX_PAGE_SIZE));
+        List<Customer> customers = businnesTransaction.getPage(after, pageSize);
+
+        CollectionModel<Customer> model = CollectionModel.of(customers,
+                linkTo(methodOn(CustomerRestController.class).page(after, pageSize)).withSelfRel());
+        // A full page may be followed by more customers, point at the next cursor
+        if (customers.size() == pageSize) {
+            long lastId = customers.get(customers.size() - 1).getId();
+            model.add(linkTo(methodOn(CustomerRestController.class).page(lastId, pageSize)).withRel(IanaLinkRelations.NEXT));
+        }
+        return ResponseEntity.ok(model);
+    }
+
+    /**
+     * Streams every customer as newline delimited JSON (one customer per
+     * line). Customers are written as they are read from the database, so
+     * memory use stays constant regardless of the table size.
+     *
+     * @return a 200 OK response whose body is written asynchronously
+     */
+    @GetMapping(value = "/stream", produces = MediaType.APPLICATION_NDJSON_VALUE)  // Maps GET requests to /customer/v1/stream.
+    public ResponseEntity<StreamingResponseBody> stream() {
+        StreamingResponseBody body = out -> businnesTransaction.writeAllAsNdjson(out);
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(body);
+    }
+
     /**
      * Retrieves a customer by their unique ID.
      *
@@ -139,6 +203,8 @@ public class CustomerRestController {
             // If customer is found, update the fields and save the customer
             if (find.isPresent()) {
                 Customer existingCustomer = find.get();  // Get the customer object
+                String previousCode = existingCustomer.getCode();  // Cache keys of the customer before the update
+                String previousIban = existingCustomer.getIban();
 
                 // Update customer fields with the provided data
                 existingCustomer.setAddress(input.getAddress());
@@ -150,6 +216,7 @@ public class CustomerRestController {
 
                 // Save the updated customer and return the updated object
                 Customer savedCustomer = customerRepository.save(existingCustomer);
+                customerCache.invalidate(previousCode, previousIban);  // Drop cached copies of the old version
                 return ResponseEntity.ok(savedCustomer);  // Return a 200 OK response with the updated customer
             }
         } catch (Exception e) {
@@ -184,6 +251,23 @@ public class CustomerRestController {
         return ResponseEntity.status(HttpStatus.CREATED).body(post);
     }
 
+    /**
+     * Imports many customers in a single request. Product ids are validated
+     * once for the whole batch and rows are inserted with JDBC batching. Each
+     * row is accepted or rejected on its own; the response lists the reason
+     * of every rejected row.
+     *
+     * @param inputs the customers to import
+     * @return a 200 OK response with the number of imported rows and the
+     * per-row errors
+     * @throws BusinessRuleException if the request holds too many rows
+     */
+    @PostMapping("/bulk")  // Maps POST requests to /customer/v1/bulk.
+    public ResponseEntity<BulkImportResult> bulk(@RequestBody List<Customer> inputs) throws BusinessRuleException, UnknownHostException {
+        BulkImportResult result = businnesTransaction.importCustomers(inputs);
+        return ResponseEntity.ok(result);
+    }
+
     /**
      * Deletes a customer by their ID.
      *
@@ -196,6 +280,7 @@ public class CustomerRestController {
 
         if (findById.isPresent()) {  // Customer found, proceed with deletion.
             customerRepository.delete(findById.get());  // Deletes the customer.
+            customerCache.invalidate(findById.get().getCode(), findById.get().getIban());  // Drop cached copies of the customer.
             return ResponseEntity.ok().build();  // Return 200 OK response.
         } else {
             return ResponseEntity.status(HttpStatus.NOT_FOUND).build();  // Return 404 Not Found if customer does not exist.
@@ -203,16 +288,37 @@ public class CustomerRestController {
     }
 
     /**
-     * Retrieves a customer by their unique code.
+     * Retrieves a customer by the IBAN of its account. Lookups are answered
+     * from the customer near-cache when possible.
+     *
+     * @param iban the IBAN of the customer's account
+     * @return a 200 OK response with the customer, or 404 Not Found
+     */
+    @GetMapping("/byAccount/{iban}")  // Maps GET requests to /customer/v1/byAccount/{iban}.
+    public ResponseEntity<Customer> getByAccount(@PathVariable(name = "iban") String iban) {
+        Customer customer = businnesTransaction.getByAccount(iban);
+        if (customer == null) {
+            return ResponseEntity.notFound().build();  // Return 404 Not Found if no customer has the IBAN.
+        }
+        return ResponseEntity.ok(customer);
+    }
+
+    /**
+     * Retrieves a customer by their unique code. In full profile mode the
+     * customer transactions are included as well; product names and
+     * transactions are then fetched concurrently and any source that fails or
+     * times out is listed in the {@code partial} field of the response.
      *
      * @param code the unique code identifying the customer
+     * @param full whether to return the full profile including transactions
      * @return the customer associated with the given code
      */
     @GetMapping("/byCode/{code}")
-    public Customer getByCode(@PathVariable(name = "code") String code) {
+    public Customer getByCode(@PathVariable(name = "code") String code,
+            @RequestParam(name = "full", defaultValue = "false") boolean full) {
         // Use the business transaction layer to retrieve the customer by code
         try {
-            Customer customer = businnesTransaction.get(code);
+            Customer customer = full ? businnesTransaction.getProfile(code) : businnesTransaction.get(code);
             return customer;
         } catch (Exception e) {
             e.printStackTrace();
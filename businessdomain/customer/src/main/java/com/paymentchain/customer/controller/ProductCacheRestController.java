@@ -0,0 +1,56 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/springframework/RestController.java to edit this template
+ */
+package com.paymentchain.customer.controller;
+
+import com.paymentchain.customer.business.cache.ProductNameCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * REST controller used by the product service to invalidate cached product
+ * names when a product changes.
+ */
+@RestController  // Indicates that this class is a REST controller handling HTTP requests.
+@RequestMapping("/customer/v1/cache/products")  // Defines the base URL path for requests to this controller.
+public class ProductCacheRestController {
+
+    /**
+     * Cache of product names used to enrich customer products.
+     */
+    @Autowired
+    private ProductNameCache productNameCache;
+
+    /**
+     * Invalidates the cached name of a single product.
+     *
+     * @param id The ID of the product that changed.
+     * @return A 204 No Content response.
+     */
+    @DeleteMapping("/{id}")  // Maps DELETE requests to /customer/v1/cache/products/{id}.
+    public ResponseEntity<?> invalidate(@PathVariable(name = "id") long id) {
+        productNameCache.invalidate(id);
+        return ResponseEntity.noContent().build();
+    }
+
+    /**
+     * Invalidates every cached product name.
+     *
+     * @return A 204 No Content response.
+     */
+    @DeleteMapping  // Maps DELETE requests to /customer/v1/cache/products.
+    public ResponseEntity<?> invalidateAll() {
+        productNameCache.invalidateAll();
+        return ResponseEntity.noContent().build();
+    }
+}
@@ -4,6 +4,7 @@
  */
 package com.paymentchain.customer.entities;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.github.javafaker.Code;
 import jakarta.persistence.CascadeType;
 import jakarta.persistence.Entity;
@@ -12,6 +13,7 @@ import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
 import jakarta.persistence.OneToMany;
+import jakarta.persistence.SequenceGenerator;
 import jakarta.persistence.Transient;
 import java.util.List;
 import lombok.Data;
@@ -23,7 +25,9 @@ import lombok.Data;
 @Data  // Lombok annotation to automatically generate getters, setters, toString, equals, and hashCode methods
 @Entity  // JPA annotation to indicate that this class is an entity and will be mapped to a database table
 public class Customer {
-    @GeneratedValue(strategy = GenerationType.AUTO)  // Automatically generates the ID value for this entity
+    // Ids come from the customer_seq sequence through Hibernate's pooled optimizer: one round trip reserves 50 ids
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "customer_seq")
+    @SequenceGenerator(name = "customer_seq", sequenceName = "customer_seq", allocationSize = 50)
     @Id  // JPA annotation to specify the primary key of the entity
     private long id;  // Unique identifier for the Customer
     
@@ -49,4 +53,9 @@ public class Customer {
     @Transient
     private List<?> transactions;
     
+    // Transient field: sources (e.g. products, transactions) missing from a full profile because they failed or timed out
+    @Transient
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private List<String> partial;
+    
 }
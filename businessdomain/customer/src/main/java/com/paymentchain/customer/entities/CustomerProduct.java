@@ -13,6 +13,7 @@ import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
 import jakarta.persistence.JoinColumn;
 import jakarta.persistence.ManyToOne;
+import jakarta.persistence.SequenceGenerator;
 import jakarta.persistence.Transient;
 import lombok.Data;
 
@@ -30,10 +31,13 @@ import lombok.Data;
 public class CustomerProduct {
 
     /**
-     * Unique identifier for the CustomerProduct entity.
+     * Unique identifier for the CustomerProduct entity. Ids come from the
+     * customer_product_seq sequence through Hibernate's pooled optimizer, so a
+     * single round trip reserves a block of 50 ids.
      */
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "customer_product_seq")
+    @SequenceGenerator(name = "customer_product_seq", sequenceName = "customer_product_seq", allocationSize = 50)
     private long id;
 
     /**
@@ -5,8 +5,18 @@
 package com.paymentchain.customer.repository;
 
 import com.paymentchain.customer.entities.Customer;
+import jakarta.persistence.QueryHint;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+import org.hibernate.jpa.AvailableHints;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.transaction.annotation.Transactional;
 
 /**
  *
@@ -15,24 +25,97 @@ import org.springframework.data.jpa.repository.Query;
 
 /**
  * Repository interface for performing database operations on the Customer entity.
+ * <p>
+ * Every read path loads the customer products in the same query (fetch join
+ * or entity graph), so serializing the result never triggers one extra
+ * SELECT per customer.
+ * <p>
+ * The read queries run in read-only transactions, so they are served by the
+ * read replica when one is configured; called within a read-write
+ * transaction, they join it and read the primary.
  */
 public interface CustomerRepository extends JpaRepository<Customer, Long> {
+
+    /**
+     * Number of rows fetched per round trip when streaming customers.
+     */
+    public static final int STREAM_FETCH_SIZE = 500;
+
+    /**
+     * Finds all customers together with their products in a single query.
+     *
+     * @return all the customers, with their products loaded
+     */
+    @Override
+    @EntityGraph(attributePaths = "products")
+    public List<Customer> findAll();
+
+    /**
+     * Finds the ids of the customers that come after the given id, in id
+     * order. This is the keyset (cursor) half of a page: it uses the primary
+     * key index, so its cost does not grow with how deep the page is.
+     *
+     * @param after the last id of the previous page (0 for the first page)
+     * @param pageable limits the number of ids returned
+     * @return the ids of the next page, in ascending order
+     */
+    @Transactional(readOnly = true)
+    @Query("SELECT c.id FROM Customer c WHERE c.id > ?1 ORDER BY c.id")
+    public List<Long> findIdsAfter(long after, Pageable pageable);
+
+    /**
+     * Finds the customers with the given ids together with their products in
+     * a single query.
+     *
+     * @param ids the ids of the customers
+     * @return the customers, with their products loaded, in ascending id order
+     */
+    @Transactional(readOnly = true)
+    @EntityGraph(attributePaths = "products")
+    @Query("SELECT c FROM Customer c WHERE c.id IN ?1 ORDER BY c.id")
+    public List<Customer> findAllWithProductsByIdIn(Collection<Long> ids);
+
+    /**
+     * Streams every customer with its products in id order. Rows are read
+     * through the JDBC cursor {@value #STREAM_FETCH_SIZE} at a time, so the
+     * result set is never materialized; the caller must consume the stream
+     * inside a transaction and close it.
+     *
+     * @return a stream of all the customers, with their products loaded
+     */
+    @QueryHints(@QueryHint(name = AvailableHints.HINT_FETCH_SIZE, value = "" + STREAM_FETCH_SIZE))
+    @Query("SELECT c FROM Customer c LEFT JOIN FETCH c.products ORDER BY c.id")
+    public Stream<Customer> streamAll();
+
+    /**
+     * Finds a customer by id together with its products in a single query.
+     *
+     * @param id the id of the customer
+     * @return the customer, with its products loaded, if found
+     */
+    @Override
+    @EntityGraph(attributePaths = "products")
+    public Optional<Customer> findById(Long id);
     
     /**
-     * Finds a customer by its unique code.
+     * Finds a customer by its unique code, fetching its products in the same
+     * query.
      *
      * @param code the unique code of the customer
      * @return the Customer entity matching the given code, or null if not found
      */
-    @Query("SELECT c FROM Customer c WHERE c.code = ?1")
+    @Transactional(readOnly = true)
+    @Query("SELECT c FROM Customer c LEFT JOIN FETCH c.products WHERE c.code = ?1")
     public Customer findByCode(String code);
 
     /**
-     * Finds a customer by its IBAN (International Bank Account Number).
+     * Finds a customer by its IBAN (International Bank Account Number),
+     * fetching its products in the same query.
      *
      * @param iban the IBAN of the customer's account
      * @return the Customer entity matching the given IBAN, or null if not found
      */
-    @Query("SELECT c FROM Customer c WHERE c.iban = ?1")
+    @Transactional(readOnly = true)
+    @Query("SELECT c FROM Customer c LEFT JOIN FETCH c.products WHERE c.iban = ?1")
     public Customer findByAccount(String iban);
 }
@@ -0,0 +1,66 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.customer.business.cache;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Invalidation of product names: a lookup that was already in flight when a
+ * product changed must not store its outdated name.
+ */
+class ProductNameCacheTest {
+
+    private final ProductNameCache cache = new ProductNameCache(100, Duration.ofMinutes(10), 100, new SimpleMeterRegistry());
+
+    @Test
+    void storesNamesFetchedWithoutInvalidation() {
+        long fetchedAt = cache.generation();
+
+        cache.putAll(Map.of(1L, "Savings", 2L, "Checking"), fetchedAt);
+
+        assertThat(cache.getAllPresent(List.of(1L, 2L))).containsOnly(Map.entry(1L, "Savings"), Map.entry(2L, "Checking"));
+        assertThat(cache.getLastKnown(1L)).isEqualTo("Savings");
+    }
+
+    @Test
+    void skipsNamesInvalidatedWhileFetching() {
+        cache.putAll(Map.of(1L, "Savings"), cache.generation());
+        long fetchedAt = cache.generation();
+        // The product is renamed while the lookup is in flight
+        cache.invalidate(1L);
+
+        cache.putAll(Map.of(1L, "Savings", 2L, "Checking"), fetchedAt);
+
+        assertThat(cache.getAllPresent(List.of(1L, 2L))).containsOnly(Map.entry(2L, "Checking"));
+        assertThat(cache.getLastKnown(1L)).isNull();
+
+        // A lookup started after the invalidation stores the new name
+        cache.putAll(Map.of(1L, "Savings plus"), cache.generation());
+        assertThat(cache.getAllPresent(List.of(1L))).containsOnly(Map.entry(1L, "Savings plus"));
+    }
+
+    @Test
+    void skipsEveryNameAfterInvalidatingAll() {
+        long fetchedAt = cache.generation();
+        cache.invalidateAll();
+
+        cache.putAll(Map.of(1L, "Savings"), fetchedAt);
+
+        assertThat(cache.getAllPresent(List.of(1L))).isEmpty();
+        cache.putAll(Map.of(1L, "Savings"), cache.generation());
+        assertThat(cache.getAllPresent(List.of(1L))).hasSize(1);
+    }
+}
@@ -0,0 +1,408 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.customer.business.transactions;
+
+import com.paymentchain.customer.business.cache.ProductNameCache;
+import com.paymentchain.customer.common.BulkImportResult;
+import com.paymentchain.customer.entities.Customer;
+import com.paymentchain.customer.entities.CustomerProduct;
+import com.paymentchain.customer.repository.CustomerRepository;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.github.resilience4j.bulkhead.Bulkhead;
+import io.github.resilience4j.bulkhead.BulkheadRegistry;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Product name resolution (coalescing, per-id settlement, circuit breaker and
+ * bulkhead fallback), the full profile, the bulk import and keyset paging,
+ * run against an in-memory database and a stub of the product and
+ * transaction services.
+ */
+@SpringBootTest(properties = {
+    "spring.config.import=",
+    "spring.cloud.config.enabled=false",
+    "eureka.client.enabled=false",
+    "spring.datasource.url=jdbc:h2:mem:customer",
+    "spring.datasource.username=sa",
+    "spring.datasource.password=",
+    "spring.jpa.properties.hibernate.dialect=org.hibernate.dialect.H2Dialect",
+    "spring.jpa.hibernate.ddl-auto=create-drop",
+    "product.cache.ttl=PT0.5S",
+    "customer.profile.products-timeout=PT1S",
+    "customer.profile.transactions-timeout=PT0.5S",
+    "resilience4j.bulkhead.instances.product.max-concurrent-calls=2"
+})
+class BusinnesTransactionTest {
+
+    // Stub of the product and transaction services, reached through the load-balanced client
+    private static final ServiceStub services = new ServiceStub();
+
+    @Autowired
+    private BusinnesTransaction businnesTransaction;
+
+    @Autowired
+    private CustomerRepository customerRepository;
+
+    @Autowired
+    private ProductNameCache productNameCache;
+
+    @Autowired
+    private CircuitBreakerRegistry circuitBreakerRegistry;
+
+    @Autowired
+    private BulkheadRegistry bulkheadRegistry;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @DynamicPropertySource
+    static void serviceInstances(DynamicPropertyRegistry registry) {
+        registry.add("spring.cloud.discovery.client.simple.instances[businessdomain-product][0].uri", services::url);
+        registry.add("spring.cloud.discovery.client.simple.instances[TRANSACTION][0].uri", services::url);
+    }
+
+    @BeforeEach
+    void resetServices() {
+        services.reset();
+        productNameCache.invalidateAll();
+    }
+
+    @AfterEach
+    void closeCircuit() {
+        circuitBreakerRegistry.circuitBreaker(BusinnesTransaction.PRODUCT_RESILIENCE_NAME).reset();
+    }
+
+    @AfterAll
+    static void stopServices() {
+        services.stop();
+    }
+
+    @Test
+    void concurrentLookupsShareTheCallOfACommonProduct() throws Exception {
+        services.products.putAll(Map.of(11L, "Gold", 12L, "Silver", 13L, "Bronze"));
+        String first = save(11L, 12L).getCode();
+        String second = save(12L, 13L).getCode();
+        double coalesced = meterRegistry.counter("product.lookups.coalesced").count();
+
+        // The first lookup is held by the product service while the second one starts
+        CountDownLatch release = services.holdProductRequests();
+        CompletableFuture<Customer> firstLookup = CompletableFuture.supplyAsync(() -> businnesTransaction.get(first));
+        services.awaitProductRequests(1);
+        CompletableFuture<Customer> secondLookup = CompletableFuture.supplyAsync(() -> businnesTransaction.get(second));
+        services.awaitProductRequests(2);
+        release.countDown();
+
+        assertThat(productNames(firstLookup.get(5, TimeUnit.SECONDS))).containsExactly("Gold", "Silver");
+        assertThat(productNames(secondLookup.get(5, TimeUnit.SECONDS))).containsExactly("Silver", "Bronze");
+        // Product 12 is requested once, the second lookup only asks for 13
+        assertThat(services.productRequests).containsExactlyInAnyOrder(Set.of(11L, 12L), Set.of(13L));
+        assertThat(meterRegistry.counter("product.lookups.coalesced").count()).isEqualTo(coalesced + 1);
+    }
+
+    @Test
+    void joinedNamesAreKeptWhenTheOwnCallFails() throws Exception {
+        services.products.putAll(Map.of(21L, "Gold", 22L, "Silver"));
+        services.failingProducts.add(22L);
+        String first = save(21L).getCode();
+        String second = save(21L, 22L).getCode();
+
+        CountDownLatch release = services.holdProductRequests();
+        CompletableFuture<Customer> firstLookup = CompletableFuture.supplyAsync(() -> businnesTransaction.get(first));
+        services.awaitProductRequests(1);
+        // Joins the call for 21, its own call for 22 fails
+        CompletableFuture<Customer> profile = CompletableFuture.supplyAsync(() -> businnesTransaction.getProfile(second));
+        services.awaitProductRequests(2);
+        release.countDown();
+
+        assertThat(productNames(firstLookup.get(5, TimeUnit.SECONDS))).containsExactly("Gold");
+        Customer customer = profile.get(5, TimeUnit.SECONDS);
+        assertThat(productNames(customer)).containsExactly("Gold", "");
+        assertThat(customer.getPartial()).containsExactly(BusinnesTransaction.PROFILE_SOURCE_PRODUCTS);
+    }
+
+    @Test
+    void openCircuitServesLastKnownNames() throws Exception {
+        services.products.putAll(Map.of(31L, "Gold", 32L, "Silver"));
+        String known = save(31L).getCode();
+        assertThat(productNames(businnesTransaction.get(known))).containsExactly("Gold");
+        String code = save(31L, 32L).getCode();
+        double stale = meterRegistry.counter("product.lookups.stale").count();
+        double rejected = meterRegistry.counter("product.lookups.rejected", "reason", "circuit_open").count();
+
+        circuitBreakerRegistry.circuitBreaker(BusinnesTransaction.PRODUCT_RESILIENCE_NAME).transitionToOpenState();
+        expireCachedNames();
+        Customer customer = businnesTransaction.getProfile(code);
+
+        // 31 was resolved before, 32 never was
+        assertThat(productNames(customer)).containsExactly("Gold", "");
+        assertThat(customer.getPartial()).containsExactly(BusinnesTransaction.PROFILE_SOURCE_PRODUCTS);
+        assertThat(services.productRequests).hasSize(1);
+        assertThat(meterRegistry.counter("product.lookups.stale").count()).isEqualTo(stale + 1);
+        assertThat(meterRegistry.counter("product.lookups.rejected", "reason", "circuit_open").count()).isEqualTo(rejected + 1);
+    }
+
+    @Test
+    void fullBulkheadServesLastKnownNames() throws Exception {
+        services.products.put(41L, "Gold");
+        String code = save(41L).getCode();
+        assertThat(productNames(businnesTransaction.get(code))).containsExactly("Gold");
+        double rejected = meterRegistry.counter("product.lookups.rejected", "reason", "bulkhead_full").count();
+
+        // Other requests hold every permit
+        Bulkhead bulkhead = bulkheadRegistry.bulkhead(BusinnesTransaction.PRODUCT_RESILIENCE_NAME);
+        assertThat(bulkhead.tryAcquirePermission()).isTrue();
+        assertThat(bulkhead.tryAcquirePermission()).isTrue();
+        try {
+            expireCachedNames();
+            assertThat(productNames(businnesTransaction.get(code))).containsExactly("Gold");
+        } finally {
+            bulkhead.onComplete();
+            bulkhead.onComplete();
+        }
+
+        assertThat(services.productRequests).hasSize(1);
+        assertThat(meterRegistry.counter("product.lookups.rejected", "reason", "bulkhead_full").count()).isEqualTo(rejected + 1);
+        assertThat(circuitBreakerRegistry.circuitBreaker(BusinnesTransaction.PRODUCT_RESILIENCE_NAME).getMetrics().getNumberOfFailedCalls()).isZero();
+    }
+
+    @Test
+    void profileFlagsSourceThatMissesItsDeadline() {
+        services.products.put(51L, "Gold");
+        services.transactionsDelayMillis = 1500;
+        String code = save(51L).getCode();
+
+        Customer customer = businnesTransaction.getProfile(code);
+
+        assertThat(productNames(customer)).containsExactly("Gold");
+        assertThat(customer.getTransactions()).isNull();
+        assertThat(customer.getPartial()).containsExactly(BusinnesTransaction.PROFILE_SOURCE_TRANSACTIONS);
+    }
+
+    @Test
+    void profileIsCompleteWhenEverySourceAnswers() {
+        services.products.put(52L, "Gold");
+        String code = save(52L).getCode();
+
+        Customer customer = businnesTransaction.getProfile(code);
+
+        assertThat(productNames(customer)).containsExactly("Gold");
+        assertThat(customer.getTransactions()).isEmpty();
+        assertThat(customer.getPartial()).isNull();
+    }
+
+    @Test
+    void importRetriesFailedChunkRowByRow() throws Exception {
+        Customer first = customer();
+        Customer tooLong = customer();
+        tooLong.setName("x".repeat(300));
+        Customer last = customer();
+
+        BulkImportResult result = businnesTransaction.importCustomers(new ArrayList<>(List.of(first, tooLong, last)));
+
+        assertThat(result.getReceived()).isEqualTo(3);
+        assertThat(result.getImported()).isEqualTo(2);
+        assertThat(result.getErrors()).hasSize(1);
+        assertThat(result.getErrors().get(0).getRow()).isEqualTo(1);
+        assertThat(result.getErrors().get(0).getCode()).isEqualTo("1024");
+        assertThat(customerRepository.findByCode(first.getCode())).isNotNull();
+        assertThat(customerRepository.findByCode(tooLong.getCode())).isNull();
+        assertThat(customerRepository.findByCode(last.getCode())).isNotNull();
+    }
+
+    @Test
+    void keysetPagesCoverEveryCustomerOnceInIdOrder() {
+        for (int i = 0; i < 5; i++) {
+            save();
+        }
+        List<Long> expected = customerRepository.findAll().stream().map(Customer::getId).sorted().toList();
+
+        List<Long> paged = new ArrayList<>();
+        List<Customer> page = businnesTransaction.getPage(0, 2);
+        while (!page.isEmpty()) {
+            assertThat(page).hasSizeLessThanOrEqualTo(2);
+            page.forEach(customer -> paged.add(customer.getId()));
+            page = businnesTransaction.getPage(paged.get(paged.size() - 1), 2);
+        }
+
+        assertThat(paged).isEqualTo(expected);
+    }
+
+    /**
+     * Waits until the cached product names expired, leaving only their last
+     * known value.
+     */
+    private static void expireCachedNames() throws InterruptedException {
+        Thread.sleep(600);
+    }
+
+    private Customer save(long... productIds) {
+        Customer customer = customer();
+        for (long productId : productIds) {
+            CustomerProduct product = new CustomerProduct();
+            product.setProductId(productId);
+            product.setCustomer(customer);
+            customer.getProducts().add(product);
+        }
+        return customerRepository.save(customer);
+    }
+
+    private static Customer customer() {
+        Customer customer = new Customer();
+        customer.setCode(unique("C"));
+        customer.setIban(unique("ES"));
+        customer.setName("Name");
+        customer.setProducts(new ArrayList<>());
+        return customer;
+    }
+
+    private static List<String> productNames(Customer customer) {
+        return customer.getProducts().stream().map(CustomerProduct::getProductName).toList();
+    }
+
+    private static String unique(String prefix) {
+        return prefix + UUID.randomUUID().toString().replace("-", "").substring(0, 20);
+    }
+
+    /**
+     * Minimal product and transaction services: product names from
+     * {@link #products}, failing with 500 for {@link #failingProducts}, and
+     * an empty transaction list answered after
+     * {@link #transactionsDelayMillis}.
+     */
+    private static class ServiceStub {
+
+        final Map<Long, String> products = new ConcurrentHashMap<>();
+
+        final Set<Long> failingProducts = ConcurrentHashMap.newKeySet();
+
+        // Ids of each request received by the product service
+        final List<Set<Long>> productRequests = new CopyOnWriteArrayList<>();
+
+        volatile long transactionsDelayMillis;
+
+        private volatile CountDownLatch productRelease = new CountDownLatch(0);
+
+        private final HttpServer server;
+
+        ServiceStub() {
+            try {
+                server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            server.createContext("/product/names", this::productNames);
+            server.createContext("/transaction/customer/transactions", this::transactions);
+            server.setExecutor(Executors.newCachedThreadPool());
+            server.start();
+        }
+
+        String url() {
+            return "http://localhost:" + server.getAddress().getPort();
+        }
+
+        void reset() {
+            products.clear();
+            failingProducts.clear();
+            productRequests.clear();
+            transactionsDelayMillis = 0;
+            productRelease = new CountDownLatch(0);
+        }
+
+        /**
+         * Holds product requests until the returned latch is released.
+         */
+        CountDownLatch holdProductRequests() {
+            productRelease = new CountDownLatch(1);
+            return productRelease;
+        }
+
+        void awaitProductRequests(int count) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (productRequests.size() < count) {
+                if (System.nanoTime() > deadline) {
+                    throw new AssertionError("Product service received " + productRequests.size() + " requests");
+                }
+                Thread.sleep(10);
+            }
+        }
+
+        void stop() {
+            server.stop(0);
+        }
+
+        private void productNames(HttpExchange exchange) throws IOException {
+            String query = exchange.getRequestURI().getQuery();
+            Set<Long> ids = Arrays.stream(query.substring(query.indexOf('=') + 1).split(","))
+                    .map(Long::valueOf)
+                    .collect(Collectors.toSet());
+            productRequests.add(ids);
+            try {
+                productRelease.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (ids.stream().anyMatch(failingProducts::contains)) {
+                respond(exchange, 500, "");
+                return;
+            }
+            respond(exchange, 200, ids.stream()
+                    .filter(products::containsKey)
+                    .map(id -> "{\"id\":" + id + ",\"name\":\"" + products.get(id) + "\"}")
+                    .collect(Collectors.joining(",", "[", "]")));
+        }
+
+        private void transactions(HttpExchange exchange) throws IOException {
+            try {
+                Thread.sleep(transactionsDelayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            respond(exchange, 200, "[]");
+        }
+
+        private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+}
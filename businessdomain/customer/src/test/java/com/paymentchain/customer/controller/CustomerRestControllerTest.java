@@ -0,0 +1,102 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.customer.controller;
+
+import com.paymentchain.customer.entities.Customer;
+import com.paymentchain.customer.repository.CustomerRepository;
+import java.util.ArrayList;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Customer near-cache: lookups by IBAN and code are answered from memory
+ * until an update or delete through the API invalidates them.
+ */
+@SpringBootTest(properties = {
+    "spring.config.import=",
+    "spring.cloud.config.enabled=false",
+    "eureka.client.enabled=false",
+    "spring.datasource.url=jdbc:h2:mem:customer-api",
+    "spring.datasource.username=sa",
+    "spring.datasource.password=",
+    "spring.jpa.properties.hibernate.dialect=org.hibernate.dialect.H2Dialect",
+    "spring.jpa.hibernate.ddl-auto=create-drop"
+})
+@AutoConfigureMockMvc
+class CustomerRestControllerTest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private CustomerRepository customerRepository;
+
+    @Test
+    void updateInvalidatesCachedLookups() throws Exception {
+        Customer customer = customerRepository.save(customer("Ana"));
+        mockMvc.perform(get("/customer/v1/byAccount/{iban}", customer.getIban()))
+                .andExpect(jsonPath("$.name").value("Ana"));
+        mockMvc.perform(get("/customer/v1/byCode/{code}", customer.getCode()))
+                .andExpect(jsonPath("$.name").value("Ana"));
+
+        // Changed behind the API: the cached copies are still served
+        customer.setName("Eva");
+        customerRepository.save(customer);
+        mockMvc.perform(get("/customer/v1/byAccount/{iban}", customer.getIban()))
+                .andExpect(jsonPath("$.name").value("Ana"));
+
+        mockMvc.perform(put("/customer/v1/{id}", customer.getId())
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"code\":\"" + customer.getCode() + "\",\"iban\":\"" + customer.getIban() + "\",\"name\":\"Lia\"}"))
+                .andExpect(status().isOk());
+
+        mockMvc.perform(get("/customer/v1/byAccount/{iban}", customer.getIban()))
+                .andExpect(jsonPath("$.name").value("Lia"));
+        mockMvc.perform(get("/customer/v1/byCode/{code}", customer.getCode()))
+                .andExpect(jsonPath("$.name").value("Lia"));
+    }
+
+    @Test
+    void deleteInvalidatesCachedLookups() throws Exception {
+        Customer customer = customerRepository.save(customer("Ana"));
+        mockMvc.perform(get("/customer/v1/byAccount/{iban}", customer.getIban()))
+                .andExpect(status().isOk());
+
+        mockMvc.perform(delete("/customer/v1/{id}", customer.getId()))
+                .andExpect(status().isOk());
+
+        mockMvc.perform(get("/customer/v1/byAccount/{iban}", customer.getIban()))
+                .andExpect(status().isNotFound());
+    }
+
+    private static Customer customer(String name) {
+        Customer customer = new Customer();
+        customer.setCode(unique("C"));
+        customer.setIban(unique("ES"));
+        customer.setName(name);
+        customer.setProducts(new ArrayList<>());
+        return customer;
+    }
+
+    private static String unique(String prefix) {
+        return prefix + UUID.randomUUID().toString().replace("-", "").substring(0, 20);
+    }
+}
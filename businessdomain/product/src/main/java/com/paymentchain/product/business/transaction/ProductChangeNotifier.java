@@ -0,0 +1,102 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.product.business.transaction;
+
+import java.time.Duration;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.discovery.DiscoveryClient;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClient;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Notifies the services that cache product data when a product changes.
+ * Every registered instance of the customer service is asked to drop the
+ * cached name of the product, so updated names are visible right away instead
+ * of after the cache time to live.
+ * <p>
+ * Notifications are best effort and never block the caller: failures are
+ * logged and the cache time to live on the customer side bounds staleness.
+ */
+@Component
+public class ProductChangeNotifier {
+
+    // Logger for logging notification failures
+    private static final Logger logger = LoggerFactory.getLogger(ProductChangeNotifier.class);
+
+    /**
+     * Discovery client used to find every instance of the customer service.
+     */
+    private final DiscoveryClient discoveryClient;
+
+    /**
+     * Non load-balanced client, each notification targets a concrete instance.
+     */
+    private final WebClient webClient;
+
+    /**
+     * Service id of the customer service in the discovery server.
+     */
+    private final String serviceId;
+
+    /**
+     * Path of the cache invalidation endpoint, with an {@code {id}} placeholder.
+     */
+    private final String path;
+
+    /**
+     * Creates the notifier.
+     *
+     * @param discoveryClient discovery client used to find the instances
+     * @param webClientBuilder builder used to create the HTTP client
+     * @param serviceId service id of the customer service
+     * @param path path of the invalidation endpoint on each instance
+     */
+    public ProductChangeNotifier(DiscoveryClient discoveryClient, WebClient.Builder webClientBuilder,
+            @Value("${product.change-notification.service-id:businessdomain-customer}") String serviceId,
+            @Value("${product.change-notification.path:/business/customer/v1/cache/products/{id}}") String path) {
+        this.discoveryClient = discoveryClient;
+        this.webClient = webClientBuilder.build();
+        this.serviceId = serviceId;
+        this.path = path;
+    }
+
+    /**
+     * Asynchronously tells every customer service instance that the given
+     * product changed.
+     *
+     * @param id the id of the updated or deleted product
+     */
+    public void productChanged(long id) {
+        List<ServiceInstance> instances;
+        try {
+            instances = discoveryClient.getInstances(serviceId);
+        } catch (Exception e) {
+            logger.warn("Unable to resolve instances of {} to notify product {} change: {}", serviceId, id, e.getMessage());
+            return;
+        }
+
+        for (ServiceInstance instance : instances) {
+            webClient.delete()
+                    .uri(instance.getUri() + path, id)
+                    .retrieve()
+                    .toBodilessEntity()
+                    .timeout(Duration.ofSeconds(2))
+                    .subscribe(
+                            response -> {
+                            },
+                            error -> logger.warn("Unable to notify {} of product {} change: {}",
+                                    instance.getUri(), id, error.getMessage()));
+        }
+    }
+}
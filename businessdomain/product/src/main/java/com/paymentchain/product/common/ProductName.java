@@ -0,0 +1,35 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.product.common;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Lightweight projection of a product holding only its identifier and name.
+ * Returned by the batch lookup endpoint so callers that only need names do not
+ * load or transfer the full product rows.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ProductName {
+
+    /**
+     * Unique identifier of the product.
+     */
+    private long id;
+
+    /**
+     * Name of the product.
+     */
+    private String name;
+}
@@ -5,6 +5,8 @@
 package com.paymentchain.product.controller;
 
 import com.paymentchain.product.business.transaction.BusinessTransaction;
+import com.paymentchain.product.business.transaction.ProductChangeNotifier;
+import com.paymentchain.product.common.ProductName;
 import com.paymentchain.product.entities.Product;
 import com.paymentchain.product.exception.BusinessRuleException;
 import org.springframework.web.bind.annotation.RestController;
@@ -24,6 +26,7 @@ import java.util.NoSuchElementException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.RequestParam;
 
 /**
  *
@@ -47,6 +50,10 @@ public class ProductRestController {
     @Autowired
     private BusinessTransaction businessTransaction;  // The service to handle business logic related to transactions
 
+    // Notifies the services caching product data (e.g. customer) when a product changes
+    @Autowired
+    private ProductChangeNotifier productChangeNotifier;
+
     // Logger to log messages for the ProductRestController class, useful for debugging and tracking application behavior
     private static final Logger logger = LoggerFactory.getLogger(ProductRestController.class);  // Static logger instance
 
@@ -95,6 +102,21 @@ public class ProductRestController {
         }
     }
 
+    /**
+     * Retrieves the id and name of several products in a single call. Unknown
+     * ids are simply left out of the result, so callers can detect missing
+     * products by comparing the returned ids with the requested ones.
+     *
+     * @param ids The IDs of the products to look up (e.g. ?ids=1,2,3).
+     * @return A 200 OK response with the id/name pairs found.
+     */
+    @GetMapping("/names")  // Maps GET requests to /product/names.
+    public ResponseEntity<List<ProductName>> names(@RequestParam(name = "ids") List<Long> ids) {
+        // A single IN query that selects only the id and name columns
+        List<ProductName> names = productRepository.findNamesByIdIn(ids);
+        return ResponseEntity.ok(names);
+    }
+
     /**
      * Updates an existing product with the provided data.
      *
@@ -118,6 +140,7 @@ public class ProductRestController {
 
                 // Save the updated product and return the updated object
                 Product savedProduct = productRepository.save(existingProduct);
+                productChangeNotifier.productChanged(id);  // Invalidate cached copies of the product name
                 return ResponseEntity.ok(savedProduct);  // Return a 200 OK response with the updated product
             }
         } catch (Exception e) {
@@ -155,6 +178,7 @@ public class ProductRestController {
 
             if (findById.isPresent()) {  // Product found, proceed with deletion.
                 productRepository.delete(findById.get());  // Deletes the product.
+                productChangeNotifier.productChanged(id);  // Invalidate cached copies of the product name
                 return ResponseEntity.ok().build();  // Return 200 OK response.
             } else {
                 return ResponseEntity.notFound().build();  // Return 404 Not Found if product does not exist.
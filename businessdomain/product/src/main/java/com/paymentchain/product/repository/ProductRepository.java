@@ -4,13 +4,26 @@
  */
 package com.paymentchain.product.repository;
 
+import com.paymentchain.product.common.ProductName;
 import com.paymentchain.product.entities.Product;
+import java.util.Collection;
+import java.util.List;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 
 /**
  *
  * @author rvega
  */
 public interface ProductRepository extends JpaRepository<Product, Long> {
-    
+
+    /**
+     * Finds the id and name of every product whose id is in the given
+     * collection, using a single IN query.
+     *
+     * @param ids the product ids to look up
+     * @return the id/name pairs of the products found; unknown ids are omitted
+     */
+    @Query("SELECT new com.paymentchain.product.common.ProductName(p.id, p.name) FROM Product p WHERE p.id IN ?1")
+    public List<ProductName> findNamesByIdIn(Collection<Long> ids);
 }
@@ -0,0 +1,679 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.business.analytics;
+
+import com.paymentchain.transaction.business.shard.TransactionShards;
+import com.paymentchain.transaction.common.AnalyticsResult;
+import com.paymentchain.transaction.common.AnalyticsRow;
+import com.paymentchain.transaction.entities.Transaction;
+import com.paymentchain.transaction.exception.BusinessRuleException;
+import com.paymentchain.transaction.repository.TransactionRepository;
+import jakarta.annotation.PostConstruct;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * In-memory, column oriented copy of the most recent transactions, used to
+ * answer dashboard queries (volume per channel per hour, rate per status...)
+ * without touching the database.
+ * <p>
+ * Each attribute lives in its own primitive array: id, date (epoch
+ * milliseconds, UTC), amount, fee, and the channel and status encoded as
+ * small integers through a dictionary. A query is a single sequential pass
+ * over these arrays that accumulates counts and sums into dense arrays
+ * indexed by group, so tens of millions of rows are aggregated in tens of
+ * milliseconds, split across cores when the store is large.
+ * <p>
+ * The arrays form a ring of {@code transaction.analytics.capacity} rows: once
+ * full, each new transaction replaces the oldest one. The store is loaded
+ * with the most recent transactions at startup and then follows the writes
+ * made through this instance; writes made through other instances are only
+ * seen after a restart.
+ * <p>
+ * Writes never wait for a query: appends and removals are queued and applied
+ * by whichever thread next finds the store unlocked, at the latest by the
+ * next query before it scans. Removals find the slot of a transaction through
+ * an index by id instead of searching the ring.
+ */
+@Component
+public class TransactionColumnStore {
+
+    // Logger for logging the initial load
+    private static final Logger logger = LoggerFactory.getLogger(TransactionColumnStore.class);
+
+    /**
+     * Group by channel.
+     */
+    public static final String CHANNEL = "channel";
+
+    /**
+     * Group by status.
+     */
+    public static final String STATUS = "status";
+
+    /**
+     * Group by hour of the transaction date.
+     */
+    public static final String HOUR = "hour";
+
+    /**
+     * Group by day of the transaction date.
+     */
+    public static final String DAY = "day";
+
+    // Status code marking a deleted row, skipped by queries
+    private static final int DELETED = -1;
+
+    // Rows per core above which a query is split across cores
+    private static final int PARALLEL_CHUNK = 1_000_000;
+
+    // Maximum number of groups aggregated in parallel, each core keeping its own copy
+    private static final int PARALLEL_MAX_GROUPS = 1 << 16;
+
+    /**
+     * Whether transactions are kept in memory for analytics.
+     */
+    @Value("${transaction.analytics.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * Maximum number of transactions kept in memory (about 65 bytes each,
+     * with the index by id).
+     */
+    @Value("${transaction.analytics.capacity:1000000}")
+    private int capacity;
+
+    /**
+     * Maximum number of groups a query may produce.
+     */
+    @Value("${transaction.analytics.max-groups:5000000}")
+    private int maxGroups;
+
+    /**
+     * Automatically injected repository, used for the initial load.
+     */
+    @Autowired
+    private TransactionRepository transactionRepository;
+
+    /**
+     * Placement of the transactions across the shards, each loaded in turn.
+     */
+    @Autowired
+    private TransactionShards shards;
+
+    /**
+     * Transaction manager, used to read the initial load through a cursor.
+     */
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    // Columns, one entry per row
+    private long[] ids;
+    private long[] times;
+    private double[] amounts;
+    private double[] fees;
+    private int[] channels;
+    private int[] statuses;
+
+    // Number of rows in use, and slot receiving the next row
+    private int size;
+    private int next;
+
+    // Slot of each live row, by transaction id
+    private SlotIndex slots;
+
+    // Dictionaries encoding channel and status values
+    private final Dictionary channelDictionary = new Dictionary();
+    private final Dictionary statusDictionary = new Dictionary();
+
+    // Appends and removals not applied to the columns yet, in the order they were made
+    private final ConcurrentLinkedQueue<Change> changes = new ConcurrentLinkedQueue<>();
+
+    // Queries share the read lock, changes are applied under the write lock
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * An append of a stored transaction, or the removal of the transaction
+     * with the given id when {@code removal} is set.
+     */
+    private record Change(boolean removal, long id, LocalDateTime date, double amount, double fee,
+            String channel, String status) {
+
+    }
+
+    /**
+     * Allocates the columns and loads the most recent transactions.
+     */
+    @PostConstruct
+    void init() {
+        if (!enabled) {
+            return;
+        }
+        ids = new long[capacity];
+        times = new long[capacity];
+        amounts = new double[capacity];
+        fees = new double[capacity];
+        channels = new int[capacity];
+        statuses = new int[capacity];
+        slots = new SlotIndex(capacity);
+
+        TransactionTemplate readOnly = new TransactionTemplate(transactionManager);
+        readOnly.setReadOnly(true);
+        // Each shard allocates its own ids, its share of the capacity is loaded from its highest one
+        int share = capacity / shards.count();
+        shards.forEachShard(shard -> {
+            // The ids of the last rows are close to the highest one, so the load is a primary key range scan
+            Long maxId = transactionRepository.findMaxId();
+            if (maxId == null) {
+                return;
+            }
+            readOnly.executeWithoutResult(status -> {
+                try (Stream<Object[]> rows = transactionRepository.streamAnalyticsColumnsAfter(Math.max(0, maxId - share))) {
+                    rows.forEach(row -> append((Long) row[0], (LocalDateTime) row[1], (Double) row[2], (Double) row[3],
+                            (String) row[4], (String) row[5]));
+                }
+            });
+        });
+        logger.info("Loaded {} transactions into the analytics store", size);
+    }
+
+    /**
+     * Whether transactions are kept in memory for analytics.
+     *
+     * @return true if the store is enabled
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Adds stored transactions to the store. Call it once they are committed.
+     * Does not wait for running queries.
+     *
+     * @param transactions the stored transactions
+     */
+    public void added(Collection<Transaction> transactions) {
+        if (!enabled) {
+            return;
+        }
+        for (Transaction transaction : transactions) {
+            changes.add(new Change(false, transaction.getId(), transaction.getDate(), transaction.getAmount(),
+                    transaction.getFee(), transaction.getChannel(), transaction.getStatus()));
+        }
+        applyChanges(false);
+    }
+
+    /**
+     * Removes a transaction from the store, e.g. because it was deleted or
+     * is about to be added again with updated values. Does not wait for
+     * running queries.
+     *
+     * @param id the id of the transaction
+     */
+    public void removed(long id) {
+        if (!enabled) {
+            return;
+        }
+        changes.add(new Change(true, id, null, 0, 0, null, null));
+        applyChanges(false);
+    }
+
+    /**
+     * Aggregates the transactions held in memory: count, sum of amounts and
+     * sum of fees, grouped by any combination of channel, status and one time
+     * dimension (hour or day), optionally filtered by date range, channel and
+     * status.
+     *
+     * @param groupBy the dimensions to group by; empty for a single total
+     * @param from the lower date bound, inclusive, or null
+     * @param to the upper date bound, inclusive, or null
+     * @param channel only count transactions of this channel, or null
+     * @param status only count transactions with this status, or null
+     * @return the non-empty groups with their aggregates
+     * @throws BusinessRuleException if a dimension is unknown, two time
+     * dimensions are requested, or the query would produce too many groups
+     */
+    public AnalyticsResult query(List<String> groupBy, LocalDateTime from, LocalDateTime to, String channel, String status)
+            throws BusinessRuleException {
+        long started = System.nanoTime();
+        boolean byChannel = false;
+        boolean byStatus = false;
+        long bucketMillis = 0;
+        for (String dimension : groupBy) {
+            switch (dimension) {
+                case CHANNEL ->
+                    byChannel = true;
+                case STATUS ->
+                    byStatus = true;
+                case HOUR, DAY -> {
+                    if (bucketMillis != 0) {
+                        throw invalidQuery("Validation error, only one time dimension (hour or day) can be grouped by");
+                    }
+                    bucketMillis = HOUR.equals(dimension) ? 3_600_000L : 86_400_000L;
+                }
+                default ->
+                    throw invalidQuery("Validation error, unknown analytics dimension " + dimension
+                            + ", expected channel, status, hour or day");
+            }
+        }
+
+        AnalyticsResult result = new AnalyticsResult();
+        result.setGroupBy(new ArrayList<>(groupBy));
+        if (!enabled) {
+            return result;
+        }
+
+        // The query sees every change made before it
+        applyChanges(true);
+        lock.readLock().lock();
+        try {
+            Scan scan = new Scan();
+            scan.fromMillis = from != null ? toMillis(from) : Long.MIN_VALUE;
+            scan.toMillis = to != null ? toMillis(to) : Long.MAX_VALUE;
+            scan.channelFilter = channel != null ? channelDictionary.codeOf(channel) : -1;
+            scan.statusFilter = status != null ? statusDictionary.codeOf(status) : -1;
+            // A filter on a value never seen matches nothing
+            if (channel != null && scan.channelFilter < 0 || status != null && scan.statusFilter < 0) {
+                result.setScanned(size);
+                result.setTookMillis((System.nanoTime() - started) / 1e6);
+                return result;
+            }
+
+            // Dense group layout: channel x status x time bucket
+            scan.channelGroups = byChannel ? channelDictionary.size() : 1;
+            scan.statusGroups = byStatus ? statusDictionary.size() : 1;
+            scan.bucketMillis = bucketMillis;
+            scan.buckets = 1;
+            if (bucketMillis > 0) {
+                long[] range = timeRange(scan.fromMillis, scan.toMillis);
+                if (range == null) {
+                    result.setScanned(size);
+                    result.setTookMillis((System.nanoTime() - started) / 1e6);
+                    return result;
+                }
+                scan.origin = Math.floorDiv(range[0], bucketMillis) * bucketMillis;
+                scan.buckets = Math.floorDiv(range[1] - scan.origin, bucketMillis) + 1;
+            }
+            long groups = (long) scan.channelGroups * scan.statusGroups * scan.buckets;
+            if (groups > maxGroups) {
+                throw invalidQuery("Validation error, the query would produce " + groups
+                        + " groups, narrow the date range or group by day");
+            }
+            scan.groups = (int) groups;
+
+            // Large stores with few groups are scanned in parallel, each core with its own accumulators
+            int parts = Math.min(Runtime.getRuntime().availableProcessors(), Math.max(1, size / PARALLEL_CHUNK));
+            Accumulator total;
+            if (parts > 1 && scan.groups <= PARALLEL_MAX_GROUPS) {
+                int chunk = (size + parts - 1) / parts;
+                total = IntStream.range(0, parts).parallel()
+                        .mapToObj(part -> scan.run(part * chunk, Math.min(size, (part + 1) * chunk)))
+                        .reduce(Accumulator::merge)
+                        .orElseGet(() -> new Accumulator(scan.groups));
+            } else {
+                total = scan.run(0, size);
+            }
+
+            // Turn the non-empty groups back into dimension values
+            for (int group = 0; group < scan.groups; group++) {
+                if (total.counts[group] == 0) {
+                    continue;
+                }
+                int bucket = (int) (group % scan.buckets);
+                int statusCode = (int) ((group / scan.buckets) % scan.statusGroups);
+                int channelCode = (int) (group / scan.buckets / scan.statusGroups);
+                result.getRows().add(new AnalyticsRow(
+                        byChannel ? channelDictionary.valueOf(channelCode) : null,
+                        byStatus ? statusDictionary.valueOf(statusCode) : null,
+                        bucketMillis > 0 ? toDateTime(scan.origin + bucket * bucketMillis) : null,
+                        total.counts[group], total.amounts[group], total.fees[group]));
+                result.setMatched(result.getMatched() + total.counts[group]);
+            }
+            result.setScanned(size);
+        } finally {
+            lock.readLock().unlock();
+            // Changes queued by writes made during the scan
+            applyChanges(false);
+        }
+        result.setTookMillis((System.nanoTime() - started) / 1e6);
+        return result;
+    }
+
+    /**
+     * Applies the queued changes to the columns. A write only applies them if
+     * the store is unlocked and leaves them otherwise to the thread holding
+     * the lock, which checks for changes again once it released it; a query
+     * waits for the lock so it scans every change made before it.
+     *
+     * @param wait whether to wait for the lock
+     */
+    private void applyChanges(boolean wait) {
+        while (!changes.isEmpty()) {
+            if (wait) {
+                lock.writeLock().lock();
+            } else if (!lock.writeLock().tryLock()) {
+                return;
+            }
+            try {
+                for (Change change = changes.poll(); change != null; change = changes.poll()) {
+                    if (change.removal()) {
+                        remove(change.id());
+                    } else {
+                        append(change.id(), change.date(), change.amount(), change.fee(), change.channel(), change.status());
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Marks the row of a transaction as deleted, if the store holds it.
+     * Callers hold the write lock.
+     */
+    private void remove(long id) {
+        int slot = slots.remove(id);
+        if (slot >= 0) {
+            statuses[slot] = DELETED;
+        }
+    }
+
+    /**
+     * Writes one row in the next slot, replacing the oldest row once the ring
+     * is full. Callers hold the write lock, or run before the store is shared.
+     */
+    private void append(long id, LocalDateTime date, double amount, double fee, String channel, String status) {
+        // The oldest row leaves the index, unless it was deleted or a newer row has the same id
+        if (size == capacity && statuses[next] != DELETED && slots.get(ids[next]) == next) {
+            slots.remove(ids[next]);
+        }
+        slots.put(id, next);
+        ids[next] = id;
+        times[next] = date != null ? toMillis(date) : Long.MIN_VALUE;
+        amounts[next] = amount;
+        fees[next] = fee;
+        channels[next] = channelDictionary.encode(channel);
+        statuses[next] = statusDictionary.encode(status);
+        next = (next + 1) % capacity;
+        if (size < capacity) {
+            size++;
+        }
+    }
+
+    /**
+     * Finds the oldest and newest dates of the live rows within the bounds.
+     *
+     * @return {@code [min, max]} in epoch milliseconds, or null if no row is
+     * within the bounds
+     */
+    private long[] timeRange(long fromMillis, long toMillis) {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < size; i++) {
+            long time = times[i];
+            if (statuses[i] != DELETED && time >= fromMillis && time <= toMillis && time != Long.MIN_VALUE) {
+                min = Math.min(min, time);
+                max = Math.max(max, time);
+            }
+        }
+        return min > max ? null : new long[]{min, max};
+    }
+
+    /**
+     * Builds the error returned for an invalid analytics query.
+     */
+    private static BusinessRuleException invalidQuery(String message) {
+        return new BusinessRuleException(
+                "1059", // Custom error code
+                message, // Error message
+                HttpStatus.BAD_REQUEST // HTTP status indicating the failure
+        );
+    }
+
+    /**
+     * Converts a transaction date to epoch milliseconds, dates being stored
+     * without time zone.
+     */
+    private static long toMillis(LocalDateTime date) {
+        return date.toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    /**
+     * Converts epoch milliseconds back to a transaction date.
+     */
+    private static LocalDateTime toDateTime(long millis) {
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(millis, 1000), 0, ZoneOffset.UTC);
+    }
+
+    /**
+     * One pass over a range of rows with fixed filters and group layout.
+     */
+    private class Scan {
+
+        long fromMillis;
+        long toMillis;
+        int channelFilter;
+        int statusFilter;
+        int channelGroups;
+        int statusGroups;
+        long bucketMillis;
+        long origin;
+        long buckets;
+        int groups;
+
+        /**
+         * Aggregates the rows of the slots {@code [start, end)}.
+         */
+        Accumulator run(int start, int end) {
+            Accumulator accumulator = new Accumulator(groups);
+            for (int i = start; i < end; i++) {
+                int statusCode = statuses[i];
+                long time = times[i];
+                if (statusCode == DELETED || time < fromMillis || time > toMillis) {
+                    continue;
+                }
+                int channelCode = channels[i];
+                if (channelFilter >= 0 && channelCode != channelFilter || statusFilter >= 0 && statusCode != statusFilter) {
+                    continue;
+                }
+                long group = channelGroups > 1 ? channelCode : 0;
+                group = group * statusGroups + (statusGroups > 1 ? statusCode : 0);
+                group = group * buckets + (bucketMillis > 0 ? (time - origin) / bucketMillis : 0);
+                int g = (int) group;
+                accumulator.counts[g]++;
+                accumulator.amounts[g] += amounts[i];
+                accumulator.fees[g] += fees[i];
+            }
+            return accumulator;
+        }
+    }
+
+    /**
+     * Counts and sums per group.
+     */
+    private static class Accumulator {
+
+        final long[] counts;
+        final double[] amounts;
+        final double[] fees;
+
+        Accumulator(int groups) {
+            counts = new long[groups];
+            amounts = new double[groups];
+            fees = new double[groups];
+        }
+
+        /**
+         * Adds the groups of another accumulator to this one.
+         */
+        Accumulator merge(Accumulator other) {
+            for (int g = 0; g < counts.length; g++) {
+                counts[g] += other.counts[g];
+                amounts[g] += other.amounts[g];
+                fees[g] += other.fees[g];
+            }
+            return this;
+        }
+    }
+
+    /**
+     * Open addressing hash table from transaction id to slot, sized once for
+     * the capacity of the store so it never grows. Deletions shift the
+     * following entries back, so lookups need no tombstones.
+     */
+    private static class SlotIndex {
+
+        // Transaction id of each entry
+        private final long[] keys;
+
+        // Slot of each entry, -1 for an empty entry
+        private final int[] values;
+
+        // Table size minus one, the size being a power of two
+        private final int mask;
+
+        /**
+         * Creates an index for up to {@code capacity} ids, at most half full.
+         */
+        SlotIndex(int capacity) {
+            int tableSize = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) << 1;
+            keys = new long[tableSize];
+            values = new int[tableSize];
+            Arrays.fill(values, -1);
+            mask = tableSize - 1;
+        }
+
+        /**
+         * Returns the slot of an id, or -1 if it is not indexed.
+         */
+        int get(long id) {
+            for (int i = indexOf(id); values[i] >= 0; i = (i + 1) & mask) {
+                if (keys[i] == id) {
+                    return values[i];
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Indexes an id at a slot, replacing its previous slot if any.
+         */
+        void put(long id, int slot) {
+            int i = indexOf(id);
+            while (values[i] >= 0 && keys[i] != id) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = id;
+            values[i] = slot;
+        }
+
+        /**
+         * Removes an id from the index.
+         *
+         * @return the slot it was indexed at, or -1 if it was not indexed
+         */
+        int remove(long id) {
+            int i = indexOf(id);
+            while (values[i] >= 0 && keys[i] != id) {
+                i = (i + 1) & mask;
+            }
+            int slot = values[i];
+            if (slot < 0) {
+                return -1;
+            }
+            // Move back the following entries of the probe sequence that the gap would hide
+            int gap = i;
+            for (int j = (gap + 1) & mask; values[j] >= 0; j = (j + 1) & mask) {
+                int home = indexOf(keys[j]);
+                if (((j - home) & mask) >= ((j - gap) & mask)) {
+                    keys[gap] = keys[j];
+                    values[gap] = values[j];
+                    gap = j;
+                }
+            }
+            values[gap] = -1;
+            return slot;
+        }
+
+        /**
+         * Home entry of an id.
+         */
+        private int indexOf(long id) {
+            long hash = id * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32)) & mask;
+        }
+    }
+
+    /**
+     * Dictionary encoding the distinct values of a low cardinality column as
+     * consecutive integers. Code 0 stands for a missing (null) value.
+     */
+    private static class Dictionary {
+
+        // Code of each value
+        private final Map<String, Integer> codes = new HashMap<>();
+
+        // Value of each code
+        private final List<String> values = new ArrayList<>(List.of(""));
+
+        /**
+         * Returns the code of a value, assigning a new one if needed.
+         */
+        int encode(String value) {
+            if (value == null) {
+                return 0;
+            }
+            return codes.computeIfAbsent(value, v -> {
+                values.add(v);
+                return values.size() - 1;
+            });
+        }
+
+        /**
+         * Returns the code of a value, or -1 if it was never encoded.
+         */
+        int codeOf(String value) {
+            return codes.getOrDefault(value, -1);
+        }
+
+        /**
+         * Returns the value of a code, null for code 0.
+         */
+        String valueOf(int code) {
+            return code == 0 ? null : values.get(code);
+        }
+
+        /**
+         * Number of codes in use, including the one for null.
+         */
+        int size() {
+            return values.size();
+        }
+    }
+}
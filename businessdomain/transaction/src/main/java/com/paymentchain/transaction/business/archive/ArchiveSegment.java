@@ -0,0 +1,507 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.business.archive;
+
+import com.paymentchain.transaction.entities.Transaction;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * One immutable archive segment: a set of transactions sorted by IBAN
+ * account, date and id, stored in two files.
+ * <ul>
+ * <li>{@code <name>.dat} holds the transactions in blocks of a fixed number
+ * of rows, each block compressed on its own.</li>
+ * <li>{@code <name>.idx} is the sparse index: the date range of the segment
+ * and, for every block, the key of its first transaction with the position
+ * of the block in the data file.</li>
+ * </ul>
+ * The index is kept in memory. Reading the transactions of an account
+ * binary-searches the index for the first block that may hold them and
+ * decompresses the blocks that follow one at a time, as the reader advances,
+ * until the account or the date range ends.
+ */
+class ArchiveSegment {
+
+    /**
+     * Order of the transactions in a segment: IBAN account (missing first),
+     * then date (missing first), then id.
+     */
+    static final Comparator<Transaction> ORDER = Comparator
+            .comparing(Transaction::getIbanAccount, Comparator.nullsFirst(Comparator.<String>naturalOrder()))
+            .thenComparing(Transaction::getDate, Comparator.nullsFirst(Comparator.<LocalDateTime>naturalOrder()))
+            .thenComparingLong(Transaction::getId);
+
+    // Identifies index files, and their format version
+    private static final int MAGIC = 0x54584152;
+    private static final int VERSION = 1;
+
+    // Encoded date of a transaction without date, sorted first
+    private static final long NO_DATE = Long.MIN_VALUE;
+
+    // Name shared by the data and index files
+    private final String name;
+
+    // Data file
+    private final Path dataFile;
+
+    // Number of transactions, and range of their dates
+    private final int rows;
+    private final long minDate;
+    private final long maxDate;
+
+    // Key of the first transaction of every block
+    private final String[] firstIbans;
+    private final long[] firstDates;
+    private final long[] firstIds;
+
+    // Position and compressed length of every block in the data file
+    private final long[] offsets;
+    private final int[] lengths;
+
+    private ArchiveSegment(String name, Path dataFile, int rows, long minDate, long maxDate, String[] firstIbans,
+            long[] firstDates, long[] firstIds, long[] offsets, int[] lengths) {
+        this.name = name;
+        this.dataFile = dataFile;
+        this.rows = rows;
+        this.minDate = minDate;
+        this.maxDate = maxDate;
+        this.firstIbans = firstIbans;
+        this.firstDates = firstDates;
+        this.firstIds = firstIds;
+        this.offsets = offsets;
+        this.lengths = lengths;
+    }
+
+    /**
+     * Writes a new segment. The files are written under temporary names and
+     * renamed once complete, the index last, so a segment is either fully
+     * visible or not at all.
+     *
+     * @param directory the archive directory
+     * @param name the name of the segment files
+     * @param transactions the transactions, sorted by {@link #ORDER}
+     * @param blockSize the number of transactions per compressed block
+     * @return the segment, ready to be read
+     * @throws IOException if the files cannot be written
+     */
+    static ArchiveSegment write(Path directory, String name, List<Transaction> transactions, int blockSize) throws IOException {
+        int blocks = (transactions.size() + blockSize - 1) / blockSize;
+        String[] firstIbans = new String[blocks];
+        long[] firstDates = new long[blocks];
+        long[] firstIds = new long[blocks];
+        long[] offsets = new long[blocks];
+        int[] lengths = new int[blocks];
+        long minDate = Long.MAX_VALUE;
+        long maxDate = Long.MIN_VALUE;
+
+        Path dataFile = directory.resolve(name + ".dat");
+        Path indexFile = directory.resolve(name + ".idx");
+        Path tmpData = directory.resolve(name + ".dat.tmp");
+        Path tmpIndex = directory.resolve(name + ".idx.tmp");
+
+        try (FileChannel data = FileChannel.open(tmpData, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            long offset = 0;
+            for (int block = 0; block < blocks; block++) {
+                List<Transaction> rows = transactions.subList(block * blockSize, Math.min(transactions.size(), (block + 1) * blockSize));
+                Transaction first = rows.get(0);
+                firstIbans[block] = first.getIbanAccount();
+                firstDates[block] = encode(first.getDate());
+                firstIds[block] = first.getId();
+
+                buffer.reset();
+                try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(buffer))) {
+                    for (Transaction transaction : rows) {
+                        writeTransaction(out, transaction);
+                        long date = encode(transaction.getDate());
+                        minDate = Math.min(minDate, date);
+                        maxDate = Math.max(maxDate, date);
+                    }
+                }
+                offsets[block] = offset;
+                lengths[block] = buffer.size();
+                ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray());
+                while (bytes.hasRemaining()) {
+                    offset += data.write(bytes);
+                }
+            }
+            data.force(true);
+        }
+
+        try (OutputStream file = Files.newOutputStream(tmpIndex);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(transactions.size());
+            out.writeLong(minDate);
+            out.writeLong(maxDate);
+            out.writeInt(blocks);
+            for (int block = 0; block < blocks; block++) {
+                writeString(out, firstIbans[block]);
+                out.writeLong(firstDates[block]);
+                out.writeLong(firstIds[block]);
+                out.writeLong(offsets[block]);
+                out.writeInt(lengths[block]);
+            }
+        }
+        try (FileChannel index = FileChannel.open(tmpIndex, StandardOpenOption.WRITE)) {
+            index.force(true);
+        }
+        Files.move(tmpData, dataFile, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(tmpIndex, indexFile, StandardCopyOption.ATOMIC_MOVE);
+        return new ArchiveSegment(name, dataFile, transactions.size(), minDate, maxDate, firstIbans, firstDates, firstIds,
+                offsets, lengths);
+    }
+
+    /**
+     * Loads the index of an existing segment.
+     *
+     * @param indexFile the index file of the segment
+     * @return the segment, ready to be read
+     * @throws IOException if the index cannot be read or is not an index
+     */
+    static ArchiveSegment open(Path indexFile) throws IOException {
+        String fileName = indexFile.getFileName().toString();
+        String name = fileName.substring(0, fileName.length() - ".idx".length());
+        try (InputStream file = Files.newInputStream(indexFile);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(file))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a transaction archive index: " + indexFile);
+            }
+            int rows = in.readInt();
+            long minDate = in.readLong();
+            long maxDate = in.readLong();
+            int blocks = in.readInt();
+            String[] firstIbans = new String[blocks];
+            long[] firstDates = new long[blocks];
+            long[] firstIds = new long[blocks];
+            long[] offsets = new long[blocks];
+            int[] lengths = new int[blocks];
+            for (int block = 0; block < blocks; block++) {
+                firstIbans[block] = readString(in);
+                firstDates[block] = in.readLong();
+                firstIds[block] = in.readLong();
+                offsets[block] = in.readLong();
+                lengths[block] = in.readInt();
+            }
+            return new ArchiveSegment(name, indexFile.resolveSibling(name + ".dat"), rows, minDate, maxDate, firstIbans,
+                    firstDates, firstIds, offsets, lengths);
+        }
+    }
+
+    /**
+     * Name shared by the files of the segment.
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Number of transactions in the segment.
+     */
+    int getRows() {
+        return rows;
+    }
+
+    /**
+     * Date of the most recent transaction of the segment.
+     */
+    LocalDateTime getMaxDate() {
+        return decode(maxDate);
+    }
+
+    /**
+     * Opens a cursor over the transactions of an account dated within the
+     * given bounds, in date and id order. Blocks are decompressed one at a
+     * time as the cursor advances, so a single block is held in memory
+     * whatever the number of matches. The cursor must be closed.
+     *
+     * @param ibanAccount the IBAN account
+     * @param from the lower date bound, inclusive
+     * @param afterId transactions dated exactly {@code from} are returned only
+     * if their id is greater
+     * @param to the upper date bound, inclusive
+     * @return the cursor, positioned before the first match
+     * @throws IOException if the data file cannot be opened
+     */
+    Cursor open(String ibanAccount, LocalDateTime from, long afterId, LocalDateTime to) throws IOException {
+        return new Cursor(ibanAccount, encode(from), afterId, encode(to));
+    }
+
+    /**
+     * Forward-only cursor over the transactions of one account within a date
+     * range. Closes its data file once exhausted.
+     */
+    final class Cursor implements Iterator<Transaction>, Closeable {
+
+        // Searched account, and encoded date bounds
+        private final String ibanAccount;
+        private final long lower;
+        private final long afterId;
+        private final long upper;
+
+        // Data file, null once the cursor is exhausted or closed
+        private FileChannel data;
+
+        // Next block to decompress
+        private int block;
+
+        // Rows of the current block, and position of the next one to check
+        private List<Transaction> rows = List.of();
+        private int position;
+
+        // Next match, read ahead by hasNext
+        private Transaction next;
+
+        private Cursor(String ibanAccount, long lower, long afterId, long upper) throws IOException {
+            this.ibanAccount = ibanAccount;
+            this.lower = lower;
+            this.afterId = afterId;
+            this.upper = upper;
+            if (firstIbans.length > 0 && upper >= minDate && lower <= maxDate) {
+                data = FileChannel.open(dataFile, StandardOpenOption.READ);
+                // Blocks starting after the searched key cannot hold the first match, except the one before them
+                block = Math.max(0, lastBlockStartingBefore(ibanAccount, lower));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && data != null) {
+                next = advance();
+            }
+            return next != null;
+        }
+
+        @Override
+        public Transaction next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Transaction transaction = next;
+            next = null;
+            return transaction;
+        }
+
+        /**
+         * Reads up to the next match, decompressing blocks as needed.
+         *
+         * @return the match, or null once past the account or the date range
+         */
+        private Transaction advance() {
+            try {
+                while (true) {
+                    if (position == rows.size()) {
+                        if (block == firstIbans.length || compareKey(firstIbans[block], firstDates[block], ibanAccount, upper) > 0) {
+                            close();
+                            return null;
+                        }
+                        rows = readBlock(data, block++);
+                        position = 0;
+                        continue;
+                    }
+                    Transaction transaction = rows.get(position++);
+                    long date = encode(transaction.getDate());
+                    if (compareKey(transaction.getIbanAccount(), date, ibanAccount, upper) > 0) {
+                        close();
+                        return null;
+                    }
+                    if (ibanAccount.equals(transaction.getIbanAccount())
+                            && (date > lower || date == lower && transaction.getId() > afterId)) {
+                        return transaction;
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                throw new UncheckedIOException("Could not read the transaction archive segment " + name, e);
+            }
+        }
+
+        /**
+         * Releases the data file and the current block.
+         */
+        @Override
+        public void close() {
+            rows = List.of();
+            if (data == null) {
+                return;
+            }
+            try {
+                data.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not close the transaction archive segment " + name, e);
+            } finally {
+                data = null;
+            }
+        }
+    }
+
+    /**
+     * Deletes the files of the segment.
+     *
+     * @throws IOException if a file cannot be deleted
+     */
+    void delete() throws IOException {
+        Files.deleteIfExists(dataFile.resolveSibling(name + ".idx"));
+        Files.deleteIfExists(dataFile);
+    }
+
+    /**
+     * Finds the last block whose first transaction sorts strictly before the
+     * given account and date.
+     *
+     * @return the block number, or -1 if there is none
+     */
+    private int lastBlockStartingBefore(String ibanAccount, long date) {
+        int low = 0;
+        int high = firstIbans.length - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (compareKey(firstIbans[mid], firstDates[mid], ibanAccount, date) < 0) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Compares the (account, date) key of a transaction with a searched key,
+     * consistently with {@link #ORDER}.
+     */
+    private static int compareKey(String iban, long date, String searchedIban, long searchedDate) {
+        int cmp = iban == null ? -1 : iban.compareTo(searchedIban);
+        return cmp != 0 ? cmp : Long.compare(date, searchedDate);
+    }
+
+    /**
+     * Reads and decompresses one block.
+     */
+    private List<Transaction> readBlock(FileChannel data, int block) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(lengths[block]);
+        long position = offsets[block];
+        while (bytes.hasRemaining()) {
+            if (data.read(bytes, position + bytes.position()) < 0) {
+                throw new IOException("Truncated transaction archive segment: " + dataFile);
+            }
+        }
+        List<Transaction> transactions = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(bytes.array())))) {
+            while (true) {
+                Transaction transaction = readTransaction(in);
+                if (transaction == null) {
+                    return transactions;
+                }
+                transactions.add(transaction);
+            }
+        }
+    }
+
+    /**
+     * Writes one transaction, preceded by a marker byte.
+     */
+    private static void writeTransaction(DataOutputStream out, Transaction transaction) throws IOException {
+        out.writeBoolean(true);
+        out.writeLong(transaction.getId());
+        out.writeLong(encode(transaction.getDate()));
+        out.writeDouble(transaction.getAmount());
+        out.writeDouble(transaction.getFee());
+        writeString(out, transaction.getIbanAccount());
+        writeString(out, transaction.getReference());
+        writeString(out, transaction.getDescription());
+        writeString(out, transaction.getStatus());
+        writeString(out, transaction.getChannel());
+    }
+
+    /**
+     * Reads one transaction.
+     *
+     * @return the transaction, or null at the end of the block
+     */
+    private static Transaction readTransaction(DataInputStream in) throws IOException {
+        int marker = in.read();
+        if (marker <= 0) {
+            return null;
+        }
+        Transaction transaction = new Transaction();
+        transaction.setId(in.readLong());
+        transaction.setDate(decode(in.readLong()));
+        transaction.setAmount(in.readDouble());
+        transaction.setFee(in.readDouble());
+        transaction.setIbanAccount(readString(in));
+        transaction.setReference(readString(in));
+        transaction.setDescription(readString(in));
+        transaction.setStatus(readString(in));
+        transaction.setChannel(readString(in));
+        return transaction;
+    }
+
+    /**
+     * Writes a string that may be null.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    /**
+     * Reads a string that may be null.
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Encodes a date as epoch microseconds, the precision of the date
+     * column, dates being stored without time zone.
+     */
+    private static long encode(LocalDateTime date) {
+        return date == null ? NO_DATE : date.toEpochSecond(ZoneOffset.UTC) * 1_000_000L + date.getNano() / 1_000;
+    }
+
+    /**
+     * Decodes a date encoded by {@link #encode}.
+     */
+    private static LocalDateTime decode(long micros) {
+        return micros == NO_DATE ? null : LocalDateTime.ofEpochSecond(Math.floorDiv(micros, 1_000_000L),
+                (int) Math.floorMod(micros, 1_000_000L) * 1_000, ZoneOffset.UTC);
+    }
+}
@@ -0,0 +1,460 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.business.archive;
+
+import com.paymentchain.transaction.business.shard.TransactionShards;
+import com.paymentchain.transaction.entities.Transaction;
+import com.paymentchain.transaction.repository.TransactionRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Cold tier of the transaction history. Most reads target recent
+ * transactions, so transactions older than {@code transaction.archive.max-age}
+ * are moved out of the database into compressed, immutable segment files
+ * under {@code transaction.archive.directory}, keeping the table and its
+ * indexes sized to the recent window.
+ * <p>
+ * Each archival run reads up to {@code transaction.archive.max-rows-per-segment}
+ * old transactions, sorts them by IBAN account, date and id, writes them as
+ * one {@link ArchiveSegment} and only then deletes them from the database. If
+ * the deletion fails, the rows exist in both tiers until the next run;
+ * readers drop the archived copy of a transaction still in the database.
+ * <p>
+ * History queries call {@link #read}, or {@link #open} to stream, when their
+ * date range reaches back before {@link #getArchivedUntil()}, and merge the
+ * archived transactions with the ones still in the database.
+ * <p>
+ * Segments are local files: every instance serving history must see the same
+ * archive directory (e.g. a shared volume), and archival must be enabled on a
+ * single instance.
+ */
+@Component
+public class TransactionArchive {
+
+    // Logger for logging archival runs
+    private static final Logger logger = LoggerFactory.getLogger(TransactionArchive.class);
+
+    // Prefix and extension of the segment index files
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    // Number of archived transactions deleted per statement
+    private static final int DELETE_CHUNK = 1000;
+
+    // Order of the history of an account: date (missing first), then id
+    private static final Comparator<Transaction> HISTORY_ORDER = Comparator
+            .comparing(Transaction::getDate, Comparator.nullsFirst(Comparator.<LocalDateTime>naturalOrder()))
+            .thenComparingLong(Transaction::getId);
+
+    /**
+     * Whether this instance moves old transactions to the archive.
+     */
+    @Value("${transaction.archive.enabled:false}")
+    private boolean enabled;
+
+    /**
+     * Directory holding the segment files.
+     */
+    @Value("${transaction.archive.directory:archive}")
+    private Path directory;
+
+    /**
+     * Age after which a transaction is archived.
+     */
+    @Value("${transaction.archive.max-age:P90D}")
+    private Duration maxAge;
+
+    /**
+     * Maximum number of transactions written per segment.
+     */
+    @Value("${transaction.archive.max-rows-per-segment:100000}")
+    private int maxRowsPerSegment;
+
+    /**
+     * Number of transactions per compressed block, i.e. per sparse index
+     * entry.
+     */
+    @Value("${transaction.archive.block-size:256}")
+    private int blockSize;
+
+    /**
+     * Automatically injected repository for managing Transaction entities.
+     */
+    @Autowired
+    private TransactionRepository transactionRepository;
+
+    /**
+     * Placement of the transactions across the shards, each archived in
+     * turn.
+     */
+    @Autowired
+    private TransactionShards shards;
+
+    /**
+     * Transaction manager, used to read and delete archived rows.
+     */
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    /**
+     * Persistence context, used to detach the rows read for archival.
+     */
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    // Segments found or written, oldest first
+    private final List<ArchiveSegment> segments = new CopyOnWriteArrayList<>();
+
+    // Date of the most recent archived transaction, null while the archive is empty
+    private volatile LocalDateTime archivedUntil;
+
+    // Template running the reads and deletions of each run
+    private TransactionTemplate transactionTemplate;
+
+    /**
+     * Loads the index of every segment of the archive directory and removes
+     * the files of interrupted runs.
+     */
+    @PostConstruct
+    void init() throws IOException {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.sorted().toList()) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    Files.delete(file);
+                } else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(INDEX_SUFFIX)) {
+                    add(ArchiveSegment.open(file));
+                }
+            }
+        }
+        logger.info("Loaded {} transaction archive segments from {}", segments.size(), directory.toAbsolutePath());
+    }
+
+    /**
+     * Date of the most recent archived transaction. History ranges starting
+     * after it do not need to read the archive.
+     *
+     * @return the date, or null if nothing was archived
+     */
+    public LocalDateTime getArchivedUntil() {
+        return archivedUntil;
+    }
+
+    /**
+     * Whether a history range starting at the given date may include
+     * archived transactions.
+     *
+     * @param from the lower date bound of the range
+     * @return true if the archive must be read
+     */
+    public boolean reaches(LocalDateTime from) {
+        LocalDateTime until = archivedUntil;
+        return until != null && !from.isAfter(until);
+    }
+
+    /**
+     * Reads the archived transactions of an account within a date range, in
+     * date and id order, after the given keyset cursor.
+     *
+     * @param ibanAccount the IBAN account
+     * @param from the lower date bound, inclusive
+     * @param to the upper date bound, inclusive
+     * @param afterDate the date of the last transaction already returned, or
+     * null to start at {@code from}
+     * @param afterId the id of the last transaction already returned
+     * @param limit the maximum number of transactions to return
+     * @return the archived transactions
+     */
+    public List<Transaction> read(String ibanAccount, LocalDateTime from, LocalDateTime to,
+            LocalDateTime afterDate, long afterId, int limit) {
+        List<Transaction> archived = new ArrayList<>();
+        try (Cursor cursor = open(ibanAccount, from, to, afterDate, afterId)) {
+            while (archived.size() < limit && cursor.hasNext()) {
+                archived.add(cursor.next());
+            }
+        }
+        return archived;
+    }
+
+    /**
+     * Opens a cursor over the archived transactions of an account within a
+     * date range, in date and id order, after the given keyset cursor. The
+     * segments are merged as the cursor advances, each decompressing one
+     * block at a time, so memory use depends on the number of segments, not
+     * on the number of archived transactions. The cursor must be closed.
+     *
+     * @param ibanAccount the IBAN account
+     * @param from the lower date bound, inclusive
+     * @param to the upper date bound, inclusive
+     * @param afterDate the date of the last transaction already returned, or
+     * null to start at {@code from}
+     * @param afterId the id of the last transaction already returned
+     * @return the cursor, positioned before the first archived transaction
+     */
+    public Cursor open(String ibanAccount, LocalDateTime from, LocalDateTime to, LocalDateTime afterDate, long afterId) {
+        List<ArchiveSegment.Cursor> cursors = new ArrayList<>();
+        if (ibanAccount == null || !reaches(from)) {
+            return new Cursor(cursors);
+        }
+        // Resume after the cursor when it lies within the range
+        boolean resume = afterDate != null && !afterDate.isBefore(from);
+        LocalDateTime lower = resume ? afterDate : from;
+        long lowerId = resume ? afterId : Long.MIN_VALUE;
+        try {
+            for (ArchiveSegment segment : segments) {
+                cursors.add(segment.open(ibanAccount, lower, lowerId, to));
+            }
+        } catch (IOException e) {
+            cursors.forEach(ArchiveSegment.Cursor::close);
+            throw new UncheckedIOException("Could not read the transaction archive", e);
+        }
+        return new Cursor(cursors);
+    }
+
+    /**
+     * Merges transactions read from the database with archived ones, both in
+     * date and id order, dropping archived copies of transactions still in
+     * the database.
+     *
+     * @param stored the transactions read from the database
+     * @param archived the transactions read from the archive
+     * @param limit the maximum number of transactions to return
+     * @return the merged transactions, in date and id order
+     */
+    public static List<Transaction> merge(List<Transaction> stored, List<Transaction> archived, int limit) {
+        if (archived.isEmpty()) {
+            return stored.size() > limit ? stored.subList(0, limit) : stored;
+        }
+        return merge(stored, archived.iterator(), limit);
+    }
+
+    /**
+     * Merges transactions read from the database with archived ones read as
+     * they are needed, both in date and id order, dropping archived copies of
+     * transactions still in the database.
+     *
+     * @param stored the transactions read from the database, in date and id
+     * order
+     * @param archived the transactions read from the archive, in date and id
+     * order
+     * @param limit the maximum number of transactions to return
+     * @return the merged transactions, in date and id order
+     */
+    public static List<Transaction> merge(List<Transaction> stored, Iterator<Transaction> archived, int limit) {
+        Set<Long> storedIds = new HashSet<>();
+        stored.forEach(transaction -> storedIds.add(transaction.getId()));
+        List<Transaction> merged = new ArrayList<>(Math.min(limit, stored.size()));
+        Iterator<Transaction> fromDatabase = stored.iterator();
+        Transaction nextStored = fromDatabase.hasNext() ? fromDatabase.next() : null;
+        Transaction nextArchived = nextNotStored(archived, storedIds);
+        while (merged.size() < limit && (nextStored != null || nextArchived != null)) {
+            if (nextArchived == null || nextStored != null && HISTORY_ORDER.compare(nextStored, nextArchived) <= 0) {
+                merged.add(nextStored);
+                nextStored = fromDatabase.hasNext() ? fromDatabase.next() : null;
+            } else {
+                merged.add(nextArchived);
+                nextArchived = nextNotStored(archived, storedIds);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Returns the next archived transaction that is not also in the database.
+     */
+    private static Transaction nextNotStored(Iterator<Transaction> archived, Set<Long> storedIds) {
+        while (archived.hasNext()) {
+            Transaction transaction = archived.next();
+            if (!storedIds.contains(transaction.getId())) {
+                return transaction;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Forward-only cursor over archived transactions of one account, merging
+     * the cursors of every segment in date and id order. A transaction found
+     * in two segments (interrupted archival run) is returned once.
+     */
+    public static final class Cursor implements Iterator<Transaction>, Closeable {
+
+        // Cursors of the segments, closed together
+        private final List<ArchiveSegment.Cursor> cursors;
+
+        // Next transaction of every segment not yet exhausted, the smallest first
+        private final PriorityQueue<Head> heads = new PriorityQueue<>(
+                (a, b) -> HISTORY_ORDER.compare(a.transaction(), b.transaction()));
+
+        // Last transaction returned, to skip its copies in other segments
+        private Transaction last;
+
+        private Cursor(List<ArchiveSegment.Cursor> cursors) {
+            this.cursors = cursors;
+            cursors.forEach(this::push);
+        }
+
+        @Override
+        public boolean hasNext() {
+            // Copies of the last transaction sort right after it
+            while (!heads.isEmpty() && last != null && isCopy(heads.peek().transaction(), last)) {
+                push(heads.poll().source());
+            }
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public Transaction next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Head head = heads.poll();
+            push(head.source());
+            last = head.transaction();
+            return last;
+        }
+
+        /**
+         * Closes the cursor of every segment.
+         */
+        @Override
+        public void close() {
+            heads.clear();
+            cursors.forEach(ArchiveSegment.Cursor::close);
+        }
+
+        /**
+         * Queues the next transaction of a segment, if any.
+         */
+        private void push(ArchiveSegment.Cursor source) {
+            if (source.hasNext()) {
+                heads.add(new Head(source.next(), source));
+            }
+        }
+
+        /**
+         * Whether two transactions are the same archived transaction.
+         */
+        private static boolean isCopy(Transaction a, Transaction b) {
+            return a.getId() == b.getId() && Objects.equals(a.getDate(), b.getDate());
+        }
+    }
+
+    /**
+     * Next transaction of a segment cursor.
+     */
+    private record Head(Transaction transaction, ArchiveSegment.Cursor source) {
+
+    }
+
+    /**
+     * Moves the transactions older than the maximum age to the archive, one
+     * segment at a time, until none is left, one shard after the other. Runs every
+     * {@code transaction.archive.check-interval} when archival is enabled.
+     */
+    @Scheduled(initialDelayString = "${transaction.archive.check-interval:PT24H}",
+            fixedDelayString = "${transaction.archive.check-interval:PT24H}")
+    public void archive() {
+        if (!enabled) {
+            return;
+        }
+        LocalDateTime cutoff = LocalDateTime.now().minus(maxAge);
+        try {
+            shards.forEachShard(shard -> {
+                // A full segment may leave older transactions behind
+                int archived;
+                do {
+                    archived = archiveSegment(cutoff);
+                } while (archived == maxRowsPerSegment);
+            });
+        } catch (IOException | RuntimeException e) {
+            logger.error("Transaction archival failed, it will be retried at the next run", e);
+        }
+    }
+
+    /**
+     * Writes one segment with transactions dated before the cutoff and
+     * deletes them from the database (the shard of the current thread).
+     *
+     * @param cutoff the date before which transactions are archived
+     * @return the number of transactions archived
+     * @throws IOException if the segment cannot be written
+     */
+    public int archiveSegment(LocalDateTime cutoff) throws IOException {
+        // Read on the primary (read-write transaction), where the rows are deleted right after
+        List<Transaction> transactions = new ArrayList<>(transactionTemplate.execute(status -> {
+            List<Transaction> found = transactionRepository.findArchivable(cutoff, PageRequest.of(0, maxRowsPerSegment));
+            entityManager.clear();
+            return found;
+        }));
+        if (transactions.isEmpty()) {
+            return 0;
+        }
+        transactions.sort(ArchiveSegment.ORDER);
+
+        // The segment is durable before any row leaves the database
+        Files.createDirectories(directory);
+        String name = String.format("%s%d-%06d", SEGMENT_PREFIX, System.currentTimeMillis(), segments.size());
+        ArchiveSegment segment = ArchiveSegment.write(directory, name, transactions, blockSize);
+        add(segment);
+
+        List<Long> ids = transactions.stream().map(Transaction::getId).toList();
+        for (int start = 0; start < ids.size(); start += DELETE_CHUNK) {
+            List<Long> chunk = ids.subList(start, Math.min(ids.size(), start + DELETE_CHUNK));
+            transactionTemplate.executeWithoutResult(status -> transactionRepository.deleteByIdIn(chunk));
+        }
+        logger.info("Archived {} transactions dated before {} to {}", transactions.size(), cutoff, name);
+        return transactions.size();
+    }
+
+    /**
+     * Makes a segment visible to readers.
+     */
+    private void add(ArchiveSegment segment) {
+        segments.add(segment);
+        LocalDateTime maxDate = segment.getMaxDate();
+        if (maxDate != null && (archivedUntil == null || maxDate.isAfter(archivedUntil))) {
+            archivedUntil = maxDate;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.business.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.paymentchain.transaction.entities.Transaction;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.time.Duration;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * In-process cache of recently stored transactions keyed by their reference,
+ * the idempotency key of a posted transaction. A client retrying a post after
+ * a gateway timeout usually does so within seconds, so the retry is answered
+ * from memory with the original row, without reaching the database.
+ * <p>
+ * The cache is bounded in size and entries expire after a configurable time
+ * to live; statistics are published under the {@code cache} metrics with the
+ * tag {@code cache=recentReferences}. The unique index on the reference
+ * column catches the retries the cache no longer remembers.
+ */
+@Component
+public class RecentReferenceCache {
+
+    /**
+     * Name under which the cache metrics are published.
+     */
+    public static final String CACHE_NAME = "recentReferences";
+
+    /**
+     * Underlying Caffeine cache mapping reference to a snapshot of the stored
+     * transaction.
+     */
+    private final Cache<String, Transaction> cache;
+
+    /**
+     * Creates the cache and binds its statistics to the meter registry.
+     *
+     * @param maxSize maximum number of references kept in memory
+     * @param ttl time after which a reference is forgotten
+     * @param meterRegistry registry used to publish the cache metrics
+     */
+    public RecentReferenceCache(@Value("${transaction.idempotency.cache.max-size:100000}") long maxSize,
+            @Value("${transaction.idempotency.cache.ttl:PT1H}") Duration ttl,
+            MeterRegistry meterRegistry) {
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxSize) // Bound the memory used by the cache
+                .expireAfterWrite(ttl) // Retries come shortly after the original post
+                .recordStats() // Keep hit/miss/eviction counters for the metrics binder
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, CACHE_NAME);
+    }
+
+    /**
+     * Returns the transaction recently stored with the given reference.
+     *
+     * @param reference the reference of the transaction, may be null
+     * @return a copy of the stored transaction, or null if the reference is
+     * blank or not known
+     */
+    public Transaction get(String reference) {
+        if (reference == null || reference.isBlank()) {
+            return null;
+        }
+        return copyOf(cache.getIfPresent(reference));
+    }
+
+    /**
+     * Remembers a stored transaction under its reference. Transactions without
+     * reference are ignored.
+     *
+     * @param transaction the stored transaction
+     */
+    public void put(Transaction transaction) {
+        if (transaction.getReference() != null && !transaction.getReference().isBlank()) {
+            cache.put(transaction.getReference(), copyOf(transaction));
+        }
+    }
+
+    /**
+     * Forgets a reference, typically because its transaction was updated or
+     * deleted.
+     *
+     * @param reference the reference to forget, may be null
+     */
+    public void invalidate(String reference) {
+        if (reference != null) {
+            cache.invalidate(reference);
+        }
+    }
+
+    /**
+     * Copies a transaction, so the cached snapshot is never shared with
+     * callers.
+     *
+     * @param transaction the transaction to copy, may be null
+     * @return the copy, or null if {@code transaction} is null
+     */
+    public static Transaction copyOf(Transaction transaction) {
+        if (transaction == null) {
+            return null;
+        }
+        Transaction copy = new Transaction();
+        copy.setId(transaction.getId());
+        copy.setReference(transaction.getReference());
+        copy.setIbanAccount(transaction.getIbanAccount());
+        copy.setDate(transaction.getDate());
+        copy.setAmount(transaction.getAmount());
+        copy.setFee(transaction.getFee());
+        copy.setDescription(transaction.getDescription());
+        copy.setStatus(transaction.getStatus());
+        copy.setChannel(transaction.getChannel());
+        return copy;
+    }
+}
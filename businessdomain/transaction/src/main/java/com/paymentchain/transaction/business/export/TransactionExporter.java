@@ -0,0 +1,504 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.business.export;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.paymentchain.transaction.business.archive.TransactionArchive;
+import com.paymentchain.transaction.business.shard.TransactionShards;
+import com.paymentchain.transaction.exception.BusinessRuleException;
+import jakarta.annotation.PostConstruct;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.zip.GZIPOutputStream;
+import javax.sql.DataSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Bulk export of the transactions of a date range, e.g. whole days for
+ * reconciliation. Rows are read with plain JDBC through a forward-only cursor
+ * fetching {@code transaction.export.fetch-size} rows per round trip, and each
+ * row is written to the response as soon as it is read, straight from the
+ * result set columns: no entity, persistence context or list is built, so an
+ * export of any size runs in constant memory.
+ * <p>
+ * The output is gzip compressed at the fastest level by default, which keeps
+ * the compression cheaper than the network and the database reads it sits
+ * between. Rows are ordered by date and id, served by the
+ * {@code idx_transaction_date_id} index (and limited to the partitions of the
+ * range on PostgreSQL).
+ * <p>
+ * Only the database is read. Ranges starting at or before the most recent
+ * archived transaction are refused by {@link #checkRange} instead of being
+ * exported without their archived rows; archived transactions are read
+ * through the history of their account.
+ * <p>
+ * With sharding, a cursor is opened on every shard and their rows are merged
+ * in date and id order as they are read, still in constant memory.
+ */
+@Service
+public class TransactionExporter {
+
+    /**
+     * Supported output formats.
+     */
+    public enum Format {
+
+        /**
+         * Comma separated values with a header line (RFC 4180 quoting).
+         */
+        CSV("text/csv", "csv"),
+
+        /**
+         * Newline delimited JSON, one transaction object per line.
+         */
+        NDJSON("application/x-ndjson", "ndjson");
+
+        // Content type of the uncompressed output
+        private final String mediaType;
+
+        // File name extension of the uncompressed output
+        private final String extension;
+
+        Format(String mediaType, String extension) {
+            this.mediaType = mediaType;
+            this.extension = extension;
+        }
+
+        public String getMediaType() {
+            return mediaType;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+
+        /**
+         * Parses a format name, case insensitive.
+         *
+         * @param name the format name (csv or ndjson)
+         * @return the format
+         * @throws BusinessRuleException if the format is unknown
+         */
+        public static Format parse(String name) throws BusinessRuleException {
+            try {
+                return valueOf(name.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new BusinessRuleException("1060", "Unknown export format " + name + ", expected csv or ndjson",
+                        HttpStatus.BAD_REQUEST);
+            }
+        }
+    }
+
+    // Exported columns, in output order
+    private static final String[] COLUMNS = {
+        "id", "reference", "iban_account", "date", "amount", "fee", "description", "status", "channel"
+    };
+
+    // Names of the exported fields, matching the JSON representation of Transaction
+    private static final String[] FIELDS = {
+        "id", "reference", "ibanAccount", "date", "amount", "fee", "description", "status", "channel"
+    };
+
+    // Rows are streamed in keyset order of the date index
+    private static final String SELECT = "SELECT " + String.join(", ", COLUMNS)
+            + " FROM transaction WHERE date >= ? AND date <= ? ORDER BY date, id";
+
+    // Size of the buffers between the row writer, the compressor and the response
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Order of the current rows of the shard cursors, the export order
+    private static final Comparator<Cursor> CURSOR_ORDER = Comparator
+            .comparing((Cursor cursor) -> cursor.date, Comparator.nullsFirst(Comparator.<Timestamp>naturalOrder()))
+            .thenComparingLong(cursor -> cursor.id);
+
+    /**
+     * Number of rows fetched per round trip.
+     */
+    @Value("${transaction.export.fetch-size:1000}")
+    private int fetchSize;
+
+    /**
+     * Compression level of the gzip output, from 1 (fastest) to 9 (smallest).
+     */
+    @Value("${transaction.export.compression-level:1}")
+    private int compressionLevel;
+
+    /**
+     * Data source the rows are read from.
+     */
+    @Autowired
+    private DataSource dataSource;
+
+    /**
+     * Placement of the transactions across the shards.
+     */
+    @Autowired
+    private TransactionShards shards;
+
+    /**
+     * Cold tier, whose archived transactions are not exported.
+     */
+    @Autowired
+    private TransactionArchive archive;
+
+    /**
+     * Transaction manager, used to keep the cursor open for the whole export.
+     */
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    /**
+     * Object mapper, whose factory writes the JSON lines.
+     */
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    // JDBC template reading through a forward-only cursor
+    private JdbcTemplate jdbcTemplate;
+
+    // Read-only transaction holding the cursor; PostgreSQL only streams results inside a transaction
+    private TransactionTemplate transactionTemplate;
+
+    /**
+     * Creates the JDBC and transaction templates.
+     */
+    @PostConstruct
+    void init() {
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.setFetchSize(fetchSize);
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.setReadOnly(true);
+    }
+
+    /**
+     * Checks that a range can be exported completely. The export reads the
+     * database only, so a range reaching back to archived transactions is
+     * refused rather than silently missing them.
+     *
+     * @param from the lower date bound, inclusive
+     * @throws BusinessRuleException if the range starts at or before the
+     * most recent archived transaction (1065)
+     */
+    public void checkRange(LocalDateTime from) throws BusinessRuleException {
+        if (archive.reaches(from)) {
+            throw new BusinessRuleException(
+                    "1065", // Custom error code
+                    "Export range reaches archived transactions, dated up to " + archive.getArchivedUntil()
+                    + "; export from a later date and read older transactions through the account history", // Error message
+                    HttpStatus.UNPROCESSABLE_ENTITY // HTTP status indicating the failure
+            );
+        }
+    }
+
+    /**
+     * Writes the transactions dated within a range, ordered by date and id.
+     *
+     * @param format the output format
+     * @param from the lower date bound, inclusive
+     * @param to the upper date bound, inclusive
+     * @param compress whether the output is gzip compressed
+     * @param out the stream to write to, left open
+     * @return the number of transactions written
+     * @throws IOException if the output cannot be written
+     */
+    public long export(Format format, LocalDateTime from, LocalDateTime to, boolean compress, OutputStream out)
+            throws IOException {
+        GZIPOutputStream gzip = compress ? new GZIPOutputStream(out, BUFFER_SIZE) {
+            {
+                def.setLevel(compressionLevel);
+            }
+        } : null;
+        OutputStream target = compress ? gzip : out;
+        RowWriter writer = format == Format.CSV
+                ? new CsvRowWriter(target)
+                : new NdjsonRowWriter(objectMapper.getFactory(), target);
+        try {
+            long count = shards.isSharded() ? exportMerged(writer, from, to) : transactionTemplate.execute(status -> {
+                long[] rows = {0};
+                jdbcTemplate.query(SELECT, (RowCallbackHandler) rs -> {
+                    try {
+                        writer.write(rs);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    rows[0]++;
+                }, Timestamp.valueOf(from), Timestamp.valueOf(to));
+                return rows[0];
+            });
+            writer.finish();
+            if (gzip != null) {
+                gzip.finish();
+            }
+            out.flush();
+            return count;
+        } catch (UncheckedIOException e) {
+            // The client went away or the output failed, the cursor is already closed
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Writes the rows of every shard, merged in date and id order from one
+     * cursor per shard.
+     *
+     * @return the number of rows written
+     */
+    private long exportMerged(RowWriter writer, LocalDateTime from, LocalDateTime to) {
+        List<Cursor> cursors = new ArrayList<>(shards.count());
+        try {
+            PriorityQueue<Cursor> heads = new PriorityQueue<>(shards.count(), CURSOR_ORDER);
+            for (int shard = 0; shard < shards.count(); shard++) {
+                // The lazy connection reaches its shard at the first statement, so the query is sent on the shard
+                Cursor cursor = new Cursor(dataSource.getConnection());
+                cursors.add(cursor);
+                shards.onShard(shard, () -> cursor.open(from, to));
+                if (cursor.next()) {
+                    heads.add(cursor);
+                }
+            }
+            long count = 0;
+            while (!heads.isEmpty()) {
+                Cursor head = heads.poll();
+                writer.write(head.rs);
+                count++;
+                if (head.next()) {
+                    heads.add(head);
+                }
+            }
+            return count;
+        } catch (SQLException e) {
+            throw jdbcTemplate.getExceptionTranslator().translate("export", SELECT, e);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            cursors.forEach(Cursor::close);
+        }
+    }
+
+    /**
+     * Forward-only cursor over the rows of one shard, in a read-only
+     * transaction of its own, and the sort key of its current row.
+     */
+    private final class Cursor {
+
+        // Connection holding the transaction of the cursor
+        private final Connection connection;
+
+        // Statement and result set of the cursor, null until opened
+        private PreparedStatement statement;
+        private ResultSet rs;
+
+        // Date and id of the current row
+        private Timestamp date;
+        private long id;
+
+        Cursor(Connection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * Runs the query. PostgreSQL only streams results inside a
+         * transaction.
+         *
+         * @return null
+         */
+        private Void open(LocalDateTime from, LocalDateTime to) {
+            try {
+                connection.setAutoCommit(false);
+                connection.setReadOnly(true);
+                statement = connection.prepareStatement(SELECT, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                statement.setFetchSize(fetchSize);
+                statement.setTimestamp(1, Timestamp.valueOf(from));
+                statement.setTimestamp(2, Timestamp.valueOf(to));
+                rs = statement.executeQuery();
+                return null;
+            } catch (SQLException e) {
+                throw jdbcTemplate.getExceptionTranslator().translate("export", SELECT, e);
+            }
+        }
+
+        /**
+         * Moves to the next row.
+         *
+         * @return false once the rows are exhausted
+         */
+        private boolean next() throws SQLException {
+            if (!rs.next()) {
+                return false;
+            }
+            id = rs.getLong(1);
+            date = rs.getTimestamp(4);
+            return true;
+        }
+
+        /**
+         * Ends the transaction and releases the connection.
+         */
+        private void close() {
+            try (connection) {
+                if (rs != null) {
+                    rs.close();
+                    statement.close();
+                    connection.rollback();
+                }
+            } catch (SQLException e) {
+                // Nothing was written, the pool discards a broken connection
+            }
+        }
+    }
+
+    /**
+     * Writes result set rows in an output format.
+     */
+    private interface RowWriter {
+
+        /**
+         * Writes the current row of the result set.
+         */
+        void write(ResultSet rs) throws SQLException, IOException;
+
+        /**
+         * Flushes the buffered output.
+         */
+        void finish() throws IOException;
+    }
+
+    /**
+     * Writes rows as CSV lines, after a header line.
+     */
+    private static class CsvRowWriter implements RowWriter {
+
+        // Buffered UTF-8 writer over the target stream
+        private final Writer writer;
+
+        CsvRowWriter(OutputStream out) throws IOException {
+            writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+            writer.write(String.join(",", FIELDS));
+            writer.write("\r\n");
+        }
+
+        @Override
+        public void write(ResultSet rs) throws SQLException, IOException {
+            writer.write(Long.toString(rs.getLong(1)));
+            writer.write(',');
+            text(rs.getString(2));
+            writer.write(',');
+            text(rs.getString(3));
+            writer.write(',');
+            Timestamp date = rs.getTimestamp(4);
+            if (date != null) {
+                writer.write(DateTimeFormatter.ISO_LOCAL_DATE_TIME.format(date.toLocalDateTime()));
+            }
+            writer.write(',');
+            writer.write(Double.toString(rs.getDouble(5)));
+            writer.write(',');
+            writer.write(Double.toString(rs.getDouble(6)));
+            writer.write(',');
+            text(rs.getString(7));
+            writer.write(',');
+            text(rs.getString(8));
+            writer.write(',');
+            text(rs.getString(9));
+            writer.write("\r\n");
+        }
+
+        /**
+         * Writes a text field, quoted when it holds a separator, a quote or a
+         * line break. Null is written as an empty field.
+         */
+        private void text(String value) throws IOException {
+            if (value == null) {
+                return;
+            }
+            boolean quote = false;
+            for (int i = 0; i < value.length() && !quote; i++) {
+                char c = value.charAt(i);
+                quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+            }
+            if (!quote) {
+                writer.write(value);
+                return;
+            }
+            writer.write('"');
+            writer.write(value.replace("\"", "\"\""));
+            writer.write('"');
+        }
+
+        @Override
+        public void finish() throws IOException {
+            writer.flush();
+        }
+    }
+
+    /**
+     * Writes rows as JSON objects, one per line, with the field names of the
+     * Transaction JSON representation.
+     */
+    private static class NdjsonRowWriter implements RowWriter {
+
+        // Streaming generator over the target stream
+        private final JsonGenerator generator;
+
+        NdjsonRowWriter(JsonFactory factory, OutputStream out) throws IOException {
+            generator = factory.createGenerator(out);
+            // The target stream belongs to the caller
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.setRootValueSeparator(null);
+        }
+
+        @Override
+        public void write(ResultSet rs) throws SQLException, IOException {
+            generator.writeStartObject();
+            generator.writeNumberField(FIELDS[0], rs.getLong(1));
+            generator.writeStringField(FIELDS[1], rs.getString(2));
+            generator.writeStringField(FIELDS[2], rs.getString(3));
+            Timestamp date = rs.getTimestamp(4);
+            generator.writeStringField(FIELDS[3], date != null ? DateTimeFormatter.ISO_LOCAL_DATE_TIME.format(date.toLocalDateTime()) : null);
+            generator.writeNumberField(FIELDS[4], rs.getDouble(5));
+            generator.writeNumberField(FIELDS[5], rs.getDouble(6));
+            generator.writeStringField(FIELDS[6], rs.getString(7));
+            generator.writeStringField(FIELDS[7], rs.getString(8));
+            generator.writeStringField(FIELDS[8], rs.getString(9));
+            generator.writeEndObject();
+            generator.writeRaw('\n');
+        }
+
+        @Override
+        public void finish() throws IOException {
+            generator.flush();
+        }
+    }
+}
@@ -0,0 +1,413 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.business.ingestion;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.paymentchain.transaction.business.analytics.TransactionColumnStore;
+import com.paymentchain.transaction.business.cache.RecentReferenceCache;
+import com.paymentchain.transaction.business.shard.TransactionShards;
+import com.paymentchain.transaction.business.summary.AccountSummaryService;
+import com.paymentchain.transaction.business.velocity.VelocityChecker;
+import com.paymentchain.transaction.common.IngestionStatus;
+import com.paymentchain.transaction.entities.Transaction;
+import com.paymentchain.transaction.repository.TransactionRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Bounded in-process queue absorbing spikes of posted transactions. When
+ * {@code transaction.ingestion.async} is enabled, a validated transaction is
+ * appended to the queue and the caller gets a tracking id right away; a single
+ * background writer drains the queue and inserts the transactions in batches
+ * of up to {@code transaction.ingestion.batch-size}, or whatever arrived within
+ * {@code transaction.ingestion.max-wait}, each batch in one database
+ * transaction.
+ * <p>
+ * When the queue is full, {@link #offer(Transaction)} refuses the transaction
+ * instead of blocking the request thread, so the caller can answer 429 and
+ * let the client retry later.
+ * <p>
+ * The queue lives in memory: transactions accepted but not yet written are
+ * lost if the process crashes. On a regular shutdown the writer drains the
+ * queue before stopping.
+ * <p>
+ * With sharding, each batch is split by the shard of its accounts, each part
+ * written in its own transaction on its shard.
+ */
+@Component
+public class TransactionIngestionQueue {
+
+    // Logger for logging writer failures
+    private static final Logger logger = LoggerFactory.getLogger(TransactionIngestionQueue.class);
+
+    // Maximum time shutdown waits for the writer to store the queued transactions
+    private static final Duration SHUTDOWN_TIMEOUT = Duration.ofSeconds(30);
+
+    /**
+     * Whether posted transactions go through the queue.
+     */
+    @Value("${transaction.ingestion.async:false}")
+    private boolean enabled;
+
+    /**
+     * Maximum number of transactions waiting to be written.
+     */
+    @Value("${transaction.ingestion.queue-capacity:10000}")
+    private int queueCapacity;
+
+    /**
+     * Maximum number of transactions written per database transaction.
+     */
+    @Value("${transaction.ingestion.batch-size:500}")
+    private int batchSize;
+
+    /**
+     * Maximum time the writer waits to fill a batch before writing it.
+     */
+    @Value("${transaction.ingestion.max-wait:PT0.05S}")
+    private Duration maxWait;
+
+    /**
+     * Delay suggested to clients whose transaction was refused because the
+     * queue was full.
+     */
+    @Value("${transaction.ingestion.retry-after:PT1S}")
+    private Duration retryAfter;
+
+    /**
+     * Time the status of an accepted transaction can be queried.
+     */
+    @Value("${transaction.ingestion.status-ttl:PT1H}")
+    private Duration statusTtl;
+
+    /**
+     * Automatically injected repository for managing Transaction entities.
+     */
+    @Autowired
+    private TransactionRepository transactionRepository;
+
+    /**
+     * Recently stored transactions keyed by reference, fed with every
+     * transaction written so retries are answered from memory.
+     */
+    @Autowired
+    private RecentReferenceCache recentReferences;
+
+    /**
+     * Per-account aggregates, updated with every batch written.
+     */
+    @Autowired
+    private AccountSummaryService accountSummaries;
+
+    /**
+     * In-memory columns of recent transactions, fed with every batch written.
+     */
+    @Autowired
+    private TransactionColumnStore columnStore;
+
+    /**
+     * Placement of the accounts across the shards.
+     */
+    @Autowired
+    private TransactionShards shards;
+
+    /**
+     * Velocity limits, from which transactions accepted but not stored are
+     * taken back.
+     */
+    @Autowired
+    private VelocityChecker velocityChecker;
+
+    /**
+     * Transaction manager, used to write each batch in its own transaction.
+     */
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    /**
+     * Registry where the ingestion metrics are published.
+     */
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /**
+     * Persistence context, used to flush and clear each batch.
+     */
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    // Transactions accepted and waiting to be written
+    private BlockingQueue<Pending> queue;
+
+    // Recent tracking ids and the state of their transaction
+    private Cache<String, IngestionStatus> statuses;
+
+    // Template running each batch in its own transaction
+    private TransactionTemplate transactionTemplate;
+
+    // Background thread draining the queue
+    private Thread writer;
+
+    // Cleared on shutdown, the writer then drains the queue and stops
+    private volatile boolean running;
+
+    // Number of transactions refused because the queue was full
+    private Counter rejected;
+
+    /**
+     * A transaction waiting in the queue, with its tracking id.
+     */
+    private record Pending(String trackingId, Transaction transaction) {
+
+    }
+
+    /**
+     * Creates the queue and starts the background writer, if asynchronous
+     * ingestion is enabled.
+     */
+    @PostConstruct
+    void init() {
+        if (!enabled) {
+            return;
+        }
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        statuses = Caffeine.newBuilder()
+                .maximumSize(queueCapacity * 10L) // Enough to follow several full queues
+                .expireAfterWrite(statusTtl)
+                .build();
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        meterRegistry.gaugeCollectionSize("transaction.ingestion.queue.size", List.of(), queue);
+        rejected = meterRegistry.counter("transaction.ingestion.rejected");
+
+        running = true;
+        writer = new Thread(this::drain, "transaction-ingestion-writer");
+        writer.start();
+    }
+
+    /**
+     * Stops accepting transactions and waits for the writer to store the ones
+     * already queued.
+     */
+    @PreDestroy
+    void shutdown() throws InterruptedException {
+        if (writer != null) {
+            running = false;
+            writer.join(SHUTDOWN_TIMEOUT.toMillis());
+        }
+    }
+
+    /**
+     * Whether posted transactions go through the queue.
+     *
+     * @return true if asynchronous ingestion is enabled
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Delay clients should wait before retrying a refused transaction.
+     *
+     * @return the delay suggested in the Retry-After header
+     */
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+
+    /**
+     * Appends a validated transaction to the queue without blocking.
+     *
+     * @param transaction the transaction to write
+     * @return the pending status with the tracking id, or null if the queue is
+     * full or shutting down
+     */
+    public IngestionStatus offer(Transaction transaction) {
+        String trackingId = UUID.randomUUID().toString();
+        IngestionStatus status = new IngestionStatus(trackingId, IngestionStatus.PENDING, null, null);
+        statuses.put(trackingId, status);
+        if (!running || !queue.offer(new Pending(trackingId, transaction))) {
+            statuses.invalidate(trackingId);
+            rejected.increment();
+            return null;
+        }
+        return status;
+    }
+
+    /**
+     * Issues a tracking id for a transaction that is already stored, e.g. a
+     * retry of a transaction posted earlier, so the caller gets the same kind
+     * of answer as for a queued one.
+     *
+     * @param id the id of the stored transaction
+     * @return the stored status with a new tracking id
+     */
+    public IngestionStatus stored(long id) {
+        String trackingId = UUID.randomUUID().toString();
+        IngestionStatus status = new IngestionStatus(trackingId, IngestionStatus.STORED, id, null);
+        statuses.put(trackingId, status);
+        return status;
+    }
+
+    /**
+     * Returns the state of a transaction accepted by the queue.
+     *
+     * @param trackingId the tracking id returned when it was accepted
+     * @return the state, or null if the tracking id is unknown or expired
+     */
+    public IngestionStatus getStatus(String trackingId) {
+        return statuses == null ? null : statuses.getIfPresent(trackingId);
+    }
+
+    /**
+     * Writer loop: waits for a first transaction, fills the batch until it
+     * is full or the wait time is over, writes it and starts again. Exits
+     * once shutdown was requested and the queue is empty.
+     */
+    private void drain() {
+        List<Pending> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                Pending first = queue.poll(maxWait.toMillis(), TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + maxWait.toNanos();
+                while (batch.size() < batchSize) {
+                    // Take whatever is already queued, then wait for more until the deadline
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= batchSize || remaining <= 0) {
+                        break;
+                    }
+                    Pending next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                writeByShard(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                logger.error("Unexpected error in the transaction ingestion writer", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Splits a batch by shard and writes each part on its shard.
+     *
+     * @param batch the transactions to write
+     */
+    private void writeByShard(List<Pending> batch) {
+        if (!shards.isSharded()) {
+            write(batch);
+            return;
+        }
+        Map<Integer, List<Pending>> parts = new TreeMap<>();
+        for (Pending pending : batch) {
+            parts.computeIfAbsent(shards.shardOf(pending.transaction().getIbanAccount()), shard -> new ArrayList<>())
+                    .add(pending);
+        }
+        parts.forEach((shard, part) -> shards.onShard(shard, () -> {
+            write(part);
+            return null;
+        }));
+    }
+
+    /**
+     * Writes a batch in one database transaction on the current shard. If
+     * the batch fails, its transactions are written one by one so only the
+     * offending ones are marked as failed. A transaction whose reference turns out to be stored
+     * already, e.g. a retry queued twice, is marked as stored with the id of
+     * the original transaction. Transactions not stored are taken back from
+     * the velocity limits of their account.
+     *
+     * @param batch the transactions to write
+     */
+    private void write(List<Pending> batch) {
+        try {
+            store(batch);
+        } catch (RuntimeException batchError) {
+            logger.warn("Ingestion batch of {} transactions failed, retrying one by one: {}", batch.size(), batchError.getMessage());
+            for (Pending pending : batch) {
+                try {
+                    store(List.of(pending));
+                } catch (DataIntegrityViolationException e) {
+                    velocityChecker.release(pending.transaction().getIbanAccount(), pending.transaction().getAmount());
+                    String reference = pending.transaction().getReference();
+                    // Read on the primary (read-write transaction), where the original was just committed
+                    Transaction original = reference == null ? null
+                            : transactionTemplate.execute(status -> transactionRepository.findByReference(reference));
+                    statuses.put(pending.trackingId(), original != null
+                            ? new IngestionStatus(pending.trackingId(), IngestionStatus.STORED, original.getId(), null)
+                            : new IngestionStatus(pending.trackingId(), IngestionStatus.FAILED, null, e.getMessage()));
+                } catch (RuntimeException e) {
+                    velocityChecker.release(pending.transaction().getIbanAccount(), pending.transaction().getAmount());
+                    statuses.put(pending.trackingId(),
+                            new IngestionStatus(pending.trackingId(), IngestionStatus.FAILED, null, e.getMessage()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Inserts the given transactions in a single database transaction and
+     * marks them as stored.
+     *
+     * @param batch the transactions to insert
+     */
+    private void store(List<Pending> batch) {
+        List<Transaction> transactions = batch.stream().map(Pending::transaction).toList();
+        // Ids assigned by a failed attempt are discarded, rows are always inserted
+        transactions.forEach(transaction -> transaction.setId(0));
+        accountSummaries.prepare(transactions.stream().map(Transaction::getIbanAccount).distinct().toList());
+        // The rows and the account summaries are written in the same database transaction
+        transactionTemplate.executeWithoutResult(status -> {
+            transactionRepository.saveAll(transactions);
+            // Flushed through the repository, so a refused reference surfaces as a DataIntegrityViolationException
+            transactionRepository.flush();
+            accountSummaries.added(transactions);
+            entityManager.clear();
+        });
+        columnStore.added(transactions);
+        for (Pending pending : batch) {
+            recentReferences.put(pending.transaction());
+            statuses.put(pending.trackingId(),
+                    new IngestionStatus(pending.trackingId(), IngestionStatus.STORED, pending.transaction().getId(), null));
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.business.partition;
+
+import com.paymentchain.transaction.business.shard.TransactionShards;
+import jakarta.annotation.PostConstruct;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Keeps monthly partitions of the transaction table created ahead of time.
+ * On PostgreSQL the table is partitioned by month of the transaction date
+ * (see the {@code V3__partition_transaction_by_month} migration); this
+ * component makes sure the partitions of the current month and the next
+ * {@code transaction.partitioning.months-ahead} months exist, at startup and
+ * then every {@code transaction.partitioning.check-interval}, so new
+ * transactions never fall into the default partition. Transactions found in
+ * the default partition anyway, e.g. backdated ones, get the partition of
+ * their month at the next check and are moved into it.
+ * <p>
+ * Partitions are created by the {@code create_transaction_partition}
+ * database function, which serializes concurrent callers, so every instance
+ * of the service may run the check. With sharding, every shard is checked.
+ * On other databases the table is not partitioned and nothing is done.
+ */
+@Component
+public class TransactionPartitionManager {
+
+    // Logger for logging created partitions and failures
+    private static final Logger logger = LoggerFactory.getLogger(TransactionPartitionManager.class);
+
+    /**
+     * Whether partitions are created automatically.
+     */
+    @Value("${transaction.partitioning.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * Number of months after the current one whose partitions are created
+     * ahead of time.
+     */
+    @Value("${transaction.partitioning.months-ahead:3}")
+    private int monthsAhead;
+
+    /**
+     * Data source, inspected once to know whether the table is partitioned.
+     */
+    @Autowired
+    private DataSource dataSource;
+
+    /**
+     * Placement of the transactions across the shards, each checked in turn.
+     */
+    @Autowired
+    private TransactionShards shards;
+
+    /**
+     * Transaction manager, used to create each partition in its own
+     * transaction.
+     */
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    /**
+     * Persistence context, used to call the partition function.
+     */
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    // Whether the database is PostgreSQL, where the transaction table is partitioned
+    private boolean postgres;
+
+    // Template running each partition creation in its own transaction
+    private TransactionTemplate transactionTemplate;
+
+    /**
+     * Detects the database product and creates the template.
+     */
+    @PostConstruct
+    void init() throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            postgres = "PostgreSQL".equalsIgnoreCase(connection.getMetaData().getDatabaseProductName());
+        }
+        transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    /**
+     * Creates the missing partitions of the current month, of the months
+     * ahead and of the months found in the default partition. A failure is
+     * logged and retried at the next check.
+     */
+    @Scheduled(initialDelay = 0, fixedDelayString = "${transaction.partitioning.check-interval:PT6H}")
+    public void createPartitions() {
+        if (!enabled || !postgres) {
+            return;
+        }
+        shards.forEachShard(shard -> createPartitionsOfShard());
+    }
+
+    /**
+     * Creates the missing partitions in the shard of the current thread.
+     */
+    private void createPartitionsOfShard() {
+        // Months ahead, plus the months of transactions that fell into the default partition, e.g. backdated ones
+        Set<LocalDate> months = new TreeSet<>();
+        LocalDate month = LocalDate.now().withDayOfMonth(1);
+        for (int i = 0; i <= monthsAhead; i++) {
+            months.add(month.plusMonths(i));
+        }
+        try {
+            List<?> stray = entityManager.createNativeQuery(
+                    "SELECT DISTINCT CAST(date_trunc('month', date) AS date) FROM transaction_default WHERE date IS NOT NULL",
+                    LocalDate.class).getResultList();
+            for (Object strayMonth : stray) {
+                months.add((LocalDate) strayMonth);
+            }
+        } catch (RuntimeException e) {
+            logger.error("Could not read the months of the default transaction partition", e);
+        }
+        for (LocalDate day : months) {
+            try {
+                Boolean created = transactionTemplate.execute(status -> (Boolean) entityManager
+                        .createNativeQuery("SELECT create_transaction_partition(?1)")
+                        .setParameter(1, day)
+                        .getSingleResult());
+                if (Boolean.TRUE.equals(created)) {
+                    logger.info("Created the transaction partition of {}", day);
+                }
+            } catch (RuntimeException e) {
+                logger.error("Could not create the transaction partition of {}", day, e);
+            }
+        }
+    }
+}
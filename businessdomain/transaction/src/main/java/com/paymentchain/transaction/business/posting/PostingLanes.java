@@ -0,0 +1,344 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.business.posting;
+
+import com.paymentchain.transaction.business.shard.TransactionShards;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Single-writer lanes for the posts and updates of IBAN accounts. Each
+ * account is hashed to one of {@code transaction.lanes.count} lanes, and each
+ * lane is a single thread running the writes it receives one after the
+ * other, in arrival order: the lane writes of an account never run
+ * concurrently, while different lanes, and so different accounts, write in
+ * parallel. The rows a lane locks (e.g. the summaries of its accounts) are
+ * never wanted by another lane, so lanes do not wait for each other and
+ * throughput grows with the number of lanes, up to what the connection pool
+ * and the database can take.
+ * <p>
+ * Only single posts and updates go through the lanes. Batch posts (and so
+ * statement imports), the ingestion queue writer, deletes and the removal of
+ * a transaction moved to another shard write outside them, concurrently with
+ * the lanes. The lanes therefore order writes but do not replace database
+ * locks: updates and deletes still lock the row of their transaction, and
+ * account summaries are changed with atomic increments, so the writes of an
+ * account stay consistent whichever path they take.
+ * <p>
+ * A lane takes whatever accumulated while it was busy, up to
+ * {@code transaction.lanes.batch-size} writes, and runs them in one database
+ * transaction: under load many writes share one commit, while a lone write
+ * is never delayed. If the batch fails, its writes are run again one by one,
+ * each in its own transaction, so only the offending ones fail. Writes must
+ * therefore be safe to run again after a rollback.
+ * <p>
+ * Callers wait for their write to be committed and get its result, so the
+ * lanes are invisible to them apart from the ordering. When a lane is full,
+ * callers wait for room, which slows clients down instead of piling up work.
+ * <p>
+ * With sharding, a batch is split by the shard of its accounts, each part
+ * committed in its own transaction on its shard.
+ */
+@Component
+public class PostingLanes {
+
+    // Logger for logging failed batches
+    private static final Logger logger = LoggerFactory.getLogger(PostingLanes.class);
+
+    // Maximum time shutdown waits for each lane to run the writes already submitted
+    private static final Duration SHUTDOWN_TIMEOUT = Duration.ofSeconds(30);
+
+    // How often an idle lane checks whether shutdown was requested
+    private static final Duration IDLE_POLL = Duration.ofMillis(100);
+
+    /**
+     * Whether synchronous posts and updates go through the lanes.
+     */
+    @Value("${transaction.lanes.enabled:false}")
+    private boolean enabled;
+
+    /**
+     * Number of lanes, i.e. of accounts written in parallel.
+     */
+    @Value("${transaction.lanes.count:4}")
+    private int count;
+
+    /**
+     * Maximum number of writes run in one database transaction.
+     */
+    @Value("${transaction.lanes.batch-size:100}")
+    private int batchSize;
+
+    /**
+     * Maximum number of writes waiting in each lane.
+     */
+    @Value("${transaction.lanes.queue-capacity:1000}")
+    private int queueCapacity;
+
+    /**
+     * Transaction manager, used to run each batch in one transaction.
+     */
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    /**
+     * Placement of the accounts across the shards.
+     */
+    @Autowired
+    private TransactionShards shards;
+
+    /**
+     * Registry where the lane metrics are published.
+     */
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // Lanes, indexed by account hash
+    private Lane[] lanes;
+
+    // Template running each batch, or each write of a failed batch, in its own transaction
+    private TransactionTemplate transactionTemplate;
+
+    // Number of writes per committed batch
+    private DistributionSummary batchSizes;
+
+    // Cleared on shutdown, the lanes then run the submitted writes and stop
+    private volatile boolean running;
+
+    /**
+     * A write waiting in a lane, the shard of its account and the future of
+     * its result.
+     */
+    private record Write<T>(int shard, Supplier<T> work, CompletableFuture<T> result) {
+
+    }
+
+    /**
+     * Starts the lanes, if enabled.
+     */
+    @PostConstruct
+    void init() {
+        if (!enabled) {
+            return;
+        }
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        batchSizes = meterRegistry.summary("transaction.lanes.batch.size");
+        running = true;
+        lanes = new Lane[count];
+        for (int i = 0; i < count; i++) {
+            lanes[i] = new Lane(i);
+            meterRegistry.gaugeCollectionSize("transaction.lanes.queue.size", Tags.of("lane", String.valueOf(i)), lanes[i].queue);
+            lanes[i].thread.start();
+        }
+    }
+
+    /**
+     * Stops accepting writes and waits for the lanes to run the ones already
+     * submitted.
+     */
+    @PreDestroy
+    void shutdown() throws InterruptedException {
+        if (lanes == null) {
+            return;
+        }
+        running = false;
+        for (Lane lane : lanes) {
+            lane.thread.join(SHUTDOWN_TIMEOUT.toMillis());
+        }
+    }
+
+    /**
+     * Whether synchronous posts and updates go through the lanes.
+     *
+     * @return true if the lanes are enabled
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Runs a write in the lane of an account, in a database transaction
+     * possibly shared with other writes of the lane, and waits for it to be
+     * committed.
+     *
+     * @param <T> the result type
+     * @param ibanAccount the account the write belongs to
+     * @param work the write, run on the lane thread; it may run again after a
+     * rollback
+     * @return the result of the write
+     * @throws RuntimeException the exception thrown by the write, or by the
+     * commit of its transaction
+     */
+    public <T> T execute(String ibanAccount, Supplier<T> work) {
+        if (!running) {
+            throw new IllegalStateException("Posting lanes are shutting down");
+        }
+        Write<T> write = new Write<>(shards.shardOf(ibanAccount), work, new CompletableFuture<>());
+        try {
+            laneOf(ibanAccount).queue.put(write);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a posting lane", e);
+        }
+        try {
+            return write.result().join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the lane an account is hashed to.
+     */
+    private Lane laneOf(String ibanAccount) {
+        int hash = ibanAccount == null ? 0 : ibanAccount.hashCode();
+        // Spread the high bits, IBANs sharing a prefix differ mostly in their last characters
+        return lanes[Math.floorMod(hash ^ (hash >>> 16), lanes.length)];
+    }
+
+    /**
+     * A single writer thread and the writes waiting for it.
+     */
+    private final class Lane {
+
+        // Writes waiting to be run, in arrival order
+        private final BlockingQueue<Write<?>> queue = new ArrayBlockingQueue<>(queueCapacity);
+
+        // Thread running the writes
+        private final Thread thread;
+
+        Lane(int index) {
+            thread = new Thread(this::drain, "transaction-posting-lane-" + index);
+        }
+
+        /**
+         * Lane loop: waits for a first write, adds whatever else is already
+         * waiting and runs the batch. Exits once shutdown was requested and
+         * the lane is empty.
+         */
+        private void drain() {
+            List<Write<?>> batch = new ArrayList<>(batchSize);
+            while (running || !queue.isEmpty()) {
+                try {
+                    Write<?> first = queue.poll(IDLE_POLL.toMillis(), TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    queue.drainTo(batch, batchSize - 1);
+                    runByShard(batch);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (RuntimeException e) {
+                    logger.error("Unexpected error in a transaction posting lane", e);
+                } finally {
+                    batch.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits a batch by shard and runs each part on its shard.
+     *
+     * @param batch the writes, in arrival order
+     */
+    private void runByShard(List<Write<?>> batch) {
+        if (!shards.isSharded()) {
+            run(batch);
+            return;
+        }
+        // The writes of an account are all in the same part, in arrival order
+        Map<Integer, List<Write<?>>> parts = new TreeMap<>();
+        for (Write<?> write : batch) {
+            parts.computeIfAbsent(write.shard(), shard -> new ArrayList<>()).add(write);
+        }
+        parts.forEach((shard, part) -> shards.onShard(shard, () -> {
+            run(part);
+            return null;
+        }));
+    }
+
+    /**
+     * Runs a batch of writes in one transaction on the current shard and
+     * completes their futures once committed. If the batch fails, its writes
+     * run again one by one.
+     *
+     * @param batch the writes, in arrival order
+     */
+    private void run(List<Write<?>> batch) {
+        List<Object> results = new ArrayList<>(batch.size());
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                for (Write<?> write : batch) {
+                    results.add(write.work().get());
+                }
+            });
+        } catch (RuntimeException batchError) {
+            if (batch.size() == 1) {
+                batch.get(0).result().completeExceptionally(batchError);
+                return;
+            }
+            logger.warn("Posting lane batch of {} writes failed, retrying one by one: {}", batch.size(), batchError.getMessage());
+            batch.forEach(this::runAlone);
+            return;
+        }
+        batchSizes.record(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            complete(batch.get(i), results.get(i));
+        }
+    }
+
+    /**
+     * Runs a write in its own transaction and completes its future.
+     */
+    private <T> void runAlone(Write<T> write) {
+        try {
+            T result = transactionTemplate.execute(status -> write.work().get());
+            batchSizes.record(1);
+            write.result().complete(result);
+        } catch (RuntimeException e) {
+            write.result().completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Completes the future of a write with the result it returned.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> void complete(Write<T> write, Object result) {
+        write.result().complete((T) result);
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.business.search;
+
+import com.paymentchain.transaction.business.shard.TransactionShards;
+import com.paymentchain.transaction.common.TransactionSearchCriteria;
+import com.paymentchain.transaction.common.TransactionSearchResult;
+import com.paymentchain.transaction.entities.Transaction;
+import com.paymentchain.transaction.repository.TransactionRepository;
+import com.paymentchain.transaction.repository.TransactionSpecifications;
+import jakarta.annotation.PostConstruct;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import jakarta.persistence.Query;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Multi-criteria transaction search. Pages are read with keyset pagination
+ * in (date, id) order, so with the composite indexes of the migrations a page
+ * costs the same whatever its depth and the table size.
+ * <p>
+ * The total is counted exactly only up to
+ * {@code transaction.search.exact-count-limit} matches, by a count that stops
+ * reading after that many rows. Above it, the total is the row estimate of the
+ * query planner on PostgreSQL, or the limit itself (a lower bound) on other
+ * databases, so broad filters never trigger a full {@code COUNT(*)}.
+ * <p>
+ * With sharding, a search on an IBAN account reads the shard of the account
+ * only; other searches read a page from every shard in parallel and merge
+ * them, and their total is the sum of the totals of the shards.
+ */
+@Service
+public class TransactionSearchService {
+
+    // Logger for logging estimation failures
+    private static final Logger logger = LoggerFactory.getLogger(TransactionSearchService.class);
+
+    // Search results are returned in keyset order
+    private static final Sort KEYSET_ORDER = Sort.by("date", "id");
+
+    // Order of the pages merged across shards, the keyset order
+    private static final Comparator<Transaction> PAGE_ORDER = Comparator
+            .comparing(Transaction::getDate, Comparator.nullsFirst(Comparator.<LocalDateTime>naturalOrder()))
+            .thenComparingLong(Transaction::getId);
+
+    // Row estimate of the top plan node in the text output of EXPLAIN
+    private static final Pattern PLAN_ROWS = Pattern.compile("rows=(\\d+)");
+
+    /**
+     * Number of matches up to which the total is counted exactly.
+     */
+    @Value("${transaction.search.exact-count-limit:10000}")
+    private int exactCountLimit;
+
+    /**
+     * Automatically injected repository for managing Transaction entities.
+     */
+    @Autowired
+    private TransactionRepository transactionRepository;
+
+    /**
+     * Data source, inspected once to know whether planner estimates are
+     * available.
+     */
+    @Autowired
+    private DataSource dataSource;
+
+    /**
+     * Persistence context, used to run the bounded count and the estimate.
+     */
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /**
+     * Placement of the transactions across the shards.
+     */
+    @Autowired
+    private TransactionShards shards;
+
+    /**
+     * Transaction manager, used to search each shard in a read-only
+     * transaction.
+     */
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    // Whether the database is PostgreSQL, whose planner estimates are read with EXPLAIN
+    private boolean postgres;
+
+    // Read-only transaction of the search on one shard
+    private TransactionTemplate readOnly;
+
+    /**
+     * Detects the database product and creates the template.
+     */
+    @PostConstruct
+    void init() throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            postgres = "PostgreSQL".equalsIgnoreCase(connection.getMetaData().getDatabaseProductName());
+        }
+        readOnly = new TransactionTemplate(transactionManager);
+        readOnly.setReadOnly(true);
+    }
+
+    /**
+     * Returns one page of the transactions matching the criteria, ordered by
+     * date and id, with the number of matches.
+     *
+     * @param criteria the search filters
+     * @param afterDate the date of the last transaction of the previous page,
+     * or null for the first page
+     * @param afterId the id of the last transaction of the previous page
+     * @param size the maximum number of transactions of the page
+     * @return the page and the exact or estimated total
+     */
+    public TransactionSearchResult search(TransactionSearchCriteria criteria, LocalDateTime afterDate,
+            long afterId, int size) {
+        if (criteria.getIbanAccount() != null) {
+            return shards.onAccount(criteria.getIbanAccount(), () -> searchShard(criteria, afterDate, afterId, size));
+        }
+        List<TransactionSearchResult> parts = shards.scatter(shard -> searchShard(criteria, afterDate, afterId, size));
+        if (parts.size() == 1) {
+            return parts.get(0);
+        }
+        TransactionSearchResult result = new TransactionSearchResult();
+        result.setTransactions(TransactionShards.merge(
+                parts.stream().map(TransactionSearchResult::getTransactions).toList(), PAGE_ORDER, size));
+        result.setTotal(parts.stream().mapToLong(TransactionSearchResult::getTotal).sum());
+        result.setTotalExact(parts.stream().allMatch(TransactionSearchResult::isTotalExact));
+        return result;
+    }
+
+    /**
+     * Searches the shard of the current thread.
+     *
+     * @return the page of the shard and its exact or estimated total
+     */
+    private TransactionSearchResult searchShard(TransactionSearchCriteria criteria, LocalDateTime afterDate,
+            long afterId, int size) {
+        return readOnly.execute(status -> {
+            List<Transaction> transactions = transactionRepository.findBy(
+                    TransactionSpecifications.matching(criteria).and(TransactionSpecifications.after(afterDate, afterId)),
+                    query -> query.sortBy(KEYSET_ORDER).limit(size).all());
+
+            TransactionSearchResult result = new TransactionSearchResult();
+            result.setTransactions(transactions);
+            Filter filter = new Filter(criteria);
+            long bounded = boundedCount(filter);
+            if (bounded <= exactCountLimit) {
+                result.setTotal(bounded);
+                result.setTotalExact(true);
+            } else {
+                result.setTotal(Math.max(exactCountLimit + 1L, postgres ? estimate(filter) : 0));
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Counts the matches, stopping after one more than the exact count limit.
+     *
+     * @param filter the search filters as SQL
+     * @return the number of matches, at most the limit plus one
+     */
+    private long boundedCount(Filter filter) {
+        Query query = entityManager.createNativeQuery("SELECT COUNT(*) FROM (SELECT 1 FROM transaction"
+                + filter.where + " LIMIT " + (exactCountLimit + 1) + ") matches");
+        filter.bind(query);
+        return ((Number) query.getSingleResult()).longValue();
+    }
+
+    /**
+     * Reads the number of matches estimated by the PostgreSQL planner from
+     * its statistics, without executing the query.
+     *
+     * @param filter the search filters as SQL
+     * @return the estimated number of matches, or 0 if it cannot be read
+     */
+    private long estimate(Filter filter) {
+        try {
+            Query query = entityManager.createNativeQuery("EXPLAIN SELECT 1 FROM transaction" + filter.where);
+            filter.bind(query);
+            // The first line describes the top plan node, whose row estimate is the number of matches
+            Matcher matcher = PLAN_ROWS.matcher(String.valueOf(query.getResultList().get(0)));
+            return matcher.find() ? Long.parseLong(matcher.group(1)) : 0;
+        } catch (RuntimeException e) {
+            logger.warn("Could not estimate the number of matching transactions: {}", e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * The search filters as a native SQL WHERE clause and its parameters.
+     */
+    private static class Filter {
+
+        // WHERE clause, empty when there is no filter
+        private final String where;
+
+        // Parameter values, in clause order
+        private final List<Object> parameters = new ArrayList<>();
+
+        Filter(TransactionSearchCriteria criteria) {
+            List<String> conditions = new ArrayList<>();
+            add(conditions, "iban_account = ?", criteria.getIbanAccount());
+            add(conditions, "status = ?", criteria.getStatus());
+            add(conditions, "channel = ?", criteria.getChannel());
+            add(conditions, "amount >= ?", criteria.getMinAmount());
+            add(conditions, "amount <= ?", criteria.getMaxAmount());
+            add(conditions, "date >= ?", criteria.getFrom());
+            add(conditions, "date <= ?", criteria.getTo());
+            where = conditions.isEmpty() ? "" : " WHERE " + String.join(" AND ", conditions);
+        }
+
+        /**
+         * Adds a condition if its value is given.
+         */
+        private void add(List<String> conditions, String condition, Object value) {
+            if (value != null) {
+                parameters.add(value);
+                conditions.add(condition.replace("?", "?" + parameters.size()));
+            }
+        }
+
+        /**
+         * Binds the parameter values to a query built with the clause.
+         */
+        private void bind(Query query) {
+            for (int i = 0; i < parameters.size(); i++) {
+                query.setParameter(i + 1, parameters.get(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.business.shard;
+
+import com.paymentchain.transaction.common.RebalanceStatus;
+import com.paymentchain.transaction.entities.AccountSummary;
+import com.paymentchain.transaction.entities.Transaction;
+import com.paymentchain.transaction.repository.AccountSummaryRepository;
+import com.paymentchain.transaction.repository.TransactionRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Moves stored transactions to the shard their account is placed on, after
+ * shards were appended to {@code transaction.sharding.urls}. Every shard is
+ * walked account by account; the transactions of an account placed
+ * elsewhere are copied to its new shard and deleted from the old one,
+ * {@code transaction.sharding.rebalance-chunk-size} at a time, keeping their
+ * ids. Once all are moved, the summary of the account is recomputed on its
+ * new shard and dropped from the old one. Its row is locked while it is
+ * recomputed: a concurrent write of the account either committed before and
+ * is counted, or adds its delta after the recomputed summary is stored.
+ * <p>
+ * Every step can be run again: a chunk is first deleted from the target
+ * before it is copied, so a run interrupted between the copy and the delete
+ * is completed by the next run. Start it once every instance runs with the
+ * new shard list: new writes already go to the new shards, while the history
+ * of an account being moved is incomplete until its move is done, so it
+ * should run in a quiet period. Only one run at a time is allowed per
+ * instance; start it on a single instance.
+ */
+@Service
+public class ShardRebalancer {
+
+    // Logger for logging moved accounts and failures
+    private static final Logger logger = LoggerFactory.getLogger(ShardRebalancer.class);
+
+    /**
+     * Maximum number of accounts listed, and of transactions moved, at once.
+     */
+    @Value("${transaction.sharding.rebalance-chunk-size:1000}")
+    private int chunkSize;
+
+    /**
+     * Placement of the accounts across the shards.
+     */
+    @Autowired
+    private TransactionShards shards;
+
+    /**
+     * Automatically injected repository for managing Transaction entities.
+     */
+    @Autowired
+    private TransactionRepository transactionRepository;
+
+    /**
+     * Repository for the account summaries.
+     */
+    @Autowired
+    private AccountSummaryRepository summaryRepository;
+
+    /**
+     * Transaction manager, used to copy and delete each chunk in its own
+     * transaction.
+     */
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    /**
+     * Persistence context, used to detach the transactions read for a move.
+     */
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    // Runs the rebalancing in the background, one run at a time
+    private ExecutorService runner;
+
+    // Template running each step in its own transaction
+    private TransactionTemplate transactionTemplate;
+
+    // State of the last run, null before the first one
+    private volatile Run last;
+
+    /**
+     * Creates the executor and the template.
+     */
+    @PostConstruct
+    void init() {
+        runner = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "transaction-shard-rebalancer"));
+        transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    /**
+     * Stops the running rebalancing; the accounts already moved stay moved.
+     */
+    @PreDestroy
+    void shutdown() {
+        runner.shutdownNow();
+    }
+
+    /**
+     * Starts a rebalancing run in the background, unless one is running.
+     *
+     * @return the state of the new run, or null if one is already running
+     */
+    public synchronized RebalanceStatus start() {
+        if (last != null && RebalanceStatus.RUNNING.equals(last.status)) {
+            return null;
+        }
+        Run run = new Run(shards.count());
+        last = run;
+        runner.execute(() -> rebalance(run));
+        return run.toStatus();
+    }
+
+    /**
+     * Returns the state of the last run.
+     *
+     * @return the state, or null if no run was started
+     */
+    public RebalanceStatus getStatus() {
+        Run run = last;
+        return run == null ? null : run.toStatus();
+    }
+
+    /**
+     * Walks every shard and moves the accounts placed elsewhere.
+     */
+    private void rebalance(Run run) {
+        try {
+            for (int shard = 0; shard < shards.count(); shard++) {
+                int source = shard;
+                String after = "";
+                List<String> accounts;
+                do {
+                    String from = after;
+                    accounts = shards.onShard(source,
+                            () -> transactionRepository.findIbanAccountsAfter(from, PageRequest.of(0, chunkSize)));
+                    for (String account : accounts) {
+                        int target = shards.shardOf(account);
+                        if (target != source) {
+                            move(run, account, source, target);
+                            run.accountsMoved.incrementAndGet();
+                        }
+                        run.accountsChecked.incrementAndGet();
+                    }
+                    after = accounts.isEmpty() ? after : accounts.get(accounts.size() - 1);
+                } while (accounts.size() == chunkSize);
+                run.shardsChecked++;
+            }
+            run.status = RebalanceStatus.COMPLETED;
+            logger.info("Shard rebalancing moved {} transactions of {} accounts", run.transactionsMoved.get(), run.accountsMoved.get());
+        } catch (RuntimeException e) {
+            logger.error("Shard rebalancing failed, run it again to resume", e);
+            run.message = e.getMessage();
+            run.status = RebalanceStatus.FAILED;
+        } finally {
+            run.finishedAt = LocalDateTime.now();
+        }
+    }
+
+    /**
+     * Moves the transactions and the summary of an account to its shard.
+     *
+     * @param run the state of the run
+     * @param account the IBAN account
+     * @param source the shard the account was on
+     * @param target the shard the account is placed on
+     */
+    private void move(Run run, String account, int source, int target) {
+        List<Transaction> chunk;
+        do {
+            // Moved rows are deleted from the source, so each chunk is the first one left
+            chunk = shards.onShard(source, () -> transactionTemplate.execute(status -> {
+                List<Transaction> found = transactionRepository.findChunkByIbanAccount(account, PageRequest.of(0, chunkSize));
+                entityManager.clear();
+                return found;
+            }));
+            if (chunk.isEmpty()) {
+                break;
+            }
+            List<Transaction> transactions = chunk;
+            List<Long> ids = transactions.stream().map(Transaction::getId).toList();
+            shards.onShard(target, () -> transactionTemplate.execute(status -> {
+                // Copies left by an interrupted run are replaced
+                transactionRepository.deleteByIdIn(ids);
+                shards.insert(transactions);
+                return null;
+            }));
+            shards.onShard(source, () -> transactionTemplate.execute(status -> transactionRepository.deleteByIdIn(ids)));
+            run.transactionsMoved.addAndGet(ids.size());
+        } while (chunk.size() == chunkSize);
+
+        // The summary of the target also holds the writes received since the shard list changed
+        shards.onShard(target, () -> transactionTemplate.execute(status -> {
+            // Locked first, so concurrent writes cannot add a delta between the recount and its storage
+            AccountSummary locked = summaryRepository.findByIdForUpdate(account).orElse(null);
+            AccountSummary summary = summaryRepository.summarize(account);
+            if (locked == null) {
+                if (summary != null) {
+                    summaryRepository.save(summary);
+                }
+            } else if (summary == null) {
+                summaryRepository.delete(locked);
+            } else {
+                locked.setBalance(summary.getBalance());
+                locked.setTransactionCount(summary.getTransactionCount());
+                locked.setTotalFees(summary.getTotalFees());
+                locked.setLastDate(summary.getLastDate());
+            }
+            return null;
+        }));
+        shards.onShard(source, () -> transactionTemplate.execute(status -> {
+            summaryRepository.findById(account).ifPresent(summaryRepository::delete);
+            return null;
+        }));
+        logger.info("Moved account {} from shard {} to shard {}", account, source, target);
+    }
+
+    /**
+     * State of a run, updated by the rebalancing thread.
+     */
+    private static final class Run {
+
+        private final int shards;
+        private final LocalDateTime startedAt = LocalDateTime.now();
+        private volatile String status = RebalanceStatus.RUNNING;
+        private volatile String message;
+        private volatile int shardsChecked;
+        private volatile LocalDateTime finishedAt;
+        private final AtomicLong accountsChecked = new AtomicLong();
+        private final AtomicLong accountsMoved = new AtomicLong();
+        private final AtomicLong transactionsMoved = new AtomicLong();
+
+        Run(int shards) {
+            this.shards = shards;
+        }
+
+        RebalanceStatus toStatus() {
+            RebalanceStatus status = new RebalanceStatus();
+            status.setStatus(this.status);
+            status.setShards(shards);
+            status.setShardsChecked(shardsChecked);
+            status.setAccountsChecked(accountsChecked.get());
+            status.setAccountsMoved(accountsMoved.get());
+            status.setTransactionsMoved(transactionsMoved.get());
+            status.setMessage(message);
+            status.setStartedAt(startedAt);
+            status.setFinishedAt(finishedAt);
+            return status;
+        }
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.business.shard;
+
+import com.paymentchain.transaction.config.ShardContext;
+import com.paymentchain.transaction.entities.Transaction;
+import com.paymentchain.transaction.repository.TransactionRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+import javax.sql.DataSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Placement of the transactions across the databases (shards) listed in
+ * {@code transaction.sharding.urls}. Every transaction, and the summary of
+ * its account, lives in the shard its IBAN account hashes to, so the writes
+ * and the history of an account involve a single database, and adding shards
+ * adds write and per-account read capacity. Queries not restricted to one
+ * account run on every shard in parallel and merge the results.
+ * <p>
+ * Accounts are placed with a jump consistent hash of the IBAN: when shards
+ * are appended to the list, only the accounts moving to the new shards change
+ * place, and {@link ShardRebalancer} moves their stored transactions. Shards
+ * can only be appended, never removed or reordered.
+ * <p>
+ * Each shard allocates ids in its own range of {@link #ID_RANGE} values, so
+ * ids stay unique across shards and the shard that created a transaction is
+ * known from its id. A transaction moved by the rebalancer keeps its id, so
+ * {@link #locate(long)} checks the other shards when it is not found where
+ * its id points.
+ * <p>
+ * Without sharding there is a single shard and every method runs the work
+ * directly.
+ */
+@Component
+public class TransactionShards {
+
+    /**
+     * Number of ids reserved to each shard: shard {@code n} allocates ids
+     * from {@code n * ID_RANGE}.
+     */
+    public static final long ID_RANGE = 1L << 40;
+
+    // Offset basis and prime of the 64-bit FNV-1a hash
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // Columns written when a transaction is inserted with its id
+    private static final String INSERT = "INSERT INTO transaction"
+            + " (id, reference, iban_account, date, amount, fee, description, status, channel)"
+            + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    /**
+     * JDBC URLs of the shards, empty without sharding.
+     */
+    @Value("${transaction.sharding.urls:}")
+    private List<String> urls;
+
+    /**
+     * Number of threads running the queries sent to every shard.
+     */
+    @Value("${transaction.sharding.scatter-threads:16}")
+    private int scatterThreads;
+
+    /**
+     * Automatically injected repository for managing Transaction entities.
+     */
+    @Autowired
+    private TransactionRepository transactionRepository;
+
+    /**
+     * Data source routing each statement to the shard of the current thread.
+     */
+    @Autowired
+    private DataSource dataSource;
+
+    // Number of shards, 1 without sharding
+    private int count;
+
+    // Threads querying the shards in parallel, null with a single shard
+    private ExecutorService scatterPool;
+
+    // Inserts transactions keeping their id, in the caller's transaction
+    private JdbcTemplate jdbcTemplate;
+
+    /**
+     * A task run on a shard, which may throw a checked exception.
+     *
+     * @param <E> the exception type
+     */
+    @FunctionalInterface
+    public interface ShardTask<E extends Exception> {
+
+        /**
+         * Runs the task.
+         *
+         * @param shard the shard the task runs on
+         * @throws E if the task fails
+         */
+        void run(int shard) throws E;
+    }
+
+    /**
+     * Counts the shards and starts the scatter threads.
+     */
+    @PostConstruct
+    void init() {
+        count = Math.max(1, urls.size());
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        if (count > 1) {
+            AtomicInteger threads = new AtomicInteger();
+            scatterPool = Executors.newFixedThreadPool(scatterThreads, work -> {
+                Thread thread = new Thread(work, "transaction-shard-scatter-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Stops the scatter threads.
+     */
+    @PreDestroy
+    void shutdown() {
+        if (scatterPool != null) {
+            scatterPool.shutdownNow();
+        }
+    }
+
+    /**
+     * Number of shards.
+     *
+     * @return the number of shards, 1 without sharding
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Whether the transactions are spread over several databases.
+     *
+     * @return true if there is more than one shard
+     */
+    public boolean isSharded() {
+        return count > 1;
+    }
+
+    /**
+     * Returns the shard an IBAN account is placed on.
+     *
+     * @param ibanAccount the IBAN account, may be null
+     * @return the shard index
+     */
+    public int shardOf(String ibanAccount) {
+        if (count == 1 || ibanAccount == null) {
+            return 0;
+        }
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < ibanAccount.length(); i++) {
+            hash ^= ibanAccount.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return jump(hash, count);
+    }
+
+    /**
+     * Returns the shard that allocated an id, where the transaction lives
+     * unless the rebalancer moved it.
+     *
+     * @param id the transaction id
+     * @return the shard index, or -1 if the id is outside every shard range
+     */
+    public int shardOfId(long id) {
+        long shard = id / ID_RANGE;
+        return id >= 0 && shard < count ? (int) shard : -1;
+    }
+
+    /**
+     * Runs work on the shard of an IBAN account. The work opens its own
+     * database transactions.
+     *
+     * @param <T> the result type
+     * @param ibanAccount the IBAN account
+     * @param work the work
+     * @return the result of the work
+     */
+    public <T> T onAccount(String ibanAccount, Supplier<T> work) {
+        return onShard(shardOf(ibanAccount), work);
+    }
+
+    /**
+     * Runs work on a shard. The work opens its own database transactions.
+     *
+     * @param <T> the result type
+     * @param shard the shard index
+     * @param work the work
+     * @return the result of the work
+     */
+    public <T> T onShard(int shard, Supplier<T> work) {
+        return ShardContext.call(shard, work);
+    }
+
+    /**
+     * Runs a task on every shard, one after the other.
+     *
+     * @param <E> the exception type of the task
+     * @param task the task, which opens its own database transactions
+     * @throws E the first exception thrown by the task, after which the
+     * remaining shards are skipped
+     */
+    public <E extends Exception> void forEachShard(ShardTask<E> task) throws E {
+        for (int shard = 0; shard < count; shard++) {
+            int current = shard;
+            // The context only takes unchecked work, the failure is carried out and thrown again
+            Exception failure = onShard(current, () -> {
+                try {
+                    task.run(current);
+                    return null;
+                } catch (Exception e) {
+                    return e;
+                }
+            });
+            if (failure instanceof RuntimeException unchecked) {
+                throw unchecked;
+            }
+            if (failure != null) {
+                throw TransactionShards.<E>checked(failure);
+            }
+        }
+    }
+
+    /**
+     * Casts an exception thrown by a {@link ShardTask} back to its declared
+     * type.
+     */
+    @SuppressWarnings("unchecked")
+    private static <E extends Exception> E checked(Exception failure) {
+        return (E) failure;
+    }
+
+    /**
+     * Runs a query on every shard in parallel and waits for all of them.
+     *
+     * @param <T> the result type
+     * @param query the query, given the shard it runs on; it opens its own
+     * database transactions
+     * @return the result of each shard, in shard order
+     * @throws RuntimeException the exception thrown by a shard
+     */
+    public <T> List<T> scatter(IntFunction<T> query) {
+        if (count == 1) {
+            return Collections.singletonList(onShard(0, () -> query.apply(0)));
+        }
+        List<CompletableFuture<T>> futures = new ArrayList<>(count);
+        for (int shard = 0; shard < count; shard++) {
+            int current = shard;
+            futures.add(CompletableFuture.supplyAsync(() -> onShard(current, () -> query.apply(current)), scatterPool));
+        }
+        List<T> results = new ArrayList<>(count);
+        try {
+            for (CompletableFuture<T> future : futures) {
+                results.add(future.join());
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+        return results;
+    }
+
+    /**
+     * Merges lists each sorted in the same order into one sorted list.
+     *
+     * @param <T> the element type
+     * @param parts the sorted lists, e.g. one per shard
+     * @param order the order of the lists
+     * @param limit the maximum number of elements to return
+     * @return the first elements of the merged lists, in order
+     */
+    public static <T> List<T> merge(List<List<T>> parts, Comparator<? super T> order, int limit) {
+        if (parts.size() == 1) {
+            List<T> part = parts.get(0);
+            return part.size() > limit ? part.subList(0, limit) : part;
+        }
+        // Heap of the next element of each list, as {list, position}
+        PriorityQueue<int[]> heads = new PriorityQueue<>(parts.size(),
+                (a, b) -> order.compare(parts.get(a[0]).get(a[1]), parts.get(b[0]).get(b[1])));
+        for (int i = 0; i < parts.size(); i++) {
+            if (!parts.get(i).isEmpty()) {
+                heads.add(new int[]{i, 0});
+            }
+        }
+        List<T> merged = new ArrayList<>();
+        while (!heads.isEmpty() && merged.size() < limit) {
+            int[] head = heads.poll();
+            List<T> part = parts.get(head[0]);
+            merged.add(part.get(head[1]));
+            if (++head[1] < part.size()) {
+                heads.add(head);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Finds the shard holding a transaction: the shard that allocated its id
+     * first, then the others, in case the rebalancer moved it.
+     *
+     * @param id the transaction id
+     * @return the shard index, or -1 if no shard holds it; always 0 without
+     * sharding, where the caller checks the transaction exists
+     */
+    public int locate(long id) {
+        if (count == 1) {
+            return 0;
+        }
+        int hint = shardOfId(id);
+        if (hint >= 0 && onShard(hint, () -> transactionRepository.existsById(id))) {
+            return hint;
+        }
+        for (int shard = 0; shard < count; shard++) {
+            int current = shard;
+            if (shard != hint && onShard(current, () -> transactionRepository.existsById(id))) {
+                return shard;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Inserts transactions keeping their ids, e.g. when they move to another
+     * shard. Must run in a database transaction on the target shard.
+     *
+     * @param transactions the transactions to insert
+     */
+    public void insert(List<Transaction> transactions) {
+        jdbcTemplate.batchUpdate(INSERT, transactions, transactions.size(), (statement, transaction) -> {
+            statement.setLong(1, transaction.getId());
+            statement.setString(2, transaction.getReference());
+            statement.setString(3, transaction.getIbanAccount());
+            statement.setTimestamp(4, transaction.getDate() != null ? Timestamp.valueOf(transaction.getDate()) : null);
+            statement.setDouble(5, transaction.getAmount());
+            statement.setDouble(6, transaction.getFee());
+            statement.setString(7, transaction.getDescription());
+            statement.setString(8, transaction.getStatus());
+            statement.setString(9, transaction.getChannel());
+        });
+    }
+
+    /**
+     * Jump consistent hash (Lamping and Veach): maps a key to one of
+     * {@code buckets} buckets so that growing the number of buckets from n to
+     * n + 1 moves only 1 / (n + 1) of the keys, all to the new bucket.
+     */
+    private static int jump(long key, int buckets) {
+        long bucket = -1;
+        long next = 0;
+        while (next < buckets) {
+            bucket = next;
+            key = key * 2862933555777941757L + 1;
+            next = (long) ((bucket + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) bucket;
+    }
+}
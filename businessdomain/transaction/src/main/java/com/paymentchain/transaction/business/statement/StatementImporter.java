@@ -0,0 +1,560 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.business.statement;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.paymentchain.transaction.business.transaction.BusinessTransaction;
+import com.paymentchain.transaction.common.BatchItemResult;
+import com.paymentchain.transaction.common.BatchPostResult;
+import com.paymentchain.transaction.common.ImportStatus;
+import com.paymentchain.transaction.entities.Transaction;
+import com.paymentchain.transaction.exception.BusinessRuleException;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Imports the statement files partners drop in
+ * {@code transaction.import.directory}, instead of replaying them as one
+ * {@code POST /transaction} per line. A statement is a CSV file whose header
+ * line names the columns (the layout written by the export, e.g.
+ * {@code reference,ibanAccount,date,amount,fee,description,status,channel}),
+ * followed by one transaction per line.
+ * <p>
+ * The file is split at line boundaries into chunks of
+ * {@code transaction.import.chunk-size} bytes, each memory mapped and parsed
+ * by one of {@code transaction.import.parallelism} workers straight from the
+ * mapped bytes (see {@link StatementParser}). Parsed transactions are stored
+ * through {@link BusinessTransaction#postBatch}, {@code batch-size} at a
+ * time: they are validated with the same rules as a single post, inserted
+ * with JDBC batching, and their reference remains the idempotency key, so
+ * importing a file again (e.g. after a failure) only stores the transactions
+ * missing so far.
+ * <p>
+ * Records that cannot be parsed, break a business rule or a velocity limit
+ * of their account are listed with their line number, error code and
+ * content in a rejects file written next to the statement. An import giving
+ * more than {@code transaction.import.max-rejects} rejects is stopped as
+ * failed. Imports run one at a time; their progress is kept for
+ * {@code transaction.import.status-ttl}.
+ */
+@Service
+public class StatementImporter {
+
+    // Logger for logging imports and their failures
+    private static final Logger logger = LoggerFactory.getLogger(StatementImporter.class);
+
+    // Suffix of the rejects file written next to the statement
+    private static final String REJECTS_SUFFIX = ".rejects.csv";
+
+    // Error code of records that cannot be parsed
+    private static final String PARSE_ERROR = "1061";
+
+    // Maximum time shutdown waits for the running import to stop
+    private static final Duration SHUTDOWN_TIMEOUT = Duration.ofSeconds(30);
+
+    // Bytes read at a time when looking for a line boundary
+    private static final int BOUNDARY_SCAN_SIZE = 8192;
+
+    /**
+     * Directory holding the statement files to import.
+     */
+    @Value("${transaction.import.directory:import}")
+    private Path directory;
+
+    /**
+     * Number of chunks parsed and stored at the same time.
+     */
+    @Value("${transaction.import.parallelism:4}")
+    private int parallelism;
+
+    /**
+     * Size of the file chunks mapped and parsed by a worker.
+     */
+    @Value("${transaction.import.chunk-size:64MB}")
+    private DataSize chunkSize;
+
+    /**
+     * Number of transactions stored per batch, at most
+     * {@code transaction.batch.max-size}.
+     */
+    @Value("${transaction.import.batch-size:1000}")
+    private int batchSize;
+
+    /**
+     * Number of rejects after which an import is stopped.
+     */
+    @Value("${transaction.import.max-rejects:100000}")
+    private long maxRejects;
+
+    /**
+     * Time the progress of an import can be queried after its last change.
+     */
+    @Value("${transaction.import.status-ttl:PT24H}")
+    private Duration statusTtl;
+
+    /**
+     * Validates and stores the parsed transactions.
+     */
+    @Autowired
+    private BusinessTransaction businessTransaction;
+
+    // Runs the imports, one at a time
+    private ExecutorService imports;
+
+    // Parses and stores the chunks of the running import
+    private ExecutorService workers;
+
+    // Imports by id
+    private Cache<String, Job> jobs;
+
+    /**
+     * Creates the executors and the import registry.
+     */
+    @PostConstruct
+    void init() {
+        imports = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "statement-import"));
+        AtomicInteger workerCount = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(parallelism,
+                runnable -> new Thread(runnable, "statement-import-worker-" + workerCount.incrementAndGet()));
+        jobs = Caffeine.newBuilder()
+                .expireAfterWrite(statusTtl)
+                .build();
+    }
+
+    /**
+     * Stops the running import; the lines already stored stay stored.
+     */
+    @PreDestroy
+    void shutdown() throws InterruptedException {
+        jobs.asMap().values().forEach(job -> job.fail("The service was stopped"));
+        imports.shutdownNow();
+        workers.shutdown();
+        workers.awaitTermination(SHUTDOWN_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues the import of a statement file of the import directory.
+     *
+     * @param file the file name, relative to the import directory
+     * @return the queued import
+     * @throws BusinessRuleException if the file does not exist in the import
+     * directory
+     */
+    public ImportStatus start(String file) throws BusinessRuleException {
+        Path root = directory.toAbsolutePath().normalize();
+        Path path = root.resolve(file).normalize();
+        if (!path.startsWith(root) || !Files.isRegularFile(path)) {
+            throw new BusinessRuleException(
+                    "1062", // Custom error code
+                    "Statement file " + file + " not found in the import directory", // Error message
+                    HttpStatus.NOT_FOUND // HTTP status indicating the failure
+            );
+        }
+        Job job = new Job(UUID.randomUUID().toString(), root.relativize(path).toString(), path);
+        jobs.put(job.id, job);
+        imports.execute(() -> run(job));
+        return job.toStatus();
+    }
+
+    /**
+     * Returns the progress of an import.
+     *
+     * @param id the id returned when the import was started
+     * @return the progress, or null if the id is unknown or expired
+     */
+    public ImportStatus getStatus(String id) {
+        Job job = jobs.getIfPresent(id);
+        return job == null ? null : job.toStatus();
+    }
+
+    /**
+     * Reads the whole file and stores its transactions, then writes the
+     * rejects file.
+     */
+    private void run(Job job) {
+        job.status = ImportStatus.RUNNING;
+        job.startedAt = LocalDateTime.now();
+        List<ChunkResult> results = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(job.path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            job.bytes = size;
+            long headerEnd = nextLineStart(channel, 0, size);
+            StatementParser.Field[] columns = header(channel, headerEnd);
+            job.bytesProcessed.set(headerEnd);
+
+            List<Future<ChunkResult>> futures = new ArrayList<>();
+            for (long start = headerEnd; start < size;) {
+                long end = Math.min(size, start + chunkSize.toBytes());
+                end = end < size ? nextLineStart(channel, end - 1, size) : end;
+                long chunkStart = start;
+                long chunkEnd = end;
+                futures.add(workers.submit(() -> importChunk(job, channel, chunkStart, chunkEnd, columns)));
+                start = end;
+            }
+            for (Future<ChunkResult> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    job.fail(e.getCause().getMessage());
+                    logger.error("Import {} of {} failed", job.id, job.file, e.getCause());
+                }
+            }
+        } catch (IOException | BusinessRuleException e) {
+            job.fail(e.getMessage());
+            logger.error("Import {} of {} failed: {}", job.id, job.file, e.getMessage());
+        } catch (InterruptedException e) {
+            job.fail("The service was stopped");
+            Thread.currentThread().interrupt();
+        }
+        try {
+            writeRejects(job, results);
+        } catch (IOException e) {
+            job.fail("Could not write the rejects file: " + e.getMessage());
+            logger.error("Could not write the rejects of import {}", job.id, e);
+        }
+        if (job.message == null) {
+            job.status = ImportStatus.COMPLETED;
+        }
+        job.finishedAt = LocalDateTime.now();
+        jobs.put(job.id, job);
+        logger.info("Import {} of {} {}: {} lines, {} created, {} duplicates, {} rejected", job.id, job.file,
+                job.status, job.lines.get(), job.created.get(), job.duplicates.get(), job.rejected.get());
+    }
+
+    /**
+     * Reads the header line and maps each column to a transaction field.
+     *
+     * @throws BusinessRuleException if a column is unknown or a required one
+     * is missing
+     */
+    private StatementParser.Field[] header(FileChannel channel, long headerEnd) throws IOException, BusinessRuleException {
+        ByteBuffer bytes = ByteBuffer.allocate((int) headerEnd);
+        channel.read(bytes, 0);
+        String line = new String(bytes.array(), StandardCharsets.UTF_8).strip();
+        if (line.startsWith("\uFEFF")) {
+            line = line.substring(1);
+        }
+        String[] names = line.split(",", -1);
+        StatementParser.Field[] columns = new StatementParser.Field[names.length];
+        List<StatementParser.Field> found = new ArrayList<>();
+        for (int i = 0; i < names.length; i++) {
+            columns[i] = StatementParser.Field.of(names[i]);
+            if (columns[i] == null) {
+                throw new BusinessRuleException(PARSE_ERROR, "Unknown column " + names[i] + " in the header line",
+                        HttpStatus.UNPROCESSABLE_ENTITY);
+            }
+            found.add(columns[i]);
+        }
+        if (!found.contains(StatementParser.Field.IBAN_ACCOUNT) || !found.contains(StatementParser.Field.AMOUNT)
+                || !found.contains(StatementParser.Field.STATUS)) {
+            throw new BusinessRuleException(PARSE_ERROR, "The header line must name the ibanAccount, amount and status columns",
+                    HttpStatus.UNPROCESSABLE_ENTITY);
+        }
+        return columns;
+    }
+
+    /**
+     * Parses and stores the lines of a file chunk.
+     *
+     * @param start the offset of the first line of the chunk
+     * @param end the offset after the last line of the chunk
+     * @return the number of lines of the chunk and its rejects
+     */
+    private ChunkResult importChunk(Job job, FileChannel channel, long start, long end,
+            StatementParser.Field[] columns) throws IOException {
+        ChunkResult result = new ChunkResult();
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        StatementParser parser = new StatementParser(columns);
+        Batch batch = new Batch(batchSize);
+        int limit = buffer.limit();
+        int reported = 0;
+        int reportedLines = 0;
+        int pos = 0;
+        while (pos < limit && job.message == null) {
+            int eol = pos;
+            while (eol < limit && buffer.get(eol) != '\n') {
+                eol++;
+            }
+            int lineEnd = eol > pos && buffer.get(eol - 1) == '\r' ? eol - 1 : eol;
+            result.lines++;
+            if (lineEnd > pos) {
+                Transaction transaction = new Transaction();
+                String error = parser.parse(buffer, pos, lineEnd, transaction);
+                if (error != null) {
+                    reject(job, result, result.lines, PARSE_ERROR, error, buffer, pos, lineEnd);
+                } else {
+                    batch.add(transaction, result.lines, pos, lineEnd);
+                    if (batch.size() == batchSize) {
+                        store(job, result, batch, buffer);
+                    }
+                }
+            }
+            pos = eol + 1;
+            if (pos - reported >= BOUNDARY_SCAN_SIZE * 128) {
+                job.bytesProcessed.addAndGet(Math.min(pos, limit) - reported);
+                job.lines.addAndGet(result.lines - reportedLines);
+                reported = Math.min(pos, limit);
+                reportedLines = result.lines;
+            }
+        }
+        if (job.message == null) {
+            store(job, result, batch, buffer);
+        }
+        // Lines rejected when parsed come before those rejected when stored
+        result.rejects.sort(Comparator.comparingInt(Reject::line));
+        job.bytesProcessed.addAndGet(Math.min(pos, limit) - reported);
+        job.lines.addAndGet(result.lines - reportedLines);
+        return result;
+    }
+
+    /**
+     * Stores a batch of parsed transactions and records the rejected ones.
+     */
+    private void store(Job job, ChunkResult result, Batch batch, ByteBuffer buffer) {
+        if (batch.size() == 0) {
+            return;
+        }
+        BatchPostResult posted;
+        try {
+            try {
+                posted = businessTransaction.postBatch(batch.transactions);
+            } catch (DataIntegrityViolationException e) {
+                // Another worker stored the same reference meanwhile, the retry reports it as a duplicate
+                posted = businessTransaction.postBatch(batch.transactions);
+            }
+        } catch (BusinessRuleException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+        job.created.addAndGet(posted.getCreated());
+        job.duplicates.addAndGet(posted.getDuplicates());
+        for (BatchItemResult item : posted.getItems()) {
+            if (BatchItemResult.REJECTED.equals(item.getStatus())) {
+                int i = item.getIndex();
+                reject(job, result, batch.lines[i], item.getCode(), item.getMessage(), buffer, batch.starts[i], batch.ends[i]);
+            }
+        }
+        batch.clear();
+    }
+
+    /**
+     * Records a rejected line, and stops the import when there are too many.
+     */
+    private void reject(Job job, ChunkResult result, int line, String code, String message,
+            ByteBuffer buffer, int start, int end) {
+        byte[] record = new byte[end - start];
+        buffer.get(start, record);
+        result.rejects.add(new Reject(line, code, message, new String(record, StandardCharsets.UTF_8)));
+        if (job.rejected.incrementAndGet() > maxRejects) {
+            job.fail("More than " + maxRejects + " rejected lines, the import was stopped");
+        }
+    }
+
+    /**
+     * Writes the rejects of every chunk, with their line number in the file,
+     * to the rejects file. A previous rejects file of the statement is
+     * removed when there is no reject.
+     */
+    private void writeRejects(Job job, List<ChunkResult> results) throws IOException {
+        Path rejectsFile = job.path.resolveSibling(job.path.getFileName() + REJECTS_SUFFIX);
+        if (job.rejected.get() == 0) {
+            Files.deleteIfExists(rejectsFile);
+            return;
+        }
+        try (BufferedWriter writer = Files.newBufferedWriter(rejectsFile, StandardCharsets.UTF_8)) {
+            writer.write("line,code,message,record\r\n");
+            // Line 1 is the header, chunks follow each other
+            long base = 1;
+            for (ChunkResult result : results) {
+                for (Reject reject : result.rejects) {
+                    writer.write(Long.toString(base + reject.line()));
+                    writer.write(',');
+                    writer.write(quote(reject.code()));
+                    writer.write(',');
+                    writer.write(quote(reject.message()));
+                    writer.write(',');
+                    writer.write(quote(reject.record()));
+                    writer.write("\r\n");
+                }
+                base += result.lines;
+            }
+        }
+        job.rejectsFile = job.file + REJECTS_SUFFIX;
+    }
+
+    /**
+     * Quotes a CSV field, doubling its quotes.
+     */
+    private static String quote(String value) {
+        return value == null ? "" : "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * Finds the start of the line following the line break found at or after
+     * an offset.
+     *
+     * @return the offset after the line break, or the file size if there is
+     * none
+     */
+    private static long nextLineStart(FileChannel channel, long from, long size) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(BOUNDARY_SCAN_SIZE);
+        for (long pos = from; pos < size;) {
+            bytes.clear();
+            int read = channel.read(bytes, pos);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (bytes.get(i) == '\n') {
+                    return pos + i + 1;
+                }
+            }
+            pos += read;
+        }
+        return size;
+    }
+
+    /**
+     * Parsed transactions waiting to be stored, with the position of their
+     * line in the chunk.
+     */
+    private static final class Batch {
+
+        private final List<Transaction> transactions;
+        private final int[] lines;
+        private final int[] starts;
+        private final int[] ends;
+
+        Batch(int capacity) {
+            transactions = new ArrayList<>(capacity);
+            lines = new int[capacity];
+            starts = new int[capacity];
+            ends = new int[capacity];
+        }
+
+        void add(Transaction transaction, int line, int start, int end) {
+            int i = transactions.size();
+            lines[i] = line;
+            starts[i] = start;
+            ends[i] = end;
+            transactions.add(transaction);
+        }
+
+        int size() {
+            return transactions.size();
+        }
+
+        void clear() {
+            transactions.clear();
+        }
+    }
+
+    /**
+     * A rejected line, numbered within its chunk.
+     */
+    private record Reject(int line, String code, String message, String record) {
+
+    }
+
+    /**
+     * Outcome of a chunk: its number of lines and its rejects.
+     */
+    private static final class ChunkResult {
+
+        private int lines;
+        private final List<Reject> rejects = new ArrayList<>();
+    }
+
+    /**
+     * State of an import, updated by its workers.
+     */
+    private static final class Job {
+
+        private final String id;
+        private final String file;
+        private final Path path;
+        private volatile String status = ImportStatus.QUEUED;
+        private volatile String message;
+        private volatile String rejectsFile;
+        private volatile long bytes;
+        private volatile LocalDateTime startedAt;
+        private volatile LocalDateTime finishedAt;
+        private final AtomicLong bytesProcessed = new AtomicLong();
+        private final AtomicLong lines = new AtomicLong();
+        private final AtomicLong created = new AtomicLong();
+        private final AtomicLong duplicates = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+
+        Job(String id, String file, Path path) {
+            this.id = id;
+            this.file = file;
+            this.path = path;
+        }
+
+        /**
+         * Marks an unfinished import as failed, keeping the first reason.
+         * Workers stop at their next line.
+         */
+        synchronized void fail(String reason) {
+            if (message == null && finishedAt == null) {
+                message = reason;
+                status = ImportStatus.FAILED;
+            }
+        }
+
+        ImportStatus toStatus() {
+            ImportStatus status = new ImportStatus();
+            status.setId(id);
+            status.setFile(file);
+            status.setStatus(this.status);
+            status.setBytes(bytes);
+            status.setBytesProcessed(bytesProcessed.get());
+            status.setLines(lines.get());
+            status.setCreated(created.get());
+            status.setDuplicates(duplicates.get());
+            status.setRejected(rejected.get());
+            status.setRejectsFile(rejectsFile);
+            status.setMessage(message);
+            status.setStartedAt(startedAt);
+            status.setFinishedAt(finishedAt);
+            return status;
+        }
+    }
+}
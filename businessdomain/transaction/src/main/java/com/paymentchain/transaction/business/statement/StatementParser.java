@@ -0,0 +1,418 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.business.statement;
+
+import com.paymentchain.transaction.entities.Transaction;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.util.Locale;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Parses the records of a statement file straight from its mapped bytes into
+ * transactions. A record is one line of comma separated fields, in the order
+ * given by the header line; fields may be quoted, with doubled quotes inside
+ * (RFC 4180), but may not span lines.
+ * <p>
+ * Lines are never decoded as a whole: fields are located by their byte
+ * offsets, numbers and dates are parsed from the bytes, and only text fields
+ * become strings. The IBAN account, status and channel repeat a lot, so
+ * their strings are reused through a small dictionary instead of being
+ * decoded for every record.
+ * <p>
+ * A parser is not thread safe: each worker uses its own.
+ */
+final class StatementParser {
+
+    /**
+     * Transaction fields a column can hold.
+     */
+    enum Field {
+        ID, REFERENCE, IBAN_ACCOUNT, DATE, AMOUNT, FEE, DESCRIPTION, STATUS, CHANNEL;
+
+        /**
+         * Finds the field of a header name, e.g. {@code ibanAccount} or
+         * {@code iban_account}, case insensitive.
+         *
+         * @return the field, or null if the name is unknown
+         */
+        static Field of(String name) {
+            String key = name.trim().replace("_", "").toUpperCase(Locale.ROOT);
+            for (Field field : values()) {
+                if (field.name().replace("_", "").equals(key)) {
+                    return field;
+                }
+            }
+            return null;
+        }
+    }
+
+    // Powers of ten exactly representable as doubles
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    // Largest mantissa whose conversion to double is exact
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    // Number of slots of each dictionary
+    private static final int DICTIONARY_SIZE = 1024;
+
+    // Field held by each column of the file
+    private final Field[] columns;
+
+    // Start and end offsets of each field of the current line, quotes excluded
+    private final int[] starts;
+    private final int[] ends;
+
+    // Whether each field of the current line holds doubled quotes
+    private final boolean[] escaped;
+
+    // Scratch space for decoding text fields
+    private byte[] scratch = new byte[256];
+
+    // Dictionaries of the repetitive text fields
+    private final Dictionary ibanAccounts = new Dictionary();
+    private final Dictionary statuses = new Dictionary();
+    private final Dictionary channels = new Dictionary();
+
+    StatementParser(Field[] columns) {
+        this.columns = columns;
+        starts = new int[columns.length];
+        ends = new int[columns.length];
+        escaped = new boolean[columns.length];
+    }
+
+    /**
+     * Parses one record into a transaction.
+     *
+     * @param buffer the mapped file region
+     * @param start the offset of the first byte of the line
+     * @param end the offset after the last byte of the line, line break
+     * excluded
+     * @param into the transaction receiving the values
+     * @return null if the record was parsed, otherwise the reason it was not
+     */
+    String parse(ByteBuffer buffer, int start, int end, Transaction into) {
+        String error = split(buffer, start, end);
+        if (error != null) {
+            return error;
+        }
+        for (int i = 0; i < columns.length; i++) {
+            Field field = columns[i];
+            if (field == null) {
+                continue;
+            }
+            int from = starts[i];
+            int to = ends[i];
+            switch (field) {
+                case REFERENCE ->
+                    into.setReference(text(buffer, i));
+                case IBAN_ACCOUNT ->
+                    into.setIbanAccount(escaped[i] ? text(buffer, i) : ibanAccounts.get(buffer, from, to));
+                case STATUS ->
+                    into.setStatus(escaped[i] ? text(buffer, i) : statuses.get(buffer, from, to));
+                case CHANNEL ->
+                    into.setChannel(escaped[i] ? text(buffer, i) : channels.get(buffer, from, to));
+                case DESCRIPTION ->
+                    into.setDescription(text(buffer, i));
+                case AMOUNT -> {
+                    if (from == to) {
+                        return "Amount is empty";
+                    }
+                    double amount = number(buffer, from, to);
+                    if (Double.isNaN(amount)) {
+                        return "Amount is not a number";
+                    }
+                    into.setAmount(amount);
+                }
+                case FEE -> {
+                    double fee = from == to ? 0 : number(buffer, from, to);
+                    if (Double.isNaN(fee)) {
+                        return "Fee is not a number";
+                    }
+                    into.setFee(fee);
+                }
+                case DATE -> {
+                    if (from < to) {
+                        LocalDateTime date = date(buffer, from, to);
+                        if (date == null) {
+                            return "Date is not an ISO date-time";
+                        }
+                        into.setDate(date);
+                    }
+                }
+                default -> {
+                    // Ids are assigned by the database
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Locates the fields of a line.
+     *
+     * @return null if the line holds one field per column, otherwise the
+     * reason it does not
+     */
+    private String split(ByteBuffer buffer, int start, int end) {
+        int field = 0;
+        int pos = start;
+        while (true) {
+            if (field == columns.length) {
+                return "Expected " + columns.length + " fields, found more";
+            }
+            escaped[field] = false;
+            if (pos < end && buffer.get(pos) == '"') {
+                // Quoted field, ends at a quote that is not doubled
+                int from = ++pos;
+                while (true) {
+                    if (pos >= end) {
+                        return "Unterminated quoted field " + (field + 1);
+                    }
+                    if (buffer.get(pos) == '"') {
+                        if (pos + 1 < end && buffer.get(pos + 1) == '"') {
+                            escaped[field] = true;
+                            pos += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    pos++;
+                }
+                starts[field] = from;
+                ends[field] = pos++;
+                if (pos < end && buffer.get(pos) != ',') {
+                    return "Unexpected character after quoted field " + (field + 1);
+                }
+            } else {
+                starts[field] = pos;
+                while (pos < end && buffer.get(pos) != ',') {
+                    pos++;
+                }
+                ends[field] = pos;
+            }
+            field++;
+            if (pos >= end) {
+                break;
+            }
+            pos++; // Skip the separator
+        }
+        if (field < columns.length) {
+            return "Expected " + columns.length + " fields, found " + field;
+        }
+        return null;
+    }
+
+    /**
+     * Decodes a text field, undoubling its quotes.
+     *
+     * @return the text, or null if the field is empty
+     */
+    private String text(ByteBuffer buffer, int field) {
+        int from = starts[field];
+        int length = ends[field] - from;
+        if (length == 0) {
+            return null;
+        }
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        if (!escaped[field]) {
+            buffer.get(from, scratch, 0, length);
+            return new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+        int n = 0;
+        for (int pos = from; pos < from + length; pos++) {
+            byte b = buffer.get(pos);
+            scratch[n++] = b;
+            if (b == '"') {
+                pos++; // Skip the second quote of the pair
+            }
+        }
+        return new String(scratch, 0, n, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parses a decimal number, e.g. {@code -1234.56}. Numbers of up to 15
+     * significant digits are converted exactly without building a string;
+     * others, and exponents, go through {@link Double#parseDouble}.
+     *
+     * @return the number, or NaN if the field is not a number
+     */
+    private double number(ByteBuffer buffer, int from, int to) {
+        int pos = from;
+        boolean negative = false;
+        byte first = buffer.get(pos);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            pos++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int decimals = 0;
+        boolean point = false;
+        for (; pos < to; pos++) {
+            byte b = buffer.get(pos);
+            if (b >= '0' && b <= '9') {
+                if (mantissa >= MAX_EXACT_MANTISSA / 10) {
+                    return slowNumber(buffer, from, to);
+                }
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (point) {
+                    decimals++;
+                }
+            } else if (b == '.' && !point) {
+                point = true;
+            } else if (b == 'e' || b == 'E') {
+                return slowNumber(buffer, from, to);
+            } else {
+                return Double.NaN;
+            }
+        }
+        if (digits == 0 || decimals >= POWERS_OF_TEN.length) {
+            return digits == 0 ? Double.NaN : slowNumber(buffer, from, to);
+        }
+        // Both operands are exact, so the quotient is correctly rounded
+        double value = mantissa / POWERS_OF_TEN[decimals];
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses a number through its string form.
+     *
+     * @return the number, or NaN if the field is not a number
+     */
+    private double slowNumber(ByteBuffer buffer, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        buffer.get(from, bytes);
+        try {
+            return Double.parseDouble(new String(bytes, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Parses an ISO local date-time, {@code yyyy-MM-ddTHH:mm[:ss[.fraction]]},
+     * with a space also accepted between date and time.
+     *
+     * @return the date, or null if the field is not a valid date-time
+     */
+    private static LocalDateTime date(ByteBuffer buffer, int from, int to) {
+        int length = to - from;
+        if (length < 16 || buffer.get(from + 4) != '-' || buffer.get(from + 7) != '-'
+                || (buffer.get(from + 10) != 'T' && buffer.get(from + 10) != ' ') || buffer.get(from + 13) != ':') {
+            return null;
+        }
+        int year = digits(buffer, from, 4);
+        int month = digits(buffer, from + 5, 2);
+        int day = digits(buffer, from + 8, 2);
+        int hour = digits(buffer, from + 11, 2);
+        int minute = digits(buffer, from + 14, 2);
+        int second = 0;
+        int nanos = 0;
+        if (length > 16) {
+            if (length < 19 || buffer.get(from + 16) != ':') {
+                return null;
+            }
+            second = digits(buffer, from + 17, 2);
+            if (length > 19) {
+                int fraction = length - 20;
+                if (buffer.get(from + 19) != '.' || fraction < 1 || fraction > 9) {
+                    return null;
+                }
+                nanos = digits(buffer, from + 20, fraction);
+                for (int i = fraction; i < 9; i++) {
+                    nanos *= 10;
+                }
+            }
+        }
+        if ((year | month | day | hour | minute | second | nanos) < 0) {
+            return null;
+        }
+        try {
+            return LocalDateTime.of(year, month, day, hour, minute, second, nanos);
+        } catch (DateTimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parses a fixed number of decimal digits.
+     *
+     * @return the value, or -1 if a byte is not a digit
+     */
+    private static int digits(ByteBuffer buffer, int from, int count) {
+        int value = 0;
+        for (int i = from; i < from + count; i++) {
+            byte b = buffer.get(i);
+            if (b < '0' || b > '9') {
+                return -1;
+            }
+            value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Direct mapped cache of the strings of recently seen byte sequences. A
+     * colliding sequence replaces the previous one.
+     */
+    private static final class Dictionary {
+
+        // Bytes and string of each slot
+        private final byte[][] keys = new byte[DICTIONARY_SIZE][];
+        private final String[] values = new String[DICTIONARY_SIZE];
+
+        /**
+         * Returns the string of a byte sequence, decoding it only if it is
+         * not cached.
+         *
+         * @return the string, or null if the sequence is empty
+         */
+        String get(ByteBuffer buffer, int from, int to) {
+            int length = to - from;
+            if (length == 0) {
+                return null;
+            }
+            int hash = 0;
+            for (int i = from; i < to; i++) {
+                hash = 31 * hash + buffer.get(i);
+            }
+            int slot = (hash ^ (hash >>> 16)) & (DICTIONARY_SIZE - 1);
+            byte[] key = keys[slot];
+            if (key != null && key.length == length && matches(key, buffer, from)) {
+                return values[slot];
+            }
+            key = new byte[length];
+            buffer.get(from, key);
+            keys[slot] = key;
+            values[slot] = new String(key, StandardCharsets.UTF_8);
+            return values[slot];
+        }
+
+        /**
+         * Whether the bytes of a key equal the buffer bytes at an offset.
+         */
+        private static boolean matches(byte[] key, ByteBuffer buffer, int from) {
+            for (int i = 0; i < key.length; i++) {
+                if (key[i] != buffer.get(from + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
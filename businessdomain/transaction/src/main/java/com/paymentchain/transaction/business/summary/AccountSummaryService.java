@@ -0,0 +1,293 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.business.summary;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.paymentchain.transaction.business.shard.TransactionShards;
+import com.paymentchain.transaction.entities.AccountSummary;
+import com.paymentchain.transaction.entities.Transaction;
+import com.paymentchain.transaction.repository.AccountSummaryRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.sql.DataSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Maintains the per-account {@link AccountSummary} aggregates: balance,
+ * number of transactions, total fees and last transaction date. Every write
+ * path applies its changes as deltas in the same database transaction as the
+ * transaction rows, so the summary is always consistent with them and reading
+ * a balance costs a primary key lookup instead of a scan of the history.
+ * <p>
+ * The summary of an account is created the first time the account is
+ * written or read, from the transactions already stored, so accounts that
+ * existed before the summaries are initialized on demand. Accounts known to
+ * have a summary are remembered in a bounded set to skip that check.
+ * <p>
+ * Deltas are applied with atomic update statements; writers of the same
+ * account serialize on its summary row until they commit. With sharding, the
+ * summary lives in the shard of its account, next to its transactions.
+ */
+@Service
+public class AccountSummaryService {
+
+    /**
+     * Repository for the account summaries.
+     */
+    @Autowired
+    private AccountSummaryRepository summaryRepository;
+
+    /**
+     * Data source, used to update the summaries of many accounts in one
+     * batch.
+     */
+    @Autowired
+    private DataSource dataSource;
+
+    /**
+     * Persistence context, flushed before the batched updates.
+     */
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /**
+     * Transaction manager, used to create summaries in their own transaction.
+     */
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    /**
+     * Placement of the accounts across the shards.
+     */
+    @Autowired
+    private TransactionShards shards;
+
+    /**
+     * Maximum number of accounts remembered as having a summary.
+     */
+    @Value("${transaction.summary.known-accounts-max-size:100000}")
+    private long knownAccountsMaxSize;
+
+    // Same update as AccountSummaryRepository.add, sent in JDBC batches
+    private static final String BATCH_ADD = "UPDATE account_summary SET balance = balance + ?,"
+            + " transaction_count = transaction_count + ?, total_fees = total_fees + ?,"
+            + " last_date = CASE WHEN last_date IS NULL OR last_date < ? THEN ? ELSE last_date END"
+            + " WHERE iban_account = ?";
+
+    // Creates summaries in a transaction of their own, committed before the caller's writes
+    private TransactionTemplate requiresNew;
+
+    // Accounts whose summary is known to exist
+    private Cache<String, Boolean> knownAccounts;
+
+    // Sends the updates of many accounts at once, in the caller's transaction
+    private JdbcTemplate jdbcTemplate;
+
+    /**
+     * Creates the transaction template and the set of known accounts.
+     */
+    @PostConstruct
+    void init() {
+        requiresNew = new TransactionTemplate(transactionManager);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        requiresNew.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        knownAccounts = Caffeine.newBuilder()
+                .maximumSize(knownAccountsMaxSize)
+                .build();
+    }
+
+    /**
+     * Returns the summary of an account.
+     *
+     * @param ibanAccount the IBAN account
+     * @return the summary, or null if the account has no transaction
+     */
+    public AccountSummary get(String ibanAccount) {
+        return shards.onAccount(ibanAccount, () -> {
+            AccountSummary summary = summaryRepository.findById(ibanAccount).orElse(null);
+            // Reading an unknown account does not create an empty summary for it
+            if (summary == null && create(ibanAccount, false)) {
+                summary = summaryRepository.findById(ibanAccount).orElse(null);
+            }
+            return summary;
+        });
+    }
+
+    /**
+     * Makes sure the given accounts have a summary. Call it before opening
+     * the transaction that writes to these accounts, so the summaries are not
+     * created while that transaction holds a connection.
+     *
+     * @param ibanAccounts the IBAN accounts about to be written
+     */
+    public void prepare(Collection<String> ibanAccounts) {
+        for (String ibanAccount : ibanAccounts) {
+            if (ibanAccount != null && knownAccounts.getIfPresent(ibanAccount) == null) {
+                create(ibanAccount, true);
+                knownAccounts.put(ibanAccount, Boolean.TRUE);
+            }
+        }
+    }
+
+    /**
+     * Adds stored transactions to the summaries of their accounts. Must run
+     * in the transaction that stored them.
+     *
+     * @param transactions the transactions just stored
+     */
+    public void added(Collection<Transaction> transactions) {
+        // One update per account, however many transactions it received, in account order so that
+        // concurrent writers (e.g. parallel import batches) lock the summaries in the same order
+        Map<String, Delta> deltas = new TreeMap<>();
+        for (Transaction transaction : transactions) {
+            if (transaction.getIbanAccount() == null) {
+                continue;
+            }
+            deltas.computeIfAbsent(transaction.getIbanAccount(), iban -> new Delta()).add(transaction, 1);
+        }
+        if (deltas.size() == 1) {
+            deltas.forEach(this::apply);
+            return;
+        }
+        // Many accounts: send their updates in one JDBC batch, so the summary rows stay locked for one round trip
+        entityManager.flush();
+        List<Map.Entry<String, Delta>> entries = new ArrayList<>(deltas.entrySet());
+        int[][] updated = jdbcTemplate.batchUpdate(BATCH_ADD, entries, entries.size(), (statement, entry) -> {
+            Delta delta = entry.getValue();
+            Timestamp lastDate = delta.lastDate != null ? Timestamp.valueOf(delta.lastDate) : null;
+            statement.setDouble(1, delta.balance);
+            statement.setLong(2, delta.count);
+            statement.setDouble(3, delta.fees);
+            statement.setTimestamp(4, lastDate);
+            statement.setTimestamp(5, lastDate);
+            statement.setString(6, entry.getKey());
+        });
+        for (int i = 0; i < entries.size(); i++) {
+            if (updated[0][i] == 0) {
+                // The caller did not prepare this account
+                apply(entries.get(i).getKey(), entries.get(i).getValue());
+            }
+        }
+    }
+
+    /**
+     * Removes a transaction from the summary of its account, e.g. because it
+     * was deleted or is about to be replaced by its updated version. Must run
+     * in the transaction that deletes or updates it, after the change was
+     * written.
+     *
+     * @param transaction the transaction as it was before the change
+     */
+    public void removed(Transaction transaction) {
+        if (transaction.getIbanAccount() == null) {
+            return;
+        }
+        Delta delta = new Delta();
+        delta.add(transaction, -1);
+        apply(transaction.getIbanAccount(), delta);
+        // The removed transaction may have been the most recent one
+        summaryRepository.refreshLastDate(transaction.getIbanAccount());
+    }
+
+    /**
+     * Applies a delta to the summary of an account, creating the summary if
+     * the caller did not prepare it.
+     *
+     * @param ibanAccount the IBAN account
+     * @param delta the changes to apply
+     */
+    private void apply(String ibanAccount, Delta delta) {
+        if (summaryRepository.add(ibanAccount, delta.balance, delta.count, delta.fees, delta.lastDate) == 0) {
+            create(ibanAccount, true);
+            summaryRepository.add(ibanAccount, delta.balance, delta.count, delta.fees, delta.lastDate);
+        }
+    }
+
+    /**
+     * Creates the summary of an account from its committed transactions, in
+     * a transaction of its own on the shard of the account.
+     *
+     * @param ibanAccount the IBAN account
+     * @param empty whether to create an empty summary if the account has no
+     * transaction yet
+     * @return true if the account has a summary afterwards
+     */
+    private boolean create(String ibanAccount, boolean empty) {
+        try {
+            return Boolean.TRUE.equals(shards.onAccount(ibanAccount, () -> requiresNew.execute(status -> {
+                if (summaryRepository.existsById(ibanAccount)) {
+                    return true;
+                }
+                AccountSummary summary = summaryRepository.summarize(ibanAccount);
+                if (summary == null) {
+                    if (!empty) {
+                        return false;
+                    }
+                    summary = new AccountSummary(ibanAccount, 0, 0, 0, null);
+                }
+                summaryRepository.save(summary);
+                return true;
+            })));
+        } catch (DataIntegrityViolationException e) {
+            // Another writer created it first
+            return true;
+        }
+    }
+
+    /**
+     * Changes to apply to the summary of one account.
+     */
+    private static class Delta {
+
+        // Change of the balance
+        private double balance;
+
+        // Change of the number of transactions
+        private long count;
+
+        // Change of the total fees
+        private double fees;
+
+        // Newest date among the added transactions
+        private LocalDateTime lastDate;
+
+        /**
+         * Accumulates one transaction.
+         *
+         * @param transaction the transaction
+         * @param sign 1 to add it, -1 to remove it
+         */
+        private void add(Transaction transaction, int sign) {
+            balance += sign * (transaction.getAmount() - transaction.getFee());
+            count += sign;
+            fees += sign * transaction.getFee();
+            if (sign > 0 && transaction.getDate() != null
+                    && (lastDate == null || lastDate.isBefore(transaction.getDate()))) {
+                lastDate = transaction.getDate();
+            }
+        }
+    }
+}
@@ -5,12 +5,58 @@
 
 package com.paymentchain.transaction.business.transaction;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.paymentchain.transaction.business.analytics.TransactionColumnStore;
+import com.paymentchain.transaction.business.archive.TransactionArchive;
+import com.paymentchain.transaction.business.cache.RecentReferenceCache;
+import com.paymentchain.transaction.business.export.TransactionExporter;
+import com.paymentchain.transaction.business.ingestion.TransactionIngestionQueue;
+import com.paymentchain.transaction.business.posting.PostingLanes;
+import com.paymentchain.transaction.business.search.TransactionSearchService;
+import com.paymentchain.transaction.business.shard.TransactionShards;
+import com.paymentchain.transaction.business.summary.AccountSummaryService;
+import com.paymentchain.transaction.business.velocity.VelocityChecker;
+import com.paymentchain.transaction.common.AnalyticsResult;
+import com.paymentchain.transaction.common.BatchItemResult;
+import com.paymentchain.transaction.common.BatchPostResult;
+import com.paymentchain.transaction.common.IngestionStatus;
+import com.paymentchain.transaction.common.TransactionSearchCriteria;
+import com.paymentchain.transaction.common.TransactionSearchResult;
+import com.paymentchain.transaction.entities.AccountSummary;
 import com.paymentchain.transaction.entities.Transaction;
 import com.paymentchain.transaction.exception.BusinessRuleException;
 import com.paymentchain.transaction.repository.TransactionRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.NestedExceptionUtils;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 /**
  *
@@ -18,15 +64,722 @@ import org.springframework.stereotype.Service;
  */
 @Service
 public class BusinessTransaction {
+
+    /**
+     * Lower date bound used when a history request does not give one.
+     */
+    public static final LocalDateTime MIN_DATE = LocalDateTime.of(1, 1, 1, 0, 0);
+
+    /**
+     * Upper date bound used when a history request does not give one.
+     */
+    public static final LocalDateTime MAX_DATE = LocalDateTime.of(9999, 12, 31, 23, 59, 59);
+
+    // Logger for logging batch inserts retried item by item
+    private static final Logger logger = LoggerFactory.getLogger(BusinessTransaction.class);
+
+    // Order of the transactions listed from every shard
+    private static final Comparator<Transaction> ID_ORDER = Comparator.comparingLong(Transaction::getId);
+
+    // Order of the history of an account
+    private static final Comparator<Transaction> HISTORY_ORDER = Comparator
+            .comparing(Transaction::getDate, Comparator.nullsFirst(Comparator.<LocalDateTime>naturalOrder()))
+            .thenComparingLong(Transaction::getId);
     
     /**
      * Automatically injected repository for managing Transaction entities.
      */
     @Autowired
     TransactionRepository transactionRepository;
+
+    /**
+     * Maximum number of transactions accepted by a single batch post.
+     */
+    @Value("${transaction.batch.max-size:1000}")
+    private int batchMaxSize;
+
+    /**
+     * Recently stored transactions keyed by reference, so retries do not
+     * reach the database.
+     */
+    @Autowired
+    private RecentReferenceCache recentReferences;
+
+    /**
+     * Per-account aggregates, updated by every write.
+     */
+    @Autowired
+    private AccountSummaryService accountSummaries;
+
+    /**
+     * In-memory columns of recent transactions, fed with every committed
+     * write.
+     */
+    @Autowired
+    private TransactionColumnStore columnStore;
+
+    /**
+     * Multi-criteria search with estimated totals.
+     */
+    @Autowired
+    private TransactionSearchService searchService;
+
+    /**
+     * Cold tier holding the transactions older than the archival age, read
+     * by history queries reaching back that far.
+     */
+    @Autowired
+    private TransactionArchive archive;
+
+    /**
+     * Per-account sliding window limits checked by every post.
+     */
+    @Autowired
+    private VelocityChecker velocityChecker;
+
+    /**
+     * Bulk export reading rows straight from a JDBC cursor.
+     */
+    @Autowired
+    private TransactionExporter exporter;
+
+    /**
+     * Transaction manager, used to write transactions and account summaries
+     * together.
+     */
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    // Template running each write and its account summary changes in one transaction
+    private TransactionTemplate transactionTemplate;
+
+    // Read-only transaction holding the cursor of a streamed history
+    private TransactionTemplate readOnly;
+
+    /**
+     * Placement of the transactions across the shards, by IBAN account.
+     */
+    @Autowired
+    private TransactionShards shards;
+
+    /**
+     * Single-writer lanes ordering the posts and updates of each account,
+     * when enabled.
+     */
+    @Autowired
+    private PostingLanes postingLanes;
+
+    /**
+     * Queue used when posted transactions are written asynchronously.
+     */
+    @Autowired
+    private TransactionIngestionQueue ingestionQueue;
+
+    /**
+     * Mapper used to write transactions as JSON when streaming.
+     */
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    /**
+     * Persistence context, used to clear batch inserts and to detach streamed
+     * transactions once written.
+     */
+    @PersistenceContext
+    private EntityManager entityManager;
     
+    /**
+     * Creates the template used to write transactions together with their
+     * account summaries.
+     */
+    @PostConstruct
+    void init() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        readOnly = new TransactionTemplate(transactionManager);
+        readOnly.setReadOnly(true);
+    }
+
+    /**
+     * Stores a transaction. The reference is the idempotency key: posting
+     * again a transaction whose reference is already stored returns the
+     * original transaction instead of creating a duplicate. Recent references
+     * are answered from the {@link RecentReferenceCache} without reaching the
+     * database; older ones are caught by the unique index on the reference.
+     * A blank reference is no key: it is stored as null, like a missing one.
+     * With posting lanes, the write is ordered with the other posts and
+     * updates of its IBAN account. With sharding, references are unique within
+     * the shard of the account, so a retry must carry the IBAN account of the
+     * original.
+     *
+     * @param input the transaction to store
+     * @return the stored transaction, or the original one for a retry
+     * @throws BusinessRuleException if the transaction breaks a business rule
+     * or a velocity limit of its account
+     */
     public Transaction post(Transaction input) throws BusinessRuleException {
-        if (input.getIbanAccount().isBlank() || input.getIbanAccount() == null) {
+        validate(input);
+        prepare(input);
+
+        // A retry of a recently stored transaction is answered from memory
+        Transaction original = recentReferences.get(input.getReference());
+        if (original != null) {
+            return original;
+        }
+
+        // Bursts on an account are rejected before reaching the database
+        velocityChecker.check(input.getIbanAccount(), input.getAmount());
+
+        long requestedId = input.getId();
+        try {
+            accountSummaries.prepare(List.of(input.getIbanAccount()));
+            // The row and the account summary are written in the same database transaction
+            Transaction save = write(input.getIbanAccount(), () -> {
+                // An id assigned by a rolled back attempt is discarded
+                input.setId(requestedId);
+                Transaction saved = transactionRepository.save(input);
+                accountSummaries.added(List.of(saved));
+                return saved;
+            });
+            recentReferences.put(save);
+            columnStore.added(List.of(save));
+            return save;
+        } catch (DataIntegrityViolationException e) {
+            // Not stored, so it does not count against the velocity limits
+            velocityChecker.release(input.getIbanAccount(), input.getAmount());
+            // The unique index caught a retry the cache no longer remembers, or a concurrent one
+            original = findByReference(input.getIbanAccount(), input.getReference());
+            if (original == null) {
+                throw e;
+            }
+            recentReferences.put(original);
+            return original;
+        } catch (RuntimeException e) {
+            velocityChecker.release(input.getIbanAccount(), input.getAmount());
+            throw e;
+        }
+    }
+
+    /**
+     * Updates an existing transaction and moves it between account summaries
+     * accordingly, in one database transaction. The row is locked while it is
+     * updated, so concurrent changes of the same transaction are applied one
+     * after the other. With posting lanes, the update is ordered with the
+     * other posts and updates of its (new) IBAN account.
+     * <p>
+     * With sharding, a transaction whose new IBAN account lives in another
+     * shard is moved there: its updated version is inserted in the new shard
+     * with the same id, then the old one is deleted from its shard. Both
+     * steps commit separately; if the second fails, the transaction is found
+     * in both shards until it is updated or deleted again.
+     *
+     * @param id the id of the transaction to update
+     * @param input the new values of the transaction
+     * @return the updated transaction, or empty if it does not exist
+     */
+    public Optional<Transaction> update(long id, Transaction input) {
+        normalizeReference(input);
+        int source = shards.locate(id);
+        if (source < 0) {
+            return Optional.empty();
+        }
+        accountSummaries.prepare(Collections.singletonList(input.getIbanAccount()));
+        Transaction saved = source == shards.shardOf(input.getIbanAccount())
+                ? write(input.getIbanAccount(), () -> updateInPlace(id, input))
+                : move(source, id, input);
+        if (saved != null) {
+            columnStore.removed(id);
+            columnStore.added(List.of(saved));
+        }
+        return Optional.ofNullable(saved);
+    }
+
+    /**
+     * Updates a transaction in its shard. Runs in the write transaction.
+     *
+     * @return the updated transaction, or null if it does not exist
+     */
+    private Transaction updateInPlace(long id, Transaction input) {
+        Transaction existingTransaction = transactionRepository.findByIdForUpdate(id).orElse(null);
+        if (existingTransaction == null) {
+            return null;
+        }
+        // Values before the update, to remove them from the account summary
+        Transaction previous = RecentReferenceCache.copyOf(existingTransaction);
+
+        // Update the transaction fields with the provided data
+        copyFields(input, existingTransaction);
+        Transaction updated = transactionRepository.saveAndFlush(existingTransaction);
+
+        accountSummaries.removed(previous);
+        accountSummaries.added(List.of(updated));
+        // Retries must not return the old version
+        recentReferences.invalidate(previous.getReference());
+        return updated;
+    }
+
+    /**
+     * Moves an updated transaction to the shard of its new IBAN account:
+     * inserts the new version there with the same id, then deletes the old
+     * one from its shard.
+     *
+     * @param source the shard holding the transaction
+     * @return the updated transaction, or null if it does not exist
+     */
+    private Transaction move(int source, long id, Transaction input) {
+        Transaction previous = shards.onShard(source, () -> transactionTemplate.execute(status ->
+                transactionRepository.findById(id).map(RecentReferenceCache::copyOf).orElse(null)));
+        if (previous == null) {
+            return null;
+        }
+        Transaction updated = RecentReferenceCache.copyOf(previous);
+        copyFields(input, updated);
+        write(updated.getIbanAccount(), () -> {
+            shards.insert(List.of(updated));
+            accountSummaries.added(List.of(updated));
+            return updated;
+        });
+        shards.onShard(source, () -> transactionTemplate.execute(status -> {
+            Transaction existingTransaction = transactionRepository.findByIdForUpdate(id).orElse(null);
+            if (existingTransaction != null) {
+                transactionRepository.delete(existingTransaction);
+                transactionRepository.flush();
+                accountSummaries.removed(existingTransaction);
+            }
+            return null;
+        }));
+        recentReferences.invalidate(previous.getReference());
+        return updated;
+    }
+
+    /**
+     * Copies the updatable fields of a transaction.
+     *
+     * @param input the new values
+     * @param target the transaction to update
+     */
+    private static void copyFields(Transaction input, Transaction target) {
+        target.setAmount(input.getAmount());
+        target.setChannel(input.getChannel());
+        target.setDate(input.getDate());
+        target.setDescription(input.getDescription());
+        target.setFee(input.getFee());
+        target.setReference(input.getReference());
+        target.setStatus(input.getStatus());
+        target.setIbanAccount(input.getIbanAccount());
+    }
+
+    /**
+     * Deletes a transaction and removes it from its account summary, in one
+     * database transaction.
+     *
+     * @param id the id of the transaction to delete
+     * @return true if the transaction existed and was deleted
+     */
+    public boolean delete(long id) {
+        int shard = shards.locate(id);
+        if (shard < 0) {
+            return false;
+        }
+        boolean deleted = Boolean.TRUE.equals(shards.onShard(shard, () -> transactionTemplate.execute(status -> {
+            Transaction existingTransaction = transactionRepository.findByIdForUpdate(id).orElse(null);
+            if (existingTransaction == null) {
+                return false;
+            }
+            transactionRepository.delete(existingTransaction);
+            transactionRepository.flush();
+            accountSummaries.removed(existingTransaction);
+            // Forget its idempotency key
+            recentReferences.invalidate(existingTransaction.getReference());
+            return true;
+        })));
+        if (deleted) {
+            columnStore.removed(id);
+        }
+        return deleted;
+    }
+
+    /**
+     * Returns the aggregates of an IBAN account: balance, number of
+     * transactions, total fees and last transaction date. They are
+     * maintained as transactions are written, so reading them does not scan
+     * the account history.
+     *
+     * @param ibanAccount the IBAN account
+     * @return the summary, or null if the account has no transaction
+     */
+    public AccountSummary getSummary(String ibanAccount) {
+        return accountSummaries.get(ibanAccount);
+    }
+
+    /**
+     * Aggregates the recent transactions held in memory by channel, status
+     * and hour or day, without querying the database.
+     *
+     * @param groupBy the dimensions to group by (channel, status, hour, day)
+     * @param from the lower date bound, inclusive, or null
+     * @param to the upper date bound, inclusive, or null
+     * @param channel only count transactions of this channel, or null
+     * @param status only count transactions with this status, or null
+     * @return the aggregates of each non-empty group
+     * @throws BusinessRuleException if the dimensions are invalid or the
+     * query would produce too many groups
+     */
+    public AnalyticsResult getAnalytics(List<String> groupBy, LocalDateTime from, LocalDateTime to,
+            String channel, String status) throws BusinessRuleException {
+        return columnStore.query(groupBy, from, to, channel, status);
+    }
+
+    /**
+     * Searches transactions by any combination of IBAN account, status,
+     * channel, amount range and date window, one keyset page at a time.
+     *
+     * @param criteria the search filters
+     * @param afterDate the date of the last transaction of the previous page,
+     * or null for the first page
+     * @param afterId the id of the last transaction of the previous page
+     * @param size the maximum number of transactions of the page
+     * @return the page, ordered by date and id, and the exact or estimated
+     * number of matches
+     */
+    public TransactionSearchResult search(TransactionSearchCriteria criteria, LocalDateTime afterDate, long afterId, int size) {
+        return searchService.search(criteria, afterDate, afterId, size);
+    }
+
+    /**
+     * Checks that the transactions dated from a date on can be exported:
+     * ranges reaching archived transactions are refused.
+     *
+     * @param from the lower date bound, inclusive, or null
+     * @throws BusinessRuleException if the range reaches archived
+     * transactions
+     */
+    public void checkExport(LocalDateTime from) throws BusinessRuleException {
+        exporter.checkRange(from != null ? from : MIN_DATE);
+    }
+
+    /**
+     * Exports the transactions dated within a range, ordered by date and id,
+     * streaming them from a database cursor to the output. Call
+     * {@link #checkExport} first.
+     *
+     * @param format the output format
+     * @param from the lower date bound, inclusive, or null
+     * @param to the upper date bound, inclusive, or null
+     * @param compress whether the output is gzip compressed
+     * @param out the stream to write to
+     * @return the number of transactions written
+     * @throws IOException if the output cannot be written
+     */
+    public long export(TransactionExporter.Format format, LocalDateTime from, LocalDateTime to, boolean compress,
+            OutputStream out) throws IOException {
+        return exporter.export(format, from != null ? from : MIN_DATE, to != null ? to : MAX_DATE, compress, out);
+    }
+
+    /**
+     * Validates a transaction and appends it to the asynchronous ingestion
+     * queue instead of writing it right away. Validation errors are reported
+     * immediately, as with {@link #post(Transaction)}.
+     *
+     * @param input the transaction to store
+     * @return the pending status with the tracking id, or null if the queue is
+     * full
+     * @throws BusinessRuleException if the transaction breaks a business rule
+     * or a velocity limit of its account
+     */
+    public IngestionStatus enqueue(Transaction input) throws BusinessRuleException {
+        validate(input);
+        prepare(input);
+
+        // A retry of a recently stored transaction is reported as stored right away
+        Transaction original = recentReferences.get(input.getReference());
+        if (original != null) {
+            return ingestionQueue.stored(original.getId());
+        }
+
+        velocityChecker.check(input.getIbanAccount(), input.getAmount());
+
+        // Client supplied ids are ignored, queued transactions are always inserted
+        input.setId(0);
+        IngestionStatus status = ingestionQueue.offer(input);
+        if (status == null) {
+            // Refused, the client retries later
+            velocityChecker.release(input.getIbanAccount(), input.getAmount());
+        }
+        return status;
+    }
+
+    /**
+     * Stores many transactions at once. Every item is validated with the same
+     * rules as {@link #post(Transaction)}; the valid ones are inserted with
+     * JDBC batching in a single database transaction, so the whole batch costs
+     * one commit and a handful of round trips instead of one commit per item.
+     * Rejected items do not prevent the others from being stored.
+     * <p>
+     * Items whose reference is already stored, or repeats the reference of an
+     * earlier item, are reported as duplicates of the original transaction.
+     * References are checked against the recent reference cache and then with
+     * a single query for the whole batch. A reference stored concurrently
+     * after that query is caught by the unique index: the items of that
+     * database transaction are then inserted one by one and the repeating
+     * ones reported as duplicates too. An item that still cannot be stored is
+     * rejected with code 1064. Every new item is checked against the velocity
+     * limits of its account, and rejected with code 1063 when it breaks one;
+     * items that end up not stored are taken back from the limits.
+     * <p>
+     * With sharding, the items are grouped by the shard of their IBAN account
+     * and each group is looked up and inserted in its shard, in a database
+     * transaction of its own.
+     *
+     * @param inputs the transactions to store
+     * @return the id of every stored transaction and the reason of every
+     * rejection, in request order
+     * @throws BusinessRuleException if the request holds more items than
+     * {@code transaction.batch.max-size}
+     */
+    public BatchPostResult postBatch(List<Transaction> inputs) throws BusinessRuleException {
+        if (inputs.size() > batchMaxSize) {
+            throw new BusinessRuleException(
+                    "1057", // Custom error code
+                    "Validation error, a batch accepts at most " + batchMaxSize + " transactions", // Error message
+                    HttpStatus.PAYLOAD_TOO_LARGE // HTTP status indicating the failure
+            );
+        }
+        BatchPostResult result = new BatchPostResult();
+        result.setReceived(inputs.size());
+
+        // Validate every item on its own
+        List<Transaction> valid = new ArrayList<>();
+        List<BatchItemResult> validItems = new ArrayList<>();
+        for (int index = 0; index < inputs.size(); index++) {
+            Transaction input = inputs.get(index);
+            BatchItemResult item = new BatchItemResult();
+            item.setIndex(index);
+            result.getItems().add(item);
+            try {
+                validate(input);
+            } catch (BusinessRuleException e) {
+                item.setStatus(BatchItemResult.REJECTED);
+                item.setCode(e.getCode());
+                item.setMessage(e.getMessage());
+                result.setRejected(result.getRejected() + 1);
+                continue;
+            }
+            // Client supplied ids are ignored, items are always inserted
+            input.setId(0);
+            prepare(input);
+            valid.add(input);
+            validItems.add(item);
+        }
+
+        // Resolve the references already stored: recent ones from memory, the others with one query per shard
+        Map<String, Transaction> stored = new HashMap<>();
+        Map<Integer, List<String>> unknown = new TreeMap<>();
+        for (Transaction input : valid) {
+            String reference = input.getReference();
+            if (reference == null || reference.isBlank() || stored.containsKey(reference)) {
+                continue;
+            }
+            Transaction original = recentReferences.get(reference);
+            if (original != null) {
+                stored.put(reference, original);
+            } else {
+                unknown.computeIfAbsent(shards.shardOf(input.getIbanAccount()), shard -> new ArrayList<>()).add(reference);
+            }
+        }
+        unknown.forEach((shard, references) -> {
+            // Read on the primary (read-write transaction), a replica may not have the latest references yet
+            List<Transaction> originals = shards.onShard(shard,
+                    () -> transactionTemplate.execute(status -> transactionRepository.findByReferenceIn(references)));
+            for (Transaction original : originals) {
+                stored.put(original.getReference(), original);
+            }
+        });
+
+        // Keep the first item of each new reference, the others point at it
+        List<Transaction> created = new ArrayList<>();
+        List<BatchItemResult> createdItems = new ArrayList<>();
+        Map<String, Transaction> firstOfReference = new HashMap<>();
+        Map<BatchItemResult, Transaction> duplicateOf = new LinkedHashMap<>();
+        for (int i = 0; i < valid.size(); i++) {
+            Transaction input = valid.get(i);
+            String reference = input.getReference();
+            boolean keyed = reference != null && !reference.isBlank();
+            Transaction original = keyed ? stored.getOrDefault(reference, firstOfReference.get(reference)) : null;
+            if (original != null) {
+                duplicateOf.put(validItems.get(i), original);
+                continue;
+            }
+            try {
+                velocityChecker.check(input.getIbanAccount(), input.getAmount());
+            } catch (BusinessRuleException e) {
+                // A later item with the same reference is checked on its own
+                BatchItemResult item = validItems.get(i);
+                item.setStatus(BatchItemResult.REJECTED);
+                item.setCode(e.getCode());
+                item.setMessage(e.getMessage());
+                result.setRejected(result.getRejected() + 1);
+                continue;
+            }
+            if (keyed) {
+                firstOfReference.put(reference, input);
+            }
+            created.add(input);
+            createdItems.add(validItems.get(i));
+        }
+
+        // Insert the new items in JDBC batches, committed together with the account summaries of their shard
+        Map<Integer, List<Transaction>> byShard = new TreeMap<>();
+        for (Transaction transaction : created) {
+            byShard.computeIfAbsent(shards.shardOf(transaction.getIbanAccount()), shard -> new ArrayList<>()).add(transaction);
+        }
+        // Items whose reference was stored concurrently since the lookup, with the stored transaction
+        Map<Transaction, Transaction> concurrentOriginals = new IdentityHashMap<>();
+        // Items that could not be stored, with the reason
+        Map<Transaction, String> failed = new IdentityHashMap<>();
+        try {
+            accountSummaries.prepare(created.stream().map(Transaction::getIbanAccount).distinct().toList());
+            byShard.forEach((shard, transactions) -> shards.onShard(shard, () -> {
+                insertAll(transactions, concurrentOriginals, failed);
+                return null;
+            }));
+        } catch (RuntimeException e) {
+            // Items of the shards not written do not count against the velocity limits
+            created.stream().filter(transaction -> transaction.getId() == 0)
+                    .forEach(transaction -> velocityChecker.release(transaction.getIbanAccount(), transaction.getAmount()));
+            throw e;
+        }
+        List<Transaction> inserted = new ArrayList<>();
+        for (int i = 0; i < created.size(); i++) {
+            Transaction transaction = created.get(i);
+            BatchItemResult item = createdItems.get(i);
+            Transaction original = concurrentOriginals.get(transaction);
+            if (original != null || failed.containsKey(transaction)) {
+                velocityChecker.release(transaction.getIbanAccount(), transaction.getAmount());
+            }
+            if (original != null) {
+                duplicateOf.put(item, original);
+            } else if (failed.containsKey(transaction)) {
+                item.setStatus(BatchItemResult.REJECTED);
+                item.setCode("1064");
+                item.setMessage(failed.get(transaction));
+                result.setRejected(result.getRejected() + 1);
+            } else {
+                item.setStatus(BatchItemResult.CREATED);
+                item.setId(transaction.getId());
+                inserted.add(transaction);
+            }
+        }
+        inserted.forEach(recentReferences::put);
+        columnStore.added(inserted);
+        duplicateOf.forEach((item, original) -> {
+            // An earlier item of the batch may itself have turned out to repeat a stored reference
+            Transaction resolved = concurrentOriginals.getOrDefault(original, original);
+            if (failed.containsKey(resolved)) {
+                item.setStatus(BatchItemResult.REJECTED);
+                item.setCode("1064");
+                item.setMessage(failed.get(resolved));
+                result.setRejected(result.getRejected() + 1);
+                return;
+            }
+            item.setStatus(BatchItemResult.DUPLICATE);
+            item.setId(resolved.getId());
+            result.setDuplicates(result.getDuplicates() + 1);
+        });
+        result.setCreated(inserted.size());
+        return result;
+    }
+
+    /**
+     * Inserts new batch items of the current shard in JDBC batches, committed
+     * together with their account summaries. A reference stored by a
+     * concurrent post since it was looked up makes the unique index reject
+     * the whole group: its items are then inserted again one by one, each in
+     * its own transaction, so only the items repeating a stored reference are
+     * left out, recorded as duplicates of the stored transaction.
+     *
+     * @param transactions the items to insert, of the current shard
+     * @param concurrentOriginals receives the items whose reference was
+     * already stored, with the stored transaction
+     * @param failed receives the items that could not be stored, with the
+     * reason
+     */
+    private void insertAll(List<Transaction> transactions, Map<Transaction, Transaction> concurrentOriginals,
+            Map<Transaction, String> failed) {
+        try {
+            insert(transactions);
+            return;
+        } catch (DataIntegrityViolationException groupError) {
+            if (transactions.size() == 1) {
+                resolveDuplicate(transactions.get(0), groupError, concurrentOriginals, failed);
+                return;
+            }
+            logger.warn("Batch of {} transactions failed, retrying one by one: {}", transactions.size(), groupError.getMessage());
+        }
+        for (Transaction transaction : transactions) {
+            try {
+                insert(List.of(transaction));
+            } catch (DataIntegrityViolationException e) {
+                resolveDuplicate(transaction, e, concurrentOriginals, failed);
+            }
+        }
+    }
+
+    /**
+     * Records a batch item rejected by the database as a duplicate of the
+     * transaction stored with its reference, or as failed when there is none.
+     */
+    private void resolveDuplicate(Transaction transaction, DataIntegrityViolationException e,
+            Map<Transaction, Transaction> concurrentOriginals, Map<Transaction, String> failed) {
+        Transaction original = findByReference(transaction.getIbanAccount(), transaction.getReference());
+        if (original != null) {
+            recentReferences.put(original);
+            concurrentOriginals.put(transaction, original);
+        } else {
+            failed.put(transaction, "Transaction could not be stored: " + NestedExceptionUtils.getMostSpecificCause(e).getMessage());
+        }
+    }
+
+    /**
+     * Inserts transactions of the current shard and adds them to their
+     * account summaries, in one database transaction.
+     *
+     * @param transactions the transactions to insert
+     */
+    private void insert(List<Transaction> transactions) {
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                transactionRepository.saveAll(transactions);
+                // Flushed through the repository, so a refused reference surfaces as a DataIntegrityViolationException
+                transactionRepository.flush();
+                // Detach the inserted rows first, so each summary update does not flush (dirty check) them again
+                entityManager.clear();
+                accountSummaries.added(transactions);
+            });
+        } catch (RuntimeException e) {
+            // Ids assigned by the rolled back attempt are discarded, the transactions are inserted again
+            transactions.forEach(transaction -> transaction.setId(0));
+            throw e;
+        }
+    }
+
+    /**
+     * Checks the business rules a transaction must satisfy to be stored.
+     *
+     * @param input the transaction to check
+     * @throws BusinessRuleException if the transaction is missing, or its IBAN
+     * account (1055) or status (1056) is null or blank
+     */
+    public void validate(Transaction input) throws BusinessRuleException {
+        if (input == null) {
+            // Throw a BusinessRuleException with a specific error code and message
+            throw new BusinessRuleException(
+                    "1058", // Custom error code
+                    "Validation error, transaction is empty", // Error message
+                    HttpStatus.PRECONDITION_FAILED // HTTP status indicating the failure
+            );
+        }
+
+        if (input.getIbanAccount() == null || input.getIbanAccount().isBlank()) {
             // Throw a BusinessRuleException with a specific error code and message
             throw new BusinessRuleException(
                     "1055", // Custom error code
@@ -35,7 +788,7 @@ public class BusinessTransaction {
             );
         }
         
-        if (input.getStatus().isBlank() || input.getStatus() == null) {
+        if (input.getStatus() == null || input.getStatus().isBlank()) {
             // Throw a BusinessRuleException with a specific error code and message
             throw new BusinessRuleException(
                     "1056", // Custom error code
@@ -43,8 +796,238 @@ public class BusinessTransaction {
                     HttpStatus.PRECONDITION_FAILED // HTTP status indicating the failure
             );
         }
-        
-        return transactionRepository.save(input);
+    }
+
+    /**
+     * Finds the transaction stored with the given reference in the shard of
+     * an IBAN account. It is read on the primary, in a read-write
+     * transaction: the original of a retry may have just been committed and
+     * not have reached a read replica yet.
+     *
+     * @param ibanAccount the IBAN account of the transaction
+     * @param reference the reference, may be null
+     * @return the transaction, or null if the reference is blank or unknown
+     */
+    private Transaction findByReference(String ibanAccount, String reference) {
+        if (reference == null || reference.isBlank()) {
+            return null;
+        }
+        return shards.onAccount(ibanAccount,
+                () -> transactionTemplate.execute(status -> transactionRepository.findByReference(reference)));
+    }
+
+    /**
+     * Runs a write in one database transaction on the shard of its account:
+     * in the posting lane of the account when the lanes are enabled, on the
+     * calling thread otherwise.
+     *
+     * @param ibanAccount the account the write belongs to
+     * @param work the write, which may run again after a rollback
+     * @return the result of the write, once committed
+     */
+    private <T> T write(String ibanAccount, Supplier<T> work) {
+        if (postingLanes.isEnabled()) {
+            return postingLanes.execute(ibanAccount, work);
+        }
+        return shards.onAccount(ibanAccount, () -> transactionTemplate.execute(status -> work.get()));
+    }
+
+    /**
+     * Retrieves every stored transaction. With sharding, every shard is read
+     * in parallel and the results are merged in id order.
+     *
+     * @return the transactions
+     */
+    public List<Transaction> getAll() {
+        List<List<Transaction>> parts = shards.scatter(shard -> transactionRepository.findAll());
+        return TransactionShards.merge(parts, ID_ORDER, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Retrieves a transaction by id, from the shard holding it.
+     *
+     * @param id the id of the transaction
+     * @return the transaction, or empty if it does not exist
+     */
+    public Optional<Transaction> get(long id) {
+        int shard = shards.locate(id);
+        if (shard < 0) {
+            return Optional.empty();
+        }
+        return shards.onShard(shard, () -> transactionRepository.findById(id));
+    }
+
+    /**
+     * Fills in the defaults of a validated transaction before it is stored.
+     *
+     * @param input the transaction to store
+     */
+    private void prepare(Transaction input) {
+        normalizeReference(input);
+        // Transactions are listed by date, so an undated transaction is dated when it is received
+        if (input.getDate() == null) {
+            input.setDate(LocalDateTime.now());
+        }
+    }
+
+    /**
+     * Stores a blank reference as null: a blank reference is no idempotency
+     * key, and only null references are exempt from the unique index.
+     *
+     * @param input the transaction to store
+     */
+    private static void normalizeReference(Transaction input) {
+        if (input.getReference() != null && input.getReference().isBlank()) {
+            input.setReference(null);
+        }
+    }
+
+    /**
+     * Retrieves one page of the history of an IBAN account using keyset
+     * (cursor) pagination on {@code (date, id)}. The page is a single range
+     * scan of the account index, so it costs the same whatever the size of
+     * the history and the position of the page. Ranges reaching back before
+     * the archival date also read the archive and merge both tiers. Only the
+     * shard of the account is read.
+     *
+     * @param ibanAccount the IBAN account
+     * @param from the lower date bound, inclusive, or null for no bound
+     * @param to the upper date bound, inclusive, or null for no bound
+     * @param afterDate the date of the last transaction of the previous page,
+     * or null for the first page
+     * @param afterId the id of the last transaction of the previous page
+     * @param size the maximum number of transactions in the page
+     * @return the transactions of the page, in ascending (date, id) order
+     */
+    public List<Transaction> getHistory(String ibanAccount, LocalDateTime from, LocalDateTime to,
+            LocalDateTime afterDate, long afterId, int size) {
+        LocalDateTime lowerBound = from != null ? from : MIN_DATE;
+        LocalDateTime upperBound = to != null ? to : MAX_DATE;
+        // The first page starts at the lower bound itself, later pages strictly after the cursor
+        List<Transaction> stored = shards.onAccount(ibanAccount, () -> {
+            if (afterDate == null || afterDate.isBefore(lowerBound)) {
+                return transactionRepository.findPageByIbanAccount(ibanAccount, lowerBound, -1, upperBound, PageRequest.of(0, size));
+            }
+            return transactionRepository.findPageByIbanAccount(ibanAccount, afterDate, afterId, upperBound, PageRequest.of(0, size));
+        });
+        if (!archive.reaches(lowerBound)) {
+            return stored;
+        }
+        return TransactionArchive.merge(stored, archive.read(ibanAccount, lowerBound, upperBound, afterDate, afterId, size), size);
+    }
+
+    /**
+     * Retrieves every transaction of an IBAN account, including the archived
+     * ones, in ascending (date, id) order when the archive is involved.
+     *
+     * @param ibanAccount the IBAN account
+     * @return the transactions of the account
+     */
+    public List<Transaction> getByIbanAccount(String ibanAccount) {
+        List<Transaction> stored = shards.onAccount(ibanAccount, () -> transactionRepository.findByIbanAccount(ibanAccount));
+        if (!archive.reaches(MIN_DATE)) {
+            return stored;
+        }
+        // Archived transactions are read as the merge consumes them, straight into the result
+        List<Transaction> sorted = new ArrayList<>(stored);
+        sorted.sort(HISTORY_ORDER);
+        try (TransactionArchive.Cursor archived = archive.open(ibanAccount, MIN_DATE, MAX_DATE, null, 0)) {
+            return TransactionArchive.merge(sorted, archived, Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Writes the history of an IBAN account to the given stream as newline
+     * delimited JSON, one transaction per line, in ascending (date, id) order.
+     * Rows are read through a forward-only cursor with a bounded fetch size
+     * and each transaction is detached once written, so memory use stays
+     * constant whatever the size of the history. Archived transactions of
+     * the range are interleaved in order, read from an archive cursor that
+     * decompresses one block per segment at a time. Only the shard of the
+     * account is read.
+     *
+     * @param ibanAccount the IBAN account
+     * @param from the lower date bound, inclusive, or null for no bound
+     * @param to the upper date bound, inclusive, or null for no bound
+     * @param out the stream the transactions are written to
+     * @return the number of transactions written
+     * @throws IOException if writing to the stream or reading the archive
+     * fails
+     */
+    public long writeHistoryAsNdjson(String ibanAccount, LocalDateTime from, LocalDateTime to, OutputStream out) throws IOException {
+        LocalDateTime lowerBound = from != null ? from : MIN_DATE;
+        LocalDateTime upperBound = to != null ? to : MAX_DATE;
+        // Archived transactions are older than most stored ones, they are read and written as the cursor goes past them
+        try (TransactionArchive.Cursor archived = archive.open(ibanAccount, lowerBound, upperBound, null, 0)) {
+            long count = shards.onAccount(ibanAccount, () -> readOnly.execute(status -> {
+                try {
+                    return writeHistoryAsNdjson(ibanAccount, lowerBound, upperBound, archived, out);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }));
+            out.flush();
+            return count;
+        } catch (UncheckedIOException e) {
+            // The client went away, the output or the archive failed, the cursors are already closed
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Writes the stored transactions of the range interleaved with the
+     * archived ones. Runs in the read-only transaction holding the cursor.
+     *
+     * @return the number of transactions written
+     */
+    private long writeHistoryAsNdjson(String ibanAccount, LocalDateTime lowerBound, LocalDateTime upperBound,
+            Iterator<Transaction> archived, OutputStream out) throws IOException {
+        Transaction nextArchived = archived.hasNext() ? archived.next() : null;
+        long count = 0;
+        try (Stream<Transaction> transactions = transactionRepository.streamByIbanAccount(ibanAccount, lowerBound, upperBound)) {
+            for (Iterator<Transaction> it = transactions.iterator(); it.hasNext();) {
+                Transaction transaction = it.next();
+                while (nextArchived != null && sortsBefore(nextArchived, transaction)) {
+                    count = writeNdjson(nextArchived, out, count);
+                    nextArchived = archived.hasNext() ? archived.next() : null;
+                }
+                // The archived copy of a transaction still stored is skipped
+                if (nextArchived != null && nextArchived.getId() == transaction.getId()) {
+                    nextArchived = archived.hasNext() ? archived.next() : null;
+                }
+                count = writeNdjson(transaction, out, count);
+                // Drop the written transaction from the persistence context to keep memory flat
+                entityManager.detach(transaction);
+            }
+        }
+        while (nextArchived != null) {
+            count = writeNdjson(nextArchived, out, count);
+            nextArchived = archived.hasNext() ? archived.next() : null;
+        }
+        return count;
+    }
+
+    /**
+     * Writes one transaction as a JSON line, flushing every fetch size lines.
+     *
+     * @return the number of transactions written so far
+     */
+    private long writeNdjson(Transaction transaction, OutputStream out, long count) throws IOException {
+        out.write(objectMapper.writeValueAsBytes(transaction));
+        out.write('\n');
+        if (++count % TransactionRepository.STREAM_FETCH_SIZE == 0) {
+            out.flush();
+        }
+        return count;
+    }
+
+    /**
+     * Whether a transaction comes strictly before another in (date, id)
+     * order.
+     */
+    private static boolean sortsBefore(Transaction a, Transaction b) {
+        int cmp = a.getDate().compareTo(b.getDate());
+        return cmp < 0 || cmp == 0 && a.getId() < b.getId();
     }
 
 }
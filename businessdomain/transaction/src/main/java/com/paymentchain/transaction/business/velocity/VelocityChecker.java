@@ -0,0 +1,252 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.business.velocity;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.paymentchain.transaction.exception.BusinessRuleException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * In-memory velocity limits per IBAN account: a posted transaction is
+ * rejected when its account already received more than
+ * {@code transaction.velocity.max-count} transactions, or more than
+ * {@code transaction.velocity.max-amount} in absolute amount, within the
+ * last {@code transaction.velocity.window}. Bursts are stopped before they
+ * reach the database, and the check costs a map lookup and a few
+ * compare-and-set operations.
+ * <p>
+ * Each account has a sliding window split into
+ * {@code transaction.velocity.buckets} time buckets, each an immutable value
+ * replaced by compare-and-set, so posts of different accounts never contend
+ * and posts of the same account never block. A post is first recorded, then
+ * checked against the window total including it, and taken back if it breaks
+ * a limit: concurrent posts of one account can never exceed the limits
+ * together. A recorded post that ends up not stored (the write fails, or
+ * the transaction turns out to be a duplicate) is taken back with
+ * {@link #release}, so it does not count against its account.
+ * <p>
+ * Windows of accounts idle for a whole window hold nothing and are evicted;
+ * at most {@code transaction.velocity.max-accounts} windows are kept. The
+ * counters are per instance: with several instances behind a load balancer,
+ * each enforces the limits on the posts it receives.
+ */
+@Component
+public class VelocityChecker {
+
+    /**
+     * Whether posted transactions are checked.
+     */
+    @Value("${transaction.velocity.enabled:false}")
+    private boolean enabled;
+
+    /**
+     * Length of the sliding window.
+     */
+    @Value("${transaction.velocity.window:PT1M}")
+    private Duration window;
+
+    /**
+     * Number of buckets the window is split into; the window slides one
+     * bucket at a time.
+     */
+    @Value("${transaction.velocity.buckets:12}")
+    private int buckets;
+
+    /**
+     * Maximum number of transactions per account within the window, 0 for no
+     * limit.
+     */
+    @Value("${transaction.velocity.max-count:0}")
+    private long maxCount;
+
+    /**
+     * Maximum sum of absolute amounts per account within the window, 0 for
+     * no limit.
+     */
+    @Value("${transaction.velocity.max-amount:0}")
+    private double maxAmount;
+
+    /**
+     * Maximum number of accounts whose window is kept in memory.
+     */
+    @Value("${transaction.velocity.max-accounts:1000000}")
+    private long maxAccounts;
+
+    /**
+     * Registry where the rejections are counted.
+     */
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // Width of a bucket in milliseconds
+    private long bucketMillis;
+
+    // Windows by IBAN account, evicted once idle for a whole window
+    private Cache<String, Window> windows;
+
+    // Transactions rejected by a limit
+    private Counter rejected;
+
+    /**
+     * Creates the window registry.
+     */
+    @PostConstruct
+    void init() {
+        bucketMillis = Math.max(1, window.toMillis() / buckets);
+        windows = Caffeine.newBuilder()
+                .maximumSize(maxAccounts)
+                .expireAfterAccess(window)
+                .build();
+        rejected = meterRegistry.counter("transaction.velocity.rejected");
+    }
+
+    /**
+     * Records a transaction about to be stored, or rejects it if its account
+     * would exceed a limit.
+     *
+     * @param ibanAccount the IBAN account of the transaction
+     * @param amount the amount of the transaction
+     * @throws BusinessRuleException if a limit would be exceeded (1063)
+     */
+    public void check(String ibanAccount, double amount) throws BusinessRuleException {
+        if (!enabled || ibanAccount == null) {
+            return;
+        }
+        double absolute = Math.abs(amount);
+        long epoch = System.currentTimeMillis() / bucketMillis;
+        Window accountWindow = windows.get(ibanAccount, iban -> new Window(buckets));
+        Bucket total = accountWindow.add(epoch, 1, absolute);
+        boolean tooMany = maxCount > 0 && total.count > maxCount;
+        boolean tooMuch = maxAmount > 0 && total.amount > maxAmount;
+        if (tooMany || tooMuch) {
+            accountWindow.add(epoch, -1, -absolute);
+            rejected.increment();
+            throw new BusinessRuleException(
+                    "1063", // Custom error code
+                    "Velocity limit exceeded, account " + ibanAccount + " is limited to "
+                    + (tooMany ? maxCount + " transactions" : maxAmount + " in amount") + " per " + window, // Error message
+                    HttpStatus.TOO_MANY_REQUESTS // HTTP status indicating the failure
+            );
+        }
+    }
+
+    /**
+     * Takes back a transaction recorded by {@link #check} that was not
+     * stored after all. It is removed from the most recent bucket of the
+     * window still counting a transaction, normally the one it was recorded
+     * in.
+     *
+     * @param ibanAccount the IBAN account of the transaction
+     * @param amount the amount of the transaction
+     */
+    public void release(String ibanAccount, double amount) {
+        if (!enabled || ibanAccount == null) {
+            return;
+        }
+        Window accountWindow = windows.getIfPresent(ibanAccount);
+        if (accountWindow != null) {
+            accountWindow.remove(System.currentTimeMillis() / bucketMillis, Math.abs(amount));
+        }
+    }
+
+    /**
+     * Delay after which a rejected account may succeed again: the window
+     * slides one bucket at a time.
+     *
+     * @return the width of a bucket
+     */
+    public Duration getRetryAfter() {
+        return Duration.ofMillis(bucketMillis);
+    }
+
+    /**
+     * Counts of one time bucket. Immutable, replaced as a whole.
+     */
+    private record Bucket(long epoch, long count, double amount) {
+
+    }
+
+    /**
+     * Sliding window of one account: a ring of buckets indexed by epoch.
+     */
+    private static final class Window {
+
+        private final AtomicReferenceArray<Bucket> ring;
+
+        Window(int size) {
+            ring = new AtomicReferenceArray<>(size);
+        }
+
+        /**
+         * Adds to the bucket of an epoch, resetting it if it still holds an
+         * older epoch, and sums the buckets within the window ending at that
+         * epoch.
+         *
+         * @return the window total, this change included
+         */
+        Bucket add(long epoch, long count, double amount) {
+            int slot = (int) Math.floorMod(epoch, (long) ring.length());
+            while (true) {
+                Bucket current = ring.get(slot);
+                if (current != null && current.epoch > epoch) {
+                    // The bucket moved on meanwhile (e.g. a late rollback), the change already left the window
+                    break;
+                }
+                Bucket next = current == null || current.epoch != epoch
+                        ? new Bucket(epoch, Math.max(0, count), Math.max(0, amount))
+                        : new Bucket(epoch, current.count + count, current.amount + amount);
+                if (ring.compareAndSet(slot, current, next)) {
+                    break;
+                }
+            }
+            long totalCount = 0;
+            double totalAmount = 0;
+            for (int i = 0; i < ring.length(); i++) {
+                Bucket bucket = ring.get(i);
+                if (bucket != null && bucket.epoch > epoch - ring.length() && bucket.epoch <= epoch) {
+                    totalCount += bucket.count;
+                    totalAmount += bucket.amount;
+                }
+            }
+            return new Bucket(epoch, totalCount, totalAmount);
+        }
+
+        /**
+         * Removes one transaction from the most recent bucket within the
+         * window ending at an epoch that still counts one. Nothing is
+         * removed if the transaction already left the window.
+         */
+        void remove(long epoch, double amount) {
+            for (long bucketEpoch = epoch; bucketEpoch > epoch - ring.length(); bucketEpoch--) {
+                int slot = (int) Math.floorMod(bucketEpoch, (long) ring.length());
+                while (true) {
+                    Bucket current = ring.get(slot);
+                    if (current == null || current.epoch != bucketEpoch || current.count == 0) {
+                        // Empty or stale bucket, try the previous one
+                        break;
+                    }
+                    Bucket next = new Bucket(bucketEpoch, current.count - 1, Math.max(0, current.amount - amount));
+                    if (ring.compareAndSet(slot, current, next)) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Result of an analytics query over the transactions held in memory.
+ */
+@Data
+@NoArgsConstructor
+public class AnalyticsResult {
+
+    /**
+     * Dimensions the transactions were grouped by, in request order.
+     */
+    private List<String> groupBy = new ArrayList<>();
+
+    /**
+     * Number of transactions held in memory and scanned by the query.
+     */
+    private long scanned;
+
+    /**
+     * Number of transactions that matched the filters.
+     */
+    private long matched;
+
+    /**
+     * Time taken by the query, in milliseconds.
+     */
+    private double tookMillis;
+
+    /**
+     * One entry per non-empty group.
+     */
+    private List<AnalyticsRow> rows = new ArrayList<>();
+}
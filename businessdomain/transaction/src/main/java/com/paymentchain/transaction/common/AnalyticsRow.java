@@ -0,0 +1,58 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.common;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import java.time.LocalDateTime;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * One group of an analytics query: the values of the grouped dimensions and
+ * the aggregates of the transactions in the group. Dimensions that are not
+ * grouped on are left out.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class AnalyticsRow {
+
+    /**
+     * Channel of the group, when grouping by channel.
+     */
+    private String channel;
+
+    /**
+     * Status of the group, when grouping by status.
+     */
+    private String status;
+
+    /**
+     * Start of the hour or day of the group, when grouping by time.
+     */
+    private LocalDateTime period;
+
+    /**
+     * Number of transactions in the group.
+     */
+    private long count;
+
+    /**
+     * Sum of the amounts of the transactions in the group.
+     */
+    private double amount;
+
+    /**
+     * Sum of the fees of the transactions in the group.
+     */
+    private double fee;
+}
@@ -0,0 +1,69 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.common;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Outcome of one item of a batch transaction post: the id of the stored
+ * transaction, or the reason it was rejected.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class BatchItemResult {
+
+    /**
+     * Item accepted and stored.
+     */
+    public static final String CREATED = "CREATED";
+
+    /**
+     * Item rejected by validation, or that the database refused; nothing was
+     * stored.
+     */
+    public static final String REJECTED = "REJECTED";
+
+    /**
+     * Item with the reference of a transaction already stored, or of an
+     * earlier item of the same batch; nothing was stored and {@code id} is the
+     * id of the original transaction.
+     */
+    public static final String DUPLICATE = "DUPLICATE";
+
+    /**
+     * Zero-based position of the item in the request.
+     */
+    private int index;
+
+    /**
+     * {@link #CREATED}, {@link #REJECTED} or {@link #DUPLICATE}.
+     */
+    private String status;
+
+    /**
+     * Id of the stored (or original) transaction, null when rejected.
+     */
+    private Long id;
+
+    /**
+     * Error code of a rejected item, e.g. 1055 or 1056.
+     */
+    private String code;
+
+    /**
+     * Explanation of the error of a rejected item.
+     */
+    private String message;
+}
@@ -0,0 +1,49 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Outcome of a batch transaction post: how many items were received, created
+ * and rejected, and the result of every item in request order.
+ */
+@Data
+@NoArgsConstructor
+public class BatchPostResult {
+
+    /**
+     * Number of items received in the request.
+     */
+    private int received;
+
+    /**
+     * Number of transactions stored.
+     */
+    private int created;
+
+    /**
+     * Number of items rejected by validation.
+     */
+    private int rejected;
+
+    /**
+     * Number of items whose reference was already stored.
+     */
+    private int duplicates;
+
+    /**
+     * One entry per item, in request order.
+     */
+    private List<BatchItemResult> items = new ArrayList<>();
+}
@@ -0,0 +1,113 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.common;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import java.time.LocalDateTime;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Progress of a statement file import, identified by the id returned when
+ * the import was started.
+ */
+@Data
+@NoArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ImportStatus {
+
+    /**
+     * Waiting for the imports started before it to finish.
+     */
+    public static final String QUEUED = "QUEUED";
+
+    /**
+     * Lines are being read and stored.
+     */
+    public static final String RUNNING = "RUNNING";
+
+    /**
+     * Every line was stored, found to be a duplicate or rejected.
+     */
+    public static final String COMPLETED = "COMPLETED";
+
+    /**
+     * Stopped before the end of the file, see {@code message}. The lines
+     * already stored stay stored.
+     */
+    public static final String FAILED = "FAILED";
+
+    /**
+     * Id of the import.
+     */
+    private String id;
+
+    /**
+     * Name of the imported file, relative to the import directory.
+     */
+    private String file;
+
+    /**
+     * {@link #QUEUED}, {@link #RUNNING}, {@link #COMPLETED} or
+     * {@link #FAILED}.
+     */
+    private String status;
+
+    /**
+     * Size of the file in bytes.
+     */
+    private long bytes;
+
+    /**
+     * Number of bytes read and processed so far.
+     */
+    private long bytesProcessed;
+
+    /**
+     * Number of records read so far, header excluded.
+     */
+    private long lines;
+
+    /**
+     * Number of transactions stored.
+     */
+    private long created;
+
+    /**
+     * Number of records whose reference was already stored.
+     */
+    private long duplicates;
+
+    /**
+     * Number of records rejected, listed in the rejects file.
+     */
+    private long rejected;
+
+    /**
+     * Name of the file listing the rejected records, written next to the
+     * imported file when the import ends with rejects.
+     */
+    private String rejectsFile;
+
+    /**
+     * Reason of a failed import.
+     */
+    private String message;
+
+    /**
+     * When the import started reading the file.
+     */
+    private LocalDateTime startedAt;
+
+    /**
+     * When the import ended.
+     */
+    private LocalDateTime finishedAt;
+}
@@ -0,0 +1,61 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.common;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * State of a transaction accepted by the asynchronous ingestion queue,
+ * identified by the tracking id returned when it was accepted.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class IngestionStatus {
+
+    /**
+     * Accepted and waiting in the queue to be written.
+     */
+    public static final String PENDING = "PENDING";
+
+    /**
+     * Written to the database.
+     */
+    public static final String STORED = "STORED";
+
+    /**
+     * Could not be written to the database.
+     */
+    public static final String FAILED = "FAILED";
+
+    /**
+     * Tracking id returned when the transaction was accepted.
+     */
+    private String trackingId;
+
+    /**
+     * {@link #PENDING}, {@link #STORED} or {@link #FAILED}.
+     */
+    private String status;
+
+    /**
+     * Id of the stored transaction, null until it is stored.
+     */
+    private Long id;
+
+    /**
+     * Reason of a failure, null otherwise.
+     */
+    private String message;
+}
@@ -0,0 +1,86 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.common;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import java.time.LocalDateTime;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Progress of a shard rebalancing run, which moves the transactions of the
+ * accounts placed on another shard since the shard list changed.
+ */
+@Data
+@NoArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class RebalanceStatus {
+
+    /**
+     * Accounts are being checked and moved.
+     */
+    public static final String RUNNING = "RUNNING";
+
+    /**
+     * Every shard was checked and every misplaced account moved.
+     */
+    public static final String COMPLETED = "COMPLETED";
+
+    /**
+     * Stopped before the end, see {@code message}. The accounts already
+     * moved stay moved; running it again resumes the work.
+     */
+    public static final String FAILED = "FAILED";
+
+    /**
+     * {@link #RUNNING}, {@link #COMPLETED} or {@link #FAILED}.
+     */
+    private String status;
+
+    /**
+     * Number of shards.
+     */
+    private int shards;
+
+    /**
+     * Number of shards fully checked.
+     */
+    private int shardsChecked;
+
+    /**
+     * Number of accounts checked.
+     */
+    private long accountsChecked;
+
+    /**
+     * Number of accounts moved to another shard.
+     */
+    private long accountsMoved;
+
+    /**
+     * Number of transactions moved to another shard.
+     */
+    private long transactionsMoved;
+
+    /**
+     * Reason of a failed run.
+     */
+    private String message;
+
+    /**
+     * When the run started.
+     */
+    private LocalDateTime startedAt;
+
+    /**
+     * When the run ended.
+     */
+    private LocalDateTime finishedAt;
+}
@@ -0,0 +1,61 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.common;
+
+import java.time.LocalDateTime;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.format.annotation.DateTimeFormat;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Filters of a transaction search. Every filter is optional; the ones given
+ * are combined with AND.
+ */
+@Data
+@NoArgsConstructor
+public class TransactionSearchCriteria {
+
+    /**
+     * Only transactions of this IBAN account.
+     */
+    private String ibanAccount;
+
+    /**
+     * Only transactions with this status.
+     */
+    private String status;
+
+    /**
+     * Only transactions made through this channel.
+     */
+    private String channel;
+
+    /**
+     * Lower bound of the amount, inclusive.
+     */
+    private Double minAmount;
+
+    /**
+     * Upper bound of the amount, inclusive.
+     */
+    private Double maxAmount;
+
+    /**
+     * Lower bound of the date, inclusive.
+     */
+    @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME)
+    private LocalDateTime from;
+
+    /**
+     * Upper bound of the date, inclusive.
+     */
+    @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME)
+    private LocalDateTime to;
+}
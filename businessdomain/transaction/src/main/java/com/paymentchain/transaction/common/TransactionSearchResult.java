@@ -0,0 +1,44 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.common;
+
+import com.paymentchain.transaction.entities.Transaction;
+import java.util.ArrayList;
+import java.util.List;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.NoArgsConstructor;
+import org.springframework.hateoas.RepresentationModel;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * One page of a transaction search, with the number of matching
+ * transactions and the navigation links.
+ */
+@Data
+@NoArgsConstructor
+@EqualsAndHashCode(callSuper = true)
+public class TransactionSearchResult extends RepresentationModel<TransactionSearchResult> {
+
+    /**
+     * Number of transactions matching the filters. Exact when
+     * {@link #totalExact} is true, otherwise an estimate.
+     */
+    private long total;
+
+    /**
+     * Whether {@link #total} was counted exactly.
+     */
+    private boolean totalExact;
+
+    /**
+     * Transactions of the page, ordered by date and id.
+     */
+    private List<Transaction> transactions = new ArrayList<>();
+}
@@ -0,0 +1,118 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.config;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Data source sending the connections of read-only transactions to a read
+ * replica and every other connection to the primary. It must be wrapped in a
+ * {@link org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy}:
+ * the read-only flag of a transaction is only known once it has begun, so the
+ * connection must not be fetched before its first statement.
+ * <p>
+ * When the replica cannot hand out a connection, the read falls back to the
+ * primary and the replica is skipped for {@code retryAfter}, so an outage
+ * costs one failed attempt instead of one per read.
+ * <p>
+ * Connections handed out are timed per target
+ * ({@code transaction.datasource.connections}, tagged {@code target}) and
+ * fallbacks are counted ({@code transaction.datasource.replica.fallbacks}).
+ */
+public final class ReadReplicaRoutingDataSource extends AbstractRoutingDataSource {
+
+    // Logger for logging replica outages
+    private static final Logger logger = LoggerFactory.getLogger(ReadReplicaRoutingDataSource.class);
+
+    /**
+     * Lookup keys of the two data sources.
+     */
+    public enum Target {
+        PRIMARY, REPLICA
+    }
+
+    // Time the replica is skipped after a failed connection
+    private final Duration retryAfter;
+
+    // Time to wait for a connection, per target
+    private final Map<Target, Timer> acquisitions = new EnumMap<>(Target.class);
+
+    // Reads served by the primary because the replica failed
+    private final Counter fallbacks;
+
+    // Until when the replica is skipped, in epoch milliseconds
+    private volatile long replicaDownUntil;
+
+    /**
+     * Creates the routing data source.
+     *
+     * @param primary the data source of writes and read-write transactions
+     * @param replica the data source of read-only transactions
+     * @param retryAfter the time the replica is skipped after a failure
+     * @param meterRegistry the registry where the metrics are published
+     */
+    public ReadReplicaRoutingDataSource(DataSource primary, DataSource replica, Duration retryAfter,
+            MeterRegistry meterRegistry) {
+        this.retryAfter = retryAfter;
+        setTargetDataSources(Map.of(Target.PRIMARY, primary, Target.REPLICA, replica));
+        setDefaultTargetDataSource(primary);
+        setLenientFallback(false);
+        afterPropertiesSet();
+        for (Target target : Target.values()) {
+            acquisitions.put(target, Timer.builder("transaction.datasource.connections")
+                    .tag("target", target.name().toLowerCase())
+                    .register(meterRegistry));
+        }
+        fallbacks = meterRegistry.counter("transaction.datasource.replica.fallbacks");
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        boolean readOnly = TransactionSynchronizationManager.isCurrentTransactionReadOnly();
+        return readOnly && System.currentTimeMillis() >= replicaDownUntil ? Target.REPLICA : Target.PRIMARY;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (determineCurrentLookupKey() == Target.REPLICA) {
+            try {
+                return acquire(Target.REPLICA);
+            } catch (SQLException e) {
+                replicaDownUntil = System.currentTimeMillis() + retryAfter.toMillis();
+                fallbacks.increment();
+                logger.warn("Read replica unavailable, reading from the primary for {}: {}", retryAfter, e.getMessage());
+            }
+        }
+        return acquire(Target.PRIMARY);
+    }
+
+    /**
+     * Fetches a connection from a target, timing the wait.
+     */
+    private Connection acquire(Target target) throws SQLException {
+        long start = System.nanoTime();
+        Connection connection = getResolvedDataSources().get(target).getConnection();
+        acquisitions.get(target).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return connection;
+    }
+}
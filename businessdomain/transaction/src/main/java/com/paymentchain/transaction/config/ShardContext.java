@@ -0,0 +1,59 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.config;
+
+import java.util.function.Supplier;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Shard the database work of the current thread goes to, read by
+ * {@link ShardRoutingDataSource} when a connection is fetched. It must be set
+ * around whole database transactions: a transaction keeps the connection of
+ * the shard it started on until it ends. Work done outside any shard goes to
+ * shard 0.
+ */
+public final class ShardContext {
+
+    // Shard of the current thread, null outside any shard
+    private static final ThreadLocal<Integer> CURRENT = new ThreadLocal<>();
+
+    private ShardContext() {
+    }
+
+    /**
+     * Returns the shard of the current thread.
+     *
+     * @return the shard index, or null outside any shard
+     */
+    public static Integer current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Runs work on a shard, then restores the shard the thread was on.
+     *
+     * @param <T> the result type
+     * @param shard the shard index
+     * @param work the work, which opens its own database transactions
+     * @return the result of the work
+     */
+    public static <T> T call(int shard, Supplier<T> work) {
+        Integer previous = CURRENT.get();
+        CURRENT.set(shard);
+        try {
+            return work.get();
+        } finally {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.sql.DataSource;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Data source handing out connections of the shard set in the
+ * {@link ShardContext} of the current thread, shard 0 when none is set. It
+ * must be wrapped in a
+ * {@link org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy},
+ * so the connection is fetched at the first statement and not when a
+ * transaction or an entity manager asks for it ahead of time.
+ * <p>
+ * Connections handed out are timed per shard
+ * ({@code transaction.sharding.connections}, tagged {@code shard}).
+ */
+public final class ShardRoutingDataSource extends AbstractRoutingDataSource {
+
+    // Time to wait for a connection, per shard
+    private final Timer[] acquisitions;
+
+    /**
+     * Creates the routing data source.
+     *
+     * @param shards the data source of each shard, in shard order
+     * @param meterRegistry the registry where the metrics are published
+     */
+    public ShardRoutingDataSource(List<DataSource> shards, MeterRegistry meterRegistry) {
+        Map<Object, Object> targets = new HashMap<>();
+        acquisitions = new Timer[shards.size()];
+        for (int shard = 0; shard < shards.size(); shard++) {
+            targets.put(shard, shards.get(shard));
+            acquisitions[shard] = Timer.builder("transaction.sharding.connections")
+                    .tag("shard", String.valueOf(shard))
+                    .register(meterRegistry);
+        }
+        setTargetDataSources(targets);
+        setDefaultTargetDataSource(shards.get(0));
+        setLenientFallback(false);
+        afterPropertiesSet();
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        Integer shard = ShardContext.current();
+        return shard != null ? shard : 0;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        int shard = (Integer) determineCurrentLookupKey();
+        long start = System.nanoTime();
+        Connection connection = determineTargetDataSource().getConnection();
+        acquisitions[shard].record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return connection;
+    }
+
+    /**
+     * Closes the pool of every shard.
+     */
+    public void close() {
+        for (DataSource shard : getResolvedDataSources().values()) {
+            if (shard instanceof HikariDataSource pool) {
+                pool.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.config;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import org.hibernate.MappingException;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.enhanced.Optimizer;
+import org.hibernate.id.enhanced.PooledOptimizer;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
+import org.hibernate.service.ServiceRegistry;
+import org.hibernate.type.Type;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Sequence generator allocating ids {@value #ALLOCATION_SIZE} at a time, like
+ * the default JPA sequence generator, but keeping the allocated block of each
+ * shard apart: an id is always taken from a block read from the sequence of
+ * the shard set in the {@link ShardContext}, i.e. the shard the entity is
+ * written to. Each shard sequence starts at the id range of its shard, so
+ * ids are unique across shards and tell which shard created them.
+ * <p>
+ * Without sharding there is a single shard and it behaves as the default
+ * generator.
+ */
+public class ShardedSequenceGenerator extends SequenceStyleGenerator {
+
+    /**
+     * Number of ids allocated per sequence call, the increment of the
+     * sequence.
+     */
+    public static final int ALLOCATION_SIZE = 50;
+
+    private static final long serialVersionUID = 1L;
+
+    // Allocated blocks by shard, shard 0 (and no shard) using the optimizer of the generator
+    private final transient Map<Integer, Optimizer> optimizers = new ConcurrentHashMap<>();
+
+    @Override
+    public void configure(Type type, Properties parameters, ServiceRegistry serviceRegistry) throws MappingException {
+        parameters.putIfAbsent(INCREMENT_PARAM, String.valueOf(ALLOCATION_SIZE));
+        super.configure(type, parameters, serviceRegistry);
+    }
+
+    @Override
+    public Object generate(SharedSessionContractImplementor session, Object object) {
+        Integer shard = ShardContext.current();
+        Optimizer optimizer = shard == null || shard == 0 ? getOptimizer() : optimizers.computeIfAbsent(shard, this::newOptimizer);
+        return optimizer.generate(getDatabaseStructure().buildCallback(session));
+    }
+
+    /**
+     * Creates the optimizer of a shard, configured as the one of the
+     * generator.
+     */
+    private Optimizer newOptimizer(int shard) {
+        if (!(getOptimizer() instanceof PooledOptimizer)) {
+            // Without pooling every id is read from the sequence of the current shard
+            return getOptimizer();
+        }
+        PooledOptimizer optimizer = new PooledOptimizer(getIdentifierType().getReturnedClass(), getOptimizer().getIncrementSize());
+        optimizer.injectInitialValue(getDatabaseStructure().getInitialValue());
+        return optimizer;
+    }
+}
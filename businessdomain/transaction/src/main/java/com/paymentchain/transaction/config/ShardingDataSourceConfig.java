@@ -0,0 +1,139 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.config;
+
+import com.paymentchain.transaction.business.shard.TransactionShards;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.flyway.FlywayMigrationStrategy;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.jdbc.DataSourceBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.env.Environment;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Spreads the transaction store over the databases listed in
+ * {@code transaction.sharding.urls}, placed by {@link TransactionShards}.
+ * Each shard has its own pool, configured by the usual
+ * {@code spring.datasource.*} credentials and Hikari properties, and every
+ * database transaction runs on the shard set in the {@link ShardContext} when
+ * it starts.
+ * <p>
+ * At startup the Flyway migrations run on every shard, and the id sequence of
+ * each shard is moved to the start of its id range. All shards must run the
+ * same database product. Sharding cannot be combined with the read replica.
+ */
+@Configuration
+@ConditionalOnProperty(name = "transaction.sharding.urls")
+public class ShardingDataSourceConfig {
+
+    // Logger for logging the id range of each shard
+    private static final Logger logger = LoggerFactory.getLogger(ShardingDataSourceConfig.class);
+
+    /**
+     * Routing data source over one pool per shard, closed with the context.
+     *
+     * @param urls the JDBC URLs of the shards, in shard order
+     * @param replicaUrl the URL of the read replica, which must not be set
+     * @param properties the {@code spring.datasource} properties
+     * @param environment the environment the Hikari properties are bound from
+     * @param meterRegistry the registry where the routing metrics are
+     * published
+     * @return the routing data source
+     */
+    @Bean
+    public ShardRoutingDataSource shardRoutingDataSource(@Value("${transaction.sharding.urls}") List<String> urls,
+            @Value("${transaction.datasource.replica.url:}") String replicaUrl, DataSourceProperties properties,
+            Environment environment, MeterRegistry meterRegistry) {
+        if (!replicaUrl.isBlank()) {
+            throw new IllegalStateException("transaction.sharding.urls and transaction.datasource.replica.url cannot be combined");
+        }
+        List<DataSource> shards = new ArrayList<>(urls.size());
+        for (String url : urls) {
+            HikariDataSource dataSource = DataSourceBuilder.create().type(HikariDataSource.class)
+                    .url(url.trim()).username(properties.determineUsername()).password(properties.determinePassword())
+                    .build();
+            Binder.get(environment).bind("spring.datasource.hikari", Bindable.ofInstance(dataSource));
+            dataSource.setPoolName("transaction-shard-" + shards.size());
+            shards.add(dataSource);
+        }
+        return new ShardRoutingDataSource(shards, meterRegistry);
+    }
+
+    /**
+     * Data source used by JPA, JDBC and Flyway: fetches its connection at the
+     * first statement, from the pool of the current shard.
+     *
+     * @param shards the routing data source
+     * @return the data source
+     */
+    @Bean
+    @Primary
+    public DataSource dataSource(@Qualifier("shardRoutingDataSource") DataSource shards) {
+        return new LazyConnectionDataSourceProxy(shards);
+    }
+
+    /**
+     * Migrates every shard, then makes sure the id sequence of each one
+     * allocates within its own range.
+     *
+     * @param urls the JDBC URLs of the shards, in shard order
+     * @return the migration strategy
+     */
+    @Bean
+    public FlywayMigrationStrategy shardedMigrationStrategy(@Value("${transaction.sharding.urls}") List<String> urls) {
+        return flyway -> {
+            JdbcTemplate jdbcTemplate = new JdbcTemplate(flyway.getConfiguration().getDataSource());
+            for (int shard = 0; shard < urls.size(); shard++) {
+                long start = shard * TransactionShards.ID_RANGE;
+                ShardContext.call(shard, () -> {
+                    flyway.migrate();
+                    alignSequence(jdbcTemplate, start);
+                    return null;
+                });
+            }
+        };
+    }
+
+    /**
+     * Restarts the id sequence of the current shard at the start of its
+     * range, unless it already got there. The position of the sequence is
+     * read without advancing it, so startups do not consume a block of ids.
+     */
+    private static void alignSequence(JdbcTemplate jdbcTemplate, long start) {
+        String product = jdbcTemplate.execute((Connection connection) -> connection.getMetaData().getDatabaseProductName());
+        // The last value handed out or the value it restarts with (PostgreSQL), the next value (H2)
+        Long current = jdbcTemplate.queryForObject("PostgreSQL".equalsIgnoreCase(product)
+                ? "SELECT last_value FROM transaction_seq"
+                : "SELECT BASE_VALUE FROM INFORMATION_SCHEMA.SEQUENCES"
+                + " WHERE SEQUENCE_SCHEMA = SCHEMA() AND SEQUENCE_NAME = 'TRANSACTION_SEQ'", Long.class);
+        if (current != null && current <= start) {
+            // A sequence value is the top of a block of ids, the first block allocated is [start + 1, start + 50]
+            long restart = start + ShardedSequenceGenerator.ALLOCATION_SIZE;
+            jdbcTemplate.execute("ALTER SEQUENCE transaction_seq RESTART WITH " + restart);
+            logger.info("Moved the transaction id sequence to {}", restart);
+        }
+    }
+}
@@ -4,7 +4,20 @@
  */
 package com.paymentchain.transaction.controller;
 
+import com.paymentchain.transaction.business.export.TransactionExporter;
+import com.paymentchain.transaction.business.ingestion.TransactionIngestionQueue;
+import com.paymentchain.transaction.business.shard.ShardRebalancer;
+import com.paymentchain.transaction.business.statement.StatementImporter;
 import com.paymentchain.transaction.business.transaction.BusinessTransaction;
+import com.paymentchain.transaction.business.velocity.VelocityChecker;
+import com.paymentchain.transaction.common.AnalyticsResult;
+import com.paymentchain.transaction.common.BatchPostResult;
+import com.paymentchain.transaction.common.ImportStatus;
+import com.paymentchain.transaction.common.IngestionStatus;
+import com.paymentchain.transaction.common.RebalanceStatus;
+import com.paymentchain.transaction.common.TransactionSearchCriteria;
+import com.paymentchain.transaction.common.TransactionSearchResult;
+import com.paymentchain.transaction.entities.AccountSummary;
 import com.paymentchain.transaction.entities.Transaction;
 import com.paymentchain.transaction.exception.BusinessRuleException;
 import org.springframework.web.bind.annotation.RestController;
@@ -24,6 +37,19 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.RequestParam;
+import java.time.LocalDateTime;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.hateoas.CollectionModel;
+import org.springframework.hateoas.IanaLinkRelations;
+import org.springframework.hateoas.Link;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+
+import static org.springframework.hateoas.server.mvc.WebMvcLinkBuilder.linkTo;
+import static org.springframework.hateoas.server.mvc.WebMvcLinkBuilder.methodOn;
 
 /**
  *
@@ -48,9 +74,28 @@ public class TransactionRestController {
     @Autowired
     private BusinessTransaction businessTransaction;
 
+    // Queue absorbing posted transactions when asynchronous ingestion is enabled
+    @Autowired
+    private TransactionIngestionQueue ingestionQueue;
+
+    // Per-account velocity limits, whose window tells clients when to retry
+    @Autowired
+    private VelocityChecker velocityChecker;
+
+    // Imports of statement files dropped in the import directory
+    @Autowired
+    private StatementImporter statementImporter;
+
+    // Moves transactions to the shard of their account after shards were added
+    @Autowired
+    private ShardRebalancer shardRebalancer;
+
     // Logger for logging information and errors in the TransactionRestController class
     private static final Logger logger = LoggerFactory.getLogger(TransactionRestController.class);
 
+    // Maximum number of transactions returned in a single history page
+    private static final int MAX_PAGE_SIZE = 500;
+
     /**
      * Retrieves a list of all transactions.
      *
@@ -59,8 +104,8 @@ public class TransactionRestController {
     @GetMapping()  // Maps GET requests to /transaction.
     public ResponseEntity<?> List() {
         try {
-            // Retrieve all transactions from the repository
-            List<Transaction> findAll = transactionRepository.findAll();
+            // Retrieve all transactions, from every shard
+            List<Transaction> findAll = businessTransaction.getAll();
 
             // Check if the list of transactions is empty
             if (findAll.isEmpty()) {
@@ -93,8 +138,8 @@ public class TransactionRestController {
      */
     @GetMapping("/{id}")
     public ResponseEntity<Transaction> get(@PathVariable(name = "id") long id) {
-        // Attempt to find the transaction by ID
-        return transactionRepository.findById(id)
+        // Attempt to find the transaction by ID, in the shard holding it
+        return businessTransaction.get(id)
                 .map(transaction -> {
                     // Return 200 OK if transaction is found
                     return ResponseEntity.ok(transaction);
@@ -106,8 +151,9 @@ public class TransactionRestController {
     }
 
     /**
-     * Retrieves a list of transactions by its iban account. If no transactions
-     * are found, returns a 404 Not Found response.
+     * Retrieves a list of transactions by its iban account, archived ones
+     * included. If no transactions are found, returns a 404 Not Found
+     * response.
      *
      * @param ibanAccount The iban account for which the transactions are to be
      * retrieved.
@@ -118,7 +164,7 @@ public class TransactionRestController {
     public ResponseEntity<?> get(@RequestParam(name = "ibanAccount") String ibanAccount) {
         try {
             // Retrieve the transactions by ibanAccount
-            List<Transaction> transactions = transactionRepository.findByIbanAccount(ibanAccount);
+            List<Transaction> transactions = businessTransaction.getByIbanAccount(ibanAccount);
 
             // Check if the transactions list is not empty
             if (transactions != null && !transactions.isEmpty()) {
@@ -134,6 +180,184 @@ public class TransactionRestController {
         }
     }
 
+    /**
+     * Retrieves one page of the history of an IBAN account, ordered by date
+     * and id, using keyset (cursor) pagination. The response holds a
+     * {@code next} link pointing at the following page as long as the current
+     * page is full, so clients simply follow links until there is none. The
+     * first page and deep pages cost the same whatever the account history
+     * size.
+     *
+     * @param ibanAccount the IBAN account
+     * @param from the lower date bound, inclusive (ISO date-time, optional)
+     * @param to the upper date bound, inclusive (ISO date-time, optional)
+     * @param afterDate the date of the last transaction of the previous page
+     * (omit for the first page)
+     * @param afterId the id of the last transaction of the previous page
+     * @param size the maximum number of transactions per page
+     * @return a 200 OK response with the transactions of the page and the
+     * navigation links
+     */
+    @GetMapping("/customer/transactions/page")  // Maps GET requests to /transaction/customer/transactions/page.
+    public ResponseEntity<CollectionModel<Transaction>> page(@RequestParam(name = "ibanAccount") String ibanAccount,
+            @RequestParam(name = "from", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam(name = "to", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to,
+            @RequestParam(name = "afterDate", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime afterDate,
+            @RequestParam(name = "afterId", defaultValue = "0") long afterId,
+            @RequestParam(name = "size", defaultValue = "50") int size) {
+        // Keep the page size within sane bounds
+        int pageSize = Math.max(1, Math.min(size, MAX_PAGE_SIZE));
+        List<Transaction> transactions = businessTransaction.getHistory(ibanAccount, from, to, afterDate, afterId, pageSize);
+
+        CollectionModel<Transaction> model = CollectionModel.of(transactions,
+                linkTo(methodOn(TransactionRestController.class).page(ibanAccount, from, to, afterDate, afterId, pageSize)).withSelfRel());
+        // A full page may be followed by more transactions, point at the next cursor
+        if (transactions.size() == pageSize) {
+            Transaction last = transactions.get(transactions.size() - 1);
+            model.add(linkTo(methodOn(TransactionRestController.class).page(ibanAccount, from, to, last.getDate(), last.getId(), pageSize))
+                    .withRel(IanaLinkRelations.NEXT));
+        }
+        return ResponseEntity.ok(model);
+    }
+
+    /**
+     * Searches transactions by any combination of IBAN account, status,
+     * channel, amount range ({@code minAmount}, {@code maxAmount}) and date
+     * window ({@code from}, {@code to}), ordered by date and id. Pages are
+     * read with keyset pagination: the response holds a {@code next} link as
+     * long as the page is full. The total is exact for small result sets and
+     * estimated for large ones, as told by {@code totalExact}.
+     *
+     * @param criteria the search filters, all optional
+     * @param afterDate the date of the last transaction of the previous page
+     * (omit for the first page)
+     * @param afterId the id of the last transaction of the previous page
+     * @param size the maximum number of transactions per page
+     * @return a 200 OK response with the page, the total and the navigation
+     * links
+     */
+    @GetMapping("/search")  // Maps GET requests to /transaction/search.
+    public ResponseEntity<TransactionSearchResult> search(TransactionSearchCriteria criteria,
+            @RequestParam(name = "afterDate", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime afterDate,
+            @RequestParam(name = "afterId", defaultValue = "0") long afterId,
+            @RequestParam(name = "size", defaultValue = "50") int size) {
+        // Keep the page size within sane bounds
+        int pageSize = Math.max(1, Math.min(size, MAX_PAGE_SIZE));
+        TransactionSearchResult result = businessTransaction.search(criteria, afterDate, afterId, pageSize);
+
+        result.add(Link.of(ServletUriComponentsBuilder.fromCurrentRequest().toUriString()).withSelfRel());
+        // A full page may be followed by more transactions, point at the next cursor with the same filters
+        List<Transaction> transactions = result.getTransactions();
+        if (transactions.size() == pageSize) {
+            Transaction last = transactions.get(transactions.size() - 1);
+            result.add(Link.of(ServletUriComponentsBuilder.fromCurrentRequest()
+                    .replaceQueryParam("afterDate", last.getDate())
+                    .replaceQueryParam("afterId", last.getId())
+                    .replaceQueryParam("size", pageSize)
+                    .toUriString()).withRel(IanaLinkRelations.NEXT));
+        }
+        return ResponseEntity.ok(result);
+    }
+
+    /**
+     * Streams the history of an IBAN account as newline delimited JSON (one
+     * transaction per line), ordered by date and id. Transactions are written
+     * as they are read through a forward-only cursor, so memory use stays
+     * constant regardless of the account history size.
+     *
+     * @param ibanAccount the IBAN account
+     * @param from the lower date bound, inclusive (ISO date-time, optional)
+     * @param to the upper date bound, inclusive (ISO date-time, optional)
+     * @return a 200 OK response whose body is written asynchronously
+     */
+    @GetMapping(value = "/customer/transactions/stream", produces = MediaType.APPLICATION_NDJSON_VALUE)  // Maps GET requests to /transaction/customer/transactions/stream.
+    public ResponseEntity<StreamingResponseBody> stream(@RequestParam(name = "ibanAccount") String ibanAccount,
+            @RequestParam(name = "from", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam(name = "to", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to) {
+        StreamingResponseBody body = out -> businessTransaction.writeHistoryAsNdjson(ibanAccount, from, to, out);
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(body);
+    }
+
+    /**
+     * Exports the transactions dated within a range (e.g. whole days for
+     * reconciliation) as CSV or newline delimited JSON, ordered by date and
+     * id. Rows are streamed from a database cursor to the response as they
+     * are read, so exports of any size run in constant memory.
+     *
+     * @param format the output format, csv (default) or ndjson
+     * @param from the lower date bound, inclusive (ISO date-time, optional)
+     * @param to the upper date bound, inclusive (ISO date-time, optional)
+     * @param gzip whether the body is gzip compressed (default true), sent
+     * with {@code Content-Encoding: gzip}
+     * @return a 200 OK response whose body is written asynchronously
+     * @throws BusinessRuleException if the format is unknown, or 422 if the
+     * range starts at or before the most recent archived transaction
+     */
+    @GetMapping("/export")  // Maps GET requests to /transaction/export.
+    public ResponseEntity<StreamingResponseBody> export(@RequestParam(name = "format", defaultValue = "csv") String format,
+            @RequestParam(name = "from", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam(name = "to", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to,
+            @RequestParam(name = "gzip", defaultValue = "true") boolean gzip) throws BusinessRuleException {
+        TransactionExporter.Format exportFormat = TransactionExporter.Format.parse(format);
+        // Refused before the response starts, once streaming it can no longer turn into an error
+        businessTransaction.checkExport(from);
+        StreamingResponseBody body = out -> businessTransaction.export(exportFormat, from, to, gzip, out);
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(exportFormat.getMediaType() + ";charset=UTF-8"))
+                .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment()
+                        .filename("transactions." + exportFormat.getExtension()).build().toString());
+        if (gzip) {
+            response.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+        }
+        return response.body(body);
+    }
+
+    /**
+     * Retrieves the aggregates of an IBAN account: running balance (sum of
+     * amount minus fee), number of transactions, total fees and date of the
+     * last transaction. The aggregates are maintained as transactions are
+     * written, so this costs a single primary key lookup whatever the size of
+     * the account history.
+     *
+     * @param ibanAccount the IBAN account
+     * @return a 200 OK response with the summary, or 404 Not Found if the
+     * account has no transaction
+     */
+    @GetMapping("/customer/summary")  // Maps GET requests to /transaction/customer/summary.
+    public ResponseEntity<AccountSummary> summary(@RequestParam(name = "ibanAccount") String ibanAccount) {
+        AccountSummary summary = businessTransaction.getSummary(ibanAccount);
+        if (summary == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(summary);
+    }
+
+    /**
+     * Aggregates recent transactions (count, sum of amounts, sum of fees)
+     * grouped by any combination of channel, status and hour or day, e.g.
+     * {@code ?groupBy=channel&groupBy=hour} for the volume per channel per
+     * hour. The query runs over an in-memory, column oriented copy of the
+     * most recent transactions, without touching the database.
+     *
+     * @param groupBy the dimensions to group by (channel, status, hour, day);
+     * none for a single total
+     * @param from the lower date bound, inclusive (ISO date-time, optional)
+     * @param to the upper date bound, inclusive (ISO date-time, optional)
+     * @param channel only count transactions of this channel (optional)
+     * @param status only count transactions with this status (optional)
+     * @return a 200 OK response with one row per non-empty group
+     * @throws BusinessRuleException if a dimension is unknown or the query
+     * would produce too many groups
+     */
+    @GetMapping("/analytics")  // Maps GET requests to /transaction/analytics.
+    public ResponseEntity<AnalyticsResult> analytics(@RequestParam(name = "groupBy", required = false) List<String> groupBy,
+            @RequestParam(name = "from", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam(name = "to", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to,
+            @RequestParam(name = "channel", required = false) String channel,
+            @RequestParam(name = "status", required = false) String status) throws BusinessRuleException {
+        return ResponseEntity.ok(businessTransaction.getAnalytics(groupBy != null ? groupBy : List.of(), from, to, channel, status));
+    }
+
     /**
      * Updates an existing transaction with the provided data.
      *
@@ -144,26 +368,10 @@ public class TransactionRestController {
     @PutMapping("/{id}")  // Maps PUT requests to /transaction/{id}.
     public ResponseEntity<?> put(@PathVariable(name = "id") long id, @RequestBody Transaction input) {
         try {
-            // Try to find the transaction by ID
-            Optional<Transaction> find = transactionRepository.findById(id);
-
-            // If transaction is found, update the fields and save the transaction
-            if (find.isPresent()) {
-                Transaction existingTransaction = find.get();  // Get the existing transaction object
-
-                // Update the transaction fields with the provided data
-                existingTransaction.setAmount(input.getAmount());
-                existingTransaction.setChannel(input.getChannel());
-                existingTransaction.setDate(input.getDate());
-                existingTransaction.setDescription(input.getDescription());
-                existingTransaction.setFee(input.getFee());
-                existingTransaction.setReference(input.getReference());
-                existingTransaction.setStatus(input.getStatus());
-                existingTransaction.setIbanAccount(input.getIbanAccount());
-
-                // Save the updated transaction and return the updated object
-                Transaction savedTransaction = transactionRepository.save(existingTransaction);
-                return ResponseEntity.ok(savedTransaction);  // Return a 200 OK response with the updated transaction
+            // Update the transaction and its account summaries, if it exists
+            Optional<Transaction> savedTransaction = businessTransaction.update(id, input);
+            if (savedTransaction.isPresent()) {
+                return ResponseEntity.ok(savedTransaction.get());  // Return a 200 OK response with the updated transaction
             }
         } catch (Exception e) {
             logger.error("Error updating product: ", e.getMessage());
@@ -176,15 +384,147 @@ public class TransactionRestController {
     }
 
     /**
-     * Creates a new transaction.
+     * Creates a new transaction. When asynchronous ingestion is enabled
+     * ({@code transaction.ingestion.async}), the validated transaction is
+     * queued and a 202 Accepted response with a tracking id is returned right
+     * away; if the queue is full, a 429 Too Many Requests response with a
+     * Retry-After header is returned instead. The same response is returned
+     * when the account exceeds a velocity limit ({@code transaction.velocity}).
      *
      * @param input The transaction object to create.
-     * @return The created transaction.
+     * @return The created transaction, or its ingestion status.
      */
     @PostMapping  // Maps POST requests to /transaction.
     public ResponseEntity<?> post(@RequestBody Transaction input) throws BusinessRuleException {
-        Transaction save = businessTransaction.post(input);
-        return ResponseEntity.status(HttpStatus.CREATED).body(save);
+        try {
+            if (ingestionQueue.isEnabled()) {
+                IngestionStatus status = businessTransaction.enqueue(input);
+                if (status == null) {
+                    // Queue full: push back on the client instead of piling up request threads
+                    return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                            .header(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, ingestionQueue.getRetryAfter().toSeconds())))
+                            .body("The ingestion queue is full, please retry later.");
+                }
+                return ResponseEntity.accepted()
+                        .location(linkTo(methodOn(TransactionRestController.class).ingestionStatus(status.getTrackingId())).toUri())
+                        .body(status);
+            }
+            Transaction save = businessTransaction.post(input);
+            return ResponseEntity.status(HttpStatus.CREATED).body(save);
+        } catch (BusinessRuleException e) {
+            if (e.getHttpStatus() != HttpStatus.TOO_MANY_REQUESTS) {
+                throw e;
+            }
+            // Velocity limit: the window frees up as it slides
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, velocityChecker.getRetryAfter().toSeconds())))
+                    .body(e.getMessage());
+        }
+    }
+
+    /**
+     * Retrieves the state of a transaction accepted by the asynchronous
+     * ingestion queue.
+     *
+     * @param trackingId The tracking id returned when the transaction was
+     * accepted.
+     * @return A 200 OK response with the state, or 404 Not Found if the
+     * tracking id is unknown or expired.
+     */
+    @GetMapping("/ingestion/{trackingId}")  // Maps GET requests to /transaction/ingestion/{trackingId}.
+    public ResponseEntity<IngestionStatus> ingestionStatus(@PathVariable(name = "trackingId") String trackingId) {
+        IngestionStatus status = ingestionQueue.getStatus(trackingId);
+        if (status == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(status);
+    }
+
+    /**
+     * Starts the import of a statement file of the import directory
+     * ({@code transaction.import.directory}). The file is read in parallel
+     * chunks and its transactions are validated and stored in batches, in the
+     * background; the response points at the progress of the import.
+     *
+     * @param file The name of the statement file, relative to the import
+     * directory.
+     * @return A 202 Accepted response with the queued import.
+     * @throws BusinessRuleException if the file is not found
+     */
+    @PostMapping("/import")  // Maps POST requests to /transaction/import.
+    public ResponseEntity<ImportStatus> importStatement(@RequestParam(name = "file") String file) throws BusinessRuleException {
+        ImportStatus status = statementImporter.start(file);
+        return ResponseEntity.accepted()
+                .location(linkTo(methodOn(TransactionRestController.class).importStatus(status.getId())).toUri())
+                .body(status);
+    }
+
+    /**
+     * Retrieves the progress of a statement file import: bytes and lines
+     * processed, transactions created, duplicates and rejects.
+     *
+     * @param id The id returned when the import was started.
+     * @return A 200 OK response with the progress, or 404 Not Found if the id
+     * is unknown or expired.
+     */
+    @GetMapping("/import/{id}")  // Maps GET requests to /transaction/import/{id}.
+    public ResponseEntity<ImportStatus> importStatus(@PathVariable(name = "id") String id) {
+        ImportStatus status = statementImporter.getStatus(id);
+        if (status == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(status);
+    }
+
+    /**
+     * Starts moving the stored transactions to the shard their IBAN account
+     * is placed on, after shards were appended to
+     * {@code transaction.sharding.urls}. The accounts are moved in the
+     * background; the response points at the progress of the run.
+     *
+     * @return A 202 Accepted response with the started run, or 409 Conflict
+     * with the running one if a run is already in progress.
+     */
+    @PostMapping("/shards/rebalance")  // Maps POST requests to /transaction/shards/rebalance.
+    public ResponseEntity<RebalanceStatus> rebalanceShards() {
+        RebalanceStatus status = shardRebalancer.start();
+        if (status == null) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(shardRebalancer.getStatus());
+        }
+        return ResponseEntity.accepted()
+                .location(linkTo(methodOn(TransactionRestController.class).rebalanceStatus()).toUri())
+                .body(status);
+    }
+
+    /**
+     * Retrieves the progress of the last shard rebalancing run: shards and
+     * accounts checked, accounts and transactions moved.
+     *
+     * @return A 200 OK response with the progress, or 404 Not Found if no run
+     * was started.
+     */
+    @GetMapping("/shards/rebalance")  // Maps GET requests to /transaction/shards/rebalance.
+    public ResponseEntity<RebalanceStatus> rebalanceStatus() {
+        RebalanceStatus status = shardRebalancer.getStatus();
+        if (status == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(status);
+    }
+
+    /**
+     * Creates many transactions in a single request. Every item is validated
+     * with the same rules as the single post; valid items are inserted with
+     * JDBC batching and committed together. The response holds the result of
+     * every item in request order.
+     *
+     * @param inputs The transactions to create.
+     * @return A 200 OK response with the per-item results.
+     */
+    @PostMapping("/batch")  // Maps POST requests to /transaction/batch.
+    public ResponseEntity<BatchPostResult> postBatch(@RequestBody List<Transaction> inputs) throws BusinessRuleException {
+        BatchPostResult result = businessTransaction.postBatch(inputs);
+        return ResponseEntity.ok(result);
     }
 
     /**
@@ -196,10 +536,7 @@ public class TransactionRestController {
     @DeleteMapping("/{id}")  // Maps DELETE requests to /transaction/{id}.
     public ResponseEntity<?> delete(@PathVariable(name = "id") long id) {
         try {
-            Optional<Transaction> findById = transactionRepository.findById(id);  // Check if transaction exists.
-
-            if (findById.isPresent()) {  // Transaction found, proceed with deletion.
-                transactionRepository.delete(findById.get());  // Deletes the transaction.
+            if (businessTransaction.delete(id)) {  // Transaction found and deleted, together with its summary changes.
                 return ResponseEntity.ok().build();  // Return 200 OK response.
             } else {
                 return ResponseEntity.notFound().build();  // Return 404 Not Found if transaction does not exist.
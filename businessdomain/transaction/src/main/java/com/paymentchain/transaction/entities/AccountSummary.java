@@ -0,0 +1,39 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.entities;
+
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import java.time.LocalDateTime;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Aggregates of the transactions of one IBAN account, maintained
+ * incrementally as transactions are posted, updated and deleted so they can
+ * be read without scanning the account history.
+ */
+@Data  // Lombok annotation to automatically generate getters, setters, toString, equals, and hashCode methods
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity  // JPA annotation to indicate that this class is an entity and will be mapped to a database table
+public class AccountSummary {
+    @Id  // JPA annotation to specify the primary key of the entity
+    private String ibanAccount;  // Account IBAN the aggregates belong to
+    
+    private double balance;  // Running balance: sum of amount minus fee of every transaction
+    
+    private long transactionCount;  // Number of transactions of the account
+    
+    private double totalFees;  // Sum of the fees of every transaction
+    
+    private LocalDateTime lastDate;  // Date of the most recent transaction
+}
@@ -4,10 +4,11 @@
  */
 package com.paymentchain.transaction.entities;
 
+import com.paymentchain.transaction.config.ShardedSequence;
 import jakarta.persistence.Entity;
-import jakarta.persistence.GeneratedValue;
-import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
 import java.time.LocalDateTime;
 import lombok.Data;
 
@@ -22,8 +23,19 @@ import lombok.Data;
  */
 @Data  // Lombok annotation to automatically generate getters, setters, toString, equals, and hashCode methods
 @Entity  // JPA annotation to indicate that this class is an entity and will be mapped to a database table
+// Indexes mirror the Flyway migrations in db/migration, which create the schema:
+// per-account history (IBAN, then range and order on date, id), unique reference (idempotency key)
+// and the composite indexes serving the multi-criteria search
+@Table(indexes = {
+    @Index(name = "idx_transaction_iban_date_id", columnList = "ibanAccount, date, id"),
+    @Index(name = "ux_transaction_reference", columnList = "reference", unique = true),
+    @Index(name = "idx_transaction_status_date_id", columnList = "status, date, id"),
+    @Index(name = "idx_transaction_channel_date_id", columnList = "channel, date, id"),
+    @Index(name = "idx_transaction_date_id", columnList = "date, id"),
+    @Index(name = "idx_transaction_amount", columnList = "amount")
+})
 public class Transaction {
-    @GeneratedValue(strategy = GenerationType.AUTO)  // Automatically generates the ID value for this entity
+    @ShardedSequence  // Generates the ID value from the sequence of the shard the transaction is written to
     @Id  // JPA annotation to specify the primary key of the entity
     private long id;  // Unique identifier for the Transaction
     
@@ -0,0 +1,82 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/springframework/Repository.java to edit this template
+ */
+package com.paymentchain.transaction.repository;
+
+import com.paymentchain.transaction.entities.AccountSummary;
+import jakarta.persistence.LockModeType;
+import java.time.LocalDateTime;
+import java.util.Optional;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Repository interface for managing {@link AccountSummary} entities. The
+ * aggregates are changed with single atomic update statements, so concurrent
+ * writers of the same account never lose an update.
+ */
+public interface AccountSummaryRepository extends JpaRepository<AccountSummary, String> {
+
+    /**
+     * Computes the aggregates of an account from its transactions. Used once
+     * per account, to initialize its summary.
+     *
+     * @param ibanAccount the IBAN account
+     * @return the aggregates, or null if the account has no transaction
+     */
+    @Query("SELECT new com.paymentchain.transaction.entities.AccountSummary(t.ibanAccount, SUM(t.amount - t.fee),"
+            + " COUNT(t), SUM(t.fee), MAX(t.date)) FROM Transaction t WHERE t.ibanAccount = ?1 GROUP BY t.ibanAccount")
+    public AccountSummary summarize(String ibanAccount);
+
+    /**
+     * Finds the summary of an account and locks its row until the end of the
+     * current database transaction, so the deltas of concurrent writers wait
+     * until it is replaced, e.g. while it is recomputed.
+     *
+     * @param ibanAccount the IBAN account
+     * @return the locked summary, if found
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT s FROM AccountSummary s WHERE s.ibanAccount = ?1")
+    public Optional<AccountSummary> findByIdForUpdate(String ibanAccount);
+
+    /**
+     * Adds deltas to the aggregates of an account. The last date only moves
+     * forward; use {@link #refreshLastDate(String)} after removing
+     * transactions.
+     *
+     * @param ibanAccount the IBAN account
+     * @param balance the change of the balance
+     * @param count the change of the number of transactions
+     * @param fees the change of the total fees
+     * @param date the date of the newest added transaction, or null
+     * @return the number of summaries updated, 0 if the account has none yet
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("UPDATE AccountSummary s SET s.balance = s.balance + ?2, s.transactionCount = s.transactionCount + ?3,"
+            + " s.totalFees = s.totalFees + ?4,"
+            + " s.lastDate = CASE WHEN s.lastDate IS NULL OR s.lastDate < ?5 THEN ?5 ELSE s.lastDate END"
+            + " WHERE s.ibanAccount = ?1")
+    public int add(String ibanAccount, double balance, long count, double fees, LocalDateTime date);
+
+    /**
+     * Recomputes the last transaction date of an account, e.g. after its most
+     * recent transaction was deleted. Served by the (iban_account, date, id)
+     * index, so it does not scan the account history.
+     *
+     * @param ibanAccount the IBAN account
+     * @return the number of summaries updated
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("UPDATE AccountSummary s SET s.lastDate = (SELECT MAX(t.date) FROM Transaction t WHERE t.ibanAccount = ?1)"
+            + " WHERE s.ibanAccount = ?1")
+    public int refreshLastDate(String ibanAccount);
+}
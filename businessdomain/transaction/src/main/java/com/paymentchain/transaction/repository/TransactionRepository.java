@@ -5,9 +5,22 @@
 package com.paymentchain.transaction.repository;
 
 import com.paymentchain.transaction.entities.Transaction;
+import jakarta.persistence.LockModeType;
+import jakarta.persistence.QueryHint;
+import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+import org.hibernate.jpa.AvailableHints;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.transaction.annotation.Transactional;
 
 /**
  *
@@ -16,9 +29,20 @@ import org.springframework.data.jpa.repository.Query;
 
 /**
  * Repository interface for managing {@link Transaction} entities.
- * Extends JpaRepository to provide basic CRUD operations and custom queries.
+ * Extends JpaRepository to provide basic CRUD operations and custom queries,
+ * and JpaSpecificationExecutor to run the dynamic queries built with
+ * {@link TransactionSpecifications}.
+ * <p>
+ * The read queries run in read-only transactions, so they are served by the
+ * read replica when one is configured; called within a read-write
+ * transaction, they join it and read the primary.
  */
-public interface TransactionRepository extends JpaRepository<Transaction, Long> {
+public interface TransactionRepository extends JpaRepository<Transaction, Long>, JpaSpecificationExecutor<Transaction> {
+
+    /**
+     * Number of rows fetched per round trip when streaming transactions.
+     */
+    public static final int STREAM_FETCH_SIZE = 500;
 
     /**
      * Custom query to find a {@link Transaction} by its associated IBAN account.
@@ -26,7 +50,147 @@ public interface TransactionRepository extends JpaRepository<Transaction, Long>
      * @param ibanAccount the IBAN account to search for.
      * @return the {@link Transaction} associated with the given IBAN account, or null if not found.
      */
+    @Transactional(readOnly = true)
     @Query("SELECT t FROM Transaction t WHERE t.ibanAccount = ?1")
     public List<Transaction> findByIbanAccount(String ibanAccount);
 
-}
\ No newline at end of file
+    /**
+     * Finds a transaction by id and locks its row until the end of the
+     * current database transaction, so concurrent updates or deletes of the
+     * same transaction are applied one after the other.
+     *
+     * @param id the id of the transaction
+     * @return the locked transaction, if found
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT t FROM Transaction t WHERE t.id = ?1")
+    public Optional<Transaction> findByIdForUpdate(long id);
+
+    /**
+     * Finds the transaction stored with the given reference. References are
+     * unique, so at most one transaction matches.
+     *
+     * @param reference the reference of the transaction
+     * @return the transaction, or null if not found
+     */
+    @Transactional(readOnly = true)
+    public Transaction findByReference(String reference);
+
+    /**
+     * Finds the transactions stored with any of the given references.
+     *
+     * @param references the references to look up
+     * @return the transactions found, in no particular order
+     */
+    @Transactional(readOnly = true)
+    public List<Transaction> findByReferenceIn(Collection<String> references);
+
+    /**
+     * Finds the transactions of an IBAN account that come after the given
+     * {@code (date, id)} cursor, up to an upper date bound, ordered by date
+     * and id. This is a keyset (cursor) page: it is answered by a range scan
+     * of the {@code (iban_account, date, id)} index, so its cost does not
+     * grow with the account history or with how deep the page is.
+     *
+     * @param ibanAccount the IBAN account
+     * @param afterDate the date of the last transaction of the previous page,
+     * or the lower date bound for the first page
+     * @param afterId the id of the last transaction of the previous page, or
+     * -1 to include transactions dated exactly {@code afterDate}
+     * @param to the upper date bound, inclusive
+     * @param pageable limits the number of transactions returned
+     * @return the transactions of the page, in ascending (date, id) order
+     */
+    @Transactional(readOnly = true)
+    @Query("SELECT t FROM Transaction t WHERE t.ibanAccount = ?1"
+            + " AND (t.date > ?2 OR (t.date = ?2 AND t.id > ?3)) AND t.date <= ?4"
+            + " ORDER BY t.date, t.id")
+    public List<Transaction> findPageByIbanAccount(String ibanAccount, LocalDateTime afterDate, long afterId,
+            LocalDateTime to, Pageable pageable);
+
+    /**
+     * Streams the transactions of an IBAN account between two dates, ordered
+     * by date and id. Rows are read through a forward-only JDBC cursor
+     * {@value #STREAM_FETCH_SIZE} at a time, so the result set is never
+     * materialized; the caller must consume the stream inside a transaction
+     * and close it.
+     *
+     * @param ibanAccount the IBAN account
+     * @param from the lower date bound, inclusive
+     * @param to the upper date bound, inclusive
+     * @return a stream of the transactions, in ascending (date, id) order
+     */
+    @QueryHints(@QueryHint(name = AvailableHints.HINT_FETCH_SIZE, value = "" + STREAM_FETCH_SIZE))
+    @Query("SELECT t FROM Transaction t WHERE t.ibanAccount = ?1 AND t.date >= ?2 AND t.date <= ?3"
+            + " ORDER BY t.date, t.id")
+    public Stream<Transaction> streamByIbanAccount(String ibanAccount, LocalDateTime from, LocalDateTime to);
+
+    /**
+     * Returns the highest transaction id.
+     *
+     * @return the highest id, or null if there is no transaction
+     */
+    @Query("SELECT MAX(t.id) FROM Transaction t")
+    public Long findMaxId();
+
+    /**
+     * Streams the columns used by the in-memory analytics (id, date, amount,
+     * fee, channel and status) of the transactions with an id greater than
+     * the given one, in id order. Only the needed columns are read and no
+     * entity is built; the caller must consume the stream inside a
+     * transaction and close it.
+     *
+     * @param afterId the id after which transactions are read
+     * @return a stream of {@code [id, date, amount, fee, channel, status]}
+     * rows
+     */
+    @QueryHints(@QueryHint(name = AvailableHints.HINT_FETCH_SIZE, value = "" + STREAM_FETCH_SIZE))
+    @Query("SELECT t.id, t.date, t.amount, t.fee, t.channel, t.status FROM Transaction t WHERE t.id > ?1 ORDER BY t.id")
+    public Stream<Object[]> streamAnalyticsColumnsAfter(long afterId);
+
+    /**
+     * Finds transactions dated before the given date, in id order, to be
+     * moved to the archive.
+     *
+     * @param cutoff the date before which transactions are archived
+     * @param pageable the maximum number of transactions to return
+     * @return the transactions to archive
+     */
+    @Query("SELECT t FROM Transaction t WHERE t.date < ?1 ORDER BY t.id")
+    public List<Transaction> findArchivable(LocalDateTime cutoff, Pageable pageable);
+
+    /**
+     * Lists the distinct IBAN accounts greater than the given one, in order.
+     * Used to walk the accounts of a shard one keyset page at a time.
+     *
+     * @param afterIbanAccount the last account of the previous page, or the
+     * empty string for the first page
+     * @param pageable the maximum number of accounts to return
+     * @return the accounts of the page
+     */
+    @Transactional(readOnly = true)
+    @Query("SELECT DISTINCT t.ibanAccount FROM Transaction t WHERE t.ibanAccount > ?1 ORDER BY t.ibanAccount")
+    public List<String> findIbanAccountsAfter(String afterIbanAccount, Pageable pageable);
+
+    /**
+     * Finds the first transactions of an IBAN account in id order, e.g. to
+     * move them to another shard in chunks.
+     *
+     * @param ibanAccount the IBAN account
+     * @param pageable the maximum number of transactions to return
+     * @return the transactions of the chunk
+     */
+    @Query("SELECT t FROM Transaction t WHERE t.ibanAccount = ?1 ORDER BY t.id")
+    public List<Transaction> findChunkByIbanAccount(String ibanAccount, Pageable pageable);
+
+    /**
+     * Deletes the given transactions, once they are safely archived or
+     * copied to another shard.
+     *
+     * @param ids the ids of the transactions to delete
+     * @return the number of transactions deleted
+     */
+    @Modifying
+    @Query("DELETE FROM Transaction t WHERE t.id IN ?1")
+    public int deleteByIdIn(Collection<Long> ids);
+}
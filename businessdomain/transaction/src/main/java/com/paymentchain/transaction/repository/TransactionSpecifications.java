@@ -0,0 +1,106 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.repository;
+
+import com.paymentchain.transaction.common.TransactionSearchCriteria;
+import com.paymentchain.transaction.entities.Transaction;
+import java.time.LocalDateTime;
+import org.springframework.data.jpa.domain.Specification;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Building blocks of dynamic {@link Transaction} queries, used with
+ * {@link TransactionRepository#findBy}. Each method returns one predicate,
+ * or null when its filter is not given, which {@link Specification#and}
+ * simply skips.
+ */
+public final class TransactionSpecifications {
+
+    private TransactionSpecifications() {
+    }
+
+    /**
+     * Combines every filter given in the criteria.
+     *
+     * @param criteria the search filters
+     * @return the combined specification
+     */
+    public static Specification<Transaction> matching(TransactionSearchCriteria criteria) {
+        return Specification.where(hasIbanAccount(criteria.getIbanAccount()))
+                .and(hasStatus(criteria.getStatus()))
+                .and(hasChannel(criteria.getChannel()))
+                .and(amountAtLeast(criteria.getMinAmount()))
+                .and(amountAtMost(criteria.getMaxAmount()))
+                .and(dateFrom(criteria.getFrom()))
+                .and(dateTo(criteria.getTo()));
+    }
+
+    /**
+     * Transactions of an IBAN account.
+     */
+    public static Specification<Transaction> hasIbanAccount(String ibanAccount) {
+        return ibanAccount == null ? null : (root, query, cb) -> cb.equal(root.get("ibanAccount"), ibanAccount);
+    }
+
+    /**
+     * Transactions with a status.
+     */
+    public static Specification<Transaction> hasStatus(String status) {
+        return status == null ? null : (root, query, cb) -> cb.equal(root.get("status"), status);
+    }
+
+    /**
+     * Transactions made through a channel.
+     */
+    public static Specification<Transaction> hasChannel(String channel) {
+        return channel == null ? null : (root, query, cb) -> cb.equal(root.get("channel"), channel);
+    }
+
+    /**
+     * Transactions whose amount is at least the given value.
+     */
+    public static Specification<Transaction> amountAtLeast(Double minAmount) {
+        return minAmount == null ? null : (root, query, cb) -> cb.greaterThanOrEqualTo(root.get("amount"), minAmount);
+    }
+
+    /**
+     * Transactions whose amount is at most the given value.
+     */
+    public static Specification<Transaction> amountAtMost(Double maxAmount) {
+        return maxAmount == null ? null : (root, query, cb) -> cb.lessThanOrEqualTo(root.get("amount"), maxAmount);
+    }
+
+    /**
+     * Transactions dated on or after the given date.
+     */
+    public static Specification<Transaction> dateFrom(LocalDateTime from) {
+        return from == null ? null : (root, query, cb) -> cb.greaterThanOrEqualTo(root.get("date"), from);
+    }
+
+    /**
+     * Transactions dated on or before the given date.
+     */
+    public static Specification<Transaction> dateTo(LocalDateTime to) {
+        return to == null ? null : (root, query, cb) -> cb.lessThanOrEqualTo(root.get("date"), to);
+    }
+
+    /**
+     * Transactions following a keyset cursor in (date, id) order, i.e. after
+     * the last transaction of the previous page.
+     *
+     * @param afterDate the date of the last transaction of the previous page,
+     * or null for the first page
+     * @param afterId the id of the last transaction of the previous page
+     */
+    public static Specification<Transaction> after(LocalDateTime afterDate, long afterId) {
+        return afterDate == null ? null : (root, query, cb) -> cb.or(
+                cb.greaterThan(root.get("date"), afterDate),
+                cb.and(cb.equal(root.get("date"), afterDate), cb.greaterThan(root.get("id"), afterId)));
+    }
+}
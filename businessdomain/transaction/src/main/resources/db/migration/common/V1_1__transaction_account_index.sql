@@ -0,0 +1,2 @@
+-- Per-account history: equality on the IBAN, then range and order on (date, id)
+create index if not exists idx_transaction_iban_date_id on transaction (iban_account, date, id);
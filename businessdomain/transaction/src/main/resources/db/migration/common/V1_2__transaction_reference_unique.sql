@@ -0,0 +1,7 @@
+-- The reference is the idempotency key of posted transactions. Blank references are no key
+-- and are stored as null, which the unique index lets several rows have.
+update transaction set reference = null where trim(reference) = '';
+
+-- References repeated by rows stored before posting was idempotent make this migration fail;
+-- they must be made unique (or cleared) by hand before starting the service again
+create unique index if not exists ux_transaction_reference on transaction (reference);
@@ -0,0 +1,10 @@
+-- Running aggregates per IBAN account. Summaries of accounts with older transactions are
+-- computed from their history the first time the account is read or written.
+create table if not exists account_summary (
+    iban_account varchar(255) not null,
+    balance float(53) not null,
+    transaction_count bigint not null,
+    total_fees float(53) not null,
+    last_date timestamp(6),
+    primary key (iban_account)
+);
@@ -0,0 +1,19 @@
+-- Baseline schema of the transaction service, as previously generated by Hibernate.
+-- Databases created before migrations were introduced are baselined at this version,
+-- so everything added since lives in the later migrations.
+
+-- Ids are allocated 50 at a time by each instance (Hibernate pooled optimizer)
+create sequence transaction_seq start with 1 increment by 50;
+
+create table transaction (
+    id bigint not null,
+    reference varchar(255),
+    iban_account varchar(255),
+    date timestamp(6),
+    amount float(53) not null,
+    fee float(53) not null,
+    description varchar(255),
+    status varchar(255),
+    channel varchar(255),
+    primary key (id)
+);
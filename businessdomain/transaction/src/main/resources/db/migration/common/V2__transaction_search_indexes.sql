@@ -0,0 +1,15 @@
+-- Composite indexes serving GET /transaction/search, which returns matches ordered by (date, id).
+-- Each index starts with an equality filter and ends with (date, id), so a filtered page is
+-- read in order straight from the index and stops after the requested number of rows.
+
+-- Filter by status, optionally within a date window
+create index idx_transaction_status_date_id on transaction (status, date, id);
+
+-- Filter by channel, optionally within a date window
+create index idx_transaction_channel_date_id on transaction (channel, date, id);
+
+-- Date window alone, or amount range within a date window
+create index idx_transaction_date_id on transaction (date, id);
+
+-- Amount range without a more selective filter
+create index idx_transaction_amount on transaction (amount);
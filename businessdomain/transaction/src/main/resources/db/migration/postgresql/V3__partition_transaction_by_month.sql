@@ -0,0 +1,112 @@
+-- Monthly range partitioning of the transaction table on its date (PostgreSQL only).
+-- Queries bounded by date only touch the partitions of the months they cover, and every index is
+-- maintained per partition, so index sizes, vacuum and date-range scans follow the recent months
+-- instead of the whole history. Rows without a date, or dated in a month without a partition,
+-- land in the default partition.
+-- Partitions are created ahead of time by create_transaction_partition, called here for the
+-- existing months and afterwards by the partition manager of the service.
+
+alter table transaction rename to transaction_unpartitioned;
+alter table transaction_unpartitioned drop constraint if exists ux_transaction_reference;
+drop index if exists ux_transaction_reference;
+drop index if exists idx_transaction_iban_date_id;
+drop index if exists idx_transaction_status_date_id;
+drop index if exists idx_transaction_channel_date_id;
+drop index if exists idx_transaction_date_id;
+drop index if exists idx_transaction_amount;
+
+-- Unique keys of a partitioned table must include the partition key: ids stay unique through the
+-- sequence, (id, date) is the unique key and serves lookups by id in each partition
+create table transaction (
+    id bigint not null,
+    reference varchar(255),
+    iban_account varchar(255),
+    date timestamp(6),
+    amount float(53) not null,
+    fee float(53) not null,
+    description varchar(255),
+    status varchar(255),
+    channel varchar(255),
+    constraint transaction_id_date_key unique (id, date)
+) partition by range (date);
+
+create table transaction_default partition of transaction default;
+
+-- Same indexes as before, created on every partition
+create index idx_transaction_iban_date_id on transaction (iban_account, date, id);
+create index idx_transaction_status_date_id on transaction (status, date, id);
+create index idx_transaction_channel_date_id on transaction (channel, date, id);
+create index idx_transaction_date_id on transaction (date, id);
+create index idx_transaction_amount on transaction (amount);
+create index idx_transaction_reference on transaction (reference);
+
+-- The reference (idempotency key) cannot be unique across partitions through an index,
+-- so each reference is also recorded here, where its primary key rejects duplicates
+create table transaction_reference (
+    reference varchar(255) not null,
+    transaction_id bigint not null,
+    primary key (reference)
+);
+
+create function transaction_reference_sync() returns trigger language plpgsql as $$
+begin
+    if tg_op in ('UPDATE', 'DELETE') and old.reference is not null
+            and (tg_op = 'DELETE' or new.reference is distinct from old.reference) then
+        delete from transaction_reference where reference = old.reference;
+    end if;
+    if tg_op in ('INSERT', 'UPDATE') and new.reference is not null
+            and (tg_op = 'INSERT' or new.reference is distinct from old.reference) then
+        insert into transaction_reference (reference, transaction_id) values (new.reference, new.id);
+    end if;
+    return null;
+end
+$$;
+
+create trigger transaction_reference_sync after insert or update or delete on transaction
+    for each row execute function transaction_reference_sync();
+
+-- Creates the partition of the month containing the given day, if missing. Rows of that month
+-- found in the default partition are moved into the new partition.
+-- Returns true if the partition was created.
+create function create_transaction_partition(day date) returns boolean language plpgsql as $$
+declare
+    lower_bound timestamp := date_trunc('month', day);
+    upper_bound timestamp := date_trunc('month', day) + interval '1 month';
+    partition_name text := 'transaction_p' || to_char(day, 'YYYY_MM');
+begin
+    -- Serialize concurrent callers, e.g. several instances starting together
+    perform pg_advisory_xact_lock(hashtext('create_transaction_partition'));
+    if to_regclass(partition_name) is not null then
+        return false;
+    end if;
+    -- A partition cannot be created while the default partition holds rows of its range
+    create temporary table transaction_moving (like transaction);
+    with moved as (
+        delete from transaction_default where date >= lower_bound and date < upper_bound returning *
+    )
+    insert into transaction_moving select * from moved;
+    execute format('create table %I partition of transaction for values from (%L) to (%L)',
+            partition_name, lower_bound, upper_bound);
+    insert into transaction select * from transaction_moving;
+    drop table transaction_moving;
+    return true;
+end
+$$;
+
+-- Partitions for every month holding transactions, up to three months ahead
+do $$
+declare
+    month date := coalesce(date_trunc('month', (select min(date) from transaction_unpartitioned)),
+                           date_trunc('month', current_date));
+begin
+    while month <= date_trunc('month', current_date) + interval '3 months' loop
+        perform create_transaction_partition(month);
+        month := month + interval '1 month';
+    end loop;
+end
+$$;
+
+insert into transaction (id, reference, iban_account, date, amount, fee, description, status, channel)
+select id, reference, iban_account, date, amount, fee, description, status, channel from transaction_unpartitioned;
+
+drop table transaction_unpartitioned;
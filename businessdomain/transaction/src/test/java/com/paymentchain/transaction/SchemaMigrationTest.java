@@ -0,0 +1,59 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction;
+
+import java.util.List;
+import org.flywaydb.core.Flyway;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Migration of a database created by Hibernate before the Flyway migrations
+ * were introduced: it is baselined at version 1 and receives every later
+ * migration.
+ */
+class SchemaMigrationTest {
+
+    @Test
+    void migratesDatabaseCreatedBeforeMigrations() {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:pre-migrations;DB_CLOSE_DELAY=-1");
+        JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+        // Schema Hibernate generated for the Transaction entity
+        jdbc.execute("create sequence transaction_seq start with 1 increment by 50");
+        jdbc.execute("create table transaction (amount float(53) not null, fee float(53) not null, date timestamp(6),"
+                + " id bigint not null, channel varchar(255), description varchar(255), iban_account varchar(255),"
+                + " reference varchar(255), status varchar(255), primary key (id))");
+        jdbc.batchUpdate("insert into transaction (id, reference, iban_account, amount, fee) values (?, ?, 'ES01', 1, 0)",
+                List.of(new Object[]{1, ""}, new Object[]{2, ""}, new Object[]{3, "  "}, new Object[]{4, null},
+                        new Object[]{5, "REF-1"}));
+
+        Flyway.configure()
+                .dataSource(dataSource)
+                .locations("classpath:db/migration/common")
+                .baselineOnMigrate(true)
+                .baselineVersion("1")
+                .load()
+                .migrate();
+
+        assertThat(jdbc.queryForObject("select count(*) from transaction where reference is null", Integer.class)).isEqualTo(4);
+        assertThat(jdbc.queryForObject("select count(*) from account_summary", Integer.class)).isZero();
+        assertThatThrownBy(() -> jdbc.update("insert into transaction (id, reference, amount, fee) values (6, 'REF-1', 1, 0)"))
+                .isInstanceOf(DataIntegrityViolationException.class);
+        assertThat(jdbc.queryForList("select index_name from information_schema.indexes where table_name = 'TRANSACTION'",
+                String.class))
+                .contains("IDX_TRANSACTION_IBAN_DATE_ID", "UX_TRANSACTION_REFERENCE", "IDX_TRANSACTION_DATE_ID");
+    }
+}
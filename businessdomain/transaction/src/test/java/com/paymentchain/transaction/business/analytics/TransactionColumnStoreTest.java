@@ -0,0 +1,149 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.business.analytics;
+
+import com.paymentchain.transaction.common.AnalyticsResult;
+import com.paymentchain.transaction.common.AnalyticsRow;
+import com.paymentchain.transaction.entities.Transaction;
+import com.paymentchain.transaction.exception.BusinessRuleException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.tuple;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * In-memory analytics: grouped aggregates, the limit on the number of groups,
+ * removals through the index by id, and writes made while a query runs.
+ */
+@SpringBootTest(properties = {
+    "transaction.analytics.capacity=20",
+    "transaction.analytics.max-groups=1000"
+})
+class TransactionColumnStoreTest {
+
+    // Ids of the transactions added to the store, away from those of the database
+    private static final AtomicLong nextId = new AtomicLong(1_000_000_000L);
+
+    @Autowired
+    private TransactionColumnStore columnStore;
+
+    @Test
+    void groupsByChannelAndHour() throws Exception {
+        String status = unique("S");
+        columnStore.added(List.of(
+                transaction("web", status, LocalDateTime.of(2024, 1, 1, 10, 15), 10),
+                transaction("web", status, LocalDateTime.of(2024, 1, 1, 10, 45), 20),
+                transaction("mobile", status, LocalDateTime.of(2024, 1, 1, 11, 5), 5)));
+
+        AnalyticsResult result = columnStore.query(List.of(TransactionColumnStore.CHANNEL, TransactionColumnStore.HOUR),
+                LocalDateTime.of(2024, 1, 1, 0, 0), LocalDateTime.of(2024, 1, 1, 23, 59), null, status);
+
+        assertThat(result.getMatched()).isEqualTo(3);
+        assertThat(result.getRows())
+                .extracting(AnalyticsRow::getChannel, AnalyticsRow::getPeriod, AnalyticsRow::getCount, AnalyticsRow::getAmount)
+                .containsExactlyInAnyOrder(
+                        tuple("web", LocalDateTime.of(2024, 1, 1, 10, 0), 2L, 30.0),
+                        tuple("mobile", LocalDateTime.of(2024, 1, 1, 11, 0), 1L, 5.0));
+    }
+
+    @Test
+    void rejectsQueryProducingTooManyGroups() throws Exception {
+        String status = unique("S");
+        LocalDateTime from = LocalDateTime.of(2023, 1, 1, 0, 0);
+        LocalDateTime to = LocalDateTime.of(2023, 3, 1, 0, 0);
+        columnStore.added(List.of(transaction("web", status, from, 10), transaction("web", status, to, 10)));
+
+        // About 1400 hours between both transactions
+        assertThatThrownBy(() -> columnStore.query(List.of(TransactionColumnStore.HOUR), from, to, null, status))
+                .isInstanceOf(BusinessRuleException.class)
+                .extracting(e -> ((BusinessRuleException) e).getCode())
+                .isEqualTo("1059");
+        assertThat(columnStore.query(List.of(TransactionColumnStore.DAY), from, to, null, status).getRows()).hasSize(2);
+    }
+
+    @Test
+    void removesRowsStillInTheRingOnly() throws Exception {
+        String status = unique("S");
+        List<Transaction> transactions = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            transactions.add(transaction("web", status, LocalDateTime.of(2024, 2, 1, 10, 0), 1));
+        }
+        columnStore.added(transactions);
+        assertThat(matched(status)).isEqualTo(20);
+
+        // The first transactions were replaced by newer ones
+        columnStore.removed(transactions.get(0).getId());
+        assertThat(matched(status)).isEqualTo(20);
+
+        Transaction last = transactions.get(24);
+        columnStore.removed(last.getId());
+        columnStore.removed(last.getId());
+        assertThat(matched(status)).isEqualTo(19);
+
+        // Added again, in place of the oldest row, and found at its new slot
+        columnStore.added(List.of(last));
+        assertThat(matched(status)).isEqualTo(19);
+        columnStore.removed(last.getId());
+        assertThat(matched(status)).isEqualTo(18);
+    }
+
+    @Test
+    void writesDoNotWaitForRunningQueries() throws Exception {
+        String status = unique("S");
+        Transaction removed = transaction("web", status, LocalDateTime.of(2024, 3, 1, 10, 0), 1);
+        columnStore.added(List.of(removed));
+
+        // Holds the lock as a long query would
+        ReentrantReadWriteLock lock = (ReentrantReadWriteLock) ReflectionTestUtils.getField(columnStore, "lock");
+        lock.readLock().lock();
+        try {
+            CompletableFuture.runAsync(() -> {
+                columnStore.added(List.of(transaction("web", status, LocalDateTime.of(2024, 3, 1, 11, 0), 1),
+                        transaction("web", status, LocalDateTime.of(2024, 3, 1, 12, 0), 1)));
+                columnStore.removed(removed.getId());
+            }).get(5, TimeUnit.SECONDS);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        assertThat(matched(status)).isEqualTo(2);
+    }
+
+    private long matched(String status) throws BusinessRuleException {
+        return columnStore.query(List.of(), null, null, null, status).getMatched();
+    }
+
+    private static Transaction transaction(String channel, String status, LocalDateTime date, double amount) {
+        Transaction transaction = new Transaction();
+        transaction.setId(nextId.incrementAndGet());
+        transaction.setIbanAccount(unique("ES"));
+        transaction.setChannel(channel);
+        transaction.setStatus(status);
+        transaction.setDate(date);
+        transaction.setAmount(amount);
+        return transaction;
+    }
+
+    private static String unique(String prefix) {
+        return prefix + UUID.randomUUID().toString().replace("-", "").substring(0, 20);
+    }
+}
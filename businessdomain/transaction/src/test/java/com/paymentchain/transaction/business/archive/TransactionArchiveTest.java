@@ -0,0 +1,105 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.business.archive;
+
+import com.paymentchain.transaction.entities.Transaction;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Reads of the archive: segment cursors decompressing block by block, and
+ * their merge across segments.
+ */
+class TransactionArchiveTest {
+
+    private static final LocalDateTime DAY = LocalDateTime.of(2024, 1, 1, 0, 0);
+
+    @TempDir
+    Path directory;
+
+    private TransactionArchive archive;
+
+    @BeforeEach
+    void writeSegments() throws Exception {
+        // Blocks of two rows, so reads cross block boundaries; transaction 3 was archived twice
+        List<Transaction> first = sorted(
+                transaction(1, "ES01", 1), transaction(3, "ES01", 3), transaction(5, "ES01", 5),
+                transaction(7, "ES01", 7), transaction(2, "ES00", 2), transaction(9, "ES02", 1));
+        List<Transaction> second = sorted(
+                transaction(3, "ES01", 3), transaction(4, "ES01", 4), transaction(6, "ES01", 6),
+                transaction(8, "ES02", 8));
+        ArchiveSegment.write(directory, "segment-1-000000", first, 2);
+        ArchiveSegment.write(directory, "segment-2-000001", second, 2);
+
+        archive = new TransactionArchive();
+        ReflectionTestUtils.setField(archive, "directory", directory);
+        archive.init();
+    }
+
+    @Test
+    void cursorMergesSegmentsInDateAndIdOrder() {
+        try (TransactionArchive.Cursor cursor = archive.open("ES01", DAY, DAY.plusDays(30), null, 0)) {
+            assertThat(ids(cursor)).containsExactly(1L, 3L, 4L, 5L, 6L, 7L);
+        }
+    }
+
+    @Test
+    void cursorResumesAfterKeysetAndStopsAtUpperBound() {
+        try (TransactionArchive.Cursor cursor = archive.open("ES01", DAY, DAY.plusDays(6), DAY.plusDays(3), 3)) {
+            assertThat(ids(cursor)).containsExactly(4L, 5L, 6L);
+        }
+        assertThat(archive.read("ES01", DAY, DAY.plusDays(30), null, 0, 2))
+                .extracting(Transaction::getId).containsExactly(1L, 3L);
+        assertThat(archive.read("ES03", DAY, DAY.plusDays(30), null, 0, 10)).isEmpty();
+    }
+
+    @Test
+    void mergeKeepsStoredCopyOfArchivedTransactions() {
+        Transaction updated = transaction(5, "ES01", 10);
+        List<Transaction> stored = List.of(transaction(4, "ES01", 4), updated, transaction(11, "ES01", 11));
+
+        try (TransactionArchive.Cursor cursor = archive.open("ES01", DAY, DAY.plusDays(30), null, 0)) {
+            List<Transaction> merged = TransactionArchive.merge(stored, cursor, Integer.MAX_VALUE);
+
+            assertThat(merged).extracting(Transaction::getId).containsExactly(1L, 3L, 4L, 6L, 7L, 5L, 11L);
+            assertThat(merged.get(5)).isSameAs(updated);
+        }
+    }
+
+    private static List<Long> ids(TransactionArchive.Cursor cursor) {
+        List<Long> ids = new ArrayList<>();
+        cursor.forEachRemaining(transaction -> ids.add(transaction.getId()));
+        return ids;
+    }
+
+    private static List<Transaction> sorted(Transaction... transactions) {
+        List<Transaction> list = new ArrayList<>(List.of(transactions));
+        list.sort(ArchiveSegment.ORDER);
+        return list;
+    }
+
+    private static Transaction transaction(long id, String ibanAccount, int day) {
+        Transaction transaction = new Transaction();
+        transaction.setId(id);
+        transaction.setIbanAccount(ibanAccount);
+        transaction.setDate(DAY.plusDays(day));
+        transaction.setAmount(id);
+        transaction.setStatus("01");
+        return transaction;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.business.ingestion;
+
+import com.paymentchain.transaction.business.summary.AccountSummaryService;
+import com.paymentchain.transaction.business.transaction.BusinessTransaction;
+import com.paymentchain.transaction.common.IngestionStatus;
+import com.paymentchain.transaction.entities.Transaction;
+import com.paymentchain.transaction.repository.TransactionRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.doAnswer;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Asynchronous ingestion: queued transactions written in batches by the
+ * background writer, and the state reported for each tracking id.
+ */
+@SpringBootTest(properties = {
+    "transaction.ingestion.async=true",
+    "transaction.ingestion.max-wait=PT0.3S",
+    "transaction.ingestion.queue-capacity=3"
+})
+class TransactionIngestionQueueTest {
+
+    @Autowired
+    private BusinessTransaction businessTransaction;
+
+    @Autowired
+    private TransactionIngestionQueue ingestionQueue;
+
+    @Autowired
+    private TransactionRepository transactionRepository;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // Holds the writer on accounts starting with BLOCK, to fill the queue behind it
+    @SpyBean
+    private AccountSummaryService accountSummaries;
+
+    @Test
+    void reportsQueuedTransactionUntilStored() throws Exception {
+        assertThat(ingestionQueue.getStatus(UUID.randomUUID().toString())).isNull();
+        String reference = unique("REF");
+
+        IngestionStatus queued = businessTransaction.enqueue(transaction(unique("ES"), reference));
+
+        assertThat(queued.getStatus()).isEqualTo(IngestionStatus.PENDING);
+        assertThat(ingestionQueue.getStatus(queued.getTrackingId()).getStatus()).isEqualTo(IngestionStatus.PENDING);
+        IngestionStatus stored = awaitWritten(queued.getTrackingId());
+        assertThat(stored.getStatus()).isEqualTo(IngestionStatus.STORED);
+        assertThat(stored.getId()).isEqualTo(transactionRepository.findByReference(reference).getId());
+    }
+
+    @Test
+    void refusesTransactionsWhileQueueIsFull() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            Collection<String> accounts = invocation.getArgument(0);
+            if (accounts.stream().anyMatch(account -> account.startsWith("BLOCK"))) {
+                writing.countDown();
+                release.await(10, TimeUnit.SECONDS);
+            }
+            return invocation.callRealMethod();
+        }).when(accountSummaries).prepare(anyCollection());
+        double rejectedBefore = meterRegistry.counter("transaction.ingestion.rejected").count();
+
+        List<IngestionStatus> accepted = new ArrayList<>();
+        try {
+            accepted.add(businessTransaction.enqueue(transaction(unique("BLOCK"), unique("REF"))));
+            assertThat(writing.await(10, TimeUnit.SECONDS)).isTrue();
+            // The writer is busy: three transactions fill the queue, the fourth is refused
+            for (int i = 0; i < 3; i++) {
+                accepted.add(businessTransaction.enqueue(transaction(unique("ES"), unique("REF"))));
+            }
+            IngestionStatus refused = businessTransaction.enqueue(transaction(unique("ES"), unique("REF")));
+
+            assertThat(accepted).doesNotContainNull();
+            assertThat(refused).isNull();
+            assertThat(meterRegistry.counter("transaction.ingestion.rejected").count()).isEqualTo(rejectedBefore + 1);
+        } finally {
+            release.countDown();
+        }
+        for (IngestionStatus status : accepted) {
+            assertThat(awaitWritten(status.getTrackingId()).getStatus()).isEqualTo(IngestionStatus.STORED);
+        }
+    }
+
+    @Test
+    void retriesFailedBatchOneByOneAndFailsOnlyOffendingTransaction() throws Exception {
+        String before = unique("REF");
+        String after = unique("REF");
+        Transaction tooLong = transaction(unique("ES"), unique("REF"));
+        tooLong.setDescription("x".repeat(300));
+
+        // Queued together, so they are written in the same batch
+        IngestionStatus first = businessTransaction.enqueue(transaction(unique("ES"), before));
+        IngestionStatus offending = businessTransaction.enqueue(tooLong);
+        IngestionStatus last = businessTransaction.enqueue(transaction(unique("ES"), after));
+
+        IngestionStatus failed = awaitWritten(offending.getTrackingId());
+        assertThat(failed.getStatus()).isEqualTo(IngestionStatus.FAILED);
+        assertThat(failed.getId()).isNull();
+        assertThat(transactionRepository.findByReference(tooLong.getReference())).isNull();
+        assertThat(awaitWritten(first.getTrackingId()).getId()).isEqualTo(transactionRepository.findByReference(before).getId());
+        assertThat(awaitWritten(last.getTrackingId()).getId()).isEqualTo(transactionRepository.findByReference(after).getId());
+    }
+
+    @Test
+    void storesReferenceQueuedTwiceOnceAndReportsBothAsStored() throws Exception {
+        String reference = unique("REF");
+
+        // Both wait for the same batch, so the cache cannot answer the second one
+        IngestionStatus first = businessTransaction.enqueue(transaction(unique("ES"), reference));
+        IngestionStatus second = businessTransaction.enqueue(transaction(unique("ES"), reference));
+
+        IngestionStatus stored = awaitWritten(first.getTrackingId());
+        IngestionStatus retried = awaitWritten(second.getTrackingId());
+        assertThat(stored.getStatus()).isEqualTo(IngestionStatus.STORED);
+        assertThat(retried.getStatus()).isEqualTo(IngestionStatus.STORED);
+        assertThat(retried.getId()).isEqualTo(stored.getId());
+        assertThat(transactionRepository.findByReference(reference).getId()).isEqualTo(stored.getId());
+    }
+
+    /**
+     * Waits until the writer has written, or failed to write, a queued
+     * transaction.
+     */
+    private IngestionStatus awaitWritten(String trackingId) throws InterruptedException {
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (System.nanoTime() < deadline) {
+            IngestionStatus status = ingestionQueue.getStatus(trackingId);
+            if (!IngestionStatus.PENDING.equals(status.getStatus())) {
+                return status;
+            }
+            Thread.sleep(20);
+        }
+        throw new AssertionError("Transaction " + trackingId + " still pending");
+    }
+
+    private static Transaction transaction(String ibanAccount, String reference) {
+        Transaction transaction = new Transaction();
+        transaction.setIbanAccount(ibanAccount);
+        transaction.setReference(reference);
+        transaction.setAmount(10);
+        transaction.setStatus("01");
+        return transaction;
+    }
+
+    private static String unique(String prefix) {
+        return prefix + UUID.randomUUID().toString().replace("-", "").substring(0, 20);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.business.partition;
+
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.flywaydb.core.Flyway;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Monthly partitioning of the transaction table on PostgreSQL: the
+ * {@code V3__partition_transaction_by_month} migration, the
+ * {@code create_transaction_partition} function and the unique references
+ * kept across partitions. Runs against a disposable PostgreSQL container and
+ * is skipped when Docker is not available.
+ */
+@SpringBootTest
+@Testcontainers(disabledWithoutDocker = true)
+class TransactionPartitioningTest {
+
+    @Container
+    static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>("postgres:16-alpine");
+
+    @DynamicPropertySource
+    static void postgres(DynamicPropertyRegistry registry) {
+        registry.add("spring.datasource.url", POSTGRES::getJdbcUrl);
+        registry.add("spring.datasource.username", POSTGRES::getUsername);
+        registry.add("spring.datasource.password", POSTGRES::getPassword);
+    }
+
+    @Autowired
+    private JdbcTemplate jdbc;
+
+    @Autowired
+    private TransactionPartitionManager partitionManager;
+
+    @Test
+    void migratesExistingRowsIntoMonthlyPartitions() {
+        jdbc.execute("create schema legacy");
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(
+                POSTGRES.getJdbcUrl() + "&currentSchema=legacy", POSTGRES.getUsername(), POSTGRES.getPassword());
+        JdbcTemplate legacy = new JdbcTemplate(dataSource);
+        // Schema Hibernate generated before the migrations, with rows of two months and an undated one
+        legacy.execute("create sequence transaction_seq start with 1 increment by 50");
+        legacy.execute("create table transaction (amount float(53) not null, fee float(53) not null, date timestamp(6),"
+                + " id bigint not null, channel varchar(255), description varchar(255), iban_account varchar(255),"
+                + " reference varchar(255), status varchar(255), primary key (id))");
+        legacy.batchUpdate("insert into transaction (id, reference, iban_account, date, amount, fee) values (?, ?, 'ES01', ?, 1, 0)",
+                List.of(new Object[]{1, "REF-1", Timestamp.valueOf("2024-01-15 10:00:00")},
+                        new Object[]{2, "", Timestamp.valueOf("2024-01-31 23:59:59")},
+                        new Object[]{3, "REF-3", Timestamp.valueOf("2024-03-01 00:00:00")},
+                        new Object[]{4, null, null}));
+
+        Flyway.configure()
+                .dataSource(dataSource)
+                .schemas("legacy")
+                .locations("classpath:db/migration/common", "classpath:db/migration/postgresql")
+                .baselineOnMigrate(true)
+                .baselineVersion("1")
+                .load()
+                .migrate();
+
+        assertThat(legacy.queryForObject("select count(*) from pg_partitioned_table"
+                + " where partrelid = 'legacy.transaction'::regclass", Integer.class)).isEqualTo(1);
+        Map<Long, String> partitionOf = new TreeMap<>();
+        legacy.query("select id, tableoid::regclass::text as partition from transaction",
+                rs -> {
+            partitionOf.put(rs.getLong("id"), rs.getString("partition"));
+        });
+        assertThat(partitionOf).containsExactly(
+                Map.entry(1L, "transaction_p2024_01"),
+                Map.entry(2L, "transaction_p2024_01"),
+                Map.entry(3L, "transaction_p2024_03"),
+                Map.entry(4L, "transaction_default"));
+        // Every month from the oldest transaction on has its partition, even without rows
+        assertThat(legacy.queryForObject("select to_regclass('transaction_p2024_02') is not null", Boolean.class)).isTrue();
+        assertThat(legacy.queryForList("select reference from transaction_reference order by reference", String.class))
+                .containsExactly("REF-1", "REF-3");
+    }
+
+    @Test
+    void createsPartitionOfBackdatedOrFarAheadTransactions() {
+        LocalDateTime farAhead = LocalDate.now().plusYears(2).atStartOfDay();
+        String partition = "transaction_p" + farAhead.format(DateTimeFormatter.ofPattern("yyyy_MM"));
+        jdbc.update("insert into transaction (id, iban_account, date, amount, fee) values (nextval('transaction_seq'), 'ES02', ?, 1, 0)",
+                Timestamp.valueOf(farAhead));
+        assertThat(partitionOfAccount("ES02")).isEqualTo("transaction_default");
+
+        partitionManager.createPartitions();
+
+        assertThat(partitionOfAccount("ES02")).isEqualTo(partition);
+        assertThat(jdbc.queryForObject("select create_transaction_partition(?)", Boolean.class, farAhead.toLocalDate())).isFalse();
+        // The partitions of the months ahead are created at startup
+        String nextMonth = "transaction_p" + LocalDate.now().plusMonths(1).format(DateTimeFormatter.ofPattern("yyyy_MM"));
+        assertThat(jdbc.queryForObject("select to_regclass(?) is not null", Boolean.class, nextMonth)).isTrue();
+    }
+
+    @Test
+    void keepsReferencesUniqueAcrossPartitions() {
+        insert("REF-UNIQUE", "2024-05-10 00:00:00");
+
+        assertThatThrownBy(() -> insert("REF-UNIQUE", "2024-06-10 00:00:00"))
+                .isInstanceOf(DataIntegrityViolationException.class);
+
+        // Changing or deleting the reference releases it
+        jdbc.update("update transaction set reference = 'REF-CHANGED' where reference = 'REF-UNIQUE'");
+        insert("REF-UNIQUE", "2024-06-10 00:00:00");
+        jdbc.update("delete from transaction where reference = 'REF-UNIQUE'");
+        insert("REF-UNIQUE", "2024-07-10 00:00:00");
+        assertThat(jdbc.queryForList("select reference from transaction_reference where reference like 'REF-%'"
+                + " order by reference", String.class)).containsExactly("REF-CHANGED", "REF-UNIQUE");
+    }
+
+    private void insert(String reference, String date) {
+        jdbc.update("insert into transaction (id, reference, iban_account, date, amount, fee)"
+                + " values (nextval('transaction_seq'), ?, 'ES03', ?, 1, 0)", reference, Timestamp.valueOf(date));
+    }
+
+    private String partitionOfAccount(String ibanAccount) {
+        return jdbc.queryForObject("select tableoid::regclass::text from transaction where iban_account = ?",
+                String.class, ibanAccount);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.business.posting;
+
+import com.paymentchain.transaction.business.shard.TransactionShards;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Ordering of the writes within a posting lane: they run one at a time on
+ * the lane thread, in arrival order, and a failing write only fails its own
+ * caller.
+ */
+class PostingLanesTest {
+
+    private static final String IBAN = "ES0000000000000000000001";
+
+    private SimpleMeterRegistry meterRegistry;
+
+    private PostingLanes lanes;
+
+    @BeforeEach
+    void startLanes() {
+        meterRegistry = new SimpleMeterRegistry();
+        lanes = new PostingLanes();
+        ReflectionTestUtils.setField(lanes, "enabled", true);
+        ReflectionTestUtils.setField(lanes, "count", 2);
+        ReflectionTestUtils.setField(lanes, "batchSize", 100);
+        ReflectionTestUtils.setField(lanes, "queueCapacity", 100);
+        ReflectionTestUtils.setField(lanes, "transactionManager", mock(PlatformTransactionManager.class));
+        ReflectionTestUtils.setField(lanes, "shards", mock(TransactionShards.class));
+        ReflectionTestUtils.setField(lanes, "meterRegistry", meterRegistry);
+        lanes.init();
+    }
+
+    @AfterEach
+    void stopLanes() throws InterruptedException {
+        lanes.shutdown();
+    }
+
+    @Test
+    void runsWritesOfAnAccountOneAtATimeInArrivalOrder() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread blocker = submit(() -> lanes.execute(IBAN, () -> {
+            blocked.countDown();
+            await(release);
+            return 0;
+        }));
+        assertThat(blocked.await(5, TimeUnit.SECONDS)).isTrue();
+
+        // Queue the writes while the lane is busy, each one after the previous is waiting
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        Map<Integer, String> threads = new ConcurrentHashMap<>();
+        Map<Integer, Integer> results = new ConcurrentHashMap<>();
+        List<Thread> writers = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            int write = i;
+            writers.add(submit(() -> results.put(write, lanes.execute(IBAN, () -> {
+                order.add(write);
+                threads.put(write, Thread.currentThread().getName());
+                return write * 10;
+            }))));
+            awaitQueued(i);
+        }
+        release.countDown();
+        blocker.join(5000);
+        for (Thread writer : writers) {
+            writer.join(5000);
+        }
+
+        assertThat(order).containsExactly(1, 2, 3, 4, 5);
+        assertThat(results).containsOnlyKeys(1, 2, 3, 4, 5).containsEntry(3, 30);
+        assertThat(threads.values()).allMatch(name -> name.startsWith("transaction-posting-lane-")).hasSize(5);
+        assertThat(threads.values().stream().distinct()).hasSize(1);
+    }
+
+    @Test
+    void failedWriteOnlyFailsItsCaller() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread blocker = submit(() -> lanes.execute(IBAN, () -> {
+            blocked.countDown();
+            await(release);
+            return 0;
+        }));
+        assertThat(blocked.await(5, TimeUnit.SECONDS)).isTrue();
+
+        Map<Integer, Object> outcomes = new ConcurrentHashMap<>();
+        List<Thread> writers = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            int write = i;
+            writers.add(submit(() -> {
+                try {
+                    outcomes.put(write, lanes.execute(IBAN, () -> {
+                        if (write == 2) {
+                            throw new IllegalArgumentException("write 2 failed");
+                        }
+                        return write;
+                    }));
+                } catch (IllegalArgumentException e) {
+                    outcomes.put(write, e.getMessage());
+                }
+            }));
+            awaitQueued(i);
+        }
+        release.countDown();
+        blocker.join(5000);
+        for (Thread writer : writers) {
+            writer.join(5000);
+        }
+
+        // The batch failed and its writes ran again one by one
+        assertThat(outcomes).containsEntry(1, 1).containsEntry(2, "write 2 failed").containsEntry(3, 3);
+    }
+
+    private static Thread submit(Runnable task) {
+        Thread thread = new Thread(task);
+        thread.start();
+        return thread;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits until the lanes hold a number of queued writes.
+     */
+    private void awaitQueued(int queued) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (System.nanoTime() < deadline) {
+            double total = meterRegistry.find("transaction.lanes.queue.size").gauges().stream()
+                    .mapToDouble(Gauge::value).sum();
+            if (total >= queued) {
+                return;
+            }
+            Thread.sleep(5);
+        }
+        throw new AssertionError("Expected " + queued + " queued writes");
+    }
+}
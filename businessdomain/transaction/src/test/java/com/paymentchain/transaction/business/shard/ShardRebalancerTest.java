@@ -0,0 +1,129 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.business.shard;
+
+import com.paymentchain.transaction.business.transaction.BusinessTransaction;
+import com.paymentchain.transaction.common.RebalanceStatus;
+import com.paymentchain.transaction.entities.AccountSummary;
+import com.paymentchain.transaction.entities.Transaction;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Rebalancing over two in-memory shards: transactions stored on shard 0
+ * before shard 1 was appended are moved to it with their ids, the summaries
+ * are recomputed, and running it again changes nothing.
+ */
+@SpringBootTest(properties = "transaction.sharding.urls=" + ShardRebalancerTest.SHARD_0 + "," + ShardRebalancerTest.SHARD_1)
+class ShardRebalancerTest {
+
+    static final String SHARD_0 = "jdbc:h2:mem:rebalance-shard-0;DB_CLOSE_DELAY=-1";
+    static final String SHARD_1 = "jdbc:h2:mem:rebalance-shard-1;DB_CLOSE_DELAY=-1";
+
+    private static final LocalDateTime DAY = LocalDateTime.of(2024, 1, 1, 0, 0);
+
+    @Autowired
+    private ShardRebalancer rebalancer;
+
+    @Autowired
+    private TransactionShards shards;
+
+    @Autowired
+    private BusinessTransaction businessTransaction;
+
+    private final JdbcTemplate shard0 = new JdbcTemplate(new DriverManagerDataSource(SHARD_0, "sa", ""));
+
+    private final JdbcTemplate shard1 = new JdbcTemplate(new DriverManagerDataSource(SHARD_1, "sa", ""));
+
+    @Test
+    void movesMisplacedAccountsOnceAndKeepsSummariesExact() throws Exception {
+        String moving = accountOn(1);
+        String staying = accountOn(0);
+        // Stored on shard 0 while it was the only shard, with the summary it kept there
+        insert(shard0, 900001, moving, 10);
+        insert(shard0, 900002, moving, 20);
+        insert(shard0, 900003, moving, 30);
+        insert(shard0, 900004, staying, 40);
+        shard0.update("insert into account_summary (iban_account, balance, transaction_count, total_fees, last_date)"
+                + " values (?, 57, 3, 3, ?)", moving, Timestamp.valueOf(DAY.plusDays(3)));
+        // A copy left on shard 1 by an interrupted run
+        insert(shard1, 900002, moving, 20);
+        // Posted since shard 1 was appended
+        Transaction posted = new Transaction();
+        posted.setIbanAccount(moving);
+        posted.setAmount(100);
+        posted.setFee(1);
+        posted.setStatus("01");
+        posted.setDate(DAY.plusDays(10));
+        posted = businessTransaction.post(posted);
+        assertThat(shards.shardOfId(posted.getId())).isEqualTo(1);
+
+        RebalanceStatus first = rebalance();
+
+        assertThat(first.getStatus()).isEqualTo(RebalanceStatus.COMPLETED);
+        assertThat(first.getAccountsMoved()).isEqualTo(1);
+        assertThat(first.getTransactionsMoved()).isEqualTo(3);
+        assertMoved(moving, staying, posted);
+
+        RebalanceStatus second = rebalance();
+
+        assertThat(second.getStatus()).isEqualTo(RebalanceStatus.COMPLETED);
+        assertThat(second.getAccountsMoved()).isZero();
+        assertThat(second.getTransactionsMoved()).isZero();
+        assertMoved(moving, staying, posted);
+    }
+
+    private void assertMoved(String moving, String staying, Transaction posted) {
+        assertThat(shard0.queryForList("select id from transaction where iban_account = ?", Long.class, moving)).isEmpty();
+        assertThat(shard0.queryForObject("select count(*) from account_summary where iban_account = ?", Integer.class, moving))
+                .isZero();
+        assertThat(shard0.queryForList("select id from transaction where iban_account = ?", Long.class, staying))
+                .containsExactly(900004L);
+        assertThat(shard1.queryForList("select id from transaction where iban_account = ? order by id", Long.class, moving))
+                .containsExactly(900001L, 900002L, 900003L, posted.getId());
+        // Moved transactions are still found by their id
+        assertThat(businessTransaction.get(900002L)).map(Transaction::getIbanAccount).contains(moving);
+
+        AccountSummary summary = businessTransaction.getSummary(moving);
+        assertThat(summary.getTransactionCount()).isEqualTo(4);
+        assertThat(summary.getBalance()).isEqualTo(10 + 20 + 30 + 100 - 4.0);
+        assertThat(summary.getTotalFees()).isEqualTo(4.0);
+        assertThat(summary.getLastDate()).isEqualTo(DAY.plusDays(10));
+    }
+
+    private RebalanceStatus rebalance() throws InterruptedException {
+        assertThat(rebalancer.start()).isNotNull();
+        while (RebalanceStatus.RUNNING.equals(rebalancer.getStatus().getStatus())) {
+            Thread.sleep(20);
+        }
+        return rebalancer.getStatus();
+    }
+
+    private String accountOn(int shard) {
+        return IntStream.range(0, 100).mapToObj(i -> "ES76" + (1000 + i))
+                .filter(account -> shards.shardOf(account) == shard)
+                .findFirst().orElseThrow();
+    }
+
+    private static void insert(JdbcTemplate shard, long id, String ibanAccount, double amount) {
+        shard.update("insert into transaction (id, iban_account, date, amount, fee, status) values (?, ?, ?, ?, 1, '01')",
+                id, ibanAccount, Timestamp.valueOf(DAY.plusDays(List.of(900001L, 900002L, 900003L, 900004L).indexOf(id) + 1)),
+                amount);
+    }
+}
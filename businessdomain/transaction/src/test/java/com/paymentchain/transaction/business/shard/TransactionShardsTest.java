@@ -0,0 +1,95 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.business.shard;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.IntStream;
+import javax.sql.DataSource;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Placement of the accounts across the shards, the id range of each shard
+ * and the merge of the results read from every shard.
+ */
+class TransactionShardsTest {
+
+    @Test
+    void appendingShardOnlyMovesAccountsToIt() {
+        List<String> accounts = IntStream.range(0, 10000).mapToObj(i -> "ES" + (7600000000L + i * 7919L)).toList();
+        for (int count = 1; count < 8; count++) {
+            TransactionShards before = shards(count);
+            TransactionShards after = shards(count + 1);
+            int moved = 0;
+            for (String account : accounts) {
+                int from = before.shardOf(account);
+                int to = after.shardOf(account);
+                assertThat(to).isIn(from, count);
+                moved += from != to ? 1 : 0;
+                // Placement only depends on the account
+                assertThat(after.shardOf(account)).isEqualTo(to);
+            }
+            // About 1 / (count + 1) of the accounts move
+            double expected = accounts.size() / (double) (count + 1);
+            assertThat((double) moved).isBetween(expected * 0.85, expected * 1.15);
+            before.shutdown();
+            after.shutdown();
+        }
+    }
+
+    @Test
+    void placesEverythingOnShardZeroWithoutSharding() {
+        TransactionShards single = shards(1);
+        assertThat(single.isSharded()).isFalse();
+        assertThat(single.shardOf("ES7600000001")).isZero();
+
+        TransactionShards sharded = shards(3);
+        assertThat(sharded.isSharded()).isTrue();
+        assertThat(sharded.shardOf(null)).isZero();
+        sharded.shutdown();
+    }
+
+    @Test
+    void idsTellTheShardThatAllocatedThem() {
+        TransactionShards sharded = shards(2);
+
+        assertThat(sharded.shardOfId(1)).isZero();
+        assertThat(sharded.shardOfId(TransactionShards.ID_RANGE - 1)).isZero();
+        assertThat(sharded.shardOfId(TransactionShards.ID_RANGE)).isEqualTo(1);
+        assertThat(sharded.shardOfId(2 * TransactionShards.ID_RANGE - 1)).isEqualTo(1);
+        assertThat(sharded.shardOfId(2 * TransactionShards.ID_RANGE)).isEqualTo(-1);
+        assertThat(sharded.shardOfId(-1)).isEqualTo(-1);
+        sharded.shutdown();
+    }
+
+    @Test
+    void mergesSortedPartsUpToLimit() {
+        List<List<Integer>> parts = List.of(List.of(1, 4, 9), List.of(), List.of(2, 3, 10, 11), List.of(5));
+
+        assertThat(TransactionShards.merge(parts, Comparator.naturalOrder(), Integer.MAX_VALUE))
+                .containsExactly(1, 2, 3, 4, 5, 9, 10, 11);
+        assertThat(TransactionShards.merge(parts, Comparator.naturalOrder(), 4)).containsExactly(1, 2, 3, 4);
+        assertThat(TransactionShards.merge(List.of(List.of(3, 2, 1)), Comparator.reverseOrder(), 2)).containsExactly(3, 2);
+        assertThat(TransactionShards.merge(List.of(List.<Integer>of(), List.of()), Comparator.naturalOrder(), 10)).isEmpty();
+    }
+
+    private static TransactionShards shards(int count) {
+        TransactionShards shards = new TransactionShards();
+        ReflectionTestUtils.setField(shards, "urls", IntStream.range(0, count).mapToObj(i -> "jdbc:h2:mem:shard" + i).toList());
+        ReflectionTestUtils.setField(shards, "scatterThreads", 1);
+        ReflectionTestUtils.setField(shards, "dataSource", mock(DataSource.class));
+        shards.init();
+        return shards;
+    }
+}
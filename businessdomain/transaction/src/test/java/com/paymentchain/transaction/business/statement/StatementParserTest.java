@@ -0,0 +1,149 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.business.statement;
+
+import com.paymentchain.transaction.business.statement.StatementParser.Field;
+import com.paymentchain.transaction.entities.Transaction;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Parsing of statement records from their bytes: header names, quoted
+ * fields, numbers, dates and the errors reported for malformed records.
+ */
+class StatementParserTest {
+
+    private static final Field[] COLUMNS = {
+        Field.ID, Field.REFERENCE, Field.IBAN_ACCOUNT, Field.DATE, Field.AMOUNT, Field.FEE,
+        Field.DESCRIPTION, Field.STATUS, Field.CHANNEL
+    };
+
+    @Test
+    void mapsHeaderNamesToFields() {
+        assertThat(Field.of("ibanAccount")).isEqualTo(Field.IBAN_ACCOUNT);
+        assertThat(Field.of(" iban_account ")).isEqualTo(Field.IBAN_ACCOUNT);
+        assertThat(Field.of("AMOUNT")).isEqualTo(Field.AMOUNT);
+        assertThat(Field.of("balance")).isNull();
+    }
+
+    @Test
+    void parsesEveryField() {
+        Transaction transaction = new Transaction();
+
+        String error = parse(new StatementParser(COLUMNS),
+                "99,REF-1,ES7600001,2024-03-05T10:15:30,-1234.56,1.5,Monthly rent,01,WEB", transaction);
+
+        assertThat(error).isNull();
+        assertThat(transaction.getId()).isZero();
+        assertThat(transaction.getReference()).isEqualTo("REF-1");
+        assertThat(transaction.getIbanAccount()).isEqualTo("ES7600001");
+        assertThat(transaction.getDate()).isEqualTo(LocalDateTime.of(2024, 3, 5, 10, 15, 30));
+        assertThat(transaction.getAmount()).isEqualTo(-1234.56);
+        assertThat(transaction.getFee()).isEqualTo(1.5);
+        assertThat(transaction.getDescription()).isEqualTo("Monthly rent");
+        assertThat(transaction.getStatus()).isEqualTo("01");
+        assertThat(transaction.getChannel()).isEqualTo("WEB");
+    }
+
+    @Test
+    void skipsUnknownColumnsAndLeavesEmptyFieldsUnset() {
+        StatementParser parser = new StatementParser(new Field[]{Field.IBAN_ACCOUNT, null, Field.AMOUNT, Field.FEE,
+            Field.DATE, Field.REFERENCE});
+        Transaction transaction = new Transaction();
+
+        assertThat(parse(parser, "ES7600001,ignored,10,,,", transaction)).isNull();
+
+        assertThat(transaction.getAmount()).isEqualTo(10);
+        assertThat(transaction.getFee()).isZero();
+        assertThat(transaction.getDate()).isNull();
+        assertThat(transaction.getReference()).isNull();
+    }
+
+    @Test
+    void undoublesQuotesOfQuotedFields() {
+        StatementParser parser = new StatementParser(new Field[]{Field.DESCRIPTION, Field.IBAN_ACCOUNT, Field.AMOUNT});
+        Transaction transaction = new Transaction();
+
+        assertThat(parse(parser, "\"Rent, \"\"March\"\"\",\"ES76\"\"01\",\"5\"", transaction)).isNull();
+
+        assertThat(transaction.getDescription()).isEqualTo("Rent, \"March\"");
+        assertThat(transaction.getIbanAccount()).isEqualTo("ES76\"01");
+        assertThat(transaction.getAmount()).isEqualTo(5);
+    }
+
+    @Test
+    void parsesNumbersAsDoubleParseDoubleDoes() {
+        StatementParser parser = new StatementParser(new Field[]{Field.AMOUNT});
+        for (String number : new String[]{"0.1", "+7", "-0.3", ".5", "5.", "123456789012.345",
+            "9007199254740993", "12345678901234567890.5", "1e3", "-2.5E-2", "0.000000000000000000000001"}) {
+            Transaction transaction = new Transaction();
+            assertThat(parse(parser, number, transaction)).isNull();
+            assertThat(transaction.getAmount()).as(number).isEqualTo(Double.parseDouble(number));
+        }
+    }
+
+    @Test
+    void parsesIsoDatesWithOptionalSecondsAndFraction() {
+        StatementParser parser = new StatementParser(new Field[]{Field.AMOUNT, Field.DATE});
+
+        assertThat(date(parser, "2024-03-05T10:15")).isEqualTo(LocalDateTime.of(2024, 3, 5, 10, 15));
+        assertThat(date(parser, "2024-03-05 10:15:30")).isEqualTo(LocalDateTime.of(2024, 3, 5, 10, 15, 30));
+        assertThat(date(parser, "2024-03-05T10:15:30.123")).isEqualTo(LocalDateTime.of(2024, 3, 5, 10, 15, 30, 123_000_000));
+        assertThat(date(parser, "2024-03-05T10:15:30.000000001")).isEqualTo(LocalDateTime.of(2024, 3, 5, 10, 15, 30, 1));
+    }
+
+    @Test
+    void reportsMalformedRecords() {
+        StatementParser parser = new StatementParser(new Field[]{Field.IBAN_ACCOUNT, Field.AMOUNT, Field.FEE, Field.DATE});
+
+        assertThat(parse(parser, "ES01,10,0", new Transaction())).isEqualTo("Expected 4 fields, found 3");
+        assertThat(parse(parser, "ES01,10,0,,extra", new Transaction())).isEqualTo("Expected 4 fields, found more");
+        assertThat(parse(parser, "\"ES01,10,0,", new Transaction())).isEqualTo("Unterminated quoted field 1");
+        assertThat(parse(parser, "\"ES01\"x,10,0,", new Transaction())).isEqualTo("Unexpected character after quoted field 1");
+        assertThat(parse(parser, "ES01,,0,", new Transaction())).isEqualTo("Amount is empty");
+        assertThat(parse(parser, "ES01,12a,0,", new Transaction())).isEqualTo("Amount is not a number");
+        assertThat(parse(parser, "ES01,-,0,", new Transaction())).isEqualTo("Amount is not a number");
+        assertThat(parse(parser, "ES01,10,x,", new Transaction())).isEqualTo("Fee is not a number");
+        assertThat(parse(parser, "ES01,10,0,2024-02-30T00:00", new Transaction())).isEqualTo("Date is not an ISO date-time");
+        assertThat(parse(parser, "ES01,10,0,2024-03-05", new Transaction())).isEqualTo("Date is not an ISO date-time");
+        assertThat(parse(parser, "ES01,10,0,2024-03-05T10:15:3", new Transaction())).isEqualTo("Date is not an ISO date-time");
+    }
+
+    @Test
+    void reusesStringsOfRepeatedValuesAcrossRecords() {
+        StatementParser parser = new StatementParser(new Field[]{Field.IBAN_ACCOUNT, Field.AMOUNT, Field.STATUS});
+        byte[] bytes = "ES7600001,1,01\nES7600001,2,01\n".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        Transaction first = new Transaction();
+        Transaction second = new Transaction();
+
+        assertThat(parser.parse(buffer, 0, 14, first)).isNull();
+        assertThat(parser.parse(buffer, 15, 29, second)).isNull();
+
+        assertThat(second.getAmount()).isEqualTo(2);
+        assertThat(second.getIbanAccount()).isEqualTo("ES7600001").isSameAs(first.getIbanAccount());
+        assertThat(second.getStatus()).isSameAs(first.getStatus());
+    }
+
+    private static LocalDateTime date(StatementParser parser, String date) {
+        Transaction transaction = new Transaction();
+        assertThat(parse(parser, "1," + date, transaction)).isNull();
+        return transaction.getDate();
+    }
+
+    private static String parse(StatementParser parser, String line, Transaction into) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        return parser.parse(ByteBuffer.wrap(bytes), 0, bytes.length, into);
+    }
+}
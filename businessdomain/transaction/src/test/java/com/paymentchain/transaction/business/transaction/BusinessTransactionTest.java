@@ -0,0 +1,200 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.business.transaction;
+
+import com.paymentchain.transaction.common.BatchItemResult;
+import com.paymentchain.transaction.common.BatchPostResult;
+import com.paymentchain.transaction.entities.Transaction;
+import com.paymentchain.transaction.exception.BusinessRuleException;
+import com.paymentchain.transaction.repository.TransactionRepository;
+import java.util.List;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Duplicate reference (idempotency key) handling of single and batch posts,
+ * and the velocity limits they are counted against.
+ */
+@SpringBootTest(properties = {
+    "transaction.velocity.enabled=true",
+    "transaction.velocity.max-count=3"
+})
+class BusinessTransactionTest {
+
+    @Autowired
+    private BusinessTransaction businessTransaction;
+
+    @SpyBean
+    private TransactionRepository transactionRepository;
+
+    @Test
+    void postReturnsOriginalForRepeatedReference() throws Exception {
+        String reference = unique("REF");
+        Transaction original = businessTransaction.post(transaction(unique("ES"), reference));
+
+        Transaction retry = businessTransaction.post(transaction(unique("ES"), reference));
+
+        assertThat(retry.getId()).isEqualTo(original.getId());
+        assertThat(transactionRepository.findByReference(reference).getId()).isEqualTo(original.getId());
+    }
+
+    @Test
+    void batchReportsRepeatedReferencesAsDuplicates() throws Exception {
+        String iban = unique("ES");
+        String storedReference = unique("REF");
+        String newReference = unique("REF");
+        Transaction stored = businessTransaction.post(transaction(iban, storedReference));
+
+        BatchPostResult result = businessTransaction.postBatch(List.of(
+                transaction(iban, newReference),
+                transaction(iban, storedReference),
+                transaction(iban, newReference)));
+
+        assertThat(result.getCreated()).isEqualTo(1);
+        assertThat(result.getDuplicates()).isEqualTo(2);
+        List<BatchItemResult> items = result.getItems();
+        assertThat(items).extracting(BatchItemResult::getStatus)
+                .containsExactly(BatchItemResult.CREATED, BatchItemResult.DUPLICATE, BatchItemResult.DUPLICATE);
+        assertThat(items.get(1).getId()).isEqualTo(stored.getId());
+        assertThat(items.get(2).getId()).isEqualTo(items.get(0).getId());
+    }
+
+    @Test
+    void batchReportsReferenceStoredConcurrentlyAsDuplicate() throws Exception {
+        String iban = unique("ES");
+        String concurrentReference = unique("REF");
+        String newReference = unique("REF");
+        // Stored behind the back of the batch: neither cached nor returned by its reference lookup
+        Transaction concurrent = transactionRepository.save(transaction(iban, concurrentReference));
+        doReturn(List.of()).when(transactionRepository).findByReferenceIn(any());
+
+        BatchPostResult result = businessTransaction.postBatch(List.of(
+                transaction(iban, newReference),
+                transaction(iban, concurrentReference),
+                transaction(iban, concurrentReference)));
+
+        assertThat(result.getCreated()).isEqualTo(1);
+        assertThat(result.getDuplicates()).isEqualTo(2);
+        assertThat(result.getRejected()).isZero();
+        List<BatchItemResult> items = result.getItems();
+        assertThat(items).extracting(BatchItemResult::getStatus)
+                .containsExactly(BatchItemResult.CREATED, BatchItemResult.DUPLICATE, BatchItemResult.DUPLICATE);
+        assertThat(items.get(1).getId()).isEqualTo(concurrent.getId());
+        assertThat(items.get(2).getId()).isEqualTo(concurrent.getId());
+        assertThat(transactionRepository.findByReference(newReference).getId()).isEqualTo(items.get(0).getId());
+        assertThat(transactionRepository.findByIbanAccount(iban)).hasSize(2);
+    }
+
+    @Test
+    void postStoresBlankReferencesAsNone() throws Exception {
+        String iban = unique("ES");
+
+        Transaction first = businessTransaction.post(transaction(iban, ""));
+        Transaction second = businessTransaction.post(transaction(iban, "  "));
+        Transaction third = businessTransaction.post(transaction(iban, null));
+
+        assertThat(List.of(first.getId(), second.getId(), third.getId())).doesNotHaveDuplicates();
+        assertThat(transactionRepository.findByIbanAccount(iban))
+                .hasSize(3)
+                .extracting(Transaction::getReference)
+                .containsOnlyNulls();
+    }
+
+    @Test
+    void batchStoresEveryItemWithBlankReference() throws Exception {
+        String iban = unique("ES");
+
+        BatchPostResult result = businessTransaction.postBatch(List.of(
+                transaction(iban, ""),
+                transaction(iban, " "),
+                transaction(iban, "")));
+
+        assertThat(result.getCreated()).isEqualTo(3);
+        assertThat(result.getItems()).extracting(BatchItemResult::getStatus).containsOnly(BatchItemResult.CREATED);
+        assertThat(transactionRepository.findByIbanAccount(iban)).hasSize(3);
+    }
+
+    @Test
+    void updateStoresBlankReferenceAsNone() throws Exception {
+        String iban = unique("ES");
+        Transaction first = businessTransaction.post(transaction(iban, ""));
+        Transaction second = businessTransaction.post(transaction(iban, unique("REF")));
+
+        Transaction changed = transaction(iban, " ");
+        assertThat(businessTransaction.update(second.getId(), changed)).isPresent();
+
+        assertThat(transactionRepository.findById(first.getId()).orElseThrow().getReference()).isNull();
+        assertThat(transactionRepository.findById(second.getId()).orElseThrow().getReference()).isNull();
+    }
+
+    @Test
+    void batchRejectsItemsBeyondVelocityLimit() throws Exception {
+        String iban = unique("ES");
+        String storedReference = unique("REF");
+        businessTransaction.post(transaction(iban, storedReference));
+        // Retries are answered without counting again
+        businessTransaction.post(transaction(iban, storedReference));
+
+        BatchPostResult result = businessTransaction.postBatch(List.of(
+                transaction(iban, unique("REF")),
+                transaction(iban, storedReference),
+                transaction(iban, unique("REF")),
+                transaction(iban, unique("REF"))));
+
+        assertThat(result.getItems()).extracting(BatchItemResult::getStatus).containsExactly(
+                BatchItemResult.CREATED, BatchItemResult.DUPLICATE, BatchItemResult.CREATED, BatchItemResult.REJECTED);
+        assertThat(result.getItems().get(3).getCode()).isEqualTo("1063");
+        assertThat(transactionRepository.findByIbanAccount(iban)).hasSize(3);
+    }
+
+    @Test
+    void velocityLimitsOnlyCountStoredTransactions() throws Exception {
+        String iban = unique("ES");
+        String concurrentReference = unique("REF");
+        transactionRepository.save(transaction(iban, concurrentReference));
+        doReturn(List.of()).when(transactionRepository).findByReferenceIn(any());
+
+        // The item repeating the concurrent reference is taken back once the database refuses it
+        BatchPostResult result = businessTransaction.postBatch(List.of(
+                transaction(iban, concurrentReference),
+                transaction(iban, unique("REF")),
+                transaction(iban, unique("REF"))));
+        assertThat(result.getCreated()).isEqualTo(2);
+        assertThat(result.getDuplicates()).isEqualTo(1);
+
+        // Two stored transactions count, so one more post fits
+        businessTransaction.post(transaction(iban, concurrentReference));
+        businessTransaction.post(transaction(iban, unique("REF")));
+        assertThatThrownBy(() -> businessTransaction.post(transaction(iban, unique("REF"))))
+                .isInstanceOfSatisfying(BusinessRuleException.class, e -> assertThat(e.getCode()).isEqualTo("1063"));
+    }
+
+    static Transaction transaction(String ibanAccount, String reference) {
+        Transaction transaction = new Transaction();
+        transaction.setIbanAccount(ibanAccount);
+        transaction.setReference(reference);
+        transaction.setAmount(10);
+        transaction.setStatus("01");
+        transaction.setChannel("WEB");
+        return transaction;
+    }
+
+    static String unique(String prefix) {
+        return prefix + UUID.randomUUID().toString().replace("-", "").substring(0, 20);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.business.velocity;
+
+import com.paymentchain.transaction.exception.BusinessRuleException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Window arithmetic of the velocity limits: counts and amounts within the
+ * window, rejected and released transactions taken back, and the window
+ * sliding one bucket at a time.
+ */
+class VelocityCheckerTest {
+
+    private static final String IBAN = "ES01";
+
+    @Test
+    void rejectsTransactionsBeyondCountWithoutRecordingThem() throws Exception {
+        VelocityChecker checker = checker(Duration.ofMinutes(1), 12, 2, 0);
+
+        checker.check(IBAN, 10);
+        checker.check(IBAN, 10);
+        assertThatThrownBy(() -> checker.check(IBAN, 10))
+                .isInstanceOfSatisfying(BusinessRuleException.class, e -> {
+                    assertThat(e.getCode()).isEqualTo("1063");
+                    assertThat(e.getHttpStatus()).isEqualTo(HttpStatus.TOO_MANY_REQUESTS);
+                });
+        assertThatThrownBy(() -> checker.check(IBAN, 10)).isInstanceOf(BusinessRuleException.class);
+        // Other accounts have windows of their own
+        checker.check("ES02", 10);
+
+        checker.release(IBAN, 10);
+        checker.check(IBAN, 10);
+        assertThatThrownBy(() -> checker.check(IBAN, 10)).isInstanceOf(BusinessRuleException.class);
+    }
+
+    @Test
+    void sumsAbsoluteAmounts() throws Exception {
+        VelocityChecker checker = checker(Duration.ofMinutes(1), 12, 0, 100);
+
+        checker.check(IBAN, 60);
+        checker.check(IBAN, -30);
+        assertThatThrownBy(() -> checker.check(IBAN, 20)).isInstanceOf(BusinessRuleException.class);
+        // The limit itself is allowed
+        checker.check(IBAN, 10);
+
+        checker.release(IBAN, -60);
+        checker.check(IBAN, 60);
+        assertThatThrownBy(() -> checker.check(IBAN, 0.5)).isInstanceOf(BusinessRuleException.class);
+    }
+
+    @Test
+    void releasesTransactionRecordedInEarlierBucket() throws Exception {
+        VelocityChecker checker = checker(Duration.ofSeconds(10), 100, 1, 0);
+
+        checker.check(IBAN, 10);
+        Thread.sleep(250);
+        checker.release(IBAN, 10);
+
+        checker.check(IBAN, 10);
+        assertThatThrownBy(() -> checker.check(IBAN, 10)).isInstanceOf(BusinessRuleException.class);
+        // Nothing left to release beyond what was recorded
+        checker.release(IBAN, 10);
+        checker.release(IBAN, 10);
+        checker.check(IBAN, 10);
+        assertThatThrownBy(() -> checker.check(IBAN, 10)).isInstanceOf(BusinessRuleException.class);
+    }
+
+    @Test
+    void forgetsTransactionsOnceWindowSlidPast() throws Exception {
+        VelocityChecker checker = checker(Duration.ofMillis(200), 2, 1, 0);
+
+        checker.check(IBAN, 10);
+        assertThatThrownBy(() -> checker.check(IBAN, 10)).isInstanceOf(BusinessRuleException.class);
+        assertThat(checker.getRetryAfter()).isEqualTo(Duration.ofMillis(100));
+
+        Thread.sleep(250);
+        checker.check(IBAN, 10);
+    }
+
+    @Test
+    void checksNothingWhenDisabled() throws Exception {
+        VelocityChecker checker = checker(Duration.ofMinutes(1), 12, 1, 0);
+        ReflectionTestUtils.setField(checker, "enabled", false);
+
+        checker.check(IBAN, 10);
+        checker.check(IBAN, 10);
+        checker.release(IBAN, 10);
+    }
+
+    private static VelocityChecker checker(Duration window, int buckets, long maxCount, double maxAmount) {
+        VelocityChecker checker = new VelocityChecker();
+        ReflectionTestUtils.setField(checker, "enabled", true);
+        ReflectionTestUtils.setField(checker, "window", window);
+        ReflectionTestUtils.setField(checker, "buckets", buckets);
+        ReflectionTestUtils.setField(checker, "maxCount", maxCount);
+        ReflectionTestUtils.setField(checker, "maxAmount", maxAmount);
+        ReflectionTestUtils.setField(checker, "maxAccounts", 1000L);
+        ReflectionTestUtils.setField(checker, "meterRegistry", new SimpleMeterRegistry());
+        checker.init();
+        return checker;
+    }
+}
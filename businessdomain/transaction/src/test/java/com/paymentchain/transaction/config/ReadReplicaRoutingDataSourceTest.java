@@ -0,0 +1,128 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.paymentchain.transaction.config;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.sql.SQLException;
+import java.time.Duration;
+import javax.sql.DataSource;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ *
+ * @author rvega
+ */
+
+/**
+ * Routing between the primary and the read replica, each an in-memory H2
+ * database telling which one it is: read-only transactions go to the
+ * replica, everything else to the primary, and reads fall back to the
+ * primary while the replica is down.
+ */
+class ReadReplicaRoutingDataSourceTest {
+
+    private DataSource primary;
+
+    private DataSource replica;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    @BeforeEach
+    void createDatabases() {
+        primary = database("primary");
+        replica = database("replica");
+        meterRegistry = new SimpleMeterRegistry();
+    }
+
+    @Test
+    void sendsReadOnlyTransactionsToReplica() {
+        Routing routing = routing(replica, Duration.ofSeconds(30));
+
+        assertThat(routing.read(true)).isEqualTo("replica");
+        assertThat(routing.read(false)).isEqualTo("primary");
+        // Statements outside a transaction, e.g. writes of Flyway, go to the primary
+        assertThat(routing.jdbc.queryForObject("select name from database_role", String.class)).isEqualTo("primary");
+        assertThat(meterRegistry.get("transaction.datasource.connections").tag("target", "replica").timer().count())
+                .isEqualTo(1);
+    }
+
+    @Test
+    void fallsBackToPrimaryWhileReplicaIsDown() throws SQLException {
+        DataSource down = mock(DataSource.class);
+        when(down.getConnection()).thenThrow(new SQLException("Connection refused"));
+        Routing routing = routing(down, Duration.ofMinutes(5));
+
+        assertThat(routing.read(true)).isEqualTo("primary");
+        assertThat(routing.read(true)).isEqualTo("primary");
+
+        // The replica is skipped after the first failure
+        verify(down, times(1)).getConnection();
+        assertThat(meterRegistry.get("transaction.datasource.replica.fallbacks").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void retriesReplicaOnceRetryDelayIsOver() throws SQLException {
+        DataSource flaky = mock(DataSource.class);
+        when(flaky.getConnection()).thenThrow(new SQLException("Connection refused"))
+                .thenAnswer(invocation -> replica.getConnection());
+        Routing routing = routing(flaky, Duration.ZERO);
+
+        assertThat(routing.read(true)).isEqualTo("primary");
+        assertThat(routing.read(true)).isEqualTo("replica");
+        verify(flaky, times(2)).getConnection();
+    }
+
+    private Routing routing(DataSource replicaTarget, Duration retryAfter) {
+        return new Routing(new LazyConnectionDataSourceProxy(
+                new ReadReplicaRoutingDataSource(primary, replicaTarget, retryAfter, meterRegistry)));
+    }
+
+    private static DataSource database(String role) {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:routing-" + role + ";DB_CLOSE_DELAY=-1");
+        JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+        jdbc.execute("create table if not exists database_role (name varchar(20))");
+        jdbc.update("delete from database_role");
+        jdbc.update("insert into database_role values (?)", role);
+        return dataSource;
+    }
+
+    /**
+     * The routing data source used as the application does, through a
+     * transaction manager.
+     */
+    private static final class Routing {
+
+        private final JdbcTemplate jdbc;
+
+        private final DataSourceTransactionManager transactionManager;
+
+        Routing(DataSource dataSource) {
+            jdbc = new JdbcTemplate(dataSource);
+            transactionManager = new DataSourceTransactionManager(dataSource);
+        }
+
+        /**
+         * Tells which database a transaction reads from.
+         */
+        String read(boolean readOnly) {
+            TransactionTemplate template = new TransactionTemplate(transactionManager);
+            template.setReadOnly(readOnly);
+            return template.execute(status -> jdbc.queryForObject("select name from database_role", String.class));
+        }
+    }
+}